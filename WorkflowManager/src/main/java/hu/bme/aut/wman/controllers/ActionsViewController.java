@@ -6,9 +6,11 @@ import hu.bme.aut.wman.model.ActionType;
 import hu.bme.aut.wman.model.Domain;
 import hu.bme.aut.wman.model.Role;
 import hu.bme.aut.wman.model.User;
+import hu.bme.aut.wman.security.PrivilegeMatrix;
 import hu.bme.aut.wman.security.SecurityToken;
 import hu.bme.aut.wman.service.ActionTypeService;
 import hu.bme.aut.wman.service.DomainService;
+import hu.bme.aut.wman.service.PrivilegeService;
 import hu.bme.aut.wman.service.RoleService;
 import hu.bme.aut.wman.service.UserService;
 import hu.bme.aut.wman.view.Messages.Severity;
@@ -55,17 +57,19 @@ public class ActionsViewController extends AbstractController {
 	private UserService userService;
 	@EJB(mappedName="java:module/DomainService")
 	private DomainService domainService;
+	@EJB(mappedName="java:module/PrivilegeService")
+	private PrivilegeService privilegeService;
 
 	@RequestMapping(value = ACTIONS, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('View ActionType')")
 	public String actionsView(Model model, HttpServletRequest request) {
 		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		List<Domain> domainsWithViewPriv = domainService.domainsOf(user.getId(), Lists.newArrayList("View ActionType"));
+		PrivilegeMatrix privileges = LoginController.privilegesOf(request, privilegeService);
 
 		List<ActionType> allActions = actionTypeService.selectAll();
 		List<ActionType> availableActions = new ArrayList<ActionType>();
 		for (ActionType actionType : allActions) {
-			if (domainsWithViewPriv.contains(actionType.getDomain())) {
+			if (privileges.hasPrivilege(actionType.getDomain(), "View ActionType")) {
 				availableActions.add(actionType);
 			}
 		}
@@ -4,10 +4,18 @@
 package hu.bme.aut.wman.controllers;
 
 import static hu.bme.aut.wman.controllers.LoginController.userIDOf;
+import hu.bme.aut.wman.security.DomainBasedPermissionEvaluator;
+import hu.bme.aut.wman.service.CacheService;
 import hu.bme.aut.wman.service.DomainService;
+import hu.bme.aut.wman.service.GraphPositionWriterService;
+import hu.bme.aut.wman.service.HistoryArchiveService;
+import hu.bme.aut.wman.service.HistoryWriterService;
 import hu.bme.aut.wman.service.PrivilegeService;
+import hu.bme.aut.wman.service.ProjectCommands;
 import hu.bme.aut.wman.service.RoleService;
+import hu.bme.aut.wman.service.StateGraphService;
 import hu.bme.aut.wman.service.UserService;
+import hu.bme.aut.wman.service.WorkflowAnalyticsService;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -17,11 +25,13 @@ import java.util.Map;
 import javax.ejb.EJB;
 import javax.servlet.http.HttpSession;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
 
 /**
  * @author Imre Szekeres
@@ -35,6 +45,7 @@ public class AdminViewController extends AbstractController {
 	public static final String ROLES = ROOT_URL + "/roles";
 	public static final String DOMAINS = ROOT_URL + "/domains";
 	public static final String USERS = ROOT_URL + "/users";
+	public static final String CACHE_STATISTICS = ROOT_URL + "/cache";
 	
 	private static final Map<String, String> NAVIGATION_TABS;
 	
@@ -54,6 +65,18 @@ public class AdminViewController extends AbstractController {
 	private DomainService domainService;
 	@EJB(mappedName = "java:module/PrivilegeService")
 	private PrivilegeService privilegeService;
+	@EJB(mappedName = "java:module/CacheService")
+	private CacheService cacheService;
+	@EJB(mappedName = "java:module/HistoryWriterService")
+	private HistoryWriterService historyWriter;
+	@EJB(mappedName = "java:module/HistoryArchiveService")
+	private HistoryArchiveService historyArchive;
+	@EJB(mappedName = "java:module/WorkflowAnalyticsService")
+	private WorkflowAnalyticsService workflowAnalytics;
+	@EJB(mappedName = "java:module/GraphPositionWriterService")
+	private GraphPositionWriterService positionWriter;
+	@Autowired
+	private DomainBasedPermissionEvaluator permissionEvaluator;
 
 
 	/**
@@ -127,6 +150,26 @@ public class AdminViewController extends AbstractController {
 		return navigateToFrame("admin_users", model);
 	}
 
+	/**
+	 * Returns the statistics of the second level caches and the permission decision cache as JSON, so that
+	 * their sizes can be tuned, along with the timings of the project commands and the state of the history writer and the workflow analytics.
+	 * 
+	 * @return the statistics of the caches
+	 * */
+	@PreAuthorize("hasRole('View Privilege')")
+	@RequestMapping(value = CACHE_STATISTICS, method = RequestMethod.GET)
+	public @ResponseBody Map<String, Object> cacheStatistics() {
+		Map<String, Object> statistics = cacheService.statistics();
+		statistics.put("permissionDecisions", permissionEvaluator.decisionStatistics());
+		statistics.put("projectCommands", ProjectCommands.statistics());
+		statistics.put("historyWriter", historyWriter.statistics());
+		statistics.put("historyArchive", historyArchive.statistics());
+		statistics.put("workflowAnalytics", workflowAnalytics.statistics());
+		statistics.put("graphPositionWriter", positionWriter.statistics());
+		statistics.put("stateGraphJson", StateGraphService.jsonStatistics());
+		return statistics;
+	}
+
 	/**
 	 * @see {@link AbstractController#getNavigationTabs()}
 	 * */
@@ -5,17 +5,20 @@ import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
 import hu.bme.aut.wman.model.BlobFile;
 import hu.bme.aut.wman.model.HistoryEntryEventType;
 import hu.bme.aut.wman.model.Project;
-import hu.bme.aut.wman.model.User;
-import hu.bme.aut.wman.security.SecurityToken;
 import hu.bme.aut.wman.service.BlobFileService;
-import hu.bme.aut.wman.service.HistoryEntryService;
-import hu.bme.aut.wman.service.ProjectService;
-import hu.bme.aut.wman.service.UserService;
+import hu.bme.aut.wman.service.BlobStoreService;
+import hu.bme.aut.wman.service.BlobStoreService.StoredBlob;
+import hu.bme.aut.wman.service.HistoryEvent;
+import hu.bme.aut.wman.service.HistoryWriterService;
+import hu.bme.aut.wman.service.ProjectCommands;
+import hu.bme.aut.wman.utils.ByteRange;
 import hu.bme.aut.wman.view.Messages.Severity;
-import hu.bme.aut.wman.view.objects.FileUploadVO;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,16 +27,22 @@ import javax.ejb.EJB;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.log4j.Logger;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
-import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
+import com.google.common.base.Strings;
+
 @Controller
 public class FileController extends AbstractController{
 
@@ -41,64 +50,153 @@ public class FileController extends AbstractController{
 	public static final String DOWNLOAD_FILE = "/download/file";
 	public static final String DELETE_FILE = "/delete/file";
 
-	private static final int BUFFER_SIZE = 4096;
+	/* the request attributes of the sendfile support of Tomcat (NIO and APR connectors) */
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/** the name of the file input of the upload form */
+	private static final String UPLOAD_FIELD = "file";
+
+	private static final Logger LOGGER = Logger.getLogger(FileController.class);
 
-	@EJB(mappedName = "java:module/ProjectService")
-	private ProjectService projectService;
+	@EJB(mappedName = "java:module/ProjectCommands")
+	private ProjectCommands projectCommands;
 	@EJB(mappedName = "java:module/BlobFileService")
 	private BlobFileService blobFileService;
-	@EJB(mappedName="java:module/HistoryEntryService")
-	private HistoryEntryService historyService;
-	@EJB(mappedName="java:module/UserService")
-	private UserService userService;
-
+	@EJB(mappedName = "java:module/BlobStoreService")
+	private BlobStoreService blobStoreService;
+	@EJB(mappedName="java:module/HistoryWriterService")
+	private HistoryWriterService historyWriter;
+
+	/**
+	 * Streams the uploaded file into the blob store with the streaming API of commons-fileupload, so it is neither
+	 * buffered in the heap nor spooled to a temporary file by a multipart resolver first.
+	 * */
 	@RequestMapping(value = UPLOAD_FILE_ON_PROJECT, method = RequestMethod.POST)
 	@PreAuthorize("hasRole('View Project')")
-	public ModelAndView upload(@RequestParam("id") Long projectId, @ModelAttribute(value="fileUploadVO") FileUploadVO fileVO, Model model, HttpServletRequest request, RedirectAttributes redirectAttributes) {
-
-		String contentType = fileVO.getFile().getContentType();
-		byte[] bytes = fileVO.getFile().getBytes();
-		String originalFilename = fileVO.getFile().getOriginalFilename();
-		Project project = projectService.selectById(projectId);
-
-		BlobFile blobFile = new BlobFile(originalFilename, contentType, bytes, project);
-		project.getFiles().add(blobFile);
-		projectService.save(project);
-
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.UPLOADED_FILE, "uploaded a file: " + originalFilename, projectId);
+	public ModelAndView upload(@RequestParam("id") Long projectId, Model model, HttpServletRequest request, RedirectAttributes redirectAttributes) {
+		try {
+			FileItemIterator items = new ServletFileUpload().getItemIterator(request);
+			while (items.hasNext()) {
+				FileItemStream item = items.next();
+				if (item.isFormField() || !UPLOAD_FIELD.equals(item.getFieldName()) || Strings.isNullOrEmpty(item.getName())) {
+					continue;
+				}
+
+				StoredBlob blob;
+				try (InputStream content = item.openStream()) {
+					blob = blobStoreService.store(content);
+				}
+				projectCommands.uploadFile(request.getRemoteUser(), projectId, item.getName(), item.getContentType(), blob);
+			}
+		} catch (FileUploadException | IOException e) {
+			LOGGER.error(format("Unable to store the file uploaded to the project %d", projectId), e);
+			flash(format("The file could not be uploaded due to: %s", e.getMessage()), Severity.ERROR, model);
+		}
 
 		ModelAndView view = redirectToFrame("project", redirectAttributes);
 		view.setViewName("redirect:/project?id=" + projectId);
 		return view;
 	}
 
+	/**
+	 * Serves the content of a file from the blob store. The file is handed over to the sendfile support of the
+	 * connector when it has one, which writes it to the socket without copying it through the JVM, otherwise it is
+	 * copied through a buffer with {@link FileChannel#transferTo}. Supports conditional requests with
+	 * strong ETags derived from the content hash (<code>If-None-Match</code> resulting in 304) and single byte
+	 * ranges (<code>Range</code>, <code>If-Range</code>) for resumable and parallel downloads.
+	 * */
 	@RequestMapping(value = DOWNLOAD_FILE, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('View Project')")
 	public void download(@RequestParam("id") Long fileId, Model model, HttpServletRequest request,
 			HttpServletResponse response, RedirectAttributes redirectAttributes) throws IOException {
 
-
 		BlobFile file = blobFileService.selectById(fileId);
-		byte[] content = file.getContent();
+		String etag = etagOf(file);
+		response.setHeader("ETag", etag);
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("Cache-Control", "private, no-cache");
+
+		if (matches(request.getHeader("If-None-Match"), etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.DOWNLOADED_FILE, "downloaded a file: " + file.getFileName(), file.getProject().getId());
+		// a range is only served if the client still has the same content
+		ByteRange range = null;
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null || ifRange.trim().equals(etag)) {
+			try {
+				range = ByteRange.parse(request.getHeader("Range"), file.getSize());
+			} catch (IllegalArgumentException e) {
+				response.setHeader("Content-Range", ByteRange.unsatisfiedContentRange(file.getSize()));
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+		}
 
+		long position = 0;
+		long count = file.getSize();
+		if (range != null) {
+			position = range.getStart();
+			count = range.length();
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", range.toContentRange());
+		}
 		response.setContentType(file.getContentType());
-		response.setContentLength(content.length);
-
-		// set headers for the response
-		String headerKey = "Content-Disposition";
-		String headerValue = String.format("attachment; filename=\"%s\"", file.getFileName());
-		response.setHeader(headerKey, headerValue);
+		response.setHeader("Content-Length", String.valueOf(count));
+		response.setHeader("Content-Disposition", String.format("attachment; filename=\"%s\"", file.getFileName()));
+
+		// log only once per download, not for each of the ranges of a resumed or parallel one
+		if (position == 0)
+			historyWriter.enqueue(HistoryEvent.of(request.getRemoteUser(), file.getProject(), HistoryEntryEventType.DOWNLOADED_FILE, "downloaded a file: " + file.getFileName(), new Date()));
+
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			request.setAttribute(SENDFILE_FILENAME, blobStoreService.pathOf(file.getHash()).toAbsolutePath().toString());
+			request.setAttribute(SENDFILE_START, position);
+			request.setAttribute(SENDFILE_END, position + count);
+			return;
+		}
 
-		// get output stream of the response
-		OutputStream outStream = response.getOutputStream();
-		outStream.write(content, 0, content.length);
+		// the servlet output stream is no real channel, so this copies through the buffer of Channels.newChannel
+		try (FileChannel content = blobStoreService.open(file.getHash());
+			 WritableByteChannel target = Channels.newChannel(response.getOutputStream())) {
+			while (count > 0) {
+				long transferred = content.transferTo(position, count, target);
+				if (transferred <= 0)
+					break;
+				position += transferred;
+				count -= transferred;
+			}
+		}
+	}
 
-		outStream.close();
+	/**
+	 * @param file
+	 * @return the strong ETag of the content of the file
+	 * */
+	private static String etagOf(BlobFile file) {
+		return "\"" + file.getHash() + "\"";
+	}
 
+	/**
+	 * @param ifNoneMatch the value of the <code>If-None-Match</code> header
+	 * @param etag
+	 * @return whether any of the listed entity tags matches the given one (weak comparison)
+	 * */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if ("*".equals(candidate) || etag.equals(candidate))
+				return true;
+		}
+		return false;
 	}
 
 	@RequestMapping(value = DELETE_FILE, method = RequestMethod.GET)
@@ -108,12 +206,13 @@ public class FileController extends AbstractController{
 
 		try {
 			blobFileService.delete(file);
+			if (blobFileService.countByHash(file.getHash()) == 0)
+				blobStoreService.delete(file.getHash());
 		} catch (EntityNotDeletableException e) {
 			flash(format("The Workflow is not deletable due to: %s", e.getMessage()), Severity.ERROR, model);
 		}
 
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.REMOVED_FILE, "deleted a file: " + file.getFileName(), projectId);
+		historyWriter.enqueue(HistoryEvent.of(request.getRemoteUser(), file.getProject(), HistoryEntryEventType.REMOVED_FILE, "deleted a file: " + file.getFileName(), new Date()));
 
 		ModelAndView view = redirectToFrame(ProjectViewController.PROJECT, redirectAttributes);
 		view.setViewName(view.getViewName() + "?id=" + projectId);
@@ -10,6 +10,7 @@ import hu.bme.aut.wman.exceptions.MessagedAccessDeniedException;
 import hu.bme.aut.wman.managers.DomainManager;
 import hu.bme.aut.wman.managers.UserManager;
 import hu.bme.aut.wman.model.User;
+import hu.bme.aut.wman.security.PrivilegeMatrix;
 import hu.bme.aut.wman.security.SecurityToken;
 import hu.bme.aut.wman.security.services.AuthenticationService;
 import hu.bme.aut.wman.service.DomainService;
@@ -64,6 +65,8 @@ public class LoginController extends AbstractController {
 	private UserService userService;
 	@EJB(mappedName = "java:module/DomainManager")
 	private DomainManager domainManager;
+	@EJB(mappedName = "java:module/PrivilegeService")
+	private PrivilegeService privilegeService;
 
 	@Autowired
 	@Qualifier("authenticationManager")
@@ -86,7 +89,8 @@ public class LoginController extends AbstractController {
 			return redirectTo(LOGIN);
 
 		if (session.getAttribute("subject") == null)
-			session.setAttribute("subject", new SecurityToken(userService.selectIDOf( request.getRemoteUser() )));
+			session.setAttribute("subject", new SecurityToken(userService.selectIDOf( request.getRemoteUser() ),
+					                                          AuthenticationService.privilegeMatrixOf(request.getRemoteUser(), privilegeService)));
 		model.addAttribute("message", "Welcome to WorkflowManager!");
 		return navigateToFrame("index", model);
 	}
@@ -145,17 +149,18 @@ public class LoginController extends AbstractController {
 		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(username, plainPassword);
 		token.setDetails(new WebAuthenticationDetails( request ));
 		Authentication auth = authManager.authenticate( token );
-		request.getSession().setAttribute("subject", new SecurityToken( id ));
+		request.getSession().setAttribute("subject", new SecurityToken( id, AuthenticationService.privilegeMatrixOf(username, privilegeService) ));
 		
 		SecurityContextHolder.getContext().setAuthentication( auth );
 	}
 
 	/**
 	 * Decides whether the <code>User</code> passed as argument is identical to the user currently signed in and
-	 * in case it is, it attempts to refresh its credentials.
+	 * in case it is, it attempts to refresh its credentials and its <code>PrivilegeMatrix</code>.
 	 * 
 	 * @param user
 	 * @param subject
+	 * @param request
 	 * @param privilegeService
 	 * */
 	public static final void refreshTokens(User user, User subject, HttpServletRequest request, PrivilegeService privilegeService) {
@@ -167,7 +172,31 @@ public class LoginController extends AbstractController {
 					                                                                            authorities );
 			auth.setDetails(new WebAuthenticationDetails( request ));
 			SecurityContextHolder.getContext().setAuthentication( auth );
+			request.getSession().setAttribute("subject", new SecurityToken( subject.getId(), 
+					                                                        AuthenticationService.privilegeMatrixOf(subject.getUsername(), privilegeService) ));
+		}
+	}
+
+	/**
+	 * Retrieves the <code>PrivilegeMatrix</code> of the currently logged in <code>User</code> from its <code>SecurityToken</code>,
+	 * rebuilding it (and the token) in case the security model has changed since it was built.
+	 * 
+	 * @param request
+	 * @param privilegeService
+	 * @return the {@link PrivilegeMatrix} of the current {@link User}
+	 * */
+	public static final PrivilegeMatrix privilegesOf(HttpServletRequest request, PrivilegeService privilegeService) {
+		HttpSession session = request.getSession();
+		SecurityToken token = (SecurityToken) session.getAttribute("subject");
+		if (token == null || request.getRemoteUser() == null)
+			return PrivilegeMatrix.EMPTY;
+
+		PrivilegeMatrix privileges = token.getPrivileges();
+		if (!privileges.isCurrent()) {
+			privileges = AuthenticationService.privilegeMatrixOf(request.getRemoteUser(), privilegeService);
+			session.setAttribute("subject", new SecurityToken(token.getUserID(), privileges));
 		}
+		return privileges;
 	}
 
 	/**
@@ -6,28 +6,44 @@ import hu.bme.aut.wman.exceptions.MessagedAccessDeniedException;
 import hu.bme.aut.wman.model.ActionType;
 import hu.bme.aut.wman.model.HistoryEntryEventType;
 import hu.bme.aut.wman.model.Project;
-import hu.bme.aut.wman.model.State;
 import hu.bme.aut.wman.model.Transition;
 import hu.bme.aut.wman.model.User;
 import hu.bme.aut.wman.security.SecurityToken;
-import hu.bme.aut.wman.service.ActionTypeService;
+import hu.bme.aut.wman.service.ActionResult;
+import hu.bme.aut.wman.service.BulkActionResult;
 import hu.bme.aut.wman.service.DomainService;
 import hu.bme.aut.wman.service.HistoryEntryService;
+import hu.bme.aut.wman.service.HistoryEvent;
+import hu.bme.aut.wman.service.HistoryWriterService;
+import hu.bme.aut.wman.service.Page;
+import hu.bme.aut.wman.service.PrivilegeService;
+import hu.bme.aut.wman.service.ProjectCommands;
 import hu.bme.aut.wman.service.ProjectService;
+import hu.bme.aut.wman.service.StateService;
+import hu.bme.aut.wman.service.TransitionLogService;
 import hu.bme.aut.wman.service.TransitionService;
 import hu.bme.aut.wman.service.UserService;
 import hu.bme.aut.wman.view.Messages.Severity;
+import hu.bme.aut.wman.view.objects.ErrorMessageVO;
 import hu.bme.aut.wman.view.objects.FileUploadVO;
+import hu.bme.aut.wman.view.objects.HistoryEntryVO;
 import hu.bme.aut.wman.view.objects.StringWrapperVO;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.ejb.EJB;
 import javax.servlet.http.HttpServletRequest;
 
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -35,10 +51,12 @@ import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 
 /**
@@ -49,23 +67,37 @@ public class ProjectViewController extends AbstractController {
 
 	public static final String PROJECT = "/project";
 	public static final String COMMENT_ON_PROJECT = "/project/comment";
+	public static final String PROJECT_HISTORY = "/project/history";
+	public static final String PROJECT_STATE_AT = "/project/state/at";
 	public static final String DO_ACTION = "/do/action";
+	public static final String DO_ACTION_BULK = "/do/action/bulk";
 	public static final String SAVE_PROJECT = "/save/project";
 	public static final String ASSIGN_USER = "/assign/user";
 	public static final String UNASSIGN_USER = "/unassign/user";
 
+	private static final int HISTORY_PAGE_SIZE = 20;
+	private static final int MAX_HISTORY_PAGE_SIZE = 200;
+
 	@EJB(mappedName = "java:module/ProjectService")
 	private ProjectService projectService;
+	@EJB(mappedName = "java:module/ProjectCommands")
+	private ProjectCommands projectCommands;
 	@EJB(mappedName = "java:module/TransitionService")
 	private TransitionService transitionService;
 	@EJB(mappedName="java:module/UserService")
 	private UserService userService;
+	@EJB(mappedName="java:module/TransitionLogService")
+	private TransitionLogService transitionLog;
+	@EJB(mappedName="java:module/StateService")
+	private StateService stateService;
 	@EJB(mappedName="java:module/HistoryEntryService")
 	private HistoryEntryService historyService;
-	@EJB(mappedName="java:module/ActionTypeService")
-	private ActionTypeService actionService;
+	@EJB(mappedName="java:module/HistoryWriterService")
+	private HistoryWriterService historyWriter;
 	@EJB(mappedName="java:module/DomainService")
 	private DomainService domainService;
+	@EJB(mappedName="java:module/PrivilegeService")
+	private PrivilegeService privilegeService;
 
 	@RequestMapping(value = PROJECT, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('View Project')")
@@ -79,6 +111,8 @@ public class ProjectViewController extends AbstractController {
 			throw new MessagedAccessDeniedException("you are not assigned to this project.");
 		}
 
+		Page<HistoryEntryVO> history = historyService.selectHistoryPage(projectId, null, null, null, null, null, HISTORY_PAGE_SIZE);
+
 		List<Transition> transitions = transitionService.selectByParentId(project.getCurrentState().getId());
 		List<ActionType> actions = Lists.transform(transitions, new Function<Transition, ActionType>() {
 			@Override
@@ -94,18 +128,61 @@ public class ProjectViewController extends AbstractController {
 		model.addAttribute("fileUploadVO", new FileUploadVO());
 		model.addAttribute("assignedUsers", assignedUsers);
 		model.addAttribute("assignableUsers", assignableUsers);
+		model.addAttribute("history", history.getElements());
+		model.addAttribute("historyCursor", history.getNextCursor());
 		return navigateToFrame("project", model);
 	}
 
-	@RequestMapping(value = COMMENT_ON_PROJECT, method = RequestMethod.POST)
+	/**
+	 * Returns the page of the history of the project starting after the cursor, newest first, optionally restricted
+	 * to some types of events and to the time range [from, to).
+	 * */
+	@RequestMapping(value = PROJECT_HISTORY, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('View Project')")
-	public ModelAndView comment(@RequestParam("id") Long projectId, @ModelAttribute("commentMessage") StringWrapperVO commentMessage, Model model, HttpServletRequest request, RedirectAttributes redirectAttributes) {
+	public @ResponseBody Page<HistoryEntryVO> projectHistory(@RequestParam("id") Long projectId,
+															 @RequestParam(value = "cursor", required = false) String cursor,
+															 @RequestParam(value = "limit", required = false, defaultValue = "20") int limit,
+															 @RequestParam(value = "event", required = false) List<HistoryEntryEventType> events,
+															 @RequestParam(value = "from", required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date from,
+															 @RequestParam(value = "to", required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date to,
+															 HttpServletRequest request) {
+		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
+		Project project = projectService.selectById(projectId);
+		if (!project.getOwner().equals(user) && !userService.selectUsersForProject(projectId).contains(user)) {
+			throw new MessagedAccessDeniedException("you are not assigned to this project.");
+		}
+
+		return historyService.selectHistoryPage(projectId, null, events, from, to, cursor, Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE)));
+	}
 
+	/**
+	 * Returns the state the project was in at the given time, answered from the transition log.
+	 * */
+	@RequestMapping(value = PROJECT_STATE_AT, method = RequestMethod.GET)
+	@PreAuthorize("hasRole('View Project')")
+	public @ResponseBody Map<String, Object> projectStateAt(@RequestParam("id") Long projectId,
+															@RequestParam("at") @DateTimeFormat(iso = ISO.DATE_TIME) Date at,
+															HttpServletRequest request) {
 		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
+		Project project = projectService.selectById(projectId);
+		if (!project.getOwner().equals(user) && !userService.selectUsersForProject(projectId).contains(user)) {
+			throw new MessagedAccessDeniedException("you are not assigned to this project.");
+		}
 
-		projectService.commentOnProject(projectId, user, commentMessage.getValue());
+		Long stateId = transitionLog.stateIdAt(projectId, at);
+		Map<String, Object> state = new LinkedHashMap<String, Object>();
+		state.put("projectId", projectId);
+		state.put("at", at);
+		state.put("stateId", stateId);
+		state.put("stateName", (stateId == null) ? null : stateService.selectById(stateId).getName());
+		return state;
+	}
 
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.COMMENTED, "commented", projectId);
+	@RequestMapping(value = COMMENT_ON_PROJECT, method = RequestMethod.POST)
+	@PreAuthorize("hasRole('View Project')")
+	public ModelAndView comment(@RequestParam("id") Long projectId, @ModelAttribute("commentMessage") StringWrapperVO commentMessage, Model model, HttpServletRequest request, RedirectAttributes redirectAttributes) {
+
+		projectCommands.comment(((SecurityToken) request.getSession().getAttribute("subject")).getUserID(), projectId, commentMessage.getValue());
 
 		ModelAndView view = redirectToFrame("project", redirectAttributes);
 		view.setViewName("redirect:/project?id=" + projectId);
@@ -116,41 +193,59 @@ public class ProjectViewController extends AbstractController {
 	@PreAuthorize("hasRole('View Project')")
 	public ModelAndView doAction(@RequestParam("projectId") Long projectId, @RequestParam("actionId") Long actionId, Model model, HttpServletRequest request, RedirectAttributes redirectAttributes) {
 
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		ActionType action = actionService.selectById(actionId);
-		Project project = projectService.selectById(projectId);
-		State previousState = project.getCurrentState();
+		ActionResult result = projectCommands.executeAction(request.getRemoteUser(), projectId, actionId);
 
-		projectService.executeAction(projectId, actionId);
-
-		project = projectService.selectById(projectId);
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.DONE_ACTION, "done: "+action.getActionTypeName()+" in state: "+previousState.getName(), project, project.getCurrentState().getName());
+		List<ErrorMessageVO> errorList = new ArrayList<ErrorMessageVO>();
+		if (result.isConflict()) {
+			errorList.add(new ErrorMessageVO("Conflict", format("The project was changed meanwhile, it is in state %s now.", result.getCurrentStateName())));
+		}
 
-		ModelAndView view = redirectToFrame("project", redirectAttributes);
+		ModelAndView view = redirectToFrame("project", errorList, redirectAttributes);
 		view.setViewName("redirect:/project?id=" + projectId);
 		return view;
 	}
 
+	/**
+	 * Executes the action on all of the projects given by their ids, or on all the active projects of the workflow
+	 * being in the given state, in the domains where the user may view projects. Answers 400 if the action does not
+	 * exist or neither the projects nor the state are given.
+	 * */
+	@RequestMapping(value = DO_ACTION_BULK, method = RequestMethod.POST)
+	@PreAuthorize("hasRole('View Project')")
+	public ResponseEntity<BulkActionResult> doActionOnAll(@RequestParam("actionId") Long actionId,
+														@RequestParam(value = "projectId", required = false) List<Long> projectIds,
+														@RequestParam(value = "workflowId", required = false) Long workflowId,
+														@RequestParam(value = "stateId", required = false) Long stateId,
+														HttpServletRequest request) {
+		List<Long> domainIds = LoginController.privilegesOf(request, privilegeService).domainIDsWith(Arrays.asList("View Project"));
+		try {
+			BulkActionResult result = projectCommands.executeActionOnAll(request.getRemoteUser(), projectIds, workflowId, stateId, actionId, domainIds);
+			return new ResponseEntity<BulkActionResult>(result, HttpStatus.OK);
+		} catch (RuntimeException e) {
+			/* thrown by the bean, the IllegalArgumentException arrives wrapped in an EJBException */
+			if (!(Throwables.getRootCause(e) instanceof IllegalArgumentException)) {
+				throw e;
+			}
+			return new ResponseEntity<BulkActionResult>(HttpStatus.BAD_REQUEST);
+		}
+	}
+
 	@RequestMapping(value = SAVE_PROJECT, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('View Project')")
 	public void saveProject(HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
 		Long projectId = Long.parseLong(request.getParameter("id"));
 		String name = request.getParameter("name");
 		String description = request.getParameter("description");
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
 
-		projectService.save(projectId, name, description);
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.EDITED_PROJECT, "edited the project", projectId);
+		Project project = projectService.save(projectId, name, description);
+		historyWriter.enqueue(HistoryEvent.of(request.getRemoteUser(), project, HistoryEntryEventType.EDITED_PROJECT, "edited the project", new Date()));
 	}
 
 	@RequestMapping(value = ASSIGN_USER, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('Assign Project')")
 	public void assignUser(@RequestParam("projectId") Long projectId, @RequestParam("id") Long userId, HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
 		try {
-			projectService.assignUser(projectId, userId);
-			User assignedUser = userService.selectById(userId);
-			historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.ASSIGNED_USER, "assigned "+ assignedUser.getUsername(), projectId);
+			projectCommands.assignUser(request.getRemoteUser(), projectId, userId);
 		} catch (Exception e) {
 			flash(format("Error occurred: %s", e.getMessage()), Severity.ERROR, model);
 		}
@@ -160,16 +255,11 @@ public class ProjectViewController extends AbstractController {
 	@RequestMapping(value = UNASSIGN_USER, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('Assign Project')")
 	public void unassignUser(@RequestParam("projectId") Long projectId, @RequestParam("id") Long userId, HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
 		try {
-			projectService.unassignUser(projectId, userId);
+			projectCommands.unassignUser(request.getRemoteUser(), projectId, userId);
 		} catch (EntityNotDeletableException e) {
 			flash(format("Error occurred: %s", e.getMessage()), Severity.ERROR, model);
 		}
-
-
-		User unassignedUser = userService.selectById(userId);
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.UNASSIGNED_USER, "unassigned "+ unassignedUser.getUsername(), projectId);
 	}
 
 	@Override
@@ -2,27 +2,32 @@ package hu.bme.aut.wman.controllers;
 
 import static java.lang.String.format;
 import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
-import hu.bme.aut.wman.model.Domain;
 import hu.bme.aut.wman.model.HistoryEntryEventType;
 import hu.bme.aut.wman.model.Project;
 import hu.bme.aut.wman.model.User;
 import hu.bme.aut.wman.model.Workflow;
+import hu.bme.aut.wman.security.PrivilegeMatrix;
 import hu.bme.aut.wman.security.SecurityToken;
 import hu.bme.aut.wman.service.DomainService;
-import hu.bme.aut.wman.service.HistoryEntryService;
+import hu.bme.aut.wman.service.HistoryEvent;
+import hu.bme.aut.wman.service.HistoryWriterService;
+import hu.bme.aut.wman.service.Page;
+import hu.bme.aut.wman.service.PrivilegeService;
+import hu.bme.aut.wman.service.ProjectCommands;
 import hu.bme.aut.wman.service.ProjectService;
+import hu.bme.aut.wman.service.ProjectService.ProjectOrder;
 import hu.bme.aut.wman.service.UserService;
 import hu.bme.aut.wman.service.WorkflowService;
 import hu.bme.aut.wman.view.Messages.Severity;
 import hu.bme.aut.wman.view.objects.NewProjectVO;
+import hu.bme.aut.wman.view.objects.ProjectSummaryVO;
 
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.ejb.EJB;
 import javax.servlet.http.HttpServletRequest;
@@ -37,7 +42,6 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
@@ -52,48 +56,48 @@ public class ProjectsViewController extends AbstractController {
 	public static final String CLOSE_PROJECT = "/close/project";
 	public static final String DELETE_PROJECT = "/delete/project";
 
+	private static final int PAGE_SIZE = 50;
+
 	@EJB(mappedName = "java:module/ProjectService")
 	private ProjectService projectService;
+	@EJB(mappedName = "java:module/ProjectCommands")
+	private ProjectCommands projectCommands;
 	@EJB(mappedName = "java:module/WorkflowService")
 	private WorkflowService workflowService;
 	@EJB(mappedName="java:module/UserService")
 	private UserService userService;
-	@EJB(mappedName="java:module/HistoryEntryService")
-	private HistoryEntryService historyService;
+	@EJB(mappedName="java:module/HistoryWriterService")
+	private HistoryWriterService historyWriter;
 	@EJB(mappedName="java:module/DomainService")
 	private DomainService domainService;
+	@EJB(mappedName="java:module/PrivilegeService")
+	private PrivilegeService privilegeService;
 
 	@PreAuthorize("hasRole('View Project')")
 	@RequestMapping(value = PROJECTS, method = RequestMethod.GET)
-	public String workflowsView(@RequestParam("active") Boolean actives, Model model, HttpServletRequest request) {
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-
-		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
-		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(Project.PR_ACTIVE, actives));
-		List<Project> projects = projectService.selectByParameters(parameterList);
-		List<Domain> domainsWithViewPriv = domainService.domainsOf(user.getId(), Lists.newArrayList("View Project"));
-
-		List<Project> availableProjects = new ArrayList<Project>();
-		for (Project project : projects) {
-			if (domainsWithViewPriv.contains(project.getWorkflow().getDomain())) {
-				availableProjects.add(project);
-			}
-		}
-
-		model.addAttribute("projects", availableProjects);
+	public String workflowsView(@RequestParam("active") Boolean actives,
+								@RequestParam(value = "cursor", required = false) String cursor,
+								@RequestParam(value = "order", required = false) String order,
+								Model model, HttpServletRequest request) {
+		String username = request.getRemoteUser();
+		ProjectOrder projectOrder = ProjectOrder.of(order);
+		Page<ProjectSummaryVO> page = projectService.selectVisiblePage(username, actives, "View Project", projectOrder, cursor, PAGE_SIZE);
+
+		model.addAttribute("projects", page.getElements());
+		model.addAttribute("nextCursor", page.getNextCursor());
+		model.addAttribute("order", projectOrder.name().toLowerCase(Locale.ENGLISH));
 		return navigateToFrame("projects", model);
 	}
 
 	@PreAuthorize("hasRole('Create Project')")
 	@RequestMapping(value = NEW_PROJECT, method = RequestMethod.GET)
 	public String newWorkflowView(Model model, HttpServletRequest request) {
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		List<Domain> domainsWithViewPriv = domainService.domainsOf(user.getId(), Lists.newArrayList("View Workflow"));
+		PrivilegeMatrix privileges = LoginController.privilegesOf(request, privilegeService);
 
 		List<Workflow> workflows = workflowService.selectAll();
 		List<Workflow> availableWorkflows = new ArrayList<Workflow>();
 		for (Workflow workflow : workflows) {
-			if (domainsWithViewPriv.contains(workflow.getDomain())) {
+			if (privileges.hasPrivilege(workflow.getDomain(), "View Workflow")) {
 				availableWorkflows.add(workflow);
 			}
 		}
@@ -125,7 +129,7 @@ public class ProjectsViewController extends AbstractController {
 		project.setActive(true);
 
 		// if (projectService.verify(project)) {
-		projectService.save(project);
+		projectCommands.createProject(user.getUsername(), project);
 		// }
 
 		ModelAndView view = redirectToFrame(PROJECTS, redirectAttributes);
@@ -137,10 +141,9 @@ public class ProjectsViewController extends AbstractController {
 	@RequestMapping(value = CLOSE_PROJECT, method = RequestMethod.GET)
 	public ModelAndView close(@RequestParam("id") Long projectId, HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
 
-		projectService.closeById(projectId);
+		Project project = projectService.closeById(projectId);
 
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.CLOSED_PROJECT, "closed this project", projectId);
+		historyWriter.enqueue(HistoryEvent.of(request.getRemoteUser(), project, HistoryEntryEventType.CLOSED_PROJECT, "closed this project", new Date()));
 
 		ModelAndView view = redirectToFrame(PROJECTS, redirectAttributes);
 		view.setViewName(view.getViewName() + "?active=true");
@@ -152,14 +155,12 @@ public class ProjectsViewController extends AbstractController {
 	public ModelAndView reopen(@RequestParam("id") Long projectId, HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
 
 		try {
-			projectService.reopenById(projectId);
+			Project project = projectService.reopenById(projectId);
+			historyWriter.enqueue(HistoryEvent.of(request.getRemoteUser(), project, HistoryEntryEventType.REOPENED_PROJECT, "reopened this project", new Date()));
 		} catch (Exception e) {
 			flash(format("Error occurred: %s", e.getMessage()), Severity.ERROR, model); /* TODO: refine */
 		}
 
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		historyService.log(user.getUsername(), new Date(), HistoryEntryEventType.REOPENED_PROJECT, "reopened this project", projectId);
-
 		ModelAndView view = redirectToFrame(PROJECTS, redirectAttributes);
 		view.setViewName(view.getViewName() + "?active=false");
 		return view;
@@ -179,6 +180,7 @@ public class ProjectsViewController extends AbstractController {
 		return view;
 	}
 
+
 	@Override
 	public Map<String, String> getNavigationTabs() {
 		Map<String, String> navMap = new LinkedHashMap<>();
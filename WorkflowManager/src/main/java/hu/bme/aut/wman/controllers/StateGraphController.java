@@ -1,15 +1,28 @@
 package hu.bme.aut.wman.controllers;
 
-import hu.bme.aut.wman.model.graph.GraphNode;
 import hu.bme.aut.wman.service.GraphNodeService;
+import hu.bme.aut.wman.service.GraphPositionWriterService;
+import hu.bme.aut.wman.service.TransitionService;
+import hu.bme.aut.wman.view.objects.NodePositionsVO;
+import hu.bme.aut.wman.view.objects.NodePositionsVO.NodePosition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ejb.EJB;
 import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.http.HttpStatus;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
@@ -20,9 +33,14 @@ import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 public class StateGraphController extends AbstractController {
 
 	public static final String SAVE_NODE = "/save/node";
+	public static final String SAVE_NODES = "/save/nodes";
 
 	@EJB(mappedName = "java:module/GraphNodeService")
 	private GraphNodeService graphNodeService;
+	@EJB(mappedName = "java:module/GraphPositionWriterService")
+	private GraphPositionWriterService positionWriter;
+	@EJB(mappedName = "java:module/TransitionService")
+	private TransitionService transitionService;
 
 	@RequestMapping(value = SAVE_NODE, method = RequestMethod.GET)
 	@ResponseStatus(value = HttpStatus.OK)
@@ -32,10 +50,48 @@ public class StateGraphController extends AbstractController {
 		Integer X = Integer.parseInt(request.getParameter("newX"));
 		Integer Y = Integer.parseInt(request.getParameter("newY"));
 
-		GraphNode node = graphNodeService.selectById(nodeId);
-		node.setX(X);
-		node.setY(Y);
-		graphNodeService.save(node);
+		positionWriter.submit(graphNodeService.getGraphByNodeId(nodeId).getWorkflowId(), nodeId, X, Y);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Queues the positions of the nodes moved in the editor, they are written in a batch within a second, see
+	 * {@link GraphPositionWriterService}. The positions of the nodes deleted since, or not in the graph of the workflow,
+	 * are dropped.
+	 *
+	 * @return the number of the positions accepted, the current version of the graph, and whether the one the
+	 *         positions were sent for is outdated, so the editor should reload it
+	 */
+	@RequestMapping(value = SAVE_NODES, method = RequestMethod.POST)
+	@PreAuthorize("hasRole('Create Workflow')")
+	public @ResponseBody Map<String, Object> saveNodes(@RequestBody NodePositionsVO positions) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		if (positions.getWorkflowId() == null) {
+			result.put("accepted", 0);
+			result.put("stale", true);
+			return result;
+		}
+
+		List<Long> nodeIds = new ArrayList<Long>(positions.getPositions().size());
+		for (NodePosition position : positions.getPositions()) {
+			if (position.getNodeId() != null) {
+				nodeIds.add(position.getNodeId());
+			}
+		}
+		Set<Long> nodeIdsOfGraph = nodeIds.isEmpty() ? Collections.<Long> emptySet()
+				: graphNodeService.selectIdsOfWorkflow(positions.getWorkflowId(), nodeIds);
+
+		int accepted = 0;
+		for (NodePosition position : positions.getPositions()) {
+			if (nodeIdsOfGraph.contains(position.getNodeId())) {
+				positionWriter.submit(positions.getWorkflowId(), position.getNodeId(), position.getX(), position.getY());
+				++accepted;
+			}
+		}
+
+		long version = transitionService.versionOf(positions.getWorkflowId());
+		result.put("accepted", accepted);
+		result.put("version", version);
+		result.put("stale", positions.getVersion() != version);
+		return result;
+	}
+}
@@ -2,36 +2,46 @@ package hu.bme.aut.wman.controllers;
 
 import static java.lang.String.format;
 import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
+import hu.bme.aut.wman.exceptions.WorkflowImportException;
 import hu.bme.aut.wman.model.ActionType;
-import hu.bme.aut.wman.model.Domain;
 import hu.bme.aut.wman.model.Project;
 import hu.bme.aut.wman.model.State;
-import hu.bme.aut.wman.model.User;
 import hu.bme.aut.wman.model.Workflow;
 import hu.bme.aut.wman.model.graph.GraphNode;
-import hu.bme.aut.wman.model.graph.StateGraph;
-import hu.bme.aut.wman.security.SecurityToken;
+import hu.bme.aut.wman.security.PrivilegeMatrix;
 import hu.bme.aut.wman.service.ActionTypeService;
-import hu.bme.aut.wman.service.DomainService;
 import hu.bme.aut.wman.service.GraphNodeService;
+import hu.bme.aut.wman.service.PrivilegeService;
 import hu.bme.aut.wman.service.ProjectService;
 import hu.bme.aut.wman.service.StateGraphService;
+import hu.bme.aut.wman.service.StateGraphService.GraphJson;
 import hu.bme.aut.wman.service.StateService;
 import hu.bme.aut.wman.service.TransitionService;
-import hu.bme.aut.wman.service.UserService;
+import hu.bme.aut.wman.service.WorkflowAnalysis;
+import hu.bme.aut.wman.service.WorkflowAnalyticsService;
+import hu.bme.aut.wman.service.WorkflowExchange;
+import hu.bme.aut.wman.service.WorkflowExchange.Format;
+import hu.bme.aut.wman.service.WorkflowExchangeService;
 import hu.bme.aut.wman.service.WorkflowService;
 import hu.bme.aut.wman.view.Messages.Severity;
 import hu.bme.aut.wman.view.objects.NewTransitionVO;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.ejb.EJB;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -44,7 +54,7 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
-import com.google.common.collect.Lists;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 
 /**
@@ -55,6 +65,10 @@ public class WorkflowViewController extends AbstractController {
 
 	public static final String WORKFLOW = "/workflow";
 	public static final String STATE_GRAPH = "/workflow/stategraph";
+	public static final String ANALYTICS = "/workflow/analytics";
+	public static final String ANALYSIS = "/workflow/analysis";
+	public static final String EXPORT = "/workflow/export";
+	public static final String IMPORT = "/workflow/import";
 	public static final String SAVE_STATE = "/new/state";
 	public static final String NEW_TRANSITION = "/new/transition";
 	public static final String DELETE_STATE = "/delete/state";
@@ -62,6 +76,8 @@ public class WorkflowViewController extends AbstractController {
 	public static final String INITIAL_STATE = "/initial/state";
 	public static final String SAVE_WORKFLOW = "/save/workflow";
 
+	private static final int FETCH_SIZE = 100;
+
 	@EJB(mappedName = "java:module/WorkflowService")
 	private WorkflowService workflowService;
 	@EJB(mappedName = "java:module/StateService")
@@ -76,30 +92,26 @@ public class WorkflowViewController extends AbstractController {
 	private TransitionService transitionService;
 	@EJB(mappedName = "java:module/ActionTypeService")
 	private ActionTypeService actionService;
-	@EJB(mappedName="java:module/UserService")
-	private UserService userService;
-	@EJB(mappedName="java:module/DomainService")
-	private DomainService domainService;
+	@EJB(mappedName="java:module/PrivilegeService")
+	private PrivilegeService privilegeService;
+	@EJB(mappedName = "java:module/WorkflowAnalyticsService")
+	private WorkflowAnalyticsService analyticsService;
+	@EJB(mappedName = "java:module/WorkflowExchangeService")
+	private WorkflowExchangeService exchangeService;
 
 	@RequestMapping(value = WORKFLOW, method = RequestMethod.GET)
 	@PreAuthorize("hasRole('View Workflow')")
 	public String workflowView(@RequestParam("id") Long workflowId, Model model, HttpServletRequest request) {
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		List<Domain> domainsWithViewPriv = domainService.domainsOf(user.getId(), Lists.newArrayList("View Workflow"));
+		PrivilegeMatrix privileges = LoginController.privilegesOf(request, privilegeService);
 
 		Workflow workflow = workflowService.selectById(workflowId);
 		List<Project> projects = projectService.selectAllByWorkflowName(workflow.getName());
 
-		List<ActionType> actions = actionService.selectAll();
-		List<ActionType> availableActions = new ArrayList<ActionType>();
-		for (ActionType action : actions) {
-			if (domainsWithViewPriv.contains(action.getDomain())) {
-				availableActions.add(action);
-			}
-		}
 		Map<Long, String> actionNamesById = Maps.newHashMap();
-		for (ActionType action : availableActions) {
-			actionNamesById.put(action.getId(), action.getActionTypeName());
+		for (ActionType action : actionService.iterateByParameters(new ArrayList<Entry<String, Object>>(), FETCH_SIZE)) {
+			if (privileges.hasPrivilege(action.getDomain(), "View Workflow")) {
+				actionNamesById.put(action.getId(), action.getActionTypeName());
+			}
 		}
 
 		//		model.addAttribute("workflowVO", new WorkflowVO(workflow, projects));
@@ -109,15 +121,118 @@ public class WorkflowViewController extends AbstractController {
 		model.addAttribute("newState", new State());
 		model.addAttribute("newTransition", new NewTransitionVO());
 		model.addAttribute("message", "Workflow " + workflow.getName());
+		model.addAttribute("graphVersion", transitionService.versionOf(workflowId));
+
+		WorkflowAnalysis analysis = transitionService.analysisOf(workflowId);
+		model.addAttribute("analysis", analysis);
+		warnAbout(analysis, workflow, model);
 		return navigateToFrame("workflow", model);
 	}
 
+	/**
+	 * Returns the graph of the workflow as JSON, see {@link StateGraphService#selectJsonByWorkflowId(Long)}. The
+	 * response is tagged by the version of the graph, and if the client holds the current one, only <code>304 Not
+	 * Modified</code> is sent, without reading the graph.
+	 */
 	@RequestMapping(value = STATE_GRAPH, method = RequestMethod.GET)
-	@ResponseStatus(value = HttpStatus.OK)
 	@PreAuthorize("hasRole('View Workflow')")
-	public @ResponseBody StateGraph getGraph(@RequestParam("id") Long workflowId, Model model, HttpServletRequest request) {
-		StateGraph graph = graphService.selectByWorkflowId(workflowId).get(0);
-		return graph;
+	public ResponseEntity<byte[]> getGraph(@RequestParam("id") Long workflowId, HttpServletRequest request) throws IOException {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setCacheControl("private, no-cache");
+		String etag = StateGraphService.etagOf(workflowId);
+		if (matchesAny(request.getHeader("If-None-Match"), etag)) {
+			headers.setETag(etag);
+			return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED);
+		}
+
+		GraphJson json = graphService.selectJsonByWorkflowId(workflowId);
+		headers.setETag(json.getEtag());
+		headers.setContentType(new MediaType("application", "json", Charset.forName("UTF-8")));
+		return new ResponseEntity<byte[]>(json.getBytes(), headers, HttpStatus.OK);
+	}
+
+	/* whether the etag is one of the ones listed in the If-None-Match header, the weak ones compared weakly */
+	private static boolean matchesAny(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(etag) || candidate.equals("*")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the analysis of the graph of the workflow: its unreachable, dead-end and terminal states, its ambiguous
+	 * actions and its cycles, see {@link WorkflowAnalysis}.
+	 */
+	@RequestMapping(value = ANALYSIS, method = RequestMethod.GET)
+	@PreAuthorize("hasRole('View Workflow')")
+	public @ResponseBody WorkflowAnalysis getAnalysis(@RequestParam("id") Long workflowId) {
+		return transitionService.analysisOf(workflowId);
+	}
+
+	/**
+	 * Returns the count, the average and the percentiles of the time spent by the projects in each state of the
+	 * workflow, and of their cycle time, from the aggregates kept up to date by the {@link WorkflowAnalyticsService}.
+	 */
+	@RequestMapping(value = ANALYTICS, method = RequestMethod.GET)
+	@PreAuthorize("hasRole('View Workflow')")
+	public @ResponseBody Map<String, Object> getAnalytics(@RequestParam("id") Long workflowId) {
+		return analyticsService.summaryOf(workflowId);
+	}
+
+	/**
+	 * Streams the workflow with its states, transitions, action types and the positions of its nodes as a download,
+	 * in the format of {@link WorkflowExchange} given by its name, JSON by default.
+	 */
+	@RequestMapping(value = EXPORT, method = RequestMethod.GET)
+	@PreAuthorize("hasRole('View Workflow')")
+	public void exportWorkflow(@RequestParam("id") Long workflowId, @RequestParam(value = "format", required = false) String formatName,
+			HttpServletResponse response) throws IOException {
+		Format format = Format.of(formatName);
+		response.setContentType(format.getContentType());
+		response.setHeader("Content-Disposition", "attachment; filename=\"workflow-" + workflowId + "." + format.getExtension() + "\"");
+		exchangeService.exportWorkflow(workflowId, format, response.getOutputStream());
+	}
+
+	/**
+	 * Imports the workflow posted as the body of the request, in the format of {@link WorkflowExchange} given by its
+	 * name, JSON by default, as a new one of the domain, or of the one in the document.
+	 *
+	 * @return the id of the new workflow, or the reason it was rejected, told by a {@link WorkflowImportException}
+	 */
+	@RequestMapping(value = IMPORT, method = RequestMethod.POST)
+	@PreAuthorize("hasRole('Create Workflow')")
+	public ResponseEntity<Map<String, Object>> importWorkflow(@RequestParam(value = "domain", required = false) String domainName,
+			@RequestParam(value = "format", required = false) String formatName, HttpServletRequest request) throws IOException {
+		Map<String, Object> result = new HashMap<String, Object>();
+		Format format;
+		try {
+			format = Format.of(formatName);
+		} catch (IllegalArgumentException e) {
+			result.put("error", e.getMessage());
+			return new ResponseEntity<Map<String, Object>>(result, HttpStatus.BAD_REQUEST);
+		}
+		try {
+			result.put("workflowId", exchangeService.importWorkflow(format, request.getInputStream(), domainName));
+			return new ResponseEntity<Map<String, Object>>(result, HttpStatus.OK);
+		} catch (RuntimeException e) {
+			/* thrown by the bean, the WorkflowImportException arrives wrapped in an EJBException, any other is a failure */
+			for (Throwable cause : Throwables.getCausalChain(e)) {
+				if (cause instanceof WorkflowImportException) {
+					result.put("error", cause.getMessage());
+					return new ResponseEntity<Map<String, Object>>(result, HttpStatus.BAD_REQUEST);
+				}
+			}
+			throw e;
+		}
 	}
 
 	@RequestMapping(value = SAVE_STATE, method = RequestMethod.POST)
@@ -192,7 +307,6 @@ public class WorkflowViewController extends AbstractController {
 
 		try {
 			workflowService.removeState(workflowId, stateId);
-			graphService.deleteNode(nodeId);
 		} catch (EntityNotDeletableException e) {
 			flash(format("The State is not deletable due to: %s", e.getMessage()), Severity.ERROR, model);
 		}
@@ -205,9 +319,10 @@ public class WorkflowViewController extends AbstractController {
 	@RequestMapping(value = DELETE_TRANSITION, method = RequestMethod.GET)
 	@ResponseStatus(value = HttpStatus.OK)
 	@PreAuthorize("hasRole('Create Workflow')")
-	public void deleteTransition(HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
+	public @ResponseBody WorkflowAnalysis deleteTransition(HttpServletRequest request, Model model, RedirectAttributes redirectAttributes) {
 		Long edgeId = Long.parseLong(request.getParameter("edgeId"));
 		Long transitionId = graphService.getTransitionIdOfEdge(edgeId);
+		Long workflowId = transitionService.selectById(transitionId).getParent().getWorkflow().getId();
 
 		try {
 			transitionService.deleteById(transitionId);
@@ -215,6 +330,7 @@ public class WorkflowViewController extends AbstractController {
 		} catch (EntityNotDeletableException e) {
 			flash(format("The State is not deletable due to: %s", e.getMessage()), Severity.ERROR, model);
 		}
+		return transitionService.analysisOf(workflowId);
 	}
 
 	@RequestMapping(value = SAVE_WORKFLOW, method = RequestMethod.GET)
@@ -228,6 +344,36 @@ public class WorkflowViewController extends AbstractController {
 		workflowService.save(workflowId, name, description);
 	}
 
+	/* flashes the problems of the graph of the workflow as warnings to its editor */
+	private static void warnAbout(WorkflowAnalysis analysis, Workflow workflow, Model model) {
+		Map<Long, String> stateNames = new HashMap<Long, String>();
+		for (State state : workflow.getStates()) {
+			stateNames.put(state.getId(), state.getName());
+		}
+
+		if (analysis.getStateCount() > 0 && analysis.getInitialStateId() == null) {
+			flash("The workflow has no initial state", Severity.WARNING, model);
+		}
+		if (analysis.getInitialStateId() != null && !analysis.getUnreachableStateIds().isEmpty()) {
+			flash(format("Unreachable from the initial state: %s", namesOf(analysis.getUnreachableStateIds(), stateNames)), Severity.WARNING, model);
+		}
+		if (!analysis.getDeadEndStateIds().isEmpty()) {
+			flash(format("No final state can be reached from: %s", namesOf(analysis.getDeadEndStateIds(), stateNames)), Severity.WARNING, model);
+		}
+		for (WorkflowAnalysis.AmbiguousAction ambiguous : analysis.getAmbiguousActions()) {
+			flash(format("An action leads from %s to more than one state: %s", stateNames.get(ambiguous.getStateId()),
+					namesOf(ambiguous.getNextStateIds(), stateNames)), Severity.WARNING, model);
+		}
+	}
+
+	private static List<String> namesOf(List<Long> stateIds, Map<Long, String> stateNames) {
+		List<String> names = new ArrayList<String>(stateIds.size());
+		for (Long stateId : stateIds) {
+			names.add(stateNames.containsKey(stateId) ? stateNames.get(stateId) : String.valueOf(stateId));
+		}
+		return names;
+	}
+
 	@Override
 	public Map<String, String> getNavigationTabs() {
 		return new HashMap<String, String>();
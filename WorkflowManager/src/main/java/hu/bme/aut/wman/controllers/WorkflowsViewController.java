@@ -6,8 +6,10 @@ import hu.bme.aut.wman.model.Domain;
 import hu.bme.aut.wman.model.State;
 import hu.bme.aut.wman.model.User;
 import hu.bme.aut.wman.model.Workflow;
+import hu.bme.aut.wman.security.PrivilegeMatrix;
 import hu.bme.aut.wman.security.SecurityToken;
 import hu.bme.aut.wman.service.DomainService;
+import hu.bme.aut.wman.service.PrivilegeService;
 import hu.bme.aut.wman.service.ProjectService;
 import hu.bme.aut.wman.service.StateService;
 import hu.bme.aut.wman.service.UserService;
@@ -54,17 +56,18 @@ public class WorkflowsViewController extends AbstractController {
 	private UserService userService;
 	@EJB(mappedName="java:module/DomainService")
 	private DomainService domainService;
+	@EJB(mappedName="java:module/PrivilegeService")
+	private PrivilegeService privilegeService;
 
 	@PreAuthorize("hasRole('View Workflow')")
 	@RequestMapping(value = WORKFLOWS, method = RequestMethod.GET)
 	public String workflowsView(Model model, HttpServletRequest request) {
-		User user = userService.selectById(((SecurityToken) request.getSession().getAttribute("subject")).getUserID());
-		List<Domain> domainsWithViewPriv = domainService.domainsOf(user.getId(), Lists.newArrayList("View Workflow"));
+		PrivilegeMatrix privileges = LoginController.privilegesOf(request, privilegeService);
 
 		List<Workflow> allWorkflow = workflowService.selectAll();
 		List<Workflow> availableWorkflows = new ArrayList<Workflow>();
 		for (Workflow workflow : allWorkflow) {
-			if (domainsWithViewPriv.contains(workflow.getDomain())) {
+			if (privileges.hasPrivilege(workflow.getDomain(), "View Workflow")) {
 				availableWorkflows.add(workflow);
 			}
 		}
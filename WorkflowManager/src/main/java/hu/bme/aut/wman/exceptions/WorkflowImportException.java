@@ -0,0 +1,23 @@
+/**
+ * WorkflowImportException.java
+ */
+package hu.bme.aut.wman.exceptions;
+
+/**
+ * Tells why a workflow document was rejected on import, by a message meant for the user who posted it, so it can be
+ * shown as it is. The details of a document that could not be read are kept by the cause.
+ *
+ * @version "%I%, %G%"
+ */
+public class WorkflowImportException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = -6140262361830624175L;
+
+	public WorkflowImportException(String msg) {
+		super(msg);
+	}
+
+	public WorkflowImportException(String msg, Throwable cause) {
+		super(msg, cause);
+	}
+}
@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.annotation.PostConstruct;
@@ -51,6 +52,7 @@ import org.springframework.security.crypto.password.PasswordEncoder;
 public class StartupService {
 
 	private static final Logger LOGGER = Logger.getLogger( StartupService.class );
+	private static final int FETCH_SIZE = 100;
 
 	@Inject
 	private UserService userService;
@@ -153,25 +155,23 @@ public class StartupService {
 	
 	private final void printDB() {
 		LOGGER.debug("printing database..");
-		List<Privilege> privileges = privilegeService.selectAll();
-		List<Role> roles = roleService.selectAll();
-		
 		printDomains();
-		printAs(privileges, "Privileges: ");
-		printAs(roles, "Roles: ");
+		printAs(privilegeService, "Privileges: ");
+		printAs(roleService, "Roles: ");
 		printUsers();
 	}
 	
-	private final <T extends AbstractEntity> void printAs(List<T> entities, String title) {
-		LOGGER.debug(title + String.format("(%d)", entities.size()));
-		for(T entity : entities) 
+	private final <T extends AbstractEntity> void printAs(AbstractDataService<T> service, String title) {
+		List<Entry<String, Object>> all = new ArrayList<>(0);
+		LOGGER.debug(title + String.format("(%d)", service.countByParameters(all)));
+		for(T entity : service.iterateByParameters(all, FETCH_SIZE)) 
 			LOGGER.debug("\t" + entity.toString());
 	}
 	
 	private final void printUsers() {
-		List<User> users = userService.selectAll();
-		LOGGER.debug("Users: " + String.format("(%d)", users.size()));
-		for(User u : users)
+		List<Entry<String, Object>> all = new ArrayList<>(0);
+		LOGGER.debug("Users: " + String.format("(%d)", userService.countByParameters(all)));
+		for(User u : userService.iterateByParameters(all, FETCH_SIZE))
 			print(u);
 	}
 	
@@ -187,9 +187,9 @@ public class StartupService {
 	}
 	
 	private final void printDomains() {
-		List<Domain> domains = domainService.selectAll();
-		LOGGER.debug("Domains: " + String.format("(%d)", domains.size()));
-		for(Domain d : domains)
+		List<Entry<String, Object>> all = new ArrayList<>(0);
+		LOGGER.debug("Domains: " + String.format("(%d)", domainService.countByParameters(all)));
+		for(Domain d : domainService.iterateByParameters(all, FETCH_SIZE))
 			print(d);
 	}
 	
@@ -495,18 +495,16 @@ public class StartupService {
 		return role;
 	}
 	
-	private final void removeAll(List<? extends AbstractEntity> removables, AbstractDataService service) throws Exception {
-		for(AbstractEntity entity : removables) {
-			service.delete(entity);
+	private final <T extends AbstractEntity> void removeAll(List<T> removables, AbstractDataService<T> service) throws Exception {
+		service.deleteAll(removables);
+		for(T entity : removables)
 			LOGGER.debug(entity.toString() + " was removed");
-		}
 	}
 	
-	private final void insertAll(List<? extends AbstractEntity> insertables, AbstractDataService service) throws Exception {
-		for(AbstractEntity entity : insertables) {
-			service.save(entity);
+	private final <T extends AbstractEntity> void insertAll(List<T> insertables, AbstractDataService<T> service) throws Exception {
+		service.saveAll(insertables);
+		for(T entity : insertables)
 			LOGGER.debug(entity.toString() + " was inserted");
-		}
 	}
 
 	/**
@@ -2,6 +2,8 @@ package hu.bme.aut.wman.model;
 
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.validation.constraints.NotNull;
 
 /**
@@ -11,8 +13,13 @@ import javax.validation.constraints.NotNull;
  */
 @SuppressWarnings("serial")
 @Entity
+@NamedQueries({
+	@NamedQuery(name = "ActionType.findNamesByDomainId", query = "SELECT a.id, a.actionTypeName FROM ActionType a WHERE a.domain.id=:domainId"),
+})
 public class ActionType extends AbstractEntity {
 
+	public static final String NQ_FIND_NAMES_BY_DOMAIN_ID = "ActionType.findNamesByDomainId";
+
 	public static final String PR_NAME = "actionTypeName";
 	public static final String PR_DOMAIN = "domain";
 
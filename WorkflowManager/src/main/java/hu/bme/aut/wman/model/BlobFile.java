@@ -1,24 +1,43 @@
 package hu.bme.aut.wman.model;
 
+import java.util.Date;
+
 import javax.persistence.Entity;
-import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 import javax.validation.constraints.NotNull;
 
+import org.apache.openjpa.persistence.jdbc.Index;
+
 /**
- * Entity implementation to store files in database
+ * Entity implementation to store the metadata of files in database. The content itself is kept in the
+ * content-addressed <code>BlobStoreService</code>, referenced by its hash, so loading a <code>Project</code>
+ * with its files does not read their bytes, and the same content is stored only once.
  *
  * @version "%I%, %G%"
  */
 @SuppressWarnings("serial")
 @Entity
 @Table(name = "FILE_STORAGE")
+@NamedQueries({
+	@NamedQuery(name = "BlobFile.findCountByHash", query = "SELECT COUNT(f) FROM BlobFile f WHERE f.hash = :hash"),
+	@NamedQuery(name = "BlobFile.findHashesOnlyOfProject", query = "SELECT DISTINCT f.hash FROM BlobFile f WHERE f.project.id = :projectId "
+			+ "AND NOT EXISTS (SELECT g.id FROM BlobFile g WHERE g.hash = f.hash AND g.project.id <> :projectId)")
+})
 public class BlobFile extends AbstractEntity {
 
+	public static final String NQ_FIND_COUNT_BY_HASH = "BlobFile.findCountByHash";
+	public static final String NQ_FIND_HASHES_ONLY_OF_PROJECT = "BlobFile.findHashesOnlyOfProject";
+
 	public static final String PR_FILE_NAME = "fileName";
 	public static final String PR_STATE = "state";
-	public static final String PR_CONTENT = "content";
+	public static final String PR_SIZE = "size";
+	public static final String PR_HASH = "hash";
+	public static final String PR_UPLOADED_AT = "uploadedAt";
 
 	@NotNull
 	private String fileName;
@@ -30,18 +49,27 @@ public class BlobFile extends AbstractEntity {
 	@ManyToOne
 	private Project project;
 
-	@Lob
-	private byte[] content;
+	private long size;
+
+	/** hex encoded SHA-256 digest of the content, the key of it in the BlobStoreService */
+	@NotNull
+	@Index(name = "I_FILE_STORAGE_HASH")
+	private String hash;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date uploadedAt;
 
 	@Deprecated
 	public BlobFile() {
 		super();
 	}
 
-	public BlobFile(String fileName, String contentType, byte[] content, Project project) {
+	public BlobFile(String fileName, String contentType, long size, String hash, Project project) {
 		this.fileName = fileName;
 		this.contentType = contentType;
-		this.content = content;
+		this.size = size;
+		this.hash = hash;
+		this.uploadedAt = new Date();
 		this.setProject(project);
 	}
 
@@ -53,14 +81,16 @@ public class BlobFile extends AbstractEntity {
 		this.fileName = fileName;
 	}
 
-	public byte[] getContent() {
-		return content;
+	public long getSize() {
+		return size;
 	}
 
+	public String getHash() {
+		return hash;
+	}
 
-	public void setContent(byte[] content)
-	{
-		this.content = content;
+	public Date getUploadedAt() {
+		return uploadedAt;
 	}
 
 	@Override
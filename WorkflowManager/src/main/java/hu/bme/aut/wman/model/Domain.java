@@ -8,6 +8,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -17,12 +18,16 @@ import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
+
+import org.apache.openjpa.persistence.DataCache;
 /**
  * @author Imre Szekeres
  * @version "%I%, %G%"
  */
 @SuppressWarnings("serial")
 @Entity
+@Cacheable
+@DataCache(timeout = 30 * 60 * 1000)
 @NamedQueries({
 	@NamedQuery(name = "Domain.findByName", query = "SELECT d FROM Domain d WHERE d.name = :domainName "),
 	@NamedQuery(name = "Domain.findAllNames", query = "SELECT d.name FROM Domain d "),
@@ -6,6 +6,7 @@ package hu.bme.aut.wman.model;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.ManyToMany;
@@ -13,12 +14,16 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.validation.constraints.NotNull;
+
+import org.apache.openjpa.persistence.DataCache;
 /**
  * @author Imre Szekeres
  * @version "%I%, %G%"
  */
 @SuppressWarnings("serial")
 @Entity
+@Cacheable
+@DataCache(timeout = 10 * 60 * 1000)
 @NamedQueries({
 	@NamedQuery(name = "DomainAssignment.findByDomain", query = "SELECT da FROM DomainAssignment da WHERE da.domain.name = :domainName "),
 	@NamedQuery(name = "DomainAssignment.findByUserID", query = "SELECT da FROM DomainAssignment da WHERE da.user.id = :userID "),
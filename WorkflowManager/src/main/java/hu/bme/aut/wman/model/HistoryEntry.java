@@ -32,6 +32,9 @@ public class HistoryEntry extends AbstractEntity {
 	public static final String PR_PROJECT = "project";
 	public static final String PR_MESSAGE = "message";
 
+	/** the length of the message column, the default of OpenJPA */
+	public static final int MAX_MESSAGE_LENGTH = 255;
+
 	@Size(min = 10, max = 512)
 	private Date when;
 
@@ -47,6 +50,7 @@ public class HistoryEntry extends AbstractEntity {
 	private HistoryEntryEventType event;
 
 	@NotNull
+	@Size(max = MAX_MESSAGE_LENGTH)
 	private String message;
 
 	@NotNull
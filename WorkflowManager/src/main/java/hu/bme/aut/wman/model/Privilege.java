@@ -5,11 +5,13 @@ package hu.bme.aut.wman.model;
 
 import hu.bme.aut.wman.view.DragNDroppable;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.validation.constraints.NotNull;
 
+import org.apache.openjpa.persistence.DataCache;
 import org.springframework.security.core.GrantedAuthority;
 
 /**
@@ -18,6 +20,8 @@ import org.springframework.security.core.GrantedAuthority;
  */
 @SuppressWarnings("serial")
 @Entity
+@Cacheable
+@DataCache(timeout = 60 * 60 * 1000)
 @NamedQueries({
 	@NamedQuery(name = "Privilege.findAllNamesByUsername", query = "SELECT DISTINCT p.name FROM Privilege p, DomainAssignment da, Role r " +
                                                                    "WHERE p MEMBER OF r.privileges " +
@@ -26,12 +30,17 @@ import org.springframework.security.core.GrantedAuthority;
     @NamedQuery(name = "Privilege.findAllByUsername", query = "SELECT DISTINCT p FROM Privilege p, DomainAssignment da, Role r " +
                                                               "WHERE p MEMBER OF r.privileges " + 
     		                                                      "AND r MEMBER OF da.userRoles " +
-                                                                  "AND da.user.username = :username ")
+                                                                  "AND da.user.username = :username "),
+    @NamedQuery(name = "Privilege.findAllDomainPrivilegesByUsername", query = "SELECT DISTINCT da.domain.id, da.domain.name, p.name FROM Privilege p, DomainAssignment da, Role r " +
+                                                                              "WHERE p MEMBER OF r.privileges " +
+                                                                                  "AND r MEMBER OF da.userRoles " +
+                                                                                  "AND da.user.username = :username ")
 })
 public class Privilege extends AbstractEntity implements DragNDroppable, GrantedAuthority {
 
 	public static final String NQ_FIND_ALL_NAMES_BY_USERNAME = "Privilege.findAllNamesByUsername";
 	public static final String NQ_FIND_ALL_BY_USERNAME = "Privilege.findAllByUsername";
+	public static final String NQ_FIND_ALL_DOMAIN_PRIVILEGES_BY_USERNAME = "Privilege.findAllDomainPrivilegesByUsername";
 	
 	public static final String PR_NAME = "name";
 	public static final String PR_ROLES = "roles";
@@ -11,6 +11,7 @@ import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
+import javax.persistence.Version;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
@@ -43,7 +44,22 @@ import javax.validation.constraints.Size;
 											"WHERE pa.project.name = :projectName AND pa.user.username = :username " ),
 
 											@NamedQuery(name = "Project.findCountForAssignmentByID", query = "SELECT COUNT(DISTINCT pa) FROM ProjectAssignment pa " +
-													"WHERE pa.project.id = :projectID AND pa.user.username = :username ")
+													"WHERE pa.project.id = :projectID AND pa.user.username = :username "),
+
+															@NamedQuery(name = "Project.findWorkflowAndStateById", query = "SELECT w.id, s.id, s.name, p.version " +
+																	"FROM Project p JOIN p.workflow w JOIN p.currentState s WHERE p.id = :projectID"),
+															@NamedQuery(name = "Project.updateCurrentState", query = "UPDATE Project p SET p.currentState = :nextState, p.version = :nextVersion " +
+																	"WHERE p.id = :projectID AND p.currentState = :currentState AND COALESCE(p.version, 0) = :version"),
+
+															@NamedQuery(name = "Project.findActionKeysByIds", query = "SELECT p.id, w.id, w.domain.id, s.id, s.name, p.version " +
+																	"FROM Project p JOIN p.workflow w JOIN p.currentState s WHERE p.id IN :projectIDs"),
+															@NamedQuery(name = "Project.findActionKeysByState", query = "SELECT p.id, w.id, w.domain.id, s.id, s.name, p.version " +
+																	"FROM Project p JOIN p.workflow w JOIN p.currentState s " +
+																	"WHERE w.id = :workflowID AND s.id = :stateID AND p.active = true"),
+															@NamedQuery(name = "Project.findCurrentStates", query = "SELECT p.id, s.id FROM Project p JOIN p.currentState s"),
+															@NamedQuery(name = "Project.findStateNamesByIds", query = "SELECT p.id, s.name FROM Project p LEFT JOIN p.currentState s " +
+																	"WHERE p.id IN :projectIDs"),
+															@NamedQuery(name = "Project.findCountInState", query = "SELECT COUNT(p) FROM Project p WHERE p.currentState.id = :stateID")
 })
 public class Project extends AbstractEntity {
 
@@ -57,6 +73,14 @@ public class Project extends AbstractEntity {
 	public static final String NQ_FIND_COUNT_FOR_ASSIGNMENT_BY_NAME = "Project.findCountForAssignmentByName";
 	public static final String NQ_FIND_COUNT_FOR_ASSIGNMENT_BY_ID = "Project.findCountForAssignmentByID";
 
+	public static final String NQ_FIND_WORKFLOW_AND_STATE_BY_ID = "Project.findWorkflowAndStateById";
+	public static final String NQ_UPDATE_CURRENT_STATE = "Project.updateCurrentState";
+	public static final String NQ_FIND_ACTION_KEYS_BY_IDS = "Project.findActionKeysByIds";
+	public static final String NQ_FIND_ACTION_KEYS_BY_STATE = "Project.findActionKeysByState";
+	public static final String NQ_FIND_CURRENT_STATES = "Project.findCurrentStates";
+	public static final String NQ_FIND_STATE_NAMES_BY_IDS = "Project.findStateNamesByIds";
+	public static final String NQ_FIND_COUNT_IN_STATE = "Project.findCountInState";
+
 	public static final String PR_NAME = "name";
 	public static final String PR_CURRENT_STATE = "currentState";
 	public static final String PR_DESCRIPTION = "description";
@@ -83,7 +107,8 @@ public class Project extends AbstractEntity {
 	@ManyToOne
 	private Workflow workflow;
 
-	@OneToMany(mappedBy = "project", fetch= FetchType.EAGER)
+	/* the history grows without bounds, it is read page by page, see HistoryEntryService#selectHistoryPage */
+	@OneToMany(mappedBy = "project", fetch = FetchType.LAZY)
 	private List<HistoryEntry> historyEntries;
 
 	@OneToMany(mappedBy = "project", fetch = FetchType.EAGER, cascade = CascadeType.REMOVE)
@@ -95,6 +120,10 @@ public class Project extends AbstractEntity {
 	@NotNull
 	private boolean active = true;
 
+	/* optimistic lock, also incremented by the UPDATEs moving the project, see ProjectService#executeAction */
+	@Version
+	private long version;
+
 	//FIXME just for test
 	//	@NotNull
 	@ManyToOne
@@ -114,6 +143,10 @@ public class Project extends AbstractEntity {
 		this.owner = owner;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
 	public String getName() {
 		return name;
 	}
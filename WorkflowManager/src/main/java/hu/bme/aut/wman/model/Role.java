@@ -3,6 +3,7 @@ package hu.bme.aut.wman.model;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
@@ -12,12 +13,16 @@ import javax.persistence.NamedQuery;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
+import org.apache.openjpa.persistence.DataCache;
+
 /**
  * Entity implementation class for Entity: Role
  *
  * @version "%I%, %G%"
  */
 @Entity
+@Cacheable
+@DataCache(timeout = 30 * 60 * 1000)
 @SuppressWarnings("serial")
 @NamedQueries({
 	@NamedQuery(name = "Role.findByActionType", query = "SELECT r FROM Role r WHERE :actionType MEMBER OF r.actionTypes"),
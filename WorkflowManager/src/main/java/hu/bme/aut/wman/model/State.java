@@ -21,11 +21,19 @@ import javax.validation.constraints.NotNull;
 @NamedQueries({
 	@NamedQuery(name = "State.findByWorkflowId", query = "SELECT s FROM State s WHERE s.workflow.id=:id"),
 	@NamedQuery(name = "State.findInitialInWorkflow", query = "SELECT s FROM State s WHERE s.workflow.id=:id and s.initial=true"),
+	@NamedQuery(name = "State.findNamesByIds", query = "SELECT s.id, s.name FROM State s WHERE s.id IN :ids"),
+	@NamedQuery(name = "State.findIdsByWorkflowId", query = "SELECT s.id, s.initial FROM State s WHERE s.workflow.id=:id"),
+	@NamedQuery(name = "State.findPageByWorkflowId", query = "SELECT s.id, s.name, s.description, s.initial FROM State s WHERE s.workflow.id=:id AND s.id>:afterId ORDER BY s.id"),
+	@NamedQuery(name = "State.findIdsByNamePrefix", query = "SELECT s.id, s.name FROM State s WHERE s.workflow.id=:id AND s.name LIKE :prefix"),
 })
 public class State extends AbstractEntity {
 
 	public static final String NQ_FIND_BY_WORKFLOW_ID = "State.findByWorkflowId";
 	public static final String NQ_FIND_INTIAL_IN_WORKFLOW = "State.findInitialInWorkflow";
+	public static final String NQ_FIND_NAMES_BY_IDS = "State.findNamesByIds";
+	public static final String NQ_FIND_IDS_BY_WORKFLOW_ID = "State.findIdsByWorkflowId";
+	public static final String NQ_FIND_PAGE_BY_WORKFLOW_ID = "State.findPageByWorkflowId";
+	public static final String NQ_FIND_IDS_BY_NAME_PREFIX = "State.findIdsByNamePrefix";
 
 	public static final String PR_NAME = "name";
 	public static final String PR_INITIAL = "initial";
@@ -0,0 +1,145 @@
+package hu.bme.aut.wman.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+
+import org.apache.openjpa.persistence.jdbc.Index;
+
+/**
+ * Entity implementation class for Entity: StateSnapshot
+ * <p>
+ * The state of every <code>Project</code> after the <code>TransitionEvent</code>s up to (and including) a given id,
+ * so the state at a time is the snapshot taken before it, replayed with the events after it only. The states are
+ * stored as one binary value of (project id, state id) pairs, sorted by the project id.
+ *
+ * @version "%I%, %G%"
+ */
+@SuppressWarnings("serial")
+@Entity
+@NamedQueries({
+	@NamedQuery(name = "StateSnapshot.findLatest", query = "SELECT s FROM StateSnapshot s ORDER BY s.lastEventId DESC"),
+	@NamedQuery(name = "StateSnapshot.findLatestAt", query = "SELECT s FROM StateSnapshot s WHERE s.takenAt <= :at ORDER BY s.takenAt DESC"),
+	@NamedQuery(name = "StateSnapshot.findTakenBefore", query = "SELECT s.id, s.takenAt FROM StateSnapshot s WHERE s.takenAt < :before ORDER BY s.takenAt") })
+public class StateSnapshot extends AbstractEntity {
+
+	public static final String NQ_FIND_LATEST = "StateSnapshot.findLatest";
+	public static final String NQ_FIND_LATEST_AT = "StateSnapshot.findLatestAt";
+	public static final String NQ_FIND_TAKEN_BEFORE = "StateSnapshot.findTakenBefore";
+
+	public static final String PR_TAKEN_AT = "takenAt";
+	public static final String PR_LAST_EVENT_ID = "lastEventId";
+
+	private static final int PAIR_SIZE = 16;
+
+	@NotNull
+	@Temporal(TemporalType.TIMESTAMP)
+	@Index(name = "I_STATE_SNAPSHOT_TAKEN_AT")
+	private Date takenAt;
+
+	private long lastEventId;
+
+	private int projectCount;
+
+	@Lob
+	@Basic(fetch = FetchType.LAZY)
+	private byte[] states;
+
+	public StateSnapshot() {
+		super();
+	}
+
+	/**
+	 * @param takenAt
+	 * @param lastEventId
+	 *            the id of the last event the states include
+	 * @param states
+	 *            the ids of the states by the ids of the projects
+	 */
+	public StateSnapshot(Date takenAt, long lastEventId, Map<Long, Long> states) {
+		this.takenAt = takenAt;
+		this.lastEventId = lastEventId;
+		this.projectCount = states.size();
+		ByteBuffer buffer = ByteBuffer.allocate(states.size() * PAIR_SIZE);
+		for (Map.Entry<Long, Long> state : new TreeMap<Long, Long>(states).entrySet()) {
+			buffer.putLong(state.getKey()).putLong(state.getValue());
+		}
+		this.states = buffer.array();
+	}
+
+	public Date getTakenAt() {
+		return takenAt;
+	}
+
+	public long getLastEventId() {
+		return lastEventId;
+	}
+
+	public int getProjectCount() {
+		return projectCount;
+	}
+
+	/**
+	 * @param projectId
+	 * @return the id of the state of the project, or <code>null</code> if the snapshot does not hold it
+	 */
+	public Long stateOf(Long projectId) {
+		ByteBuffer buffer = ByteBuffer.wrap(states);
+		int low = 0;
+		int high = states.length / PAIR_SIZE - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleId = buffer.getLong(middle * PAIR_SIZE);
+			if (middleId < projectId) {
+				low = middle + 1;
+			} else if (middleId > projectId) {
+				high = middle - 1;
+			} else {
+				return buffer.getLong(middle * PAIR_SIZE + 8);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param stateId
+	 * @return the ids of the projects in the state, in ascending order
+	 */
+	public List<Long> projectIdsIn(Long stateId) {
+		ByteBuffer buffer = ByteBuffer.wrap(states);
+		List<Long> projectIds = new ArrayList<Long>();
+		while (buffer.hasRemaining()) {
+			long projectId = buffer.getLong();
+			if (buffer.getLong() == stateId) {
+				projectIds.add(projectId);
+			}
+		}
+		return projectIds;
+	}
+
+	/**
+	 * @return the ids of the states by the ids of the projects
+	 */
+	public SortedMap<Long, Long> toMap() {
+		ByteBuffer buffer = ByteBuffer.wrap(states);
+		SortedMap<Long, Long> map = new TreeMap<Long, Long>();
+		while (buffer.hasRemaining()) {
+			map.put(buffer.getLong(), buffer.getLong());
+		}
+		return map;
+	}
+}
@@ -18,13 +18,23 @@ import javax.validation.constraints.NotNull;
 @NamedQueries({
 	@NamedQuery(name = "Transition.findByParentId", query = "SELECT t FROM Transition t WHERE t.parentState.id=:parentId"),
 	@NamedQuery(name = "Transition.findByNextId", query = "SELECT t FROM Transition t WHERE t.nextState.id=:nextId"),
-	@NamedQuery(name = "Transition.findByActionTypeId", query = "SELECT t FROM Transition t WHERE t.actionType.id=:typeId")
+	@NamedQuery(name = "Transition.findByActionTypeId", query = "SELECT t FROM Transition t WHERE t.actionType.id=:typeId"),
+	@NamedQuery(name = "Transition.findTableByWorkflowId", query = "SELECT t.parentState.id, t.actionType.id, t.nextState.id FROM Transition t WHERE t.parentState.workflow.id=:workflowId"),
+	@NamedQuery(name = "Transition.findPageByWorkflowId", query = "SELECT t.id, t.parentState.id, t.actionType.id, t.nextState.id FROM Transition t " +
+			"WHERE t.parentState.workflow.id=:workflowId AND t.id>:afterId ORDER BY t.id"),
+	@NamedQuery(name = "Transition.findActionTypesByWorkflowId", query = "SELECT DISTINCT a.id, a.actionTypeName FROM Transition t JOIN t.actionType a " +
+			"WHERE t.parentState.workflow.id=:workflowId"),
+	@NamedQuery(name = "Transition.deleteByStateId", query = "DELETE FROM Transition t WHERE t.parentState.id=:stateId OR t.nextState.id=:stateId")
 })
 public class Transition extends AbstractEntity {
 
 	public static final String NQ_FIND_BY_PARENT_ID = "Transition.findByParentId";
 	public static final String NQ_FIND_BY_NEXT_STATE_ID = "Transition.findByNextId";
 	public static final String NQ_FIND_BY_ACTIONTYPE_ID = "Transition.findByActionTypeId";
+	public static final String NQ_FIND_TABLE_BY_WORKFLOW_ID = "Transition.findTableByWorkflowId";
+	public static final String NQ_FIND_PAGE_BY_WORKFLOW_ID = "Transition.findPageByWorkflowId";
+	public static final String NQ_FIND_ACTION_TYPES_BY_WORKFLOW_ID = "Transition.findActionTypesByWorkflowId";
+	public static final String NQ_DELETE_BY_STATE_ID = "Transition.deleteByStateId";
 
 	public static final String PR_PARENT_STATE = "parentState";
 	public static final String PR_NEXT_STATE = "nextState";
@@ -0,0 +1,126 @@
+package hu.bme.aut.wman.model;
+
+import java.util.Date;
+
+import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Entity implementation class for Entity: TransitionEvent
+ * <p>
+ * An append-only record of a <code>Project</code> moved from a <code>State</code> to another by an
+ * <code>ActionType</code>, or created in its initial state (without the state it came from and the action). The
+ * entities are referred to by their ids only, so the log outlives them. The id of the <code>Workflow</code> of the
+ * project is kept as well, so the events of a deleted project still count for its workflow. The events are never updated, the current
+ * state of a project is the target of its last event.
+ *
+ * @version "%I%, %G%"
+ */
+@SuppressWarnings("serial")
+@Entity
+@NamedQueries({
+	@NamedQuery(name = "TransitionEvent.findMaxIdSettled", query = "SELECT MAX(e.id) FROM TransitionEvent e WHERE e.occurredAt <= :settledAt"),
+	@NamedQuery(name = "TransitionEvent.findTargetsAfter", query = "SELECT e.id, e.projectId, e.toStateId FROM TransitionEvent e " +
+																	"WHERE e.id > :afterID AND e.id <= :untilID ORDER BY e.id"),
+	@NamedQuery(name = "TransitionEvent.findTargetsAfterAt", query = "SELECT e.id, e.projectId, e.toStateId FROM TransitionEvent e " +
+																	"WHERE e.id > :afterID AND e.occurredAt <= :at ORDER BY e.id"),
+	@NamedQuery(name = "TransitionEvent.findBounds", query = "SELECT MIN(e.projectId), MAX(e.projectId), MAX(e.id) FROM TransitionEvent e"),
+	@NamedQuery(name = "TransitionEvent.findFlowsAfter", query = "SELECT e.id, e.projectId, e.workflowId, e.fromStateId, e.toStateId, e.occurredAt " +
+																"FROM TransitionEvent e WHERE e.id > :afterID AND e.occurredAt <= :settledAt ORDER BY e.id"),
+	@NamedQuery(name = "TransitionEvent.findFlowsOfProjects", query = "SELECT e.id, e.projectId, e.workflowId, e.fromStateId, e.toStateId, e.occurredAt " +
+																	"FROM TransitionEvent e WHERE e.projectId >= :fromID AND e.projectId < :toID " +
+																	"AND e.id <= :untilID ORDER BY e.projectId, e.occurredAt, e.id"),
+	@NamedQuery(name = "TransitionEvent.findByProject", query = "SELECT e FROM TransitionEvent e WHERE e.projectId = :projectID " +
+																"ORDER BY e.occurredAt, e.id") })
+public class TransitionEvent extends AbstractEntity {
+
+	public static final String NQ_FIND_MAX_ID_SETTLED = "TransitionEvent.findMaxIdSettled";
+	public static final String NQ_FIND_TARGETS_AFTER = "TransitionEvent.findTargetsAfter";
+	public static final String NQ_FIND_TARGETS_AFTER_AT = "TransitionEvent.findTargetsAfterAt";
+	public static final String NQ_FIND_BOUNDS = "TransitionEvent.findBounds";
+	public static final String NQ_FIND_FLOWS_AFTER = "TransitionEvent.findFlowsAfter";
+	public static final String NQ_FIND_FLOWS_OF_PROJECTS = "TransitionEvent.findFlowsOfProjects";
+	public static final String NQ_FIND_BY_PROJECT = "TransitionEvent.findByProject";
+
+	public static final String PR_PROJECT_ID = "projectId";
+	public static final String PR_WORKFLOW_ID = "workflowId";
+	public static final String PR_FROM_STATE_ID = "fromStateId";
+	public static final String PR_TO_STATE_ID = "toStateId";
+	public static final String PR_ACTION_ID = "actionId";
+	public static final String PR_USER_NAME = "userName";
+	public static final String PR_OCCURRED_AT = "occurredAt";
+
+	@NotNull
+	private Long projectId;
+
+	/* null in the events logged before it was kept, of the projects deleted since */
+	private Long workflowId;
+
+	private Long fromStateId;
+
+	@NotNull
+	private Long toStateId;
+
+	private Long actionId;
+
+	private String userName;
+
+	@NotNull
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date occurredAt;
+
+	public TransitionEvent() {
+		super();
+	}
+
+	public TransitionEvent(Long projectId, Long workflowId, Long fromStateId, Long toStateId, Long actionId, String userName, Date occurredAt) {
+		this.projectId = projectId;
+		this.workflowId = workflowId;
+		this.fromStateId = fromStateId;
+		this.toStateId = toStateId;
+		this.actionId = actionId;
+		this.userName = userName;
+		this.occurredAt = occurredAt;
+	}
+
+	public Long getProjectId() {
+		return projectId;
+	}
+
+	/**
+	 * @return the workflow of the project, or <code>null</code> if it was deleted before the workflows were logged
+	 */
+	public Long getWorkflowId() {
+		return workflowId;
+	}
+
+	/**
+	 * @return the state the project left, or <code>null</code> if it was created
+	 */
+	public Long getFromStateId() {
+		return fromStateId;
+	}
+
+	public Long getToStateId() {
+		return toStateId;
+	}
+
+	/**
+	 * @return the action executed, or <code>null</code> if the project was created
+	 */
+	public Long getActionId() {
+		return actionId;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public Date getOccurredAt() {
+		return occurredAt;
+	}
+}
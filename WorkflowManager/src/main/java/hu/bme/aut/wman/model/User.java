@@ -3,6 +3,7 @@ package hu.bme.aut.wman.model;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -15,6 +16,8 @@ import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
 
+import org.apache.openjpa.persistence.DataCache;
+
 /**
  * Entity implementation class for Entity: User
  *
@@ -22,6 +25,8 @@ import javax.validation.constraints.Size;
  */
 @SuppressWarnings("serial")
 @Entity
+@Cacheable
+@DataCache(timeout = 5 * 60 * 1000)
 @Table(name = "WM_USER")
 @NamedQueries({
 	@NamedQuery(name = "User.findUsersForProject", query = "SELECT u FROM User u, ProjectAssignment pa WHERE pa.user = u AND pa.project.id = :projectId"),
@@ -11,6 +11,7 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.Version;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
@@ -31,11 +32,13 @@ import javax.validation.constraints.Size;
 			"AND p MEMBER OF r.privileges " +
 			"AND p.name = :privilegeName " +
 			"AND r MEMBER OF da.userRoles "),
+	@NamedQuery(name = "Workflow.findHeaderById", query = "SELECT w.name, w.description, d.name FROM Workflow w LEFT JOIN w.domain d WHERE w.id=:id"),
 
 })
 public class Workflow extends AbstractEntity {
 
 	public static final String NQ_FIND_COUNT_BY_PRIVILEGE = "Workflow.findCountByPrivilege";
+	public static final String NQ_FIND_HEADER_BY_ID = "Workflow.findHeaderById";
 
 	public static final String PR_NAME = "name";
 	public static final String PR_STATES = "states";
@@ -58,6 +61,10 @@ public class Workflow extends AbstractEntity {
 	@OneToMany(mappedBy = "workflow", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
 	private List<State> states = new ArrayList<State>();
 
+	/* optimistic lock of the edits of the workflow */
+	@Version
+	private long version;
+
 	//	@OneToMany(mappedBy = "workflow")
 	//	private List<Project> projects = new ArrayList<Project>();
 
@@ -70,6 +77,10 @@ public class Workflow extends AbstractEntity {
 		this.setDomain(domain);
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
 	public String getName() {
 		return name;
 	}
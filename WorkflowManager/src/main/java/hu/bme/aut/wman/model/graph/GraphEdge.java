@@ -14,16 +14,19 @@ import org.codehaus.jackson.annotate.JsonBackReference;
 @Entity
 @NamedQueries({
 	@NamedQuery(name = "GraphEdge.findByStartId", query = "SELECT ge FROM GraphEdge ge WHERE ge.start.id=:startId"),
-	@NamedQuery(name = "GraphEdge.findByEndId", query = "SELECT ge FROM GraphEdge ge WHERE ge.end.id=:endId")
+	@NamedQuery(name = "GraphEdge.findByEndId", query = "SELECT ge FROM GraphEdge ge WHERE ge.end.id=:endId"),
+	@NamedQuery(name = "GraphEdge.deleteByNodeId", query = "DELETE FROM GraphEdge ge WHERE ge.start.id=:nodeId OR ge.end.id=:nodeId")
 })
 public class GraphEdge extends AbstractEntity {
 	public static final String NQ_FIND_BY_START_ID = "GraphEdge.findByStartId";
 	public static final String NQ_FIND_BY_END_ID = "GraphEdge.findByEndId";
+	public static final String NQ_DELETE_BY_NODE_ID = "GraphEdge.deleteByNodeId";
 
 	public static final String PR_START = "start";
 	public static final String PR_END = "end";
 	public static final String PR_TRANSITION_ID = "transitionId";
 	public static final String PR_LABEL = "label";
+	public static final String PR_GRAPH = "graph";
 
 	@NotNull
 	@ManyToOne
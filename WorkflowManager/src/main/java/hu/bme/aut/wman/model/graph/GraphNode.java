@@ -2,17 +2,29 @@ package hu.bme.aut.wman.model.graph;
 
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import javax.validation.constraints.NotNull;
 
 import org.codehaus.jackson.annotate.JsonBackReference;
 
 @SuppressWarnings("serial")
 @Entity
+@NamedQueries({
+	@NamedQuery(name = "GraphNode.findIdByStateId", query = "SELECT n.id FROM GraphNode n WHERE n.stateId=:stateId"),
+	@NamedQuery(name = "GraphNode.findPositionsByStateIds", query = "SELECT n.stateId, n.x, n.y FROM GraphNode n WHERE n.graph.id=:graphId AND n.stateId IN :stateIds"),
+	@NamedQuery(name = "GraphNode.findIdsOfWorkflow", query = "SELECT n.id FROM GraphNode n WHERE n.graph.workflowId=:workflowId AND n.id IN :nodeIds")
+})
 public class GraphNode extends GraphItem {
+	public static final String NQ_FIND_ID_BY_STATE_ID = "GraphNode.findIdByStateId";
+	public static final String NQ_FIND_POSITIONS_BY_STATE_IDS = "GraphNode.findPositionsByStateIds";
+	public static final String NQ_FIND_IDS_OF_WORKFLOW = "GraphNode.findIdsOfWorkflow";
+
 	public static final String PR_STATE_ID = "stateId";
 	public static final String PR_LABEL = "label";
 	public static final String PR_CONTENT = "content";
 	public static final String PR_INITIAL = "initial";
+	public static final String PR_GRAPH = "graph";
 
 	@NotNull
 	private Long stateId;
@@ -19,9 +19,11 @@ import org.codehaus.jackson.annotate.JsonManagedReference;
 @Entity
 @NamedQueries({
 	@NamedQuery(name = "StateGraph.findByWorkflowId", query = "SELECT sg FROM StateGraph sg WHERE sg.workflowId=:id"),
+	@NamedQuery(name = "StateGraph.findFirstIdByWorkflowId", query = "SELECT MIN(sg.id) FROM StateGraph sg WHERE sg.workflowId=:id"),
 })
 public class StateGraph extends AbstractEntity {
 	public static final String NQ_FIND_BY_WORKFLOW_ID = "StateGraph.findByWorkflowId";
+	public static final String NQ_FIND_FIRST_ID_BY_WORKFLOW_ID = "StateGraph.findFirstIdByWorkflowId";
 
 	public static final String PR_WORKFLOW_ID = "workflowId";
 	public static final String PR_POINTS = "points";
@@ -14,6 +14,8 @@ import hu.bme.aut.wman.service.WorkflowService;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.ejb.EJB;
 
@@ -22,6 +24,8 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.security.access.PermissionEvaluator;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.User;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 /**
  * @author Imre Szekeres
  * @version "%I%, %G%"
@@ -47,6 +51,8 @@ public class DomainBasedPermissionEvaluator implements PermissionEvaluator {
 	@EJB(mappedName = "java:module/WorkflowService")
 	private WorkflowService workflowService;
 
+	private PermissionDecisionCache decisionCache = new PermissionDecisionCache();
+
 	/**
 	 * Responsible for handling the hasPermission(targetDomainObject, permission) like expression.
 	 * <p>
@@ -74,8 +80,42 @@ public class DomainBasedPermissionEvaluator implements PermissionEvaluator {
 	 * @see {@link PermissionEvaluator#hasPermission(Authentication, Serializable, String, Object)}
 	 * */
 	@Override
-	public boolean hasPermission(Authentication authentication, Serializable targetId, String targetType, Object permission) {
-		String username = ((User) authentication.getPrincipal()).getUsername();
+	public boolean hasPermission(Authentication authentication, final Serializable targetId, final String targetType, final Object permission) {
+		final String username = ((User) authentication.getPrincipal()).getUsername();
+		return decisionCache.decide(username, targetType, targetId, permission, new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return evaluate(username, targetId, targetType, permission);
+			}
+		});
+	}
+
+	/**
+	 * @return the statistics of the decision cache
+	 * @see {@link PermissionDecisionCache#statistics()}
+	 * */
+	public Map<String, Object> decisionStatistics() {
+		return decisionCache.statistics();
+	}
+
+	/**
+	 * @param decisionCache to use instead of the default one
+	 * */
+	public void setDecisionCache(PermissionDecisionCache decisionCache) {
+		this.decisionCache = decisionCache;
+	}
+
+	/**
+	 * Makes the actual decision by querying the corresponding service.
+	 * 
+	 * @param username
+	 * @param targetId
+	 * @param targetType
+	 * @param permission
+	 * @return the decision made
+	 * */
+	private boolean evaluate(String username, Serializable targetId, String targetType, Object permission) {
 		if ("Role".equals( targetType ))
 			return roleService.hasPrivilege(username, (Long) targetId, (String) permission);
 		
@@ -95,7 +135,8 @@ public class DomainBasedPermissionEvaluator implements PermissionEvaluator {
 
 	/**
 	 * Handles the case when it is to be decided whether the given <code>User</code> has the given <code>Privilege</code>
-	 * (specified by its name) in the <code>Domain</code> given by its name or id.
+	 * (specified by its name) in the <code>Domain</code> given by its name or id. It is answered from the 
+	 * <code>PrivilegeMatrix</code> of the current session when it is up to date.
 	 * 
 	 * @param username
 	 * @param targetId
@@ -103,11 +144,32 @@ public class DomainBasedPermissionEvaluator implements PermissionEvaluator {
 	 * @return true when the {@link User} has any {@link Role} that owns the {@link Privilege} specified in the given {@link Domain}
 	 * */
 	private boolean hasDomainPermissions(String username, Object targetId, String permission) {
+		PrivilegeMatrix privileges = currentPrivileges();
+		if (privileges != null)
+			return (targetId instanceof Long) ? privileges.hasPrivilege((Long) targetId, permission)
+					                          : privileges.hasPrivilege((String) targetId, permission);
+
 		if (targetId instanceof Long) 
 			return domainService.hasPrivilege(username, (Long) targetId, permission);
 		return domainService.hasPrivilege(username, (String) targetId, permission);
 	}
 
+	/**
+	 * Retrieves the <code>PrivilegeMatrix</code> attached to the <code>SecurityToken</code> of the current session.
+	 * 
+	 * @return the {@link PrivilegeMatrix} or null when called outside of a request or it is out of date
+	 * */
+	private static PrivilegeMatrix currentPrivileges() {
+		RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+		if (attributes == null)
+			return null;
+		Object token = attributes.getAttribute("subject", RequestAttributes.SCOPE_SESSION);
+		if (!(token instanceof SecurityToken))
+			return null;
+		PrivilegeMatrix privileges = ((SecurityToken) token).getPrivileges();
+		return privileges.isCurrent() ? privileges : null;
+	}
+
 	/**
 	 * Handles the case when it is to be decided whether the given <code>User</code> has the given <code>Privilege</code>
 	 * (specified by its name) in ANY of the <code>Domain</code>s the given <code>User</code> is in.
@@ -0,0 +1,224 @@
+/**
+ * PermissionDecisionCache.java
+ */
+package hu.bme.aut.wman.security;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Bounded, concurrent cache of the decisions made by the <code>DomainBasedPermissionEvaluator</code>, keyed
+ * by (username, target type, target id, permission).
+ * <p>
+ * Decisions expire after a short time to live, but any change of the <code>Role</code>s, <code>Privilege</code>s
+ * or assignments must call {@link PermissionDecisionCache#invalidateAll(TransactionSynchronizationRegistry)}, which bumps the global generation
+ * counter, so the decisions cached before are never served again.
+ *
+ * @version "%I%, %G%"
+ */
+public class PermissionDecisionCache {
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+	public static final long DEFAULT_TIME_TO_LIVE = 30;
+
+	private static final AtomicLong GENERATION = new AtomicLong();
+
+	private final Cache<Key, Boolean> decisions;
+	private final AtomicLong evaluations = new AtomicLong();
+	private final AtomicLong evaluationNanos = new AtomicLong();
+	private final AtomicLong lookupNanos = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+
+	public PermissionDecisionCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param maximumSize
+	 *            the maximal number of decisions kept
+	 * @param timeToLive
+	 *            in seconds, after which a decision expires
+	 * */
+	public PermissionDecisionCache(long maximumSize, long timeToLive) {
+		decisions = CacheBuilder.newBuilder()
+								.maximumSize(maximumSize)
+								.expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+								.recordStats()
+								.build();
+	}
+
+	/**
+	 * Invalidates every decision cached so far by any of the instances. Must be called whenever a
+	 * <code>Role</code>, <code>Privilege</code>, <code>Domain</code> or any kind of assignment changes.
+	 *
+	 * @return the new generation
+	 * */
+	public static long invalidateAll() {
+		return GENERATION.incrementAndGet();
+	}
+
+	/**
+	 * Invalidates every decision cached so far, like {@link PermissionDecisionCache#invalidateAll()}. When called
+	 * in a transaction, they are invalidated after its completion again, so the decisions made of the uncommitted
+	 * state in the meantime are not kept either.
+	 *
+	 * @param transactionRegistry
+	 *            of the current transaction, may be <code>null</code>
+	 * */
+	public static void invalidateAll(TransactionSynchronizationRegistry transactionRegistry) {
+		invalidateAll();
+		if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					invalidateAll();
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the current generation of the decisions
+	 * */
+	public static long generation() {
+		return GENERATION.get();
+	}
+
+	/**
+	 * Returns the cached decision corresponding to the arguments, or makes it with the given evaluation
+	 * and caches it.
+	 *
+	 * @param username
+	 * @param targetType
+	 * @param targetId
+	 * @param permission
+	 * @param evaluation
+	 *            that makes the decision on cache miss
+	 * @return the decision
+	 * */
+	public boolean decide(String username, String targetType, Serializable targetId, Object permission,
+						  final Callable<Boolean> evaluation) {
+		Key key = new Key(GENERATION.get(), username, targetType, targetId, permission);
+		long start = System.nanoTime();
+		try {
+			return decisions.get(key, new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception {
+					long evaluationStart = System.nanoTime();
+					try {
+						return evaluation.call();
+					} finally {
+						evaluations.incrementAndGet();
+						evaluationNanos.addAndGet(System.nanoTime() - evaluationStart);
+					}
+				}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			lookups.incrementAndGet();
+			lookupNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Collects the hit rate of the cache, and the average latency of the lookups and the evaluations
+	 * made on cache misses.
+	 *
+	 * @return a {@link Map} of the statistics
+	 * */
+	public Map<String, Object> statistics() {
+		CacheStats stats = decisions.stats();
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("generation", GENERATION.get());
+		statistics.put("size", decisions.size());
+		statistics.put("hits", stats.hitCount());
+		statistics.put("misses", stats.missCount());
+		statistics.put("hitRate", stats.hitRate());
+		statistics.put("evictions", stats.evictionCount());
+		statistics.put("averageLookupMicros", averageMicros(lookupNanos.get(), lookups.get()));
+		statistics.put("averageEvaluationMicros", averageMicros(evaluationNanos.get(), evaluations.get()));
+		return statistics;
+	}
+
+	private static double averageMicros(long nanos, long count) {
+		return (count == 0) ? 0.0 : (nanos / 1000.0) / count;
+	}
+
+	/**
+	 * Immutable key of a decision, also carrying the generation it was made in.
+	 * */
+	private static final class Key {
+
+		private final long generation;
+		private final String username;
+		private final String targetType;
+		private final Serializable targetId;
+		private final String permission;
+		private final int hash;
+
+		Key(long generation, String username, String targetType, Serializable targetId, Object permission) {
+			this.generation = generation;
+			this.username = username;
+			this.targetType = targetType;
+			this.targetId = targetId;
+			this.permission = String.valueOf(permission);
+
+			int h = (int) (generation ^ (generation >>> 32));
+			h = 31 * h + hashOf(username);
+			h = 31 * h + hashOf(targetType);
+			h = 31 * h + hashOf(targetId);
+			this.hash = 31 * h + this.permission.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return generation == other.generation && hash == other.hash
+					&& equal(username, other.username)
+					&& equal(targetType, other.targetType)
+					&& equal(targetId, other.targetId)
+					&& permission.equals(other.permission);
+		}
+
+		private static int hashOf(Object o) {
+			return (o == null) ? 0 : o.hashCode();
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return (a == null) ? b == null : a.equals(b);
+		}
+	}
+}
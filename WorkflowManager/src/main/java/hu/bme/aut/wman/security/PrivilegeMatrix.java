@@ -0,0 +1,224 @@
+/**
+ * PrivilegeMatrix.java
+ */
+package hu.bme.aut.wman.security;
+
+import hu.bme.aut.wman.model.Domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable, compact representation of the effective <code>Privilege</code>s of a <code>User</code> in each of
+ * the <code>Domain</code>s it is assigned to. Each <code>Domain</code> is a row of <code>long</code> words used as
+ * a bitset, indexed by the ordinals the <code>Privilege</code> names are interned to, so any check is answered
+ * from memory in constant time.
+ * <p>
+ * The ordinals are only valid in the JVM the matrix was built in, and the matrix reflects the security model
+ * of the moment it was built, see {@link PrivilegeMatrix#isCurrent()}.
+ *
+ * @version "%I%, %G%"
+ */
+public final class PrivilegeMatrix implements Serializable {
+
+	private static final long serialVersionUID = 5309178541432893760L;
+
+	/** Identifies the JVM instance, so the matrices deserialized from a previous one are never current. */
+	private static final long EPOCH = System.nanoTime() ^ System.identityHashCode(PrivilegeMatrix.class);
+	private static final ConcurrentMap<String, Integer> ORDINALS = new ConcurrentHashMap<String, Integer>();
+	private static final AtomicInteger NEXT_ORDINAL = new AtomicInteger();
+
+	/** An empty matrix, which is never current. */
+	public static final PrivilegeMatrix EMPTY = new PrivilegeMatrix(0L, -1L, new Long[0], new String[0], new long[0][]);
+
+	private final long epoch;
+	private final long generation;
+	private final Long[] domainIds;
+	private final String[] domainNames;
+	private final long[][] rows;
+	private final Map<Long, Integer> rowsById;
+	private final Map<String, Integer> rowsByName;
+
+	private PrivilegeMatrix(long epoch, long generation, Long[] domainIds, String[] domainNames, long[][] rows) {
+		this.epoch = epoch;
+		this.generation = generation;
+		this.domainIds = domainIds;
+		this.domainNames = domainNames;
+		this.rows = rows;
+		this.rowsById = new HashMap<Long, Integer>(domainIds.length * 2);
+		this.rowsByName = new HashMap<String, Integer>(domainNames.length * 2);
+		for (int i = 0; i < domainIds.length; ++i) {
+			rowsById.put(domainIds[i], i);
+			rowsByName.put(domainNames[i], i);
+		}
+	}
+
+	/**
+	 * @return a new {@link Builder} of the given generation of the security model
+	 * @see {@link PermissionDecisionCache#generation()}
+	 * */
+	public static Builder builder(long generation) {
+		return new Builder(generation);
+	}
+
+	/**
+	 * @return whether the matrix was built in this JVM and no <code>Role</code> or assignment has changed since
+	 * */
+	public boolean isCurrent() {
+		return epoch == EPOCH && generation == PermissionDecisionCache.generation();
+	}
+
+	/**
+	 * @param domainID
+	 * @param privilegeName
+	 * @return whether the <code>User</code> has the given <code>Privilege</code> in the <code>Domain</code> specified by its id
+	 * */
+	public boolean hasPrivilege(Long domainID, String privilegeName) {
+		return isSet(rowsById.get(domainID), ordinalOf(privilegeName));
+	}
+
+	/**
+	 * @param domainName
+	 * @param privilegeName
+	 * @return whether the <code>User</code> has the given <code>Privilege</code> in the <code>Domain</code> specified by its name
+	 * */
+	public boolean hasPrivilege(String domainName, String privilegeName) {
+		return isSet(rowsByName.get(domainName), ordinalOf(privilegeName));
+	}
+
+	/**
+	 * @param domain
+	 * @param privilegeName
+	 * @return whether the <code>User</code> has the given <code>Privilege</code> in the given <code>Domain</code>
+	 * */
+	public boolean hasPrivilege(Domain domain, String privilegeName) {
+		return (domain != null) && hasPrivilege(domain.getId(), privilegeName);
+	}
+
+	/**
+	 * @param privilegeNames
+	 * @return the ids of the <code>Domain</code>s in which the <code>User</code> has any of the given <code>Privilege</code>s
+	 * */
+	public List<Long> domainIDsWith(Collection<? extends String> privilegeNames) {
+		long[] mask = maskOf(privilegeNames);
+		List<Long> results = new ArrayList<Long>(domainIds.length);
+		for (int i = 0; i < rows.length; ++i) {
+			if (intersects(rows[i], mask))
+				results.add(domainIds[i]);
+		}
+		return results;
+	}
+
+	/**
+	 * @return the generation of the security model the matrix was built in
+	 * */
+	public long getGeneration() {
+		return generation;
+	}
+
+	private boolean isSet(Integer row, int ordinal) {
+		if (row == null || ordinal < 0)
+			return false;
+		long[] words = rows[row];
+		int word = ordinal >>> 6;
+		return word < words.length && (words[word] & (1L << ordinal)) != 0;
+	}
+
+	private static long[] maskOf(Collection<? extends String> privilegeNames) {
+		long[] mask = new long[0];
+		for (String privilegeName : privilegeNames) {
+			int ordinal = ordinalOf(privilegeName);
+			if (ordinal >= 0)
+				mask = set(mask, ordinal);
+		}
+		return mask;
+	}
+
+	private static boolean intersects(long[] row, long[] mask) {
+		int length = Math.min(row.length, mask.length);
+		for (int i = 0; i < length; ++i) {
+			if ((row[i] & mask[i]) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static long[] set(long[] words, int ordinal) {
+		int word = ordinal >>> 6;
+		long[] result = (word < words.length) ? words : Arrays.copyOf(words, word + 1);
+		result[word] |= 1L << ordinal;
+		return result;
+	}
+
+	/* does not intern, unknown names are owned by nobody */
+	private static int ordinalOf(String privilegeName) {
+		Integer ordinal = ORDINALS.get(privilegeName);
+		return (ordinal == null) ? -1 : ordinal;
+	}
+
+	private static int intern(String privilegeName) {
+		Integer ordinal = ORDINALS.get(privilegeName);
+		if (ordinal == null) {
+			Integer candidate = NEXT_ORDINAL.getAndIncrement();
+			ordinal = ORDINALS.putIfAbsent(privilegeName, candidate);
+			ordinal = (ordinal == null) ? candidate : ordinal;
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Collects the (<code>Domain</code>, <code>Privilege</code>) pairs of a <code>User</code> and builds the
+	 * immutable {@link PrivilegeMatrix} of them.
+	 * */
+	public static final class Builder {
+
+		private final long generation;
+		private final Map<Long, String> names = new LinkedHashMap<Long, String>();
+		private final Map<Long, long[]> rows = new LinkedHashMap<Long, long[]>();
+
+		private Builder(long generation) {
+			this.generation = generation;
+		}
+
+		/**
+		 * Adds the <code>Privilege</code> to the row of the <code>Domain</code>.
+		 *
+		 * @param domainID
+		 * @param domainName
+		 * @param privilegeName
+		 * @return this builder
+		 * */
+		public Builder add(Long domainID, String domainName, String privilegeName) {
+			long[] row = rows.get(domainID);
+			if (row == null) {
+				names.put(domainID, domainName);
+				row = new long[0];
+			}
+			rows.put(domainID, set(row, intern(privilegeName)));
+			return this;
+		}
+
+		/**
+		 * @return the immutable {@link PrivilegeMatrix}
+		 * */
+		public PrivilegeMatrix build() {
+			Long[] domainIds = rows.keySet().toArray(new Long[rows.size()]);
+			String[] domainNames = new String[domainIds.length];
+			long[][] matrix = new long[domainIds.length][];
+			for (int i = 0; i < domainIds.length; ++i) {
+				domainNames[i] = names.get(domainIds[i]);
+				matrix[i] = rows.get(domainIds[i]);
+			}
+			return new PrivilegeMatrix(EPOCH, generation, domainIds, domainNames, matrix);
+		}
+	}
+}
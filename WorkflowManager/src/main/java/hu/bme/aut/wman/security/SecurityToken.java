@@ -15,9 +15,15 @@ public class SecurityToken implements Serializable {
 	 */
 	private static final long serialVersionUID = -990387414281134984L;
 	private final long userID;
+	private final PrivilegeMatrix privileges;
 	
 	public SecurityToken(long userID) {
+		this(userID, PrivilegeMatrix.EMPTY);
+	}
+
+	public SecurityToken(long userID, PrivilegeMatrix privileges) {
 		this.userID = userID;
+		this.privileges = (privileges == null) ? PrivilegeMatrix.EMPTY : privileges;
 	}
 	
 	/**
@@ -28,6 +34,15 @@ public class SecurityToken implements Serializable {
 		return userID;
 	}
 
+	/**
+	 * 
+	 * @return the effective privileges of the user, computed at login
+	 * @see {@link PrivilegeMatrix#isCurrent()}
+	 * */
+	public PrivilegeMatrix getPrivileges() {
+		return privileges;
+	}
+
 	/**
 	 * 
 	 * @return a hash value corresponding to this instance
@@ -4,6 +4,8 @@
 package hu.bme.aut.wman.security.services;
 
 import static hu.bme.aut.wman.utils.StringUtils.isEmpty;
+import hu.bme.aut.wman.security.PermissionDecisionCache;
+import hu.bme.aut.wman.security.PrivilegeMatrix;
 import hu.bme.aut.wman.service.PrivilegeService;
 import hu.bme.aut.wman.service.UserService;
 
@@ -54,6 +56,22 @@ public class AuthenticationService implements UserDetailsService {
 		return privilegeService.privilegesOf(username);
 	}
 
+	/**
+	 * Builds the <code>PrivilegeMatrix</code> of the <code>User</code> in the current generation of the
+	 * security model.
+	 * 
+	 * @param username
+	 * @param privilegeService
+	 * @return the {@link PrivilegeMatrix} of the given {@link User}
+	 * */
+	public static PrivilegeMatrix privilegeMatrixOf(String username, PrivilegeService privilegeService) {
+		/* read before the query, so a concurrent change leaves the matrix stale rather than wrong */
+		PrivilegeMatrix.Builder builder = PrivilegeMatrix.builder(PermissionDecisionCache.generation());
+		for (Object[] row : privilegeService.domainPrivilegesOf(username))
+			builder.add((Long) row[0], (String) row[1], (String) row[2]);
+		return builder.build();
+	}
+
 
 
 	/**
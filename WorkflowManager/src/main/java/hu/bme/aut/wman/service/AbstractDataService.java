@@ -4,20 +4,39 @@ import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
 import hu.bme.aut.wman.model.AbstractEntity;
 
 import java.io.Serializable;
-import java.util.AbstractMap;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
+
+import org.apache.openjpa.jdbc.conf.JDBCConfiguration;
+import org.apache.openjpa.jdbc.meta.ClassMapping;
+import org.apache.openjpa.jdbc.meta.FieldMapping;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactorySPI;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
 
 /**
  * Abstract class, which implements and helps with the basic CRUD operations and queries.
@@ -32,9 +51,31 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 
 	private static final long serialVersionUID = 1928789410516821492L;
 
+	/**
+	 * The default number of entities written before the persistence context is flushed by the bulk
+	 * operations. Kept in line with the <code>batchLimit</code> of the OpenJPA <code>DBDictionary</code>
+	 * configured in persistence.xml, so that the UPDATEs and DELETEs of one flush are sent in one JDBC
+	 * batch per statement type. The INSERTs are not batched: with IDENTITY ids OpenJPA reads the id of
+	 * each new row, so it sends them one by one.
+	 * */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/** the maximal number of queries kept by the query cache of <code>selectByParameters</code> */
+	public static final int QUERY_CACHE_SIZE = 1000;
+
+	/**
+	 * Parameterized SELECT queries built by {@link AbstractDataService#selectByParameters(List)}, keyed by the entity and
+	 * the ordered parameter names. Shared by all of the services, since the queries depend only on these.
+	 * */
+	private static final Cache<String, String> QUERY_CACHE = CacheBuilder.newBuilder().maximumSize(QUERY_CACHE_SIZE).build();
+	private static final AtomicLong QUERY_CACHE_HITS = new AtomicLong();
+	private static final AtomicLong QUERY_CACHE_MISSES = new AtomicLong();
+
 	@PersistenceContext
 	private EntityManager em;
 
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
 	/**
 	 * Saves the given entity. Persist if it is a new entity, merge if it is not.
 	 *
@@ -60,6 +101,18 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 		return em.merge(entity);
 	}
 
+	/**
+	 * Obtains a reference to an entity of any type without loading its state, e.g. to be used as
+	 * a parameter of a bulk UPDATE.
+	 *
+	 * @param cls
+	 * @param id
+	 * @return the reference to the entity
+	 */
+	protected <E> E referenceOf(Class<E> cls, Object id) {
+		return em.getReference(cls, id);
+	}
+
 	/**
 	 * Deletes the entity from the database.
 	 *
@@ -88,6 +141,83 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 		delete(selectById(id));
 	}
 
+	/**
+	 * Saves all of the given entities. The persistence context is flushed after every
+	 * <code>batchSize</code> entities, so that the pending UPDATEs are sent to the database
+	 * in JDBC batches and the persistence context stays small. The new entities are still
+	 * inserted one round-trip each, as OpenJPA does not batch INSERTs of IDENTITY ids; see
+	 * {@link AbstractDataService#executeNativeInsert(String, String[], List)} for the rows
+	 * which need not be loaded as entities.
+	 *
+	 * @param entities
+	 *            to save
+	 * @see {@link AbstractDataService#save(AbstractEntity)}
+	 */
+	public void saveAll(Collection<? extends T> entities) {
+		int count = 0;
+		for (T entity : entities) {
+			save(entity);
+			if (++count % batchSize == 0) {
+				em.flush();
+			}
+		}
+		if (count % batchSize != 0) {
+			em.flush();
+		}
+	}
+
+	/**
+	 * Deletes all of the given entities from the database, flushing the persistence context after
+	 * every <code>batchSize</code> entities. Unlike {@link AbstractDataService#deleteAllByIds(Collection)}
+	 * it honours the cascades defined on the entities.
+	 *
+	 * @param entities
+	 *            to delete
+	 * @throws EntityNotDeletableException
+	 * @see {@link AbstractDataService#delete(AbstractEntity)}
+	 */
+	public void deleteAll(Collection<? extends T> entities) throws EntityNotDeletableException {
+		int count = 0;
+		for (T entity : entities) {
+			delete(entity);
+			if (++count % batchSize == 0) {
+				em.flush();
+			}
+		}
+		if (count % batchSize != 0) {
+			em.flush();
+		}
+	}
+
+	/**
+	 * Deletes the entities specified by their IDs with set-based JPQL DELETE statements, each of them
+	 * removing at most <code>batchSize</code> rows.
+	 * <p>
+	 * Note that bulk deletes bypass the persistence context, so neither cascades nor lifecycle callbacks
+	 * are applied. Use it only for entities, which do not own any other entity.
+	 *
+	 * @param ids
+	 *            of the entities to delete
+	 * @return the number of rows deleted
+	 */
+	public int deleteAllByIds(Collection<Long> ids) {
+		if (ids.isEmpty()) {
+			return 0;
+		}
+
+		String jpql = "DELETE FROM " + getEntityClass().getSimpleName() + " e WHERE e." + AbstractEntity.PR_ID + " IN :ids";
+		List<Long> idList = new ArrayList<Long>(ids);
+		int deleted = 0;
+		for (int from = 0; from < idList.size(); from += batchSize) {
+			int to = Math.min(from + batchSize, idList.size());
+			Query query = em.createQuery(jpql);
+			query.setParameter("ids", idList.subList(from, to));
+			deleted += query.executeUpdate();
+		}
+		evictFromCaches();
+		return deleted;
+	}
+
 	/**
 	 * Returns all of the entities, which represented by the Entity class.
 	 *
@@ -103,19 +233,18 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 	}
 
 	/**
-	 * Returns the Entity which has the specified ID.
+	 * Returns the Entity which has the specified ID. It is looked up by the <code>EntityManager</code> directly,
+	 * so it is served from the persistence context or the data cache whenever possible.
 	 *
 	 * @param id
 	 *            of the entity
 	 * @return the result entity
 	 */
 	public T selectById(long id) {
-		ArrayList<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
-		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(AbstractEntity.PR_ID, id));
-		Iterator<T> results = selectByParameters(parameterList).iterator();
+		T result = em.find(getEntityClass(), id);
 
-		if (results.hasNext()) {
-			return results.next();
+		if (result != null) {
+			return result;
 		} else {
 			throw new NoSuchElementException("There is not entity with id: " + id + "in class: " + getEntityClass().getSimpleName());
 		}
@@ -123,15 +252,171 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 
 	/**
 	 * Returns the result list of the query. The parameters will connected with <b>AND</b> in the query's WHERE part.
+	 * <p>
+	 * The query is built only once for each entity and ordered set of parameter names, later calls only bind
+	 * the values of the parameters, so OpenJPA can reuse its compiled form too. The queries having a
+	 * <code>null</code> parameter are built by the criteria API each time, comparing the property to
+	 * <code>null</code> as they always did.
 	 *
 	 * @param parameters
 	 *            of the query, connected with AND
 	 * @return result list of the executed query
 	 */
 	public List<T> selectByParameters(List<Entry<String, Object>> parameters) {
-		CriteriaQuery<T> buildedCriteriaQuery = buildCriteriaByParameters(parameters);
+		for (Entry<String, Object> parameter : parameters) {
+			if (parameter.getValue() == null) {
+				CriteriaBuilder builder = em.getCriteriaBuilder();
+				CriteriaQuery<T> buildedCriteriaQuery = builder.createQuery(getEntityClass());
+				Root<T> root = buildedCriteriaQuery.from(getEntityClass());
+				buildedCriteriaQuery.where(predicatesOf(builder, root, parameters).toArray(new Predicate[] {}));
+				return em.createQuery(buildedCriteriaQuery.select(root)).getResultList();
+			}
+		}
 
-		return em.createQuery(buildedCriteriaQuery).getResultList();
+		TypedQuery<T> query = em.createQuery(cachedQueryOf(parameters), getEntityClass());
+		int index = 0;
+		for (Entry<String, Object> parameter : parameters) {
+			query.setParameter(parameterNameOf(index++), parameter.getValue());
+		}
+		return query.getResultList();
+	}
+
+	/**
+	 * @return the number of times a query was found in the query cache of <code>selectByParameters</code>
+	 * */
+	public static long getQueryCacheHits() {
+		return QUERY_CACHE_HITS.get();
+	}
+
+	/**
+	 * @return the number of times a query had to be built for <code>selectByParameters</code>
+	 * */
+	public static long getQueryCacheMisses() {
+		return QUERY_CACHE_MISSES.get();
+	}
+
+	/**
+	 * @return the number of queries in the query cache of <code>selectByParameters</code>
+	 * */
+	public static int getQueryCacheSize() {
+		return (int) QUERY_CACHE.size();
+	}
+
+	/**
+	 * Returns one page of the entities matching the parameters, using keyset pagination: the page starts right
+	 * after the entity specified by <code>afterId</code> in the order defined by <code>orderBy</code>, with the IDs
+	 * breaking the ties. Unlike offset based paging, it costs the same for the last page as for the first one.
+	 * <p>
+	 * The property used for ordering must not be nullable.
+	 *
+	 * @param parameters
+	 *            of the query, connected with AND
+	 * @param orderBy
+	 *            the name of the property to order by, <code>null</code> means the ID
+	 * @param afterId
+	 *            the ID of the last entity of the previous page, <code>null</code> for the first page
+	 * @param limit
+	 *            the maximal number of entities on the page
+	 * @return the page of the results
+	 * @see {@link Page#afterIdOf(String)}
+	 */
+	public Page<T> selectPage(List<Entry<String, Object>> parameters, String orderBy, Long afterId, int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Page limit must be positive, but was " + limit);
+		}
+		String orderProperty = (orderBy == null) ? AbstractEntity.PR_ID : orderBy;
+
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<T> buildedCriteriaQuery = builder.createQuery(getEntityClass());
+		Root<T> root = buildedCriteriaQuery.from(getEntityClass());
+
+		List<Predicate> predicates = predicatesOf(builder, root, parameters);
+		if (afterId != null) {
+			predicates.add(keysetPredicate(builder, buildedCriteriaQuery, root, orderProperty, afterId));
+		}
+		buildedCriteriaQuery.select(root);
+		buildedCriteriaQuery.where(predicates.toArray(new Predicate[] {}));
+		if (AbstractEntity.PR_ID.equals(orderProperty)) {
+			buildedCriteriaQuery.orderBy(builder.asc(root.get(AbstractEntity.PR_ID)));
+		} else {
+			buildedCriteriaQuery.orderBy(builder.asc(root.get(orderProperty)), builder.asc(root.get(AbstractEntity.PR_ID)));
+		}
+
+		TypedQuery<T> query = em.createQuery(buildedCriteriaQuery);
+		// one more than the limit tells whether there is a next page
+		query.setMaxResults(limit + 1);
+		List<T> results = query.getResultList();
+
+		if (results.size() > limit) {
+			List<T> elements = new ArrayList<T>(results.subList(0, limit));
+			return new Page<T>(elements, Page.cursorOf(elements.get(limit - 1)));
+		}
+		return new Page<T>(results, null);
+	}
+
+	/**
+	 * Iterates over all of the entities matching the parameters without materializing the whole result list.
+	 * The entities are read in chunks of <code>fetchSize</code> ordered by their IDs, and each chunk is detached
+	 * from the persistence context as soon as the next one is read, so the memory used stays flat.
+	 * <p>
+	 * The entities are therefore intended for reading, changes made on them are not persisted.
+	 *
+	 * @param parameters
+	 *            of the query, connected with AND
+	 * @param fetchSize
+	 *            the number of entities read at once
+	 * @return a lazily evaluated {@link Iterable} of the results
+	 */
+	public Iterable<T> iterateByParameters(final List<Entry<String, Object>> parameters, final int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size must be positive, but was " + fetchSize);
+		}
+		return new Iterable<T>() {
+
+			@Override
+			public Iterator<T> iterator() {
+				return new AbstractIterator<T>() {
+
+					private Page<T> page;
+					private Iterator<T> chunk;
+
+					@Override
+					protected T computeNext() {
+						while (chunk == null || !chunk.hasNext()) {
+							if (page != null) {
+								for (T entity : page.getElements()) {
+									em.detach(entity);
+								}
+								if (!page.hasNext()) {
+									return endOfData();
+								}
+							}
+							Long afterId = (page == null) ? null : Page.afterIdOf(page.getNextCursor());
+							page = selectPage(parameters, AbstractEntity.PR_ID, afterId, fetchSize);
+							chunk = page.getElements().iterator();
+						}
+						return chunk.next();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Counts the entities matching the parameters without loading them.
+	 *
+	 * @param parameters
+	 *            of the query, connected with AND
+	 * @return the number of matching entities
+	 */
+	public long countByParameters(List<Entry<String, Object>> parameters) {
+		CriteriaBuilder builder = em.getCriteriaBuilder();
+		CriteriaQuery<Long> countQuery = builder.createQuery(Long.class);
+		Root<T> root = countQuery.from(getEntityClass());
+
+		countQuery.select(builder.count(root));
+		countQuery.where(predicatesOf(builder, root, parameters).toArray(new Predicate[] {}));
+		return em.createQuery(countQuery).getSingleResult();
 	}
 
 	/**
@@ -170,6 +455,46 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 		return namedQuery.getResultList();
 	}
 
+	/**
+	 * Supports calling <code>NamedQuery</code>s for all kinds of types of results, limiting the number of results
+	 * returned, e.g. to select the first one in some order.
+	 *
+	 * @param queryName
+	 * @param parameters
+	 * @param cls the expected type of result(s)
+	 * @param maxResults the maximal number of results
+	 *
+	 * @return the list of results
+	 * @see {@link AbstractDataService#callNamedQuery(String, List, Class)}
+	 * */
+	protected <E> List<E> callNamedQuery(String queryName, List<Entry<String, Object>> parameters, Class<E> cls, int maxResults) {
+		TypedQuery<E> namedQuery = em.createNamedQuery(queryName, cls);
+		for (Entry<String, Object> entry : parameters) {
+			namedQuery.setParameter(entry.getKey(), entry.getValue());
+		}
+		return namedQuery.setMaxResults(maxResults).getResultList();
+	}
+
+	/**
+	 * Supports calling dynamically built JPQL queries, e.g. ones whose ORDER BY clause depends on the request,
+	 * limiting the number of results returned.
+	 *
+	 * @param jpql
+	 * @param parameters
+	 * @param cls the expected type of result(s)
+	 * @param maxResults the maximal number of results
+	 *
+	 * @return the list of results
+	 * @see {@link AbstractDataService#callNamedQuery(String, List, Class)}
+	 * */
+	protected <E> List<E> callQuery(String jpql, List<Entry<String, Object>> parameters, Class<E> cls, int maxResults) {
+		TypedQuery<E> query = em.createQuery(jpql, cls);
+		for (Entry<String, Object> entry : parameters) {
+			query.setParameter(entry.getKey(), entry.getValue());
+		}
+		return query.setMaxResults(maxResults).getResultList();
+	}
+
 	/**
 	 * Supports execution of non-SELECT <code>NamedQuery</code>s using the parameter <code>List</code> passed
 	 * as argument.
@@ -189,22 +514,225 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 		for (Entry<String, Object> entry : parameters) {
 			namedQuery.setParameter(entry.getKey(), entry.getValue());
 		}
-		return namedQuery.executeUpdate();
+		int affected = namedQuery.executeUpdate();
+		evictFromCaches();
+		return affected;
 	}
 
+	/**
+	 * Executes a native SQL statement, for the set-based operations JPQL cannot express (e.g. INSERT ... SELECT). The
+	 * names of the tables and the columns are to be resolved by {@link AbstractDataService#tableOf(Class)} and
+	 * {@link AbstractDataService#columnOf(Class, String)}.
+	 *
+	 * @param sql
+	 *            with <code>?</code> as the parameters
+	 * @param parameters
+	 *            the values of the parameters, in their order
+	 * @return the number of rows affected
+	 */
+	protected int executeNativeUpdate(String sql, Object... parameters) {
+		Query query = em.createNativeQuery(sql);
+		for (int i = 0; i < parameters.length; ++i) {
+			query.setParameter(i + 1, parameters[i]);
+		}
+		int affected = query.executeUpdate();
+		evictFromCaches();
+		return affected;
+	}
 
-	private CriteriaQuery<T> buildCriteriaByParameters(List<Entry<String, Object>> parameters) {
-		CriteriaBuilder builder = em.getCriteriaBuilder();
-		CriteriaQuery<T> buildedCriteriaQuery = builder.createQuery(getEntityClass());
+	/**
+	 * Executes a native SQL statement once for each of the rows of parameters, in JDBC batches of at most
+	 * <code>batchSize</code> statements on the connection of the persistence context, so in its transaction. Unlike a
+	 * single set-based statement, it tells exactly which of the rows were affected.
+	 *
+	 * @param sql
+	 *            with <code>?</code> as the parameters
+	 * @param rows
+	 *            the values of the parameters of each execution, in their order
+	 * @return the number of rows affected by each of the executions, in the order of the rows
+	 * @see {@link AbstractDataService#executeNativeUpdate(String, Object...)}
+	 */
+	protected int[] executeNativeBatch(String sql, List<Object[]> rows) {
+		int[] affected = new int[rows.size()];
+		if (rows.isEmpty()) {
+			return affected;
+		}
+		Connection connection = em.unwrap(Connection.class);
+		try {
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				for (int from = 0; from < rows.size(); from += batchSize) {
+					int to = Math.min(rows.size(), from + batchSize);
+					for (Object[] row : rows.subList(from, to)) {
+						for (int i = 0; i < row.length; ++i) {
+							statement.setObject(i + 1, row[i]);
+						}
+						statement.addBatch();
+					}
+					int[] counts = statement.executeBatch();
+					System.arraycopy(counts, 0, affected, from, counts.length);
+				}
+			} finally {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			throw new PersistenceException(e);
+		}
+		evictFromCaches();
+		return affected;
+	}
 
-		Root<T> root = buildedCriteriaQuery.from(getEntityClass());
+	/**
+	 * Inserts the rows by multi-row INSERT ... VALUES statements of at most <code>batchSize</code> rows each, so a
+	 * large number of rows costs a few round-trips, without the entities being instantiated or flushed one by one.
+	 * The rows are inserted in their order.
+	 *
+	 * @param table
+	 *            the name of the table, see {@link AbstractDataService#tableOf(Class)}
+	 * @param columns
+	 *            the names of the columns, see {@link AbstractDataService#columnOf(Class, String)}
+	 * @param values
+	 *            the values of the rows one after the other, each in the order of the columns
+	 * @return the number of rows inserted
+	 */
+	protected int executeNativeInsert(String table, String[] columns, List<Object> values) {
+		if (values.size() % columns.length != 0) {
+			throw new IllegalArgumentException(values.size() + " values do not make rows of " + columns.length + " columns");
+		}
+		StringBuilder insert = new StringBuilder("INSERT INTO ").append(table).append(" (");
+		StringBuilder row = new StringBuilder("(");
+		for (int i = 0; i < columns.length; ++i) {
+			insert.append((i == 0) ? "" : ", ").append(columns[i]);
+			row.append((i == 0) ? "?" : ", ?");
+		}
+		insert.append(") VALUES ");
+		row.append(')');
+
+		int rowCount = values.size() / columns.length;
+		int inserted = 0;
+		for (int from = 0; from < rowCount; from += batchSize) {
+			int to = Math.min(rowCount, from + batchSize);
+			StringBuilder sql = new StringBuilder(insert);
+			for (int i = from; i < to; ++i) {
+				sql.append((i == from) ? "" : ", ").append(row);
+			}
+			inserted += executeNativeUpdate(sql.toString(), values.subList(from * columns.length, to * columns.length).toArray());
+		}
+		return inserted;
+	}
 
+	/**
+	 * @param entityClass
+	 * @return the name of the table the entity is mapped to, as the dictionary writes it in SQL
+	 */
+	protected String tableOf(Class<? extends AbstractEntity> entityClass) {
+		JDBCConfiguration conf = configuration();
+		return conf.getDBDictionaryInstance().toDBName(mappingOf(conf, entityClass).getTable().getFullIdentifier());
+	}
+
+	/**
+	 * @param entityClass
+	 * @param field
+	 *            the name of a field mapped to one column, a relation to its foreign key
+	 * @return the name of the column the field is mapped to, as the dictionary writes it in SQL
+	 */
+	protected String columnOf(Class<? extends AbstractEntity> entityClass, String field) {
+		JDBCConfiguration conf = configuration();
+		FieldMapping mapping = mappingOf(conf, entityClass).getFieldMapping(field);
+		if (mapping == null) {
+			throw new IllegalArgumentException(entityClass.getSimpleName() + " has no field " + field);
+		}
+		return conf.getDBDictionaryInstance().toDBName(mapping.getColumns()[0].getIdentifier());
+	}
+
+	private JDBCConfiguration configuration() {
+		OpenJPAEntityManager openJPAEm = em.unwrap(OpenJPAEntityManager.class);
+		if (openJPAEm == null) {
+			throw new IllegalStateException("The entity manager is not provided by OpenJPA");
+		}
+		return (JDBCConfiguration) ((OpenJPAEntityManagerFactorySPI) openJPAEm.getEntityManagerFactory()).getConfiguration();
+	}
+
+	private static ClassMapping mappingOf(JDBCConfiguration conf, Class<?> entityClass) {
+		return conf.getMappingRepositoryInstance().getMapping(entityClass, entityClass.getClassLoader(), true);
+	}
+
+	/**
+	 * Evicts the instances of the entity class from the DataCache and the cached query results depending on it.
+	 * Changes made through the <code>EntityManager</code> are tracked by OpenJPA itself, but bulk statements bypass
+	 * the persistence context, so they have to call this after execution.
+	 */
+	protected void evictFromCaches() {
+		OpenJPAEntityManager openJPAEm = em.unwrap(OpenJPAEntityManager.class);
+		if (openJPAEm == null) {
+			return;
+		}
+		openJPAEm.getEntityManagerFactory().getStoreCache().evict(getEntityClass());
+		openJPAEm.getEntityManagerFactory().getQueryResultCache().evictAll(getEntityClass());
+	}
+
+
+	private String cachedQueryOf(List<Entry<String, Object>> parameters) {
+		StringBuilder key = new StringBuilder(getEntityClass().getName());
+		for (Entry<String, Object> parameter : parameters) {
+			key.append(',').append(parameter.getKey());
+		}
+
+		String cacheKey = key.toString();
+		String query = QUERY_CACHE.getIfPresent(cacheKey);
+		if (query != null) {
+			QUERY_CACHE_HITS.incrementAndGet();
+			return query;
+		}
+
+		QUERY_CACHE_MISSES.incrementAndGet();
+		query = buildQueryByParameters(parameters);
+		QUERY_CACHE.put(cacheKey, query);
+		return query;
+	}
+
+	private String buildQueryByParameters(List<Entry<String, Object>> parameters) {
+		StringBuilder query = new StringBuilder("SELECT e FROM ").append(getEntityClass().getSimpleName()).append(" e");
+
+		int index = 0;
+		for (Entry<String, Object> parameter : parameters) {
+			query.append(index == 0 ? " WHERE " : " AND ").append("e.").append(parameter.getKey())
+					.append(" = :").append(parameterNameOf(index));
+			index++;
+		}
+		return query.toString();
+	}
+
+	private static String parameterNameOf(int index) {
+		return "p" + index;
+	}
+
+	private List<Predicate> predicatesOf(CriteriaBuilder builder, Root<T> root, List<Entry<String, Object>> parameters) {
 		List<Predicate> predicates = new ArrayList<Predicate>();
 		for (Entry<String, Object> parameter : parameters) {
 			predicates.add(builder.equal(root.get(parameter.getKey()), parameter.getValue()));
 		}
+		return predicates;
+	}
+
+	/*
+	 * (orderBy, id) > (orderBy of afterId, afterId), where the ordering value of the anchor entity
+	 * is selected by a subquery, so the cursor only has to carry the ID.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Predicate keysetPredicate(CriteriaBuilder builder, CriteriaQuery<T> query, Root<T> root, String orderBy, Long afterId) {
+		Path<Long> id = root.get(AbstractEntity.PR_ID);
+		if (AbstractEntity.PR_ID.equals(orderBy)) {
+			return builder.greaterThan(id, afterId);
+		}
+
+		Subquery<Comparable> anchor = query.subquery(Comparable.class);
+		Root<T> anchorRoot = anchor.from(getEntityClass());
+		anchor.select(anchorRoot.<Comparable> get(orderBy));
+		anchor.where(builder.equal(anchorRoot.get(AbstractEntity.PR_ID), afterId));
 
-		return buildedCriteriaQuery.select(root).where(predicates.toArray(new Predicate[] {}));
+		Expression<Comparable> key = root.get(orderBy);
+		return builder.or(builder.greaterThan(key, (Expression) anchor),
+				builder.and(builder.equal(key, anchor), builder.greaterThan(id, afterId)));
 	}
 
 	/**
@@ -229,6 +757,26 @@ public abstract class AbstractDataService<T extends AbstractEntity>
 
 	protected abstract Class<T> getEntityClass();
 
+	/**
+	 * @return the number of entities written between two flushes by the bulk operations
+	 * */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of entities written between two flushes by the bulk operations.
+	 *
+	 * @param batchSize
+	 *            must be positive
+	 * */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive, but was " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
 	/**
 	 * ONLY for testing purposes, otherwise it is dscouraged to user.
 	 *
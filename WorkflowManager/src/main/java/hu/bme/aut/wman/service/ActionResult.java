@@ -0,0 +1,114 @@
+package hu.bme.aut.wman.service;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of executing an action on a <code>Project</code>: either the transition it made, or the conflict that
+ * prevented it, with the state the project is in now.
+ *
+ * @version "%I%, %G%"
+ * @see {@link ProjectService#executeAction(Long, Long)}
+ */
+public final class ActionResult implements Serializable {
+
+	private static final long serialVersionUID = -8843051761520735942L;
+
+	private final Long projectId;
+	private final Long workflowId;
+	private final boolean conflict;
+	private final Long fromStateId;
+	private final String fromStateName;
+	private final Long currentStateId;
+	private final String currentStateName;
+	private final long version;
+	private final int attempts;
+
+	private ActionResult(Long projectId, Long workflowId, boolean conflict, Long fromStateId, String fromStateName, Long currentStateId,
+						String currentStateName, long version, int attempts) {
+		this.projectId = projectId;
+		this.workflowId = workflowId;
+		this.conflict = conflict;
+		this.fromStateId = fromStateId;
+		this.fromStateName = fromStateName;
+		this.currentStateId = currentStateId;
+		this.currentStateName = currentStateName;
+		this.version = version;
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @return the result of a transition from the state <code>fromStateId</code> to the current one
+	 */
+	public static ActionResult done(Long projectId, Long workflowId, Long fromStateId, String fromStateName, Long currentStateId,
+									String currentStateName, long version, int attempts) {
+		return new ActionResult(projectId, workflowId, false, fromStateId, fromStateName, currentStateId, currentStateName, version, attempts);
+	}
+
+	/**
+	 * @return the result of an action that could not be executed, as the project was moved concurrently to the
+	 *         current state
+	 */
+	public static ActionResult conflict(Long projectId, Long workflowId, Long currentStateId, String currentStateName, long version, int attempts) {
+		return new ActionResult(projectId, workflowId, true, null, null, currentStateId, currentStateName, version, attempts);
+	}
+
+	public Long getProjectId() {
+		return projectId;
+	}
+
+	/**
+	 * @return the id of the workflow of the project
+	 */
+	public Long getWorkflowId() {
+		return workflowId;
+	}
+
+	/**
+	 * @return whether the action could not be executed because of a concurrent change
+	 */
+	public boolean isConflict() {
+		return conflict;
+	}
+
+	/**
+	 * @return the id of the state the action was executed in, or <code>null</code> on conflict
+	 */
+	public Long getFromStateId() {
+		return fromStateId;
+	}
+
+	/**
+	 * @return the name of the state the action was executed in, or <code>null</code> on conflict
+	 */
+	public String getFromStateName() {
+		return fromStateName;
+	}
+
+	/**
+	 * @return the id of the state the project is in now
+	 */
+	public Long getCurrentStateId() {
+		return currentStateId;
+	}
+
+	/**
+	 * @return the name of the state the project is in now
+	 */
+	public String getCurrentStateName() {
+		return currentStateName;
+	}
+
+	/**
+	 * @return the version of the project as last seen
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of conditional updates tried
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+}
@@ -27,6 +27,32 @@ public class BlobFileService extends AbstractDataService<BlobFile> {
 		return selectByParameters(parameterList);
 	}
 
+	/**
+	 * Counts the <code>BlobFile</code>s referring to the content specified by its hash.
+	 *
+	 * @param hash
+	 * @return the number of references to the content
+	 * */
+	public long countByHash(String hash) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(BlobFile.PR_HASH, hash));
+		List<Long> results = callNamedQuery(BlobFile.NQ_FIND_COUNT_BY_HASH, parameterList, Long.class);
+		return results.isEmpty() ? 0 : results.get(0);
+	}
+
+	/**
+	 * Selects the hashes of the contents referred to by the <code>BlobFile</code>s of the given <code>Project</code>
+	 * only, which become garbage when the <code>Project</code> is deleted.
+	 *
+	 * @param projectId
+	 * @return the hashes of the contents not shared with other <code>Project</code>s
+	 * */
+	public List<String> selectHashesOnlyOf(Long projectId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectId", projectId));
+		return callNamedQuery(BlobFile.NQ_FIND_HASHES_ONLY_OF_PROJECT, parameterList, String.class);
+	}
+
 	@Override
 	protected Class<BlobFile> getEntityClass() {
 		return BlobFile.class;
@@ -0,0 +1,124 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.BlobFile;
+import hu.bme.aut.wman.service.BlobStoreService.StoredBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.log4j.Logger;
+import org.apache.openjpa.jdbc.conf.JDBCConfiguration;
+import org.apache.openjpa.jdbc.meta.ClassMapping;
+import org.apache.openjpa.jdbc.sql.DBDictionary;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactorySPI;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
+
+/**
+ * Moves the content of the files uploaded before the <code>BlobStoreService</code> was introduced, kept in the
+ * <code>CONTENT</code> LOB column of the <code>FILE_STORAGE</code> table, into the store, fills the hash and the size
+ * of their <code>BlobFile</code>s and drops the column, which OpenJPA never drops by itself. Does nothing once the
+ * column is gone.
+ *
+ * @version "%I%, %G%"
+ */
+@Singleton
+@Startup
+public class BlobMigrationService implements Serializable {
+
+	private static final long serialVersionUID = 4467093125013868251L;
+
+	private static final Logger LOGGER = Logger.getLogger(BlobMigrationService.class);
+
+	/** the column of the content in the original layout of the <code>FILE_STORAGE</code> table */
+	public static final String LEGACY_CONTENT_COLUMN = "CONTENT";
+
+	@PersistenceContext
+	private EntityManager em;
+
+	@Inject
+	private BlobStoreService blobStore;
+
+	/**
+	 * Migrates the legacy content, a failure is logged only and retried on the next start, as the column is dropped
+	 * only after every row is migrated.
+	 */
+	@PostConstruct
+	public void migrate() {
+		OpenJPAEntityManager oem = OpenJPAPersistence.cast(em);
+		JDBCConfiguration conf = (JDBCConfiguration) ((OpenJPAEntityManagerFactorySPI) oem.getEntityManagerFactory()).getConfiguration();
+		DBDictionary dictionary = conf.getDBDictionaryInstance();
+		ClassMapping mapping = conf.getMappingRepositoryInstance().getMapping(BlobFile.class, BlobFile.class.getClassLoader(), true);
+		String table = dictionary.toDBName(mapping.getTable().getFullIdentifier());
+		String id = dictionary.toDBName(mapping.getPrimaryKeyColumns()[0].getIdentifier());
+		String hash = dictionary.toDBName(mapping.getFieldMapping(BlobFile.PR_HASH).getColumns()[0].getIdentifier());
+		String size = dictionary.toDBName(mapping.getFieldMapping(BlobFile.PR_SIZE).getColumns()[0].getIdentifier());
+
+		Connection connection = (Connection) oem.getConnection();
+		try {
+			if (!hasColumn(connection.getMetaData(), dictionary.toDBName(mapping.getTable().getIdentifier()), LEGACY_CONTENT_COLUMN)) {
+				return;
+			}
+
+			int migrated = 0;
+			try (Statement select = connection.createStatement();
+				 ResultSet rows = select.executeQuery("SELECT " + id + ", " + LEGACY_CONTENT_COLUMN + " FROM " + table
+						 								+ " WHERE " + LEGACY_CONTENT_COLUMN + " IS NOT NULL");
+				 PreparedStatement update = connection.prepareStatement("UPDATE " + table + " SET " + hash + " = ?, " + size + " = ?, "
+						 												+ LEGACY_CONTENT_COLUMN + " = NULL WHERE " + id + " = ?")) {
+				while (rows.next()) {
+					StoredBlob blob;
+					try (InputStream content = rows.getBinaryStream(2)) {
+						blob = blobStore.store(content);
+					}
+					update.setString(1, blob.getHash());
+					update.setLong(2, blob.getSize());
+					update.setLong(3, rows.getLong(1));
+					update.executeUpdate();
+					++migrated;
+				}
+			}
+
+			try (Statement statement = connection.createStatement()) {
+				statement.executeUpdate("ALTER TABLE " + table + " DROP COLUMN " + LEGACY_CONTENT_COLUMN);
+			}
+			LOGGER.info("Moved the content of " + migrated + " files to the blob store");
+		} catch (SQLException | IOException | RuntimeException e) {
+			LOGGER.warn("Unable to move the content of the files to the blob store", e);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to release the connection", e);
+			}
+		}
+	}
+
+	private static boolean hasColumn(DatabaseMetaData metaData, String table, String column) throws SQLException {
+		/* unquoted identifiers are stored in upper case by Derby */
+		for (String tableName : Arrays.asList(table, table.toUpperCase(Locale.ENGLISH))) {
+			try (ResultSet columns = metaData.getColumns(null, null, tableName, column)) {
+				if (columns.next()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
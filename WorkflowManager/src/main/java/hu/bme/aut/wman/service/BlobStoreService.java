@@ -0,0 +1,258 @@
+package hu.bme.aut.wman.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Content-addressed store of the uploaded files on the local file system. Each content is stored once, under the
+ * hex encoded SHA-256 digest of its bytes, sharded into two levels of directories by the first two byte pairs of the
+ * digest (e.g. <code>ab/cd/abcd...</code>), so identical files uploaded to many <code>Project</code>s are deduplicated.
+ * <p>
+ * The root directory is given by the <code>wman.blobstore.root</code> system property. The store is not
+ * transactional, so it can be called after the completion of a transaction as well.
+ *
+ * @version "%I%, %G%"
+ */
+@Stateless
+@LocalBean
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class BlobStoreService implements Serializable {
+
+	private static final long serialVersionUID = -3921180557735160935L;
+
+	private static final Logger LOGGER = Logger.getLogger(BlobStoreService.class);
+
+	public static final String ROOT_PROPERTY = "wman.blobstore.root";
+	public static final int BUFFER_SIZE = 64 * 1024;
+	/** a blob written or reused more recently than this is never deleted, as it may be referenced by a pending upload */
+	public static final long DELETE_GRACE_MILLIS = 60 * 1000;
+
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+	private static final String TEMP_DIRECTORY = "tmp";
+
+	private Path root;
+
+	public BlobStoreService() {
+		this(Paths.get(System.getProperty(ROOT_PROPERTY, Paths.get(System.getProperty("user.home"), "wman-blobs").toString())));
+	}
+
+	public BlobStoreService(Path root) {
+		this.root = root;
+	}
+
+	/**
+	 * Streams the content into the store through a fixed size direct buffer, computing its digest on the fly, so the
+	 * size of the content is not limited by the heap. The content is written to a temporary file first and moved to
+	 * its final place atomically, or dropped if the same content is stored already.
+	 *
+	 * @param content
+	 *            the stream to store, it is not closed
+	 * @return the {@link StoredBlob} describing the stored content
+	 * @throws IOException
+	 */
+	public StoredBlob store(InputStream content) throws IOException {
+		Path temp = Files.createTempFile(directoryOf(TEMP_DIRECTORY), "upload", ".part");
+		try {
+			MessageDigest digest = sha256();
+			long size = 0;
+			ReadableByteChannel source = Channels.newChannel(content);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				while (source.read(buffer) >= 0) {
+					buffer.flip();
+					digest.update(buffer.duplicate());
+					while (buffer.hasRemaining())
+						size += target.write(buffer);
+					buffer.clear();
+				}
+				target.force(false);
+			}
+
+			String hash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+			Path path = pathOf(hash);
+			if (Files.exists(path)) {
+				Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+				return new StoredBlob(hash, size, false);
+			}
+			Files.createDirectories(path.getParent());
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				return new StoredBlob(hash, size, false);
+			}
+			return new StoredBlob(hash, size, true, Files.getLastModifiedTime(path).toMillis());
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @return the path of the content specified by its hash
+	 * @throws IllegalArgumentException
+	 *             if the hash is not a hex encoded SHA-256 digest
+	 */
+	public Path pathOf(String hash) throws IllegalArgumentException {
+		if (hash == null || !HASH.matcher(hash).matches())
+			throw new IllegalArgumentException("Malformed content hash: " + hash);
+		return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	/**
+	 * @param hash
+	 * @return whether the content specified by its hash is stored
+	 */
+	public boolean contains(String hash) {
+		return Files.exists(pathOf(hash));
+	}
+
+	/**
+	 * Opens the content specified by its hash for reading.
+	 *
+	 * @param hash
+	 * @return a read-only {@link FileChannel}
+	 * @throws IOException
+	 *             ({@link NoSuchFileException}) if the content is not stored
+	 */
+	public FileChannel open(String hash) throws IOException {
+		return FileChannel.open(pathOf(hash), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Deletes the content specified by its hash, unless it was stored or reused within the
+	 * {@link BlobStoreService#DELETE_GRACE_MILLIS}. Must only be called when no <code>BlobFile</code> refers to it.
+	 *
+	 * @param hash
+	 * @return whether the content was deleted
+	 */
+	public boolean delete(String hash) {
+		Path path = pathOf(hash);
+		try {
+			if (!Files.exists(path)
+					|| System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis() < DELETE_GRACE_MILLIS)
+				return false;
+			return Files.deleteIfExists(path);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to delete content " + hash, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes a content created by {@link BlobStoreService#store(InputStream)} whose <code>BlobFile</code> was rolled
+	 * back, unless it was deduplicated or stored again since, as another upload may refer to it then.
+	 *
+	 * @param blob
+	 * @return whether the content was deleted
+	 */
+	public boolean discard(StoredBlob blob) {
+		if (!blob.isCreated())
+			return false;
+		Path path = pathOf(blob.getHash());
+		try {
+			if (!Files.exists(path) || Files.getLastModifiedTime(path).toMillis() != blob.getStoredAt())
+				return false;
+			return Files.deleteIfExists(path);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to discard content " + blob.getHash(), e);
+			return false;
+		}
+	}
+
+	private Path directoryOf(String name) throws IOException {
+		return Files.createDirectories(root.resolve(name));
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	public void setRoot(Path root) {
+		this.root = root;
+	}
+
+	/**
+	 * Reference to a content in the store.
+	 */
+	public static final class StoredBlob implements Serializable {
+
+		private static final long serialVersionUID = 2150927305431960124L;
+
+		private final String hash;
+		private final long size;
+		private final boolean created;
+		private final long storedAt;
+
+		public StoredBlob(String hash, long size, boolean created) {
+			this(hash, size, created, 0L);
+		}
+
+		public StoredBlob(String hash, long size, boolean created, long storedAt) {
+			this.hash = hash;
+			this.size = size;
+			this.created = created;
+			this.storedAt = storedAt;
+		}
+
+		/**
+		 * @return the hex encoded SHA-256 digest of the content
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return the size of the content in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return whether the content was new, false if it was deduplicated
+		 */
+		public boolean isCreated() {
+			return created;
+		}
+
+		/**
+		 * @return the last modification time of the content when it was created, in milliseconds
+		 */
+		public long getStoredAt() {
+			return storedAt;
+		}
+	}
+}
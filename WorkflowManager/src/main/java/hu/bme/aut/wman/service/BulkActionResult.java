@@ -0,0 +1,116 @@
+package hu.bme.aut.wman.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of executing an action on many <code>Project</code>s at once: the projects that were moved to their
+ * next state, and the reason of the failure for each of the others.
+ *
+ * @version "%I%, %G%"
+ * @see {@link ProjectService#executeActionOnAll(java.util.Collection, Long, java.util.Collection)}
+ */
+public class BulkActionResult implements Serializable {
+
+	private static final long serialVersionUID = -2735319408715562019L;
+
+	/**
+	 * The reasons an action may not be executed on a <code>Project</code>.
+	 */
+	public enum Failure {
+		/** there is no such project */
+		NOT_FOUND,
+		/** the user has no privilege in the domain of the project */
+		FORBIDDEN,
+		/** the action leads nowhere from the current state of the project */
+		NO_TRANSITION,
+		/** the state of the project was changed concurrently */
+		CONFLICT
+	}
+
+	private final Long actionId;
+	private final List<Transitioned> succeeded = new ArrayList<Transitioned>();
+	private final Map<Long, Failure> failed = new LinkedHashMap<Long, Failure>();
+
+	public BulkActionResult(Long actionId) {
+		this.actionId = actionId;
+	}
+
+	void succeed(Long projectId, Long workflowId, Long fromStateId, String fromStateName, Long toStateId, String toStateName) {
+		succeeded.add(new Transitioned(projectId, workflowId, fromStateId, fromStateName, toStateId, toStateName));
+	}
+
+	void fail(Long projectId, Failure failure) {
+		failed.put(projectId, failure);
+	}
+
+	public Long getActionId() {
+		return actionId;
+	}
+
+	/**
+	 * @return the projects moved to their next state, in the order they were updated
+	 */
+	public List<Transitioned> getSucceeded() {
+		return Collections.unmodifiableList(succeeded);
+	}
+
+	/**
+	 * @return the reason of the failure by the id of the project
+	 */
+	public Map<Long, Failure> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	/**
+	 * A <code>Project</code> moved by the action.
+	 */
+	public static final class Transitioned implements Serializable {
+
+		private static final long serialVersionUID = 4412086355203713370L;
+
+		private final Long projectId;
+		private final Long workflowId;
+		private final Long fromStateId;
+		private final String fromStateName;
+		private final Long toStateId;
+		private final String toStateName;
+
+		public Transitioned(Long projectId, Long workflowId, Long fromStateId, String fromStateName, Long toStateId, String toStateName) {
+			this.projectId = projectId;
+			this.workflowId = workflowId;
+			this.fromStateId = fromStateId;
+			this.fromStateName = fromStateName;
+			this.toStateId = toStateId;
+			this.toStateName = toStateName;
+		}
+
+		public Long getProjectId() {
+			return projectId;
+		}
+
+		public Long getWorkflowId() {
+			return workflowId;
+		}
+
+		public Long getFromStateId() {
+			return fromStateId;
+		}
+
+		public String getFromStateName() {
+			return fromStateName;
+		}
+
+		public Long getToStateId() {
+			return toStateId;
+		}
+
+		public String getToStateName() {
+			return toStateName;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package hu.bme.aut.wman.service;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.openjpa.datacache.CacheStatistics;
+import org.apache.openjpa.datacache.QueryCache;
+import org.apache.openjpa.datacache.QueryKey;
+import org.apache.openjpa.kernel.QueryStatistics;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactory;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactorySPI;
+
+/**
+ * Exposes the statistics of the second level caches (DataCache and QueryCache) used for the security model,
+ * and supports evicting them as a whole.
+ *
+ * @version "%I%, %G%"
+ */
+@Stateless
+@LocalBean
+public class CacheService implements Serializable {
+
+	private static final long serialVersionUID = 4630190785463927051L;
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Collects the hit/read/write counters of the DataCache in total and per entity class, and the
+	 * hit/execution/eviction counters of the QueryCache.
+	 *
+	 * @return a {@link Map} of the statistics, suitable for JSON serialization
+	 */
+	public Map<String, Object> statistics() {
+		OpenJPAEntityManagerFactory emf = factory();
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+
+		CacheStatistics dataStats = emf.getStoreCache().getStatistics();
+		Map<String, Object> dataCache = new LinkedHashMap<String, Object>();
+		dataCache.put("enabled", dataStats.isEnabled());
+		dataCache.put("reads", dataStats.getTotalReadCount());
+		dataCache.put("hits", dataStats.getTotalHitCount());
+		dataCache.put("writes", dataStats.getTotalWriteCount());
+		Map<String, Object> perClass = new LinkedHashMap<String, Object>();
+		for (String className : dataStats.classNames()) {
+			Map<String, Long> counters = new LinkedHashMap<String, Long>();
+			counters.put("reads", dataStats.getTotalReadCount(className));
+			counters.put("hits", dataStats.getTotalHitCount(className));
+			counters.put("writes", dataStats.getTotalWriteCount(className));
+			perClass.put(className, counters);
+		}
+		dataCache.put("entities", perClass);
+		statistics.put("dataCache", dataCache);
+
+		/* the QueryCache is null when it is turned off in persistence.xml */
+		QueryCache queryResultCache = ((OpenJPAEntityManagerFactorySPI) emf).getConfiguration().getDataCacheManagerInstance()
+				.getSystemQueryCache();
+		Map<String, Object> queryCache = new LinkedHashMap<String, Object>();
+		queryCache.put("enabled", queryResultCache != null);
+		if (queryResultCache != null) {
+			QueryStatistics<QueryKey> queryStats = queryResultCache.getStatistics();
+			queryCache.put("executions", queryStats.getTotalExecutionCount());
+			queryCache.put("hits", queryStats.getTotalHitCount());
+			queryCache.put("evictions", queryStats.getTotalEvictionCount());
+		}
+		statistics.put("queryCache", queryCache);
+
+		Map<String, Object> selectCache = new LinkedHashMap<String, Object>();
+		selectCache.put("size", AbstractDataService.getQueryCacheSize());
+		selectCache.put("hits", AbstractDataService.getQueryCacheHits());
+		selectCache.put("misses", AbstractDataService.getQueryCacheMisses());
+		statistics.put("selectByParametersCache", selectCache);
+		return statistics;
+	}
+
+	/**
+	 * Evicts every entity from the DataCache and every result from the QueryCache.
+	 */
+	public void evictAll() {
+		OpenJPAEntityManagerFactory emf = factory();
+		emf.getStoreCache().evictAll();
+		emf.getQueryResultCache().evictAll();
+	}
+
+	private OpenJPAEntityManagerFactory factory() {
+		return em.unwrap(OpenJPAEntityManager.class).getEntityManagerFactory();
+	}
+}
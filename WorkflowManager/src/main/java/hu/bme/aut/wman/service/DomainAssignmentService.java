@@ -3,9 +3,12 @@
  */
 package hu.bme.aut.wman.service;
 
+import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
+import hu.bme.aut.wman.model.AbstractEntity;
 import hu.bme.aut.wman.model.Domain;
 import hu.bme.aut.wman.model.DomainAssignment;
 import hu.bme.aut.wman.model.Role;
+import hu.bme.aut.wman.security.PermissionDecisionCache;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
@@ -13,8 +16,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Resource;
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 /**
  * @author Imre Szekeres
@@ -26,6 +31,9 @@ public class DomainAssignmentService extends AbstractDataService<DomainAssignmen
 
 	private static final long serialVersionUID = -7130755663605495578L;
 
+	@Resource
+	private TransactionSynchronizationRegistry transactionRegistry;
+
 	/**
 	 * Retrieves the <code>DomainAssignment</code>s corresponding to the given <code>Domain</code> specified
 	 * by its name.
@@ -95,7 +103,9 @@ public class DomainAssignmentService extends AbstractDataService<DomainAssignmen
 	public int deleteAssignmentById(Long assignmentId) {
 		List<Map.Entry<String, Object>> parameters = new ArrayList<>(2);
 		parameters.add(new AbstractMap.SimpleEntry<String, Object>("id", assignmentId));
-		return executeNamedQuery(DomainAssignment.NQ_DELETED_BY_ID, parameters);
+		int affected = executeNamedQuery(DomainAssignment.NQ_DELETED_BY_ID, parameters);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+		return affected;
 	}
 
 	/**
@@ -108,7 +118,9 @@ public class DomainAssignmentService extends AbstractDataService<DomainAssignmen
 	public int deleteByUserID(Long userID) {
 		List<Map.Entry<String, Object>> parameters = new ArrayList<>(2);
 		parameters.add(new AbstractMap.SimpleEntry<String, Object>("userID", userID));
-		return executeNamedQuery(DomainAssignment.NQ_DELETED_BY_USER_ID, parameters);
+		int affected = executeNamedQuery(DomainAssignment.NQ_DELETED_BY_USER_ID, parameters);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+		return affected;
 	}
 
 	/**
@@ -120,7 +132,9 @@ public class DomainAssignmentService extends AbstractDataService<DomainAssignmen
 	public int deleteByDomainID(Long domainID) {
 		List<Map.Entry<String, Object>> parameters = new ArrayList<>(2);
 		parameters.add(new AbstractMap.SimpleEntry<String, Object>("domainID", domainID));
-		return executeNamedQuery(DomainAssignment.NQ_DELETED_BY_DOMAIN_ID, parameters);
+		int affected = executeNamedQuery(DomainAssignment.NQ_DELETED_BY_DOMAIN_ID, parameters);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+		return affected;
 	}
 
 	/**
@@ -174,6 +188,28 @@ public class DomainAssignmentService extends AbstractDataService<DomainAssignmen
 		return results;
 	}
 
+	/**
+	 * Saves the given <code>DomainAssignment</code> and invalidates the cached permission decisions.
+	 * 
+	 * @see {@link AbstractDataService#save(AbstractEntity)}
+	 * */
+	@Override
+	public void save(DomainAssignment entity) {
+		super.save(entity);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+	}
+
+	/**
+	 * Deletes the given <code>DomainAssignment</code> and invalidates the cached permission decisions.
+	 * 
+	 * @see {@link AbstractDataService#delete(AbstractEntity)}
+	 * */
+	@Override
+	public void delete(DomainAssignment entity) throws EntityNotDeletableException {
+		super.delete(entity);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+	}
+
 	/**
 	 * @see {@link AbstractDataService#getClass()}
 	 * */
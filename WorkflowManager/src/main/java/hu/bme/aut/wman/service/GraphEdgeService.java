@@ -1,5 +1,7 @@
 package hu.bme.aut.wman.service;
 
+import hu.bme.aut.wman.model.AbstractEntity;
+import hu.bme.aut.wman.model.Transition;
 import hu.bme.aut.wman.model.graph.GraphEdge;
 
 import java.util.AbstractMap;
@@ -33,6 +35,56 @@ public class GraphEdgeService extends AbstractDataService<GraphEdge> {
 		return callNamedQuery(GraphEdge.NQ_FIND_BY_END_ID, parameterList);
 	}
 
+	/**
+	 * Adds the edges bypassing the node with one INSERT ... SELECT statement: each edge leading into the node is
+	 * continued to every node the node leads to, bound to the transition bypassing the state of the node, which
+	 * continues the transition of the edge leading in to the state the edge leading out points to. An edge existing
+	 * already is not added again. The edges of the node itself are kept, see
+	 * {@link GraphEdgeService#deleteByNodeId(Long)}.
+	 *
+	 * @param nodeId
+	 *            its state is bypassed by {@link TransitionService#insertBypasses(Long)} before
+	 * @return the number of the edges added
+	 */
+	public int insertBypasses(Long nodeId) {
+		String table = tableOf(GraphEdge.class);
+		String start = columnOf(GraphEdge.class, GraphEdge.PR_START);
+		String end = columnOf(GraphEdge.class, GraphEdge.PR_END);
+		String transition = columnOf(GraphEdge.class, GraphEdge.PR_TRANSITION_ID);
+		String label = columnOf(GraphEdge.class, GraphEdge.PR_LABEL);
+		String graph = columnOf(GraphEdge.class, GraphEdge.PR_GRAPH);
+		String edgeId = columnOf(GraphEdge.class, AbstractEntity.PR_ID);
+		String transitions = tableOf(Transition.class);
+		String id = columnOf(Transition.class, AbstractEntity.PR_ID);
+		String parent = columnOf(Transition.class, Transition.PR_PARENT_STATE);
+		String action = columnOf(Transition.class, Transition.PR_ACTION_TYPE);
+		String next = columnOf(Transition.class, Transition.PR_NEXT_STATE);
+
+		/* the lowest id of the equal transitions, so an edge is bound to one of them only */
+		String bypass = "SELECT MIN(b." + id + ") FROM " + transitions + " b WHERE b." + parent + " = it." + parent +
+				" AND b." + action + " = it." + action + " AND b." + next + " = ot." + next;
+		return executeNativeUpdate("INSERT INTO " + table + " (" + start + ", " + end + ", " + transition + ", " + label + ", " + graph + ") " +
+				"SELECT DISTINCT i." + start + ", o." + end + ", n." + id + ", i." + label + ", i." + graph +
+				" FROM " + table + " i, " + table + " o, " + transitions + " it, " + transitions + " ot, " + transitions + " n" +
+				" WHERE i." + end + " = ? AND o." + start + " = ? AND i." + start + " <> ? AND o." + end + " <> ? AND i." + start + " <> o." + end +
+				" AND it." + id + " = i." + transition + " AND ot." + id + " = o." + transition + " AND n." + id + " = (" + bypass + ")" +
+				" AND NOT EXISTS (SELECT e." + edgeId + " FROM " + table + " e WHERE e." + start + " = i." + start + " AND e." + end + " = o." + end +
+				" AND e." + transition + " = n." + id + ")",
+				nodeId, nodeId, nodeId, nodeId);
+	}
+
+	/**
+	 * Deletes the edges from and to the node with one DELETE statement.
+	 *
+	 * @param nodeId
+	 * @return the number of the edges deleted
+	 */
+	public int deleteByNodeId(Long nodeId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("nodeId", nodeId));
+		return executeNamedQuery(GraphEdge.NQ_DELETE_BY_NODE_ID, parameterList);
+	}
+
 	@Override
 	protected Class<GraphEdge> getEntityClass() {
 		return GraphEdge.class;
@@ -0,0 +1,556 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.model.graph.StateGraph;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, layered (Sugiyama-style) layout of a <code>StateGraph</code>: the cycles are broken by reversing the
+ * back edges of a depth-first search from the initial node, the nodes are assigned to layers by the longest path, the
+ * edges spanning a few layers are split by dummy nodes, the crossings are reduced by barycenter sweeps, and the nodes
+ * are placed on a grid, each layer centered.
+ * <p>
+ * The edges spanning more than {@link GraphLayout#MAX_ROUTED_SPAN} layers, typically the reversed ones leading back to
+ * the start of a long process, are not split: they are left out of the crossing reduction, so the number of the dummy
+ * nodes is bounded by a constant times the number of the edges. Every step works on primitive arrays in time linear
+ * in the size of the graph with the dummy nodes (the sweeps sorting the layers), so a graph of a thousand nodes is laid
+ * out in milliseconds. The positions are applied to the nodes which have none only, relative to the ones placed by
+ * the user, see {@link GraphLayout#applyTo(StateGraph)}.
+ *
+ * @version "%I%, %G%"
+ * @see {@link StateGraphService#layoutOf(StateGraph, long)}
+ */
+public final class GraphLayout implements Serializable {
+
+	private static final long serialVersionUID = -2918372356201784655L;
+
+	/** the coordinate of the nodes without position */
+	public static final int UNPLACED = -1;
+
+	public static final int MARGIN = 40;
+	public static final int LAYER_SPACING = 140;
+	public static final int NODE_SPACING = 180;
+	/** the maximal number of layers an edge split by dummy nodes spans */
+	public static final int MAX_ROUTED_SPAN = 4;
+
+	private static final int SWEEPS = 8;
+
+	private final long version;
+	private final Map<Long, int[]> positions;
+	private final int layerCount;
+	private final int crossings;
+
+	private GraphLayout(long version, Map<Long, int[]> positions, int layerCount, int crossings) {
+		this.version = version;
+		this.positions = positions;
+		this.layerCount = layerCount;
+		this.crossings = crossings;
+	}
+
+	/**
+	 * Lays out the nodes and the edges of the graph.
+	 *
+	 * @param version
+	 *            of the structure of the graph the nodes and the edges were read in
+	 * @param nodeIds
+	 *            the ids of the nodes
+	 * @param initialNodeId
+	 *            the node to be put on the top layer, or <code>null</code>
+	 * @param edgeStarts
+	 *            the ids of the start nodes of the edges
+	 * @param edgeEnds
+	 *            the ids of the end nodes of the edges, in the same order
+	 * @return the {@link GraphLayout}
+	 */
+	public static GraphLayout compute(long version, long[] nodeIds, Long initialNodeId, long[] edgeStarts, long[] edgeEnds) {
+		int n = nodeIds.length;
+		Map<Long, Integer> ordinals = new HashMap<Long, Integer>(n * 2);
+		for (int i = 0; i < n; ++i) {
+			ordinals.put(nodeIds[i], i);
+		}
+
+		/* the edges between different, known nodes */
+		int[] froms = new int[edgeStarts.length];
+		int[] tos = new int[edgeStarts.length];
+		int m = 0;
+		for (int e = 0; e < edgeStarts.length; ++e) {
+			Integer from = ordinals.get(edgeStarts[e]);
+			Integer to = ordinals.get(edgeEnds[e]);
+			if (from != null && to != null && !from.equals(to)) {
+				froms[m] = from;
+				tos[m] = to;
+				++m;
+			}
+		}
+
+		Integer initial = (initialNodeId == null) ? null : ordinals.get(initialNodeId);
+		int[] discovery = new int[n];
+		breakCycles(n, m, froms, tos, initial, discovery);
+		int[] layers = assignLayers(n, m, froms, tos, initial);
+
+		/* split the edges spanning a few layers by dummy nodes, so every segment connects adjacent layers */
+		int vertices = n;
+		int routed = 0;
+		for (int e = 0; e < m; ++e) {
+			int span = layers[tos[e]] - layers[froms[e]];
+			if (span <= MAX_ROUTED_SPAN) {
+				froms[routed] = froms[e];
+				tos[routed++] = tos[e];
+				vertices += span - 1;
+			}
+		}
+		m = routed;
+		int[] layerOf = Arrays.copyOf(layers, vertices);
+		int[] rank = new int[vertices];
+		System.arraycopy(discovery, 0, rank, 0, n);
+		int[] segmentFroms = new int[vertices - n + m];
+		int[] segmentTos = new int[segmentFroms.length];
+		int segments = 0;
+		int dummy = n;
+		for (int e = 0; e < m; ++e) {
+			int previous = froms[e];
+			for (int layer = layers[froms[e]] + 1; layer < layers[tos[e]]; ++layer) {
+				layerOf[dummy] = layer;
+				rank[dummy] = rank[previous];
+				segmentFroms[segments] = previous;
+				segmentTos[segments++] = dummy;
+				previous = dummy++;
+			}
+			segmentFroms[segments] = previous;
+			segmentTos[segments++] = tos[e];
+		}
+
+		int layerCount = 0;
+		for (int v = 0; v < vertices; ++v) {
+			layerCount = Math.max(layerCount, layerOf[v] + 1);
+		}
+		int[] upOffsets = new int[vertices + 1];
+		int[] ups = adjacency(vertices, segments, segmentTos, segmentFroms, upOffsets);
+		int[] downOffsets = new int[vertices + 1];
+		int[] downs = adjacency(vertices, segments, segmentFroms, segmentTos, downOffsets);
+
+		int[][] order = initialOrder(vertices, layerCount, layerOf, rank);
+		int crossings = minimizeCrossings(order, upOffsets, ups, downOffsets, downs);
+
+		/* place the layers on a grid, each centered to the widest one */
+		int width = 0;
+		for (int[] layer : order) {
+			width = Math.max(width, layer.length);
+		}
+		Map<Long, int[]> positions = new HashMap<Long, int[]>(n * 2);
+		for (int layer = 0; layer < order.length; ++layer) {
+			int offset = MARGIN + (width - order[layer].length) * NODE_SPACING / 2;
+			for (int position = 0; position < order[layer].length; ++position) {
+				int v = order[layer][position];
+				if (v < n) {
+					positions.put(nodeIds[v], new int[] { offset + position * NODE_SPACING, MARGIN + layer * LAYER_SPACING });
+				}
+			}
+		}
+		return new GraphLayout(version, positions, layerCount, crossings);
+	}
+
+	/*
+	 * reverses the back edges of an iterative depth-first search started from the initial node, then from the other
+	 * unvisited nodes, recording the order of the discovery of the nodes
+	 */
+	private static void breakCycles(int n, int m, int[] froms, int[] tos, Integer initial, int[] discovery) {
+		int[] offsets = new int[n + 1];
+		int[] edges = edgeAdjacency(n, m, froms, offsets);
+		byte[] states = new byte[n];
+		int[] stack = new int[n];
+		int[] cursors = new int[n];
+		int discovered = 0;
+
+		for (int i = -1; i < n; ++i) {
+			int root = (i == -1) ? ((initial == null) ? -1 : initial) : i;
+			if (root == -1 || states[root] != 0) {
+				continue;
+			}
+			int depth = 0;
+			stack[depth++] = root;
+			cursors[root] = offsets[root];
+			states[root] = 1;
+			discovery[root] = discovered++;
+			while (depth > 0) {
+				int v = stack[depth - 1];
+				if (cursors[v] == offsets[v + 1]) {
+					states[v] = 2;
+					--depth;
+					continue;
+				}
+				int e = edges[cursors[v]++];
+				int w = tos[e];
+				if (states[w] == 0) {
+					states[w] = 1;
+					discovery[w] = discovered++;
+					cursors[w] = offsets[w];
+					stack[depth++] = w;
+				} else if (states[w] == 1) {
+					tos[e] = froms[e];
+					froms[e] = w;
+				}
+			}
+		}
+	}
+
+	/* longest path layering of the acyclic graph, the sources pulled down next to their children, but the initial */
+	private static int[] assignLayers(int n, int m, int[] froms, int[] tos, Integer initial) {
+		int[] offsets = new int[n + 1];
+		int[] downs = adjacency(n, m, froms, tos, offsets);
+		int[] inDegrees = new int[n];
+		for (int e = 0; e < m; ++e) {
+			++inDegrees[tos[e]];
+		}
+
+		int[] topological = new int[n];
+		int head = 0;
+		int tail = 0;
+		int[] remaining = Arrays.copyOf(inDegrees, n);
+		for (int v = 0; v < n; ++v) {
+			if (remaining[v] == 0) {
+				topological[tail++] = v;
+			}
+		}
+		int[] layers = new int[n];
+		while (head < tail) {
+			int v = topological[head++];
+			for (int e = offsets[v]; e < offsets[v + 1]; ++e) {
+				int w = downs[e];
+				layers[w] = Math.max(layers[w], layers[v] + 1);
+				if (--remaining[w] == 0) {
+					topological[tail++] = w;
+				}
+			}
+		}
+
+		for (int i = n - 1; i >= 0; --i) {
+			int v = topological[i];
+			if (inDegrees[v] == 0 && offsets[v + 1] > offsets[v] && (initial == null || v != initial)) {
+				int layer = Integer.MAX_VALUE;
+				for (int e = offsets[v]; e < offsets[v + 1]; ++e) {
+					layer = Math.min(layer, layers[downs[e]] - 1);
+				}
+				layers[v] = layer;
+			}
+		}
+		return layers;
+	}
+
+	/* the vertices of each layer, ordered by the rank of the discovery */
+	private static int[][] initialOrder(int vertices, int layerCount, int[] layerOf, int[] rank) {
+		int[] sizes = new int[layerCount];
+		for (int v = 0; v < vertices; ++v) {
+			++sizes[layerOf[v]];
+		}
+		int[][] order = new int[layerCount][];
+		for (int layer = 0; layer < layerCount; ++layer) {
+			order[layer] = new int[sizes[layer]];
+			sizes[layer] = 0;
+		}
+		for (int v = 0; v < vertices; ++v) {
+			order[layerOf[v]][sizes[layerOf[v]]++] = v;
+		}
+		double[] keys = new double[vertices];
+		for (int v = 0; v < vertices; ++v) {
+			keys[v] = rank[v];
+		}
+		for (int[] layer : order) {
+			sortByKeys(layer, keys);
+		}
+		return order;
+	}
+
+	/* barycenter sweeps down and up, keeping the order of the fewest crossings */
+	private static int minimizeCrossings(int[][] order, int[] upOffsets, int[] ups, int[] downOffsets, int[] downs) {
+		int vertices = upOffsets.length - 1;
+		int[] positions = new int[vertices];
+		double[] keys = new double[vertices];
+		updatePositions(order, positions);
+		int best = countCrossings(order, positions, downOffsets, downs);
+		int[][] bestOrder = copyOf(order);
+
+		for (int sweep = 0; sweep < SWEEPS && best > 0; ++sweep) {
+			boolean down = (sweep % 2 == 0);
+			for (int i = 1; i < order.length; ++i) {
+				int layer = down ? i : order.length - 1 - i;
+				for (int v : order[layer]) {
+					keys[v] = down ? barycenter(v, upOffsets, ups, positions) : barycenter(v, downOffsets, downs, positions);
+				}
+				sortByKeys(order[layer], keys);
+				for (int position = 0; position < order[layer].length; ++position) {
+					positions[order[layer][position]] = position;
+				}
+			}
+			int crossings = countCrossings(order, positions, downOffsets, downs);
+			if (crossings < best) {
+				best = crossings;
+				bestOrder = copyOf(order);
+			}
+		}
+
+		for (int layer = 0; layer < order.length; ++layer) {
+			order[layer] = bestOrder[layer];
+		}
+		return best;
+	}
+
+	/* the average position of the neighbours in the adjacent layer, or the own one if there is none */
+	private static double barycenter(int v, int[] offsets, int[] adjacent, int[] positions) {
+		if (offsets[v + 1] == offsets[v]) {
+			return positions[v];
+		}
+		double sum = 0;
+		for (int e = offsets[v]; e < offsets[v + 1]; ++e) {
+			sum += positions[adjacent[e]];
+		}
+		return sum / (offsets[v + 1] - offsets[v]);
+	}
+
+	/* counts the inversions of the lower ends of the segments between each pair of layers by a Fenwick tree */
+	private static int countCrossings(int[][] order, int[] positions, int[] downOffsets, int[] downs) {
+		int crossings = 0;
+		for (int layer = 0; layer + 1 < order.length; ++layer) {
+			int[] tree = new int[order[layer + 1].length + 1];
+			int seen = 0;
+			for (int v : order[layer]) {
+				int[] ends = Arrays.copyOfRange(downs, downOffsets[v], downOffsets[v + 1]);
+				for (int i = 0; i < ends.length; ++i) {
+					ends[i] = positions[ends[i]];
+				}
+				Arrays.sort(ends);
+				for (int end : ends) {
+					int notAfter = 0;
+					for (int i = end + 1; i > 0; i -= i & -i) {
+						notAfter += tree[i];
+					}
+					crossings += seen - notAfter;
+				}
+				for (int end : ends) {
+					for (int i = end + 1; i < tree.length; i += i & -i) {
+						++tree[i];
+					}
+					++seen;
+				}
+			}
+		}
+		return crossings;
+	}
+
+	private static void updatePositions(int[][] order, int[] positions) {
+		for (int[] layer : order) {
+			for (int position = 0; position < layer.length; ++position) {
+				positions[layer[position]] = position;
+			}
+		}
+	}
+
+	/*
+	 * stable sort of the vertices by their non-negative keys: each key, to the 1/1024, is packed with the index of
+	 * the vertex into a long, so the primitives are sorted without boxing
+	 */
+	private static void sortByKeys(int[] vertices, double[] keys) {
+		long[] packed = new long[vertices.length];
+		for (int i = 0; i < vertices.length; ++i) {
+			packed[i] = (Math.round(keys[vertices[i]] * 1024) << 32) | i;
+		}
+		Arrays.sort(packed);
+		int[] sorted = new int[vertices.length];
+		for (int i = 0; i < vertices.length; ++i) {
+			sorted[i] = vertices[(int) packed[i]];
+		}
+		System.arraycopy(sorted, 0, vertices, 0, vertices.length);
+	}
+
+	private static int[][] copyOf(int[][] order) {
+		int[][] copy = new int[order.length][];
+		for (int layer = 0; layer < order.length; ++layer) {
+			copy[layer] = order[layer].clone();
+		}
+		return copy;
+	}
+
+	/* compiles the edges into an array of the ends, the ones of the i-th node in [offsets[i], offsets[i + 1]) */
+	private static int[] adjacency(int n, int m, int[] starts, int[] ends, int[] offsets) {
+		int[] edges = edgeAdjacency(n, m, starts, offsets);
+		for (int i = 0; i < edges.length; ++i) {
+			edges[i] = ends[edges[i]];
+		}
+		return edges;
+	}
+
+	/* compiles the edges into an array of their indices, the ones of the i-th node in [offsets[i], offsets[i + 1]) */
+	private static int[] edgeAdjacency(int n, int m, int[] starts, int[] offsets) {
+		for (int e = 0; e < m; ++e) {
+			++offsets[starts[e] + 1];
+		}
+		for (int i = 0; i < n; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] cursors = Arrays.copyOf(offsets, n);
+		int[] edges = new int[m];
+		for (int e = 0; e < m; ++e) {
+			edges[cursors[starts[e]]++] = e;
+		}
+		return edges;
+	}
+
+	/**
+	 * Places the nodes of the graph without position, the others are left where they are. The positions of the layout
+	 * are moved by the average offset of the nodes placed by the user in the same layer, or in all of the layers if
+	 * there is none in it, and then to the right till they overlap no other node.
+	 *
+	 * @param graph
+	 * @return the number of the nodes placed
+	 */
+	public int applyTo(StateGraph graph) {
+		/* the sums of the offsets and their count, per the y of the layer, the ones of all layers under null */
+		Map<Integer, long[]> offsets = new HashMap<Integer, long[]>();
+		Occupancy occupancy = new Occupancy();
+		for (GraphNode node : graph.getPoints()) {
+			if (isUnplaced(node)) {
+				continue;
+			}
+			occupancy.add(node.getX(), node.getY());
+			int[] position = positions.get(node.getId());
+			if (position != null) {
+				addOffset(offsets, position[1], node.getX() - position[0], node.getY() - position[1]);
+				addOffset(offsets, null, node.getX() - position[0], node.getY() - position[1]);
+			}
+		}
+
+		int placed = 0;
+		for (GraphNode node : graph.getPoints()) {
+			int[] position = positions.get(node.getId());
+			if (isUnplaced(node) && position != null) {
+				long[] offset = offsets.containsKey(position[1]) ? offsets.get(position[1]) : offsets.get(null);
+				int x = position[0];
+				int y = position[1];
+				if (offset != null) {
+					x = Math.max(0, x + (int) (offset[0] / offset[2]));
+					y = Math.max(0, y + (int) (offset[1] / offset[2]));
+				}
+				while (occupancy.overlaps(x, y)) {
+					x += NODE_SPACING;
+				}
+				occupancy.add(x, y);
+				node.setX(x);
+				node.setY(y);
+				++placed;
+			}
+		}
+		return placed;
+	}
+
+	private static void addOffset(Map<Integer, long[]> offsets, Integer layerY, int dx, int dy) {
+		long[] offset = offsets.get(layerY);
+		if (offset == null) {
+			offset = new long[3];
+			offsets.put(layerY, offset);
+		}
+		offset[0] += dx;
+		offset[1] += dy;
+		++offset[2];
+	}
+
+	/**
+	 * @param graph
+	 * @return whether the layout has a position for every node of the graph without one
+	 */
+	public boolean covers(StateGraph graph) {
+		for (GraphNode node : graph.getPoints()) {
+			if (isUnplaced(node) && !positions.containsKey(node.getId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param node
+	 * @return whether the node has no position yet
+	 */
+	public static boolean isUnplaced(GraphNode node) {
+		return node.getX() == UNPLACED && node.getY() == UNPLACED;
+	}
+
+	/**
+	 * @param nodeId
+	 * @return the x and y coordinates of the node, or <code>null</code> if the layout does not hold it
+	 */
+	public int[] positionOf(Long nodeId) {
+		int[] position = positions.get(nodeId);
+		return (position == null) ? null : position.clone();
+	}
+
+	/**
+	 * The positions taken by the nodes, hashed into the cells of the grid, so a position is checked against the nodes
+	 * of the neighbouring cells only. A node takes the area of a cell, the spacing included.
+	 */
+	private static final class Occupancy {
+
+		private final Map<Long, List<int[]>> cells = new HashMap<Long, List<int[]>>();
+
+		void add(int x, int y) {
+			long key = keyOf(cellOf(x, NODE_SPACING), cellOf(y, LAYER_SPACING));
+			List<int[]> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<int[]>(1);
+				cells.put(key, cell);
+			}
+			cell.add(new int[] { x, y });
+		}
+
+		boolean overlaps(int x, int y) {
+			int column = cellOf(x, NODE_SPACING);
+			int row = cellOf(y, LAYER_SPACING);
+			for (int i = column - 1; i <= column + 1; ++i) {
+				for (int j = row - 1; j <= row + 1; ++j) {
+					List<int[]> cell = cells.get(keyOf(i, j));
+					if (cell == null) {
+						continue;
+					}
+					for (int[] position : cell) {
+						if (Math.abs(position[0] - x) < NODE_SPACING && Math.abs(position[1] - y) < LAYER_SPACING) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		private static int cellOf(int coordinate, int size) {
+			return (coordinate >= 0) ? coordinate / size : (coordinate + 1) / size - 1;
+		}
+
+		private static long keyOf(int column, int row) {
+			return ((long) column << 32) | (row & 0xFFFFFFFFL);
+		}
+	}
+
+	/**
+	 * @return the version of the structure of the graph the layout was computed for
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int getLayerCount() {
+		return layerCount;
+	}
+
+	/**
+	 * @return the number of the crossings left of the edges split by dummy nodes, see
+	 *         {@link GraphLayout#MAX_ROUTED_SPAN}
+	 */
+	public int getCrossings() {
+		return crossings;
+	}
+}
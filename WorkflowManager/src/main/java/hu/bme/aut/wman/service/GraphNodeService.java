@@ -1,15 +1,24 @@
 package hu.bme.aut.wman.service;
 
+import hu.bme.aut.wman.model.AbstractEntity;
+import hu.bme.aut.wman.model.graph.GraphItem;
 import hu.bme.aut.wman.model.graph.GraphNode;
 import hu.bme.aut.wman.model.graph.StateGraph;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
+
+import com.google.common.collect.Iterables;
 
 /**
  * Helps make operations with <code>BlobFile</code>.
@@ -22,6 +31,24 @@ public class GraphNodeService extends AbstractDataService<GraphNode> {
 
 	private static final long serialVersionUID = 5995723106439036263L;
 
+	/** the maximal number of nodes moved by one UPDATE statement */
+	public static final int MAX_POSITIONS_PER_UPDATE = 250;
+
+	@Inject
+	private StateGraphService graphService;
+
+	/**
+	 * Saves the node, invalidating the serialized graph it belongs to, also when the node is saved by
+	 * {@link AbstractDataService#saveAll(Collection)}.
+	 */
+	@Override
+	public void save(GraphNode entity) {
+		super.save(entity);
+		if (entity.getGraph() != null) {
+			graphService.invalidateGraph(entity.getGraph().getWorkflowId());
+		}
+	}
+
 	public StateGraph getGraphByNodeId(Long nodeId) {
 		return selectById(nodeId).getGraph();
 	}
@@ -32,6 +59,81 @@ public class GraphNodeService extends AbstractDataService<GraphNode> {
 		return selectByParameters(parameterList).get(0);
 	}
 
+	/**
+	 * @param stateId
+	 * @return the id of the node of the state, or <code>null</code> if it has none
+	 */
+	public Long selectIdByStateId(Long stateId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(GraphNode.PR_STATE_ID, stateId));
+		List<Long> ids = callNamedQuery(GraphNode.NQ_FIND_ID_BY_STATE_ID, parameterList, Long.class);
+		return ids.isEmpty() ? null : ids.get(0);
+	}
+
+	/**
+	 * @param workflowId
+	 * @param nodeIds
+	 * @return the ones of the given nodes which belong to the graph of the workflow
+	 */
+	public Set<Long> selectIdsOfWorkflow(Long workflowId, Collection<Long> nodeIds) {
+		Set<Long> ids = new HashSet<Long>();
+		for (List<Long> chunk : Iterables.partition(new LinkedHashSet<Long>(nodeIds), MAX_POSITIONS_PER_UPDATE)) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("workflowId", workflowId));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("nodeIds", chunk));
+			ids.addAll(callNamedQuery(GraphNode.NQ_FIND_IDS_OF_WORKFLOW, parameterList, Long.class));
+		}
+		return ids;
+	}
+
+	/**
+	 * Moves the nodes by one UPDATE statement per {@link GraphNodeService#MAX_POSITIONS_PER_UPDATE} nodes, setting the
+	 * coordinates by <code>CASE</code> on the id, so the nodes are neither loaded nor merged. The nodes deleted since
+	 * are skipped.
+	 *
+	 * @param nodeIds
+	 * @param xs
+	 *            the x coordinates of the nodes, in the same order
+	 * @param ys
+	 *            the y coordinates of the nodes, in the same order
+	 * @return the number of the nodes moved
+	 */
+	public int updatePositions(long[] nodeIds, int[] xs, int[] ys) {
+		String table = tableOf(GraphNode.class);
+		String id = columnOf(GraphNode.class, AbstractEntity.PR_ID);
+		String x = columnOf(GraphNode.class, GraphItem.PR_X);
+		String y = columnOf(GraphNode.class, GraphItem.PR_Y);
+
+		int moved = 0;
+		for (int from = 0; from < nodeIds.length; from += MAX_POSITIONS_PER_UPDATE) {
+			int to = Math.min(nodeIds.length, from + MAX_POSITIONS_PER_UPDATE);
+			StringBuilder xCases = new StringBuilder();
+			StringBuilder yCases = new StringBuilder();
+			StringBuilder ids = new StringBuilder();
+			Object[] parameters = new Object[5 * (to - from)];
+			int xParameter = 0;
+			int yParameter = 2 * (to - from);
+			int idParameter = 4 * (to - from);
+			for (int i = from; i < to; ++i) {
+				xCases.append(" WHEN CAST(? AS BIGINT) THEN CAST(? AS INTEGER)");
+				yCases.append(" WHEN CAST(? AS BIGINT) THEN CAST(? AS INTEGER)");
+				ids.append((i == from) ? "?" : ", ?");
+				parameters[xParameter++] = nodeIds[i];
+				parameters[xParameter++] = xs[i];
+				parameters[yParameter++] = nodeIds[i];
+				parameters[yParameter++] = ys[i];
+				parameters[idParameter++] = nodeIds[i];
+			}
+			moved += executeNativeUpdate("UPDATE " + table + " SET " + x + " = CASE " + id + xCases + " ELSE " + x + " END, " + y
+					+ " = CASE " + id + yCases + " ELSE " + y + " END WHERE " + id + " IN (" + ids + ")", parameters);
+		}
+		return moved;
+	}
+
+	public void setTestGraphService(StateGraphService graphService) {
+		this.graphService = graphService;
+	}
+
 	@Override
 	protected Class<GraphNode> getEntityClass() {
 		return GraphNode.class;
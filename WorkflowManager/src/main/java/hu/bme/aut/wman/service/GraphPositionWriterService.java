@@ -0,0 +1,207 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.model.graph.StateGraph;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Coalesces the positions of the <code>GraphNode</code>s moved in the editor. Only the latest position of each node is
+ * kept, and the pending ones are written every second by {@link GraphNodeService#updatePositions(long[], int[], int[])}
+ * in a few UPDATE statements, so dragging the nodes around costs neither a transaction per move nor a merge of the
+ * nodes.
+ * <p>
+ * Until written, the pending positions are laid over the graphs read, see
+ * {@link GraphPositionWriterService#applyPendingTo(StateGraph)}. They are not durable: the ones submitted right before
+ * the server stops may be lost.
+ *
+ * @version "%I%, %G%"
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class GraphPositionWriterService implements Serializable {
+
+	private static final long serialVersionUID = -5270633951722071437L;
+
+	private static final Logger LOGGER = Logger.getLogger(GraphPositionWriterService.class);
+
+	/* the latest position of each node not written yet, by the id of the node */
+	private final ConcurrentMap<Long, PendingPosition> pending = new ConcurrentHashMap<Long, PendingPosition>();
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+	private final AtomicLong lastFlushNanos = new AtomicLong();
+
+	@Inject
+	private GraphNodeService nodeService;
+
+	/**
+	 * Queues the position of the node, replacing the one not written yet. The version of the graph is increased, as
+	 * the pending positions are served at once.
+	 *
+	 * @param workflowId
+	 *            of the graph of the node
+	 * @param nodeId
+	 * @param x
+	 * @param y
+	 */
+	public void submit(Long workflowId, Long nodeId, int x, int y) {
+		submitted.incrementAndGet();
+		StateGraphService.bumpGraphVersion(workflowId);
+		if (pending.put(nodeId, new PendingPosition(workflowId, x, y)) != null) {
+			coalesced.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes the pending positions. Called every second by the container, a flush in progress is not waited for.
+	 */
+	@Schedule(second = "*/1", minute = "*", hour = "*", persistent = false)
+	public void flush() {
+		if (flushLock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes all the pending positions.
+	 */
+	@PreDestroy
+	public void close() {
+		flushLock.lock();
+		try {
+			drain();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the nodes of the graph having a position not written yet to it.
+	 *
+	 * @param graph
+	 *            a detached one, as the positions are not to be saved by merging it
+	 */
+	public void applyPendingTo(StateGraph graph) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		for (GraphNode node : graph.getPoints()) {
+			PendingPosition position = pending.get(node.getId());
+			if (position != null) {
+				node.setX(position.x);
+				node.setY(position.y);
+			}
+		}
+	}
+
+	private void drain() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		List<Map.Entry<Long, PendingPosition>> batch = new ArrayList<Map.Entry<Long, PendingPosition>>(pending.entrySet());
+		long[] nodeIds = new long[batch.size()];
+		int[] xs = new int[batch.size()];
+		int[] ys = new int[batch.size()];
+		Set<Long> workflowIds = new HashSet<Long>();
+		for (int i = 0; i < nodeIds.length; ++i) {
+			nodeIds[i] = batch.get(i).getKey();
+			xs[i] = batch.get(i).getValue().x;
+			ys[i] = batch.get(i).getValue().y;
+			workflowIds.add(batch.get(i).getValue().workflowId);
+		}
+
+		try {
+			nodeService.updatePositions(nodeIds, xs, ys);
+		} catch (RuntimeException e) {
+			failedFlushes.incrementAndGet();
+			LOGGER.error(String.format("Unable to write %d node positions, retrying later", nodeIds.length), e);
+			return;
+		}
+		/* the positions submitted during the write are kept for the next flush */
+		for (Map.Entry<Long, PendingPosition> entry : batch) {
+			pending.remove(entry.getKey(), entry.getValue());
+		}
+		/* a graph serialized while they were written may miss the positions, neither pending nor read any more */
+		for (Long workflowId : workflowIds) {
+			StateGraphService.bumpGraphVersion(workflowId);
+		}
+		written.addAndGet(nodeIds.length);
+		lastFlushNanos.set(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the number of the positions pending, submitted, the ones replaced before written (coalesced), the ones
+	 *         written, the number of the failed flushes and the duration of the last one
+	 */
+	public Map<String, Object> statistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("pending", pending.size());
+		statistics.put("submitted", submitted.get());
+		statistics.put("coalesced", coalesced.get());
+		statistics.put("written", written.get());
+		statistics.put("failedFlushes", failedFlushes.get());
+		statistics.put("lastFlushMillis", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get()));
+		return statistics;
+	}
+
+	/**
+	 * @return the number of the positions waiting to be written
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public void setGraphNodeService(GraphNodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * The position of a node not written yet, with the workflow of its graph.
+	 */
+	private static final class PendingPosition {
+
+		private final Long workflowId;
+		private final int x;
+		private final int y;
+
+		PendingPosition(Long workflowId, int x, int y) {
+			this.workflowId = workflowId;
+			this.x = x;
+			this.y = y;
+		}
+	}
+}
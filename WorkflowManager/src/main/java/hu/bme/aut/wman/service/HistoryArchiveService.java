@@ -0,0 +1,217 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.view.objects.HistoryEntryVO;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the <code>HistoryEntry</code> table bounded by moving the entries older than the horizon, and the entries of
+ * the closed <code>Project</code>s, into the {@link HistorySegmentStore}. The archiver runs every ten minutes, in
+ * batches: each batch is appended to the segments and forced to the disk first, and deleted from the table only
+ * then, so an entry is never lost, but may be archived twice after a crash (the duplicates are dropped on reading).
+ * <p>
+ * The directory of the archive is given by the <code>wman.history.archive</code>, the horizon in days by the
+ * <code>wman.history.horizon.days</code> system property.
+ *
+ * @version "%I%, %G%"
+ * @see {@link HistoryEntryService#selectHistoryPage}
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class HistoryArchiveService implements Serializable {
+
+	private static final long serialVersionUID = -5113837360964211736L;
+
+	private static final Logger LOGGER = Logger.getLogger(HistoryArchiveService.class);
+
+	public static final String DIRECTORY_PROPERTY = "wman.history.archive";
+	public static final String HORIZON_PROPERTY = "wman.history.horizon.days";
+	public static final int DEFAULT_HORIZON_DAYS = 180;
+	public static final int BATCH_SIZE = 1000;
+	public static final int MAX_BATCHES_PER_RUN = 100;
+
+	private final Path directory;
+	private final long horizonMillis;
+	private final ReentrantLock archiveLock = new ReentrantLock();
+	private volatile HistorySegmentStore store;
+
+	private final AtomicLong archived = new AtomicLong();
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong failedRuns = new AtomicLong();
+	private final AtomicLong lastRunNanos = new AtomicLong();
+
+	@Inject
+	private HistoryEntryService historyService;
+
+	public HistoryArchiveService() {
+		this(Paths.get(System.getProperty(DIRECTORY_PROPERTY, Paths.get(System.getProperty("user.home"), "wman-history-archive").toString())),
+				Integer.getInteger(HORIZON_PROPERTY, DEFAULT_HORIZON_DAYS));
+	}
+
+	public HistoryArchiveService(Path directory, int horizonDays) {
+		this.directory = directory;
+		this.horizonMillis = TimeUnit.DAYS.toMillis(horizonDays);
+	}
+
+	/**
+	 * Opens the segments of the archive, if it fails the entries stay in the table.
+	 */
+	@PostConstruct
+	public void open() {
+		try {
+			store = new HistorySegmentStore(directory);
+		} catch (IOException e) {
+			LOGGER.error("Unable to open the history archive " + directory + ", the history is not archived", e);
+		}
+	}
+
+	/**
+	 * Archives the entries older than the horizon and the ones of the closed projects. Called every ten minutes by the
+	 * container, a run in progress is not waited for.
+	 */
+	@Schedule(minute = "*/10", hour = "*", persistent = false)
+	public void archive() {
+		if (archiveLock.tryLock()) {
+			try {
+				archiveOlderThan(new Date(System.currentTimeMillis() - horizonMillis));
+			} finally {
+				archiveLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Archives the entries older than the cutoff and the ones of the closed projects, in at most
+	 * {@link HistoryArchiveService#MAX_BATCHES_PER_RUN} batches.
+	 *
+	 * @param cutoff
+	 * @return the number of the entries archived
+	 */
+	public int archiveOlderThan(Date cutoff) {
+		if (store == null) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int count = 0;
+		try {
+			for (int batch = 0; batch < MAX_BATCHES_PER_RUN; ++batch) {
+				List<HistoryEntryVO> entries = historyService.selectArchivable(cutoff, BATCH_SIZE);
+				if (entries.isEmpty()) {
+					break;
+				}
+				store.append(entries);
+
+				List<Long> ids = new ArrayList<Long>(entries.size());
+				for (HistoryEntryVO entry : entries) {
+					ids.add(entry.getId());
+				}
+				historyService.deleteAllByIds(ids);
+				count += entries.size();
+				if (entries.size() < BATCH_SIZE) {
+					break;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			failedRuns.incrementAndGet();
+			LOGGER.error(String.format("Unable to archive the history after %d entries, retrying later", count), e);
+		}
+		runs.incrementAndGet();
+		archived.addAndGet(count);
+		lastRunNanos.set(System.nanoTime() - start);
+		if (count > 0) {
+			LOGGER.info(String.format("Archived %d history entries older than %s", count, cutoff));
+		}
+		return count;
+	}
+
+	/**
+	 * Selects the archived entries, see {@link HistorySegmentStore#select}. If the archive cannot be read, nothing is
+	 * selected.
+	 */
+	public List<HistoryEntryVO> select(Long projectId, String userName, Collection<HistoryEntryEventType> events, Date from, Date to,
+									   Date beforeWhen, Long beforeId, int limit) {
+		HistorySegmentStore current = store;
+		if (current == null) {
+			return Collections.emptyList();
+		}
+		try {
+			return current.select(projectId, userName, events, from, to, beforeWhen, beforeId, limit);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error("Unable to read the history archive " + directory, e);
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Closes the segments.
+	 */
+	@PreDestroy
+	public void close() {
+		archiveLock.lock();
+		try {
+			if (store != null) {
+				store.close();
+				store = null;
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to close the history archive " + directory, e);
+		} finally {
+			archiveLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of the runs, the failed ones, the entries archived, the duration of the last run, and the
+	 *         statistics of the segments
+	 */
+	public Map<String, Object> statistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("horizonDays", TimeUnit.MILLISECONDS.toDays(horizonMillis));
+		statistics.put("runs", runs.get());
+		statistics.put("failedRuns", failedRuns.get());
+		statistics.put("archived", archived.get());
+		statistics.put("lastRunMillis", TimeUnit.NANOSECONDS.toMillis(lastRunNanos.get()));
+		HistorySegmentStore current = store;
+		if (current != null) {
+			statistics.put("segments", current.statistics());
+		}
+		return statistics;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public void setHistoryEntryService(HistoryEntryService historyService) {
+		this.historyService = historyService;
+	}
+}
@@ -5,17 +5,28 @@ import hu.bme.aut.wman.model.HistoryEntry;
 import hu.bme.aut.wman.model.HistoryEntryEventType;
 import hu.bme.aut.wman.model.Project;
 import hu.bme.aut.wman.model.User;
+import hu.bme.aut.wman.view.objects.HistoryEntryVO;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+
 /**
  * Helps make operations with <code>HistoryEntry</code>.
  *
@@ -27,12 +38,66 @@ public class HistoryEntryService extends AbstractDataService<HistoryEntry> {
 
 	private static final long serialVersionUID = -6436062508521145745L;
 
+	private static final Logger LOGGER = Logger.getLogger(HistoryEntryService.class);
+
+	private static final String SELECT_HISTORY = "SELECT NEW hu.bme.aut.wman.view.objects.HistoryEntryVO(he.id, he.project.id, he.userName, he.when, he.event, he.message, he.state) " +
+			"FROM HistoryEntry he";
+	private static final String SELECT_ARCHIVABLE = SELECT_HISTORY +
+			" WHERE he.when < :cutoff OR (he.project.active = false AND he.when IS NOT NULL) ORDER BY he.project.id, he.id";
+
 	@Inject
-	ProjectService projectService;
+	private HistoryArchiveService historyArchive;
 
 	public void log(String username, Date when,	HistoryEntryEventType event, String message, Long projectId) {
-		Project project = projectService.selectById(projectId);
-		log(username, when, event, message, project, project.getCurrentState().getName());
+		writeAll(Collections.singletonList(new HistoryEvent(username, projectId, null, event, message, when)));
+	}
+
+	/**
+	 * Logs the event of the project given by its id in the given state, without loading the project.
+	 * */
+	public void log(String username, Date when, HistoryEntryEventType event, String message, Long projectId, String stateName) {
+		log(username, when, event, message, referenceOf(Project.class, projectId), stateName);
+	}
+
+	/**
+	 * Writes the entries of the events, referring to the projects without loading them. The projects are checked to
+	 * exist and the missing state names are resolved with a projection query per batch, the events of the projects
+	 * deleted since they were queued are dropped.
+	 *
+	 * @param events
+	 * @see {@link HistoryWriterService}
+	 * */
+	public void writeAll(List<HistoryEvent> events) {
+		Set<Long> projectIds = new HashSet<Long>();
+		for (HistoryEvent event : events) {
+			projectIds.add(event.getProjectId());
+		}
+		Map<Long, String> stateNames = new HashMap<Long, String>();
+		for (List<Long> chunk : Lists.partition(new ArrayList<Long>(projectIds), getBatchSize())) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectIDs", chunk));
+			for (Object[] row : callNamedQuery(Project.NQ_FIND_STATE_NAMES_BY_IDS, parameterList, Object[].class)) {
+				stateNames.put((Long) row[0], (String) row[1]);
+			}
+		}
+
+		List<HistoryEntry> historyEntries = new ArrayList<HistoryEntry>(events.size());
+		for (HistoryEvent event : events) {
+			String stateName = (event.getStateName() != null) ? event.getStateName() : stateNames.get(event.getProjectId());
+			if (!stateNames.containsKey(event.getProjectId()) || stateName == null) {
+				LOGGER.warn(String.format("Dropping the history event of the missing project %d: %s", event.getProjectId(), event.getMessage()));
+				continue;
+			}
+			HistoryEntry historyEntry = new HistoryEntry();
+			historyEntry.setUserName(event.getUsername());
+			historyEntry.setWhen(event.getWhen());
+			historyEntry.setEvent(event.getEvent());
+			historyEntry.setMessage(event.getMessage());
+			historyEntry.setProject(referenceOf(Project.class, event.getProjectId()));
+			historyEntry.setState(stateName);
+			historyEntries.add(historyEntry);
+		}
+		saveAll(historyEntries);
 	}
 
 	public void log(String username, Date when, HistoryEntryEventType event, String message, Project project, String stateName) {
@@ -47,6 +112,177 @@ public class HistoryEntryService extends AbstractDataService<HistoryEntry> {
 		save(historyEntry);
 	}
 
+	/**
+	 * Logs the execution of an action on many projects, saving all the entries by one transaction and a flush per
+	 * batch.
+	 *
+	 * @param username
+	 * @param when
+	 * @param actionName
+	 * @param result
+	 *            of {@link ProjectService#executeActionOnAll(java.util.Collection, Long, java.util.Collection)}
+	 */
+	public void logActions(String username, Date when, String actionName, BulkActionResult result) {
+		List<HistoryEntry> historyEntries = new ArrayList<HistoryEntry>(result.getSucceeded().size());
+		for (BulkActionResult.Transitioned transitioned : result.getSucceeded()) {
+			HistoryEntry historyEntry = new HistoryEntry();
+			historyEntry.setUserName(username);
+			historyEntry.setWhen(when);
+			historyEntry.setEvent(HistoryEntryEventType.DONE_ACTION);
+			historyEntry.setMessage("done: " + actionName + " in state: " + transitioned.getFromStateName());
+			historyEntry.setProject(referenceOf(Project.class, transitioned.getProjectId()));
+			historyEntry.setState(transitioned.getToStateName());
+			historyEntries.add(historyEntry);
+		}
+		saveAll(historyEntries);
+	}
+
+	/**
+	 * Selects one page of the history of a project or of a user, newest first. The time and the id of the last entry
+	 * of the previous page are the keyset the next page starts after, so every page costs the same, served by the
+	 * (project, when) and (userName, when) indexes. The entries in the table and in the {@link HistoryArchiveService}
+	 * are merged transparently.
+	 *
+	 * @param projectId
+	 *            the project to select the history of, may be <code>null</code> if the user is given
+	 * @param userName
+	 *            the user to select the history of, may be <code>null</code> if the project is given
+	 * @param events
+	 *            the event types to select, <code>null</code> or empty for all
+	 * @param from
+	 *            the inclusive start of the time range, may be <code>null</code>
+	 * @param to
+	 *            the exclusive end of the time range, may be <code>null</code>
+	 * @param cursor
+	 *            of the page, <code>null</code> for the newest one
+	 * @param limit
+	 *            the maximal number of entries on the page
+	 * @return the {@link Page} of the {@link HistoryEntryVO}s
+	 * @throws IllegalArgumentException
+	 *             if neither the project nor the user is given, or the cursor is malformed
+	 */
+	public Page<HistoryEntryVO> selectHistoryPage(Long projectId, String userName, Collection<HistoryEntryEventType> events, Date from, Date to,
+												  String cursor, int limit) throws IllegalArgumentException {
+		if (projectId == null && userName == null) {
+			throw new IllegalArgumentException("Either the project or the user must be given.");
+		}
+		if (limit < 1) {
+			throw new IllegalArgumentException("Page limit must be positive, but was " + limit);
+		}
+
+		StringBuilder jpql = new StringBuilder(SELECT_HISTORY);
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		String separator = " WHERE ";
+		if (projectId != null) {
+			jpql.append(separator).append("he.project.id = :projectID");
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectID", projectId));
+			separator = " AND ";
+		}
+		if (userName != null) {
+			jpql.append(separator).append("he.userName = :userName");
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("userName", userName));
+			separator = " AND ";
+		}
+		if (events != null && !events.isEmpty()) {
+			jpql.append(separator).append("he.event IN :events");
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("events", new ArrayList<HistoryEntryEventType>(events)));
+		}
+		if (from != null) {
+			jpql.append(" AND he.when >= :from");
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("from", from));
+		}
+		if (to != null) {
+			jpql.append(" AND he.when < :to");
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("to", to));
+		}
+
+		Long afterId = Page.afterIdOf(cursor);
+		Date afterWhen = null;
+		if (afterId != null) {
+			String afterKey = Page.afterKeyOf(cursor);
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("afterId", afterId));
+			if (afterKey == null) {
+				/* the entries without time come first */
+				jpql.append(" AND ((he.when IS NULL AND he.id < :afterId) OR he.when IS NOT NULL)");
+			} else {
+				afterWhen = new Date(Long.parseLong(afterKey, Character.MAX_RADIX));
+				jpql.append(" AND (he.when < :afterWhen OR (he.when = :afterWhen AND he.id < :afterId))");
+				parameterList.add(new AbstractMap.SimpleEntry<String, Object>("afterWhen", afterWhen));
+			}
+		}
+		jpql.append(" ORDER BY he.when DESC, he.id DESC");
+
+		// one more than the limit tells whether there is a next page
+		List<HistoryEntryVO> hot = callQuery(jpql.toString(), parameterList, HistoryEntryVO.class, limit + 1);
+		List<HistoryEntryVO> archived;
+		if (hot.size() > limit && hot.get(limit).getWhen() == null) {
+			/* the archived entries never lack the time, so none of them makes it to a full page of entries without one */
+			archived = Collections.emptyList();
+		} else {
+			/*
+			 * with a full page only the archived entries newer than its oldest one may replace an entry of it, so the
+			 * months and the blocks of the archive before that are not read at all
+			 */
+			Date archivedFrom = from;
+			if (hot.size() > limit && (from == null || hot.get(limit).getWhen().after(from))) {
+				archivedFrom = hot.get(limit).getWhen();
+			}
+			/* the archived entries never lack the time, so all of them come after a cursor without one */
+			archived = historyArchive.select(projectId, userName, events, archivedFrom, to, afterWhen, (afterWhen == null) ? null : afterId, limit + 1);
+		}
+		List<HistoryEntryVO> results = merge(hot, archived, limit + 1);
+
+		if (results.size() > limit) {
+			List<HistoryEntryVO> elements = new ArrayList<HistoryEntryVO>(results.subList(0, limit));
+			HistoryEntryVO last = elements.get(limit - 1);
+			String lastKey = (last.getWhen() == null) ? null : Long.toString(last.getWhen().getTime(), Character.MAX_RADIX);
+			return new Page<HistoryEntryVO>(elements, Page.cursorOf(lastKey, last.getId()));
+		}
+		return new Page<HistoryEntryVO>(results, null);
+	}
+
+	/**
+	 * Selects the entries to be moved to the archive: the ones older than the cutoff and the ones of the closed
+	 * projects, grouped by their projects, so the blocks of the archive cover few projects each.
+	 *
+	 * @param cutoff
+	 * @param limit
+	 *            the maximal number of entries to select
+	 * @return the entries
+	 * @see {@link HistoryArchiveService}
+	 */
+	public List<HistoryEntryVO> selectArchivable(Date cutoff, int limit) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("cutoff", cutoff));
+		return callQuery(SELECT_ARCHIVABLE, parameterList, HistoryEntryVO.class, limit);
+	}
+
+	/* merges the entries of the table and of the archive, both ordered, dropping the ones archived meanwhile */
+	private static List<HistoryEntryVO> merge(List<HistoryEntryVO> hot, List<HistoryEntryVO> archived, int limit) {
+		if (archived.isEmpty()) {
+			return hot;
+		}
+		List<HistoryEntryVO> merged = new ArrayList<HistoryEntryVO>(limit);
+		Set<Long> ids = new HashSet<Long>();
+		int i = 0;
+		int j = 0;
+		while (merged.size() < limit && (i < hot.size() || j < archived.size())) {
+			HistoryEntryVO next;
+			if (j == archived.size() || (i < hot.size() && HistorySegmentStore.NEWEST_FIRST.compare(hot.get(i), archived.get(j)) <= 0)) {
+				next = hot.get(i++);
+			} else {
+				next = archived.get(j++);
+			}
+			if (ids.add(next.getId())) {
+				merged.add(next);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Reads the history of the user still in the table, {@link HistoryEntryService#selectHistoryPage} reads the archive as well.
+	 */
 	public List<HistoryEntry> selectByUserName(String userName) {
 		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
 		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(User.PR_NAME, userName));
@@ -59,12 +295,19 @@ public class HistoryEntryService extends AbstractDataService<HistoryEntry> {
 	//		return callNamedQuery(HistoryEntry.NQ_FIND_BY_STATE_ID, parameterList);
 	//	}
 
+	/**
+	 * Reads the history of the project still in the table, {@link HistoryEntryService#selectHistoryPage} reads the archive as well.
+	 */
 	public List<HistoryEntry> selectByProjectId(Long projectId) {
 		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
 		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(AbstractEntity.PR_ID, projectId));
 		return callNamedQuery(HistoryEntry.NQ_FIND_BY_PROJECT_ID, parameterList);
 	}
 
+	public void setHistoryArchive(HistoryArchiveService historyArchive) {
+		this.historyArchive = historyArchive;
+	}
+
 	@Override
 	protected Class<HistoryEntry> getEntityClass() {
 		return HistoryEntry.class;
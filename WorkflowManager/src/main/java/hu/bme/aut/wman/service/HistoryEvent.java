@@ -0,0 +1,135 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.HistoryEntry;
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.model.Project;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Immutable, lightweight description of a <code>HistoryEntry</code> to be written, referring to the
+ * <code>Project</code> by its id only.
+ *
+ * @version "%I%, %G%"
+ * @see {@link HistoryWriterService#enqueue(HistoryEvent)}
+ */
+public final class HistoryEvent implements Serializable {
+
+	private static final long serialVersionUID = -1623087454069380218L;
+
+	private final String username;
+	private final Long projectId;
+	private final String stateName;
+	private final HistoryEntryEventType event;
+	private final String message;
+	private final long when;
+
+	/**
+	 * @param username
+	 * @param projectId
+	 * @param stateName
+	 *            the name of the current state of the project, or <code>null</code> to be resolved when written
+	 * @param event
+	 * @param message
+	 * @param when
+	 */
+	public HistoryEvent(String username, Long projectId, String stateName, HistoryEntryEventType event, String message, Date when) {
+		this(username, projectId, stateName, event, message, when.getTime());
+	}
+
+	/**
+	 * Creates the event of the project in its current state, the name of the state is captured now, not when the
+	 * event is written.
+	 *
+	 * @param username
+	 * @param project
+	 * @param event
+	 * @param message
+	 * @param when
+	 * @return the {@link HistoryEvent}
+	 */
+	public static HistoryEvent of(String username, Project project, HistoryEntryEventType event, String message, Date when) {
+		String stateName = (project.getCurrentState() != null) ? project.getCurrentState().getName() : null;
+		return new HistoryEvent(username, project.getId(), stateName, event, message, when);
+	}
+
+	private HistoryEvent(String username, Long projectId, String stateName, HistoryEntryEventType event, String message, long when) {
+		this.username = username;
+		this.projectId = projectId;
+		this.stateName = stateName;
+		this.event = event;
+		this.message = truncate(message);
+		this.when = when;
+	}
+
+	/*
+	 * The messages embed user input, e.g. the names of the files, so they are cut to the column before being queued,
+	 * as the entries are not validated when written.
+	 */
+	private static String truncate(String message) {
+		if (message == null || message.length() <= HistoryEntry.MAX_MESSAGE_LENGTH) {
+			return message;
+		}
+		return message.substring(0, HistoryEntry.MAX_MESSAGE_LENGTH - 3) + "...";
+	}
+
+	/**
+	 * Writes the event in a compact binary form, read back by {@link HistoryEvent#readFrom(DataInput)}.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(when);
+		out.writeLong(projectId);
+		out.writeUTF(username);
+		out.writeBoolean(stateName != null);
+		if (stateName != null) {
+			out.writeUTF(stateName);
+		}
+		out.writeUTF(event.name());
+		out.writeUTF(message);
+	}
+
+	/**
+	 * @param in
+	 * @return the event written by {@link HistoryEvent#writeTo(DataOutput)}
+	 * @throws IOException
+	 */
+	public static HistoryEvent readFrom(DataInput in) throws IOException {
+		long when = in.readLong();
+		Long projectId = in.readLong();
+		String username = in.readUTF();
+		String stateName = in.readBoolean() ? in.readUTF() : null;
+		HistoryEntryEventType event = HistoryEntryEventType.valueOf(in.readUTF());
+		return new HistoryEvent(username, projectId, stateName, event, in.readUTF(), when);
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public Long getProjectId() {
+		return projectId;
+	}
+
+	public String getStateName() {
+		return stateName;
+	}
+
+	public HistoryEntryEventType getEvent() {
+		return event;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public Date getWhen() {
+		return new Date(when);
+	}
+}
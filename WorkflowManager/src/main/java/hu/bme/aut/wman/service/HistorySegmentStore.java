@@ -0,0 +1,524 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.view.objects.HistoryEntryVO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Append-only, compressed store of the archived <code>HistoryEntry</code>s on the local file system, one segment per
+ * calendar month (UTC) of the entries. A segment is made of two files:
+ * <ul>
+ * <li><code>history-yyyy-MM.seg</code>: deflated blocks of at most {@link HistorySegmentStore#BLOCK_ENTRIES} entries,
+ * sorted by the id of their project, and grouped by it when the caller appends the entries of a project together</li>
+ * <li><code>history-yyyy-MM.idx</code>: the sparse index, a fixed size record per block holding its position, the
+ * range of the project ids and of the times in it</li>
+ * </ul>
+ * A block is forced to the disk before its index record, and the bytes not covered by the index are dropped on
+ * opening, so a torn append is never read. Only the blocks the index does not rule out are read, with positional reads
+ * of the segment, so a segment is not limited to the size of a mapping and no mapping is left for the garbage collector
+ * to release. A block which cannot be decompressed is logged and skipped.
+ * <p>
+ * Appends are serialized, reads may run concurrently with them and with each other.
+ *
+ * @version "%I%, %G%"
+ * @see {@link HistoryArchiveService}
+ */
+public class HistorySegmentStore implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(HistorySegmentStore.class);
+
+	public static final int BLOCK_ENTRIES = 256;
+
+	/** offset, length, count, min and max project id, min and max time */
+	private static final int INDEX_RECORD_SIZE = 8 + 4 + 4 + 4 * 8;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final Pattern INDEX_FILE = Pattern.compile("history-(\\d{4}-\\d{2})\\.idx");
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/** the newest first, the ones without time first, as ordered by the database */
+	static final Comparator<HistoryEntryVO> NEWEST_FIRST = new Comparator<HistoryEntryVO>() {
+		@Override
+		public int compare(HistoryEntryVO left, HistoryEntryVO right) {
+			if (left.getWhen() == null || right.getWhen() == null) {
+				if (left.getWhen() != right.getWhen()) {
+					return (left.getWhen() == null) ? -1 : 1;
+				}
+			} else if (!left.getWhen().equals(right.getWhen())) {
+				return right.getWhen().compareTo(left.getWhen());
+			}
+			return right.getId().compareTo(left.getId());
+		}
+	};
+
+	private static final Comparator<HistoryEntryVO> BY_PROJECT = new Comparator<HistoryEntryVO>() {
+		@Override
+		public int compare(HistoryEntryVO left, HistoryEntryVO right) {
+			int byProject = left.getProjectId().compareTo(right.getProjectId());
+			return (byProject != 0) ? byProject : NEWEST_FIRST.compare(left, right);
+		}
+	};
+
+	private final Path directory;
+	/* by month, the newest first */
+	private final ConcurrentNavigableMap<String, Segment> segments = new ConcurrentSkipListMap<String, Segment>(Collections.reverseOrder());
+
+	/**
+	 * Opens the segments in the directory, creating it if it does not exist.
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public HistorySegmentStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "history-*" + INDEX_SUFFIX)) {
+			for (Path file : files) {
+				Matcher matcher = INDEX_FILE.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					segments.put(matcher.group(1), Segment.open(directory, matcher.group(1)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends the entries to the segments of their months. The entries must have a time.
+	 *
+	 * @param entries
+	 * @throws IOException
+	 *             if the entries could not be written, some of them may be written nevertheless
+	 */
+	public synchronized void append(Collection<HistoryEntryVO> entries) throws IOException {
+		Map<String, List<HistoryEntryVO>> byMonth = new TreeMap<String, List<HistoryEntryVO>>();
+		for (HistoryEntryVO entry : entries) {
+			String month = monthOf(entry.getWhen().getTime());
+			List<HistoryEntryVO> monthEntries = byMonth.get(month);
+			if (monthEntries == null) {
+				monthEntries = new ArrayList<HistoryEntryVO>();
+				byMonth.put(month, monthEntries);
+			}
+			monthEntries.add(entry);
+		}
+
+		for (Map.Entry<String, List<HistoryEntryVO>> month : byMonth.entrySet()) {
+			Segment segment = segments.get(month.getKey());
+			if (segment == null) {
+				segment = Segment.open(directory, month.getKey());
+				segments.put(month.getKey(), segment);
+			}
+			List<HistoryEntryVO> sorted = month.getValue();
+			Collections.sort(sorted, BY_PROJECT);
+			segment.append(Lists.partition(sorted, BLOCK_ENTRIES));
+		}
+	}
+
+	/**
+	 * Selects the newest archived entries of a project or of a user, optionally restricted to some types of events and
+	 * to a time range, after a keyset. Only the months and the blocks of the sparse index which may hold such entries
+	 * are read.
+	 *
+	 * @param projectId
+	 *            may be <code>null</code>
+	 * @param userName
+	 *            may be <code>null</code>
+	 * @param events
+	 *            <code>null</code> or empty for all
+	 * @param from
+	 *            the inclusive start of the time range, may be <code>null</code>
+	 * @param to
+	 *            the exclusive end of the time range, may be <code>null</code>
+	 * @param beforeWhen
+	 *            the time of the keyset, the entries older (or as old, but with a smaller id) are selected, may be
+	 *            <code>null</code> to select from the newest one
+	 * @param beforeId
+	 *            the id of the keyset
+	 * @param limit
+	 *            the maximal number of entries to select
+	 * @return the entries, the newest first
+	 * @throws IOException
+	 */
+	public List<HistoryEntryVO> select(Long projectId, String userName, Collection<HistoryEntryEventType> events, Date from, Date to,
+									   Date beforeWhen, Long beforeId, int limit) throws IOException {
+		Filter filter = new Filter(projectId, userName, events, from, to, beforeWhen, beforeId);
+		/* ordered and deduplicated, as an entry may be archived twice after a crash */
+		NavigableSet<HistoryEntryVO> selected = new TreeSet<HistoryEntryVO>(NEWEST_FIRST);
+		for (Segment segment : segments.values()) {
+			if (filter.from != Long.MIN_VALUE && segment.end <= filter.from) {
+				break;
+			}
+			if (segment.start >= filter.to || segment.start > filter.beforeWhen) {
+				continue;
+			}
+			segment.collect(filter, selected);
+			/* the months are disjoint, none of the older ones may hold a newer entry */
+			if (selected.size() >= limit) {
+				break;
+			}
+		}
+
+		List<HistoryEntryVO> result = new ArrayList<HistoryEntryVO>(limit);
+		for (HistoryEntryVO entry : selected) {
+			if (result.size() == limit) {
+				break;
+			}
+			result.add(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of the segments, of the blocks, of the entries and the size of the segments in bytes
+	 */
+	public Map<String, Object> statistics() {
+		long blocks = 0;
+		long entries = 0;
+		long bytes = 0;
+		for (Segment segment : segments.values()) {
+			List<Block> segmentBlocks = segment.blocks;
+			blocks += segmentBlocks.size();
+			for (Block block : segmentBlocks) {
+				entries += block.count;
+			}
+			bytes += segment.length();
+		}
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("segments", segments.size());
+		statistics.put("blocks", blocks);
+		statistics.put("entries", entries);
+		statistics.put("bytes", bytes);
+		return statistics;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+		segments.clear();
+	}
+
+	static String monthOf(long when) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setTimeInMillis(when);
+		return String.format("%04d-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+	}
+
+	/* the start of the month, or of the next one */
+	private static long startOf(String month, int plusMonths) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.clear();
+		calendar.set(Integer.parseInt(month.substring(0, 4)), Integer.parseInt(month.substring(5, 7)) - 1, 1);
+		calendar.add(Calendar.MONTH, plusMonths);
+		return calendar.getTimeInMillis();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of the history segment at " + position);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * The conditions of a selection, the missing bounds replaced by the extremes.
+	 */
+	private static final class Filter {
+
+		private final Long projectId;
+		private final String userName;
+		private final Collection<HistoryEntryEventType> events;
+		private final long from;
+		private final long to;
+		private final long beforeWhen;
+		private final long beforeId;
+
+		Filter(Long projectId, String userName, Collection<HistoryEntryEventType> events, Date from, Date to, Date beforeWhen, Long beforeId) {
+			this.projectId = projectId;
+			this.userName = userName;
+			this.events = (events == null || events.isEmpty()) ? null : events;
+			this.from = (from == null) ? Long.MIN_VALUE : from.getTime();
+			this.to = (to == null) ? Long.MAX_VALUE : to.getTime();
+			this.beforeWhen = (beforeWhen == null) ? Long.MAX_VALUE : beforeWhen.getTime();
+			this.beforeId = (beforeId == null) ? Long.MAX_VALUE : beforeId;
+		}
+
+		boolean mayMatch(Block block) {
+			return (projectId == null || (block.minProjectId <= projectId && projectId <= block.maxProjectId))
+					&& block.maxWhen >= from && block.minWhen < to && block.minWhen <= beforeWhen;
+		}
+
+		boolean matches(long id, long projectId, long when, String userName, HistoryEntryEventType event) {
+			return (this.projectId == null || this.projectId == projectId)
+					&& (this.userName == null || this.userName.equals(userName))
+					&& (events == null || events.contains(event))
+					&& when >= from && when < to
+					&& (when < beforeWhen || (when == beforeWhen && id < beforeId));
+		}
+	}
+
+	/**
+	 * An entry of the sparse index.
+	 */
+	private static final class Block {
+
+		private final long offset;
+		private final int length;
+		private final int count;
+		private final long minProjectId;
+		private final long maxProjectId;
+		private final long minWhen;
+		private final long maxWhen;
+
+		Block(long offset, int length, int count, long minProjectId, long maxProjectId, long minWhen, long maxWhen) {
+			this.offset = offset;
+			this.length = length;
+			this.count = count;
+			this.minProjectId = minProjectId;
+			this.maxProjectId = maxProjectId;
+			this.minWhen = minWhen;
+			this.maxWhen = maxWhen;
+		}
+
+		long end() {
+			return offset + length;
+		}
+
+		void writeTo(ByteBuffer buffer) {
+			buffer.putLong(offset).putInt(length).putInt(count).putLong(minProjectId).putLong(maxProjectId).putLong(minWhen).putLong(maxWhen);
+		}
+
+		static Block readFrom(ByteBuffer buffer) {
+			return new Block(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+		}
+	}
+
+	/**
+	 * The archived entries of a month.
+	 */
+	private static final class Segment {
+
+		private final String month;
+		private final long start;
+		private final long end;
+		private final FileChannel data;
+		private final FileChannel index;
+		/* replaced as a whole on append, so the readers see a consistent snapshot */
+		private volatile List<Block> blocks;
+
+		private Segment(String month, FileChannel data, FileChannel index, List<Block> blocks) {
+			this.month = month;
+			this.start = startOf(month, 0);
+			this.end = startOf(month, 1);
+			this.data = data;
+			this.index = index;
+			this.blocks = blocks;
+		}
+
+		static Segment open(Path directory, String month) throws IOException {
+			FileChannel data = FileChannel.open(directory.resolve("history-" + month + SEGMENT_SUFFIX),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			FileChannel index = FileChannel.open(directory.resolve("history-" + month + INDEX_SUFFIX),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			List<Block> blocks = new ArrayList<Block>();
+			long records = index.size() / INDEX_RECORD_SIZE;
+			if (records > 0) {
+				/* a record of 48 bytes per block of entries, far below the limit of an array */
+				ByteBuffer buffer = ByteBuffer.allocate((int) (records * INDEX_RECORD_SIZE));
+				readFully(index, buffer, 0);
+				buffer.flip();
+				long dataSize = data.size();
+				for (long i = 0; i < records; ++i) {
+					Block block = Block.readFrom(buffer);
+					if (block.end() > dataSize) {
+						break;
+					}
+					blocks.add(block);
+				}
+			}
+
+			/* drop the torn appends, if any */
+			long indexLength = (long) blocks.size() * INDEX_RECORD_SIZE;
+			long dataLength = blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).end();
+			if (index.size() > indexLength || data.size() > dataLength) {
+				LOGGER.warn(String.format("Dropping the incomplete tail of the history segment %s", month));
+				index.truncate(indexLength);
+				data.truncate(dataLength);
+			}
+			return new Segment(month, data, index, Collections.unmodifiableList(blocks));
+		}
+
+		/* called by the synchronized append of the store only */
+		void append(List<List<HistoryEntryVO>> chunks) throws IOException {
+			List<Block> current = blocks;
+			long offset = current.isEmpty() ? 0 : current.get(current.size() - 1).end();
+			List<Block> appended = new ArrayList<Block>(chunks.size());
+			for (List<HistoryEntryVO> chunk : chunks) {
+				ByteBuffer compressed = ByteBuffer.wrap(compress(chunk));
+				Block block = new Block(offset, compressed.remaining(), chunk.size(), chunk.get(0).getProjectId(),
+						chunk.get(chunk.size() - 1).getProjectId(), minWhenOf(chunk), maxWhenOf(chunk));
+				while (compressed.hasRemaining()) {
+					offset += data.write(compressed, offset);
+				}
+				appended.add(block);
+			}
+			data.force(false);
+
+			ByteBuffer records = ByteBuffer.allocate(appended.size() * INDEX_RECORD_SIZE);
+			for (Block block : appended) {
+				block.writeTo(records);
+			}
+			records.flip();
+			long position = (long) current.size() * INDEX_RECORD_SIZE;
+			while (records.hasRemaining()) {
+				position += index.write(records, position);
+			}
+			index.force(false);
+
+			List<Block> updated = new ArrayList<Block>(current);
+			updated.addAll(appended);
+			blocks = Collections.unmodifiableList(updated);
+		}
+
+		void collect(Filter filter, Collection<HistoryEntryVO> selected) {
+			for (Block block : blocks) {
+				if (!filter.mayMatch(block)) {
+					continue;
+				}
+				List<HistoryEntryVO> matching = new ArrayList<HistoryEntryVO>();
+				byte[] compressed = new byte[block.length];
+				try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+					readFully(data, ByteBuffer.wrap(compressed), block.offset);
+					for (int i = 0; i < block.count; ++i) {
+						long id = in.readLong();
+						long projectId = in.readLong();
+						long when = in.readLong();
+						String userName = readString(in);
+						HistoryEntryEventType event = HistoryEntryEventType.valueOf(in.readUTF());
+						String message = readString(in);
+						String state = readString(in);
+						if (filter.matches(id, projectId, when, userName, event)) {
+							matching.add(new HistoryEntryVO(id, projectId, userName, new Date(when), event, message, state));
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					/* a corrupt block (bad deflate stream, unknown event, truncated entry) must not fail the whole page */
+					LOGGER.warn(String.format("Skipping the corrupt block at %d of the history segment %s", block.offset, month), e);
+					continue;
+				}
+				selected.addAll(matching);
+			}
+		}
+
+		long length() {
+			List<Block> snapshot = blocks;
+			return snapshot.isEmpty() ? 0 : snapshot.get(snapshot.size() - 1).end();
+		}
+
+		void close() throws IOException {
+			try {
+				data.close();
+			} finally {
+				index.close();
+			}
+		}
+
+		private static byte[] compress(List<HistoryEntryVO> entries) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * entries.size());
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			try {
+				DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+				for (HistoryEntryVO entry : entries) {
+					out.writeLong(entry.getId());
+					out.writeLong(entry.getProjectId());
+					out.writeLong(entry.getWhen().getTime());
+					writeString(out, entry.getUserName());
+					out.writeUTF(entry.getEvent().name());
+					writeString(out, entry.getMessage());
+					writeString(out, entry.getState());
+				}
+				out.close();
+			} finally {
+				deflater.end();
+			}
+			return bytes.toByteArray();
+		}
+
+		private static long minWhenOf(List<HistoryEntryVO> entries) {
+			long min = Long.MAX_VALUE;
+			for (HistoryEntryVO entry : entries) {
+				min = Math.min(min, entry.getWhen().getTime());
+			}
+			return min;
+		}
+
+		private static long maxWhenOf(List<HistoryEntryVO> entries) {
+			long max = Long.MIN_VALUE;
+			for (HistoryEntryVO entry : entries) {
+				max = Math.max(max, entry.getWhen().getTime());
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "history-" + month;
+		}
+	}
+}
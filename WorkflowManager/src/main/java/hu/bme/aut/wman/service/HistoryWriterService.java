@@ -0,0 +1,527 @@
+package hu.bme.aut.wman.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Write-behind pipeline of the <code>HistoryEntry</code>s. The callers only enqueue a {@link HistoryEvent} into a
+ * bounded in-memory queue, which is drained every second in batches of one transaction each by
+ * {@link HistoryEntryService#writeAll(List)}.
+ * <p>
+ * Every queued event is appended to a local spool file as well, and the offset of the spool up to which the events
+ * are written is saved into a checkpoint file after each flush. On startup only the events after the checkpoint are
+ * replayed, so the events are not lost if the server stops before writing them. The spool is truncated when every
+ * event is written, and its written prefix is cut off once it exceeds {@link HistoryWriterService#COMPACT_THRESHOLD},
+ * so it does not grow under a steady load either. The delivery is at least once: an event written right before a
+ * crash may be written again.
+ * <p>
+ * When the queue is full the caller waits for at most {@link HistoryWriterService#OFFER_TIMEOUT_MILLIS}, then writes
+ * its event synchronously.
+ * <p>
+ * A failed batch is written again event by event. The events the database rejects by a data or an integrity error,
+ * e.g. of a project deleted meanwhile, are logged to the {@link HistoryWriterService#DEAD_LETTER_LOGGER} and dropped,
+ * so they do not hold up the ones queued after them. On any other failure the rest of the batch is retried by the
+ * next flush.
+ *
+ * @version "%I%, %G%"
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class HistoryWriterService implements Serializable {
+
+	private static final long serialVersionUID = 4760524128945510337L;
+
+	private static final Logger LOGGER = Logger.getLogger(HistoryWriterService.class);
+
+	/** the name of the logger of the events dropped as they can not be written */
+	public static final String DEAD_LETTER_LOGGER = HistoryWriterService.class.getName() + ".deadLetters";
+	private static final Logger DEAD_LETTERS = Logger.getLogger(DEAD_LETTER_LOGGER);
+
+	public static final String SPOOL_PROPERTY = "wman.history.spool";
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int BATCH_SIZE = 500;
+	public static final int MAX_BATCHES_PER_FLUSH = 20;
+	public static final long OFFER_TIMEOUT_MILLIS = 100;
+	public static final long COMPACT_THRESHOLD = 4L * 1024 * 1024;
+
+	private final Object lock = new Object();
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final BlockingQueue<SpooledEvent> queue;
+	private final int capacity;
+	/*
+	 * the events of a failed batch and the ones recovered from the spool, written before the queued ones by the next
+	 * flush, only touched under the flushLock
+	 */
+	private final List<SpooledEvent> retries = new ArrayList<SpooledEvent>();
+	private volatile int retryCount;
+	private final Path spool;
+	private final Path checkpoint;
+	private FileChannel spoolChannel;
+	private FileChannel checkpointChannel;
+	/*
+	 * the offsets of the spool are logical, counted from the start of the first spool of this run, guarded by the
+	 * lock: the file starts at the spoolBase, and the events are written up to the committed offset
+	 */
+	private long spoolBase;
+	private long spoolEnd;
+	private long committed;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong backpressured = new AtomicLong();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong lastFlushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+
+	@Inject
+	private HistoryEntryService historyService;
+
+	public HistoryWriterService() {
+		this(Paths.get(System.getProperty(SPOOL_PROPERTY, Paths.get(System.getProperty("user.home"), "wman-history.spool").toString())),
+				DEFAULT_CAPACITY);
+	}
+
+	public HistoryWriterService(Path spool, int capacity) {
+		this.spool = spool;
+		this.checkpoint = spool.resolveSibling(spool.getFileName() + ".checkpoint");
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<SpooledEvent>(capacity);
+	}
+
+	/**
+	 * Replays the events left after the checkpoint in the spool file by the previous run, and opens the spool for
+	 * appending.
+	 */
+	@PostConstruct
+	public void recover() {
+		synchronized (lock) {
+			try {
+				if (spool.getParent() != null) {
+					Files.createDirectories(spool.getParent());
+				}
+				List<SpooledEvent> recovered = new ArrayList<SpooledEvent>();
+				long validLength = readSpool(recovered);
+				spoolChannel = FileChannel.open(spool, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				/* drop the torn record written while crashing, if any */
+				spoolChannel.truncate(validLength);
+				spoolChannel.position(validLength);
+				checkpointChannel = FileChannel.open(checkpoint, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				long start = readCheckpoint(validLength);
+				spoolBase = 0;
+				spoolEnd = validLength;
+				committed = start;
+
+				/* ahead of the events queued from now on, so the written ones are always a prefix of the spool */
+				for (SpooledEvent spooled : recovered) {
+					if (spooled.end > start) {
+						retries.add(spooled);
+					}
+				}
+				retryCount = retries.size();
+				if (!retries.isEmpty()) {
+					LOGGER.info(String.format("Recovered %d history events from %s", retries.size(), spool));
+				}
+			} catch (IOException e) {
+				LOGGER.error("Unable to open the history spool " + spool + ", the queued events are not durable", e);
+			}
+		}
+	}
+
+	/**
+	 * Queues the event to be written in the background.
+	 *
+	 * @param event
+	 */
+	public void enqueue(HistoryEvent event) {
+		enqueued.incrementAndGet();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OFFER_TIMEOUT_MILLIS);
+		boolean waited = false;
+		while (true) {
+			synchronized (lock) {
+				if (queue.remainingCapacity() > 0) {
+					queue.add(new SpooledEvent(event, append(event)));
+					return;
+				}
+			}
+			if (!waited) {
+				backpressured.incrementAndGet();
+				waited = true;
+			}
+			if (System.nanoTime() >= deadline) {
+				break;
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+
+		overflowed.incrementAndGet();
+		historyService.writeAll(Collections.singletonList(event));
+		written.incrementAndGet();
+	}
+
+	/**
+	 * Writes the queued events in batches. Called every second by the container, a flush in progress is not waited
+	 * for.
+	 */
+	@Schedule(second = "*/1", minute = "*", hour = "*", persistent = false)
+	public void flush() {
+		if (flushLock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes all the queued events and closes the spool.
+	 */
+	@PreDestroy
+	public void close() {
+		flushLock.lock();
+		try {
+			drain();
+			synchronized (lock) {
+				if (spoolChannel != null) {
+					spoolChannel.close();
+					spoolChannel = null;
+				}
+				if (checkpointChannel != null) {
+					checkpointChannel.close();
+					checkpointChannel = null;
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to close the history spool " + spool, e);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void drain() {
+		long start = System.nanoTime();
+		List<SpooledEvent> batch = new ArrayList<SpooledEvent>(BATCH_SIZE);
+		forceSpool();
+
+		int count = 0;
+		for (int round = 0; round < MAX_BATCHES_PER_FLUSH; ++round) {
+			if (!retries.isEmpty()) {
+				List<SpooledEvent> head = retries.subList(0, Math.min(BATCH_SIZE, retries.size()));
+				batch.addAll(head);
+				head.clear();
+			} else {
+				synchronized (lock) {
+					queue.drainTo(batch, BATCH_SIZE);
+				}
+			}
+			if (batch.isEmpty()) {
+				break;
+			}
+			int handled = batch.size();
+			try {
+				historyService.writeAll(eventsOf(batch));
+				written.addAndGet(batch.size());
+			} catch (RuntimeException e) {
+				failedBatches.incrementAndGet();
+				LOGGER.warn(String.format("Unable to write %d history events, writing them one by one", batch.size()), e);
+				handled = writeOneByOne(batch);
+			}
+			if (handled > 0) {
+				count += handled;
+				commit(batch.get(handled - 1).end);
+			}
+			if (handled < batch.size()) {
+				retries.addAll(0, batch.subList(handled, batch.size()));
+				break;
+			}
+			batch.clear();
+		}
+		retryCount = retries.size();
+
+		if (count > 0) {
+			saveCheckpoint();
+			long duration = System.nanoTime() - start;
+			lastFlushNanos.set(duration);
+			long max = maxFlushNanos.get();
+			while (duration > max && !maxFlushNanos.compareAndSet(max, duration)) {
+				max = maxFlushNanos.get();
+			}
+		}
+	}
+
+	/*
+	 * Writes the events in their order, dropping the ones rejected, returns the number of the events written or
+	 * dropped before the first one failing otherwise.
+	 */
+	private int writeOneByOne(List<SpooledEvent> batch) {
+		int handled = 0;
+		for (SpooledEvent spooled : batch) {
+			try {
+				historyService.writeAll(Collections.singletonList(spooled.event));
+				written.incrementAndGet();
+			} catch (RuntimeException e) {
+				if (!isRejected(e)) {
+					LOGGER.error(String.format("Unable to write %d history events, retrying later", batch.size() - handled), e);
+					return handled;
+				}
+				failedBatches.incrementAndGet();
+				HistoryEvent event = spooled.event;
+				DEAD_LETTERS.error(String.format("Dropped the history event of project %d by %s at %tFT%<tT, %s in %s: %s", event.getProjectId(),
+						event.getUsername(), event.getWhen(), event.getEvent(), event.getStateName(), event.getMessage()), e);
+			}
+			++handled;
+		}
+		return handled;
+	}
+
+	/* whether the database refused the data itself, by a data exception or an integrity constraint violation */
+	private static boolean isRejected(Throwable failure) {
+		for (Throwable cause : Throwables.getCausalChain(failure)) {
+			if (cause instanceof SQLException) {
+				String state = ((SQLException) cause).getSQLState();
+				if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void commit(long end) {
+		synchronized (lock) {
+			committed = Math.max(committed, end);
+		}
+	}
+
+	/*
+	 * Saves the committed offset, truncating the spool when every event is written, or cutting off its written prefix
+	 * when it is too long. The checkpoint is reset before the spool is changed, so a crash in between only replays
+	 * written events.
+	 */
+	private void saveCheckpoint() {
+		synchronized (lock) {
+			if (spoolChannel == null || checkpointChannel == null) {
+				return;
+			}
+			try {
+				if (committed == spoolEnd) {
+					writeCheckpoint(0, true);
+					spoolChannel.truncate(0);
+					spoolChannel.position(0);
+					spoolBase = committed;
+				} else if (committed - spoolBase >= COMPACT_THRESHOLD) {
+					compact();
+				} else {
+					writeCheckpoint(committed - spoolBase, false);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Unable to save the checkpoint of the history spool " + spool, e);
+			}
+		}
+	}
+
+	/* must be called holding the lock */
+	private void compact() throws IOException {
+		Path compacted = spool.resolveSibling(spool.getFileName() + ".compact");
+		try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long position = committed - spoolBase;
+			long length = spoolEnd - committed;
+			while (length > 0) {
+				long transferred = spoolChannel.transferTo(position, length, target);
+				position += transferred;
+				length -= transferred;
+			}
+			target.force(false);
+		}
+		writeCheckpoint(0, true);
+		spoolChannel.close();
+		Files.move(compacted, spool, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		spoolChannel = FileChannel.open(spool, StandardOpenOption.WRITE);
+		spoolChannel.position(spoolChannel.size());
+		spoolBase = committed;
+	}
+
+	/* must be called holding the lock */
+	private void writeCheckpoint(long position, boolean force) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(0, position);
+		while (buffer.hasRemaining()) {
+			checkpointChannel.write(buffer, buffer.position());
+		}
+		if (force) {
+			checkpointChannel.force(false);
+		}
+	}
+
+	/* returns the position of the spool saved in the checkpoint, 0 if it is missing or invalid */
+	private long readCheckpoint(long spoolLength) throws IOException {
+		if (checkpointChannel.size() < 8) {
+			return 0;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		checkpointChannel.read(buffer, 0);
+		long position = buffer.getLong(0);
+		if (position < 0 || position > spoolLength) {
+			LOGGER.warn("Invalid checkpoint " + position + " of the history spool " + spool + ", replaying it completely");
+			return 0;
+		}
+		return position;
+	}
+
+	private static List<HistoryEvent> eventsOf(List<SpooledEvent> batch) {
+		List<HistoryEvent> events = new ArrayList<HistoryEvent>(batch.size());
+		for (SpooledEvent spooled : batch) {
+			events.add(spooled.event);
+		}
+		return events;
+	}
+
+	/* must be called holding the lock, returns the logical offset of the end of the spool */
+	private long append(HistoryEvent event) {
+		if (spoolChannel == null) {
+			return spoolEnd;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			event.writeTo(out);
+			out.flush();
+
+			ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+			record.putInt(0, record.remaining() - 4);
+			while (record.hasRemaining()) {
+				spoolEnd += spoolChannel.write(record);
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to spool a history event, it is not durable", e);
+		}
+		return spoolEnd;
+	}
+
+	private void forceSpool() {
+		synchronized (lock) {
+			if (spoolChannel != null) {
+				try {
+					spoolChannel.force(false);
+				} catch (IOException e) {
+					LOGGER.warn("Unable to force the history spool " + spool, e);
+				}
+			}
+		}
+	}
+
+	/* returns the length of the spool up to the last complete record */
+	private long readSpool(List<SpooledEvent> events) throws IOException {
+		if (!Files.exists(spool)) {
+			return 0;
+		}
+		long validLength = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spool)))) {
+			while (true) {
+				byte[] record = new byte[in.readInt()];
+				in.readFully(record);
+				HistoryEvent event = HistoryEvent.readFrom(new DataInputStream(new ByteArrayInputStream(record)));
+				validLength += 4 + record.length;
+				events.add(new SpooledEvent(event, validLength));
+			}
+		} catch (EOFException e) {
+			/* end of the spool, or a torn record */
+		} catch (IllegalArgumentException | NegativeArraySizeException e) {
+			LOGGER.warn("Corrupt record in the history spool " + spool + " at " + validLength, e);
+		}
+		return validLength;
+	}
+
+	/**
+	 * @return the depth of the queue, the number of events enqueued, written, the ones which had to wait for room in
+	 *         the queue (backpressured) and the ones written synchronously as the queue stayed full (overflowed), the
+	 *         number of failed batches, the events dropped counted as batches of one, and the latency of the flushes
+	 */
+	public Map<String, Object> statistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("queueDepth", getQueueDepth());
+		statistics.put("capacity", capacity);
+		statistics.put("enqueued", enqueued.get());
+		statistics.put("written", written.get());
+		statistics.put("backpressured", backpressured.get());
+		statistics.put("overflowed", overflowed.get());
+		statistics.put("failedBatches", failedBatches.get());
+		statistics.put("lastFlushMillis", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos.get()));
+		statistics.put("maxFlushMillis", TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get()));
+		return statistics;
+	}
+
+	/**
+	 * @return the number of events waiting to be written
+	 */
+	public int getQueueDepth() {
+		return queue.size() + retryCount;
+	}
+
+	public Path getSpool() {
+		return spool;
+	}
+
+	public void setHistoryEntryService(HistoryEntryService historyService) {
+		this.historyService = historyService;
+	}
+
+	/**
+	 * A queued event with the logical offset of the end of its record in the spool.
+	 */
+	private static final class SpooledEvent {
+
+		private final HistoryEvent event;
+		private final long end;
+
+		SpooledEvent(HistoryEvent event, long end) {
+			this.event = event;
+			this.end = end;
+		}
+	}
+}
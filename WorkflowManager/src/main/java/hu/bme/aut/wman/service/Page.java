@@ -0,0 +1,137 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.AbstractEntity;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * One page of a keyset-paginated query, holding the selected entities and the cursor token
+ * pointing right after the last one of them.
+ *
+ * @version "%I%, %G%"
+ *
+ * @param <T>
+ *            the type of the elements of the page
+ * @see {@link AbstractDataService#selectPage(List, String, Long, int)}
+ */
+public class Page<T> implements Serializable {
+
+	private static final long serialVersionUID = -2875036491622516084L;
+
+	private static final int CURSOR_RADIX = 36;
+	private static final char KEY_SEPARATOR = '.';
+	private static final char NULL_KEY = '-';
+	private static final char NON_NULL_KEY = '+';
+
+	private final List<T> elements;
+	private final String nextCursor;
+
+	public Page(List<T> elements, String nextCursor) {
+		this.elements = elements;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * @return the elements of this page
+	 */
+	public List<T> getElements() {
+		return elements;
+	}
+
+	/**
+	 * @return the cursor token of the next page or <code>null</code> if this is the last one
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * @return whether there is a next page
+	 */
+	public boolean hasNext() {
+		return nextCursor != null;
+	}
+
+	/**
+	 * Encodes the ID of the last entity of a page as a cursor token.
+	 *
+	 * @param lastId
+	 * @return the cursor token, or <code>null</code> if lastId is <code>null</code>
+	 */
+	public static String cursorOf(Long lastId) {
+		return (lastId == null) ? null : Long.toString(lastId, CURSOR_RADIX);
+	}
+
+	/**
+	 * Decodes a cursor token to the ID of the last entity of the previous page.
+	 *
+	 * @param cursor
+	 * @return the ID the next page starts after, or <code>null</code> for an empty cursor
+	 * @throws IllegalArgumentException
+	 *             if the cursor is malformed
+	 */
+	public static Long afterIdOf(String cursor) {
+		if (cursor == null || cursor.isEmpty()) {
+			return null;
+		}
+		int separator = cursor.indexOf(KEY_SEPARATOR);
+		try {
+			return Long.valueOf((separator < 0) ? cursor : cursor.substring(0, separator), CURSOR_RADIX);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed cursor: " + cursor, e);
+		}
+	}
+
+	/**
+	 * Encodes the sort key and the ID of the last element of a page ordered by that key (and then by ID)
+	 * as a cursor token.
+	 *
+	 * @param lastKey
+	 *            the sort key of the last element, may be <code>null</code>
+	 * @param lastId
+	 * @return the cursor token, or <code>null</code> if lastId is <code>null</code>
+	 */
+	public static String cursorOf(String lastKey, Long lastId) {
+		if (lastId == null) {
+			return null;
+		}
+		String key = (lastKey == null) ? String.valueOf(NULL_KEY)
+									   : NON_NULL_KEY + BaseEncoding.base64Url().omitPadding().encode(lastKey.getBytes(Charsets.UTF_8));
+		return cursorOf(lastId) + KEY_SEPARATOR + key;
+	}
+
+	/**
+	 * Decodes the sort key of the last element of the previous page from a cursor token.
+	 *
+	 * @param cursor
+	 * @return the sort key the next page starts after, or <code>null</code> if it was <code>null</code> or the
+	 *         cursor holds no key
+	 * @throws IllegalArgumentException
+	 *             if the cursor is malformed
+	 * @see {@link Page#cursorOf(String, Long)}
+	 */
+	public static String afterKeyOf(String cursor) {
+		int separator = (cursor == null) ? -1 : cursor.indexOf(KEY_SEPARATOR);
+		if (separator < 0 || separator == cursor.length() - 1 || cursor.charAt(separator + 1) == NULL_KEY) {
+			return null;
+		}
+		if (cursor.charAt(separator + 1) != NON_NULL_KEY) {
+			throw new IllegalArgumentException("Malformed cursor: " + cursor);
+		}
+		return new String(BaseEncoding.base64Url().decode(cursor.substring(separator + 2)), Charsets.UTF_8);
+	}
+
+	/**
+	 * Convenience method for the cursor of the page ending with the given entity.
+	 *
+	 * @param last
+	 * @return the cursor token
+	 */
+	public static String cursorOf(AbstractEntity last) {
+		return (last == null) ? null : cursorOf(last.getId());
+	}
+}
@@ -99,6 +99,19 @@ public class PrivilegeService extends AbstractDataService<Privilege>
 		return callNamedQuery(Privilege.NQ_FIND_ALL_BY_USERNAME, parameters);
 	}
 
+	/**
+	 * Obtains the (<code>Domain</code> id, <code>Domain</code> name, <code>Privilege</code> name) triples
+	 * owned by the <code>User</code> specified by its username.
+	 * 
+	 * @param username
+	 * @return a {@link List} of the triples as {@link Object} arrays
+	 * */
+	public List<Object[]> domainPrivilegesOf(String username) {
+		List<Entry<String, Object>> parameters = new ArrayList<Entry<String, Object>>();
+		parameters.add(new AbstractMap.SimpleEntry<String, Object>("username", username));
+		return callNamedQuery(Privilege.NQ_FIND_ALL_DOMAIN_PRIVILEGES_BY_USERNAME, parameters, Object[].class);
+	}
+
 	/**
 	 * Converts the given <code>Privilege</code> names to <code>Privilege</code> instances.
 	 * 
@@ -0,0 +1,375 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
+import hu.bme.aut.wman.model.ActionType;
+import hu.bme.aut.wman.model.BlobFile;
+import hu.bme.aut.wman.model.Comment;
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.model.User;
+import hu.bme.aut.wman.service.BlobStoreService.StoredBlob;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Facade of the user visible operations on a <code>Project</code>. Each command runs in a single container
+ * transaction, so the services it calls share one persistence context: every entity is loaded once and reused,
+ * and the changes are committed together, instead of each step being a separate transaction re-reading the same
+ * rows.
+ * <p>
+ * The number and the duration of the executions of each command are recorded when its transaction completes, so
+ * the flush and the commit are included, see {@link ProjectCommands#statistics()}.
+ *
+ * @version "%I%, %G%"
+ */
+@Stateless
+@LocalBean
+public class ProjectCommands implements Serializable {
+
+	private static final long serialVersionUID = 2904788167262394176L;
+
+	public static final String CREATE_PROJECT = "createProject";
+	public static final String EXECUTE_ACTION = "executeAction";
+	public static final String EXECUTE_ACTION_ON_ALL = "executeActionOnAll";
+	public static final String COMMENT = "comment";
+	public static final String ASSIGN_USER = "assignUser";
+	public static final String UNASSIGN_USER = "unassignUser";
+	public static final String UPLOAD_FILE = "uploadFile";
+
+	private static final ConcurrentMap<String, Timing> TIMINGS = new ConcurrentHashMap<String, Timing>();
+
+	@Inject
+	private ProjectService projectService;
+	@Inject
+	private ActionTypeService actionService;
+	@Inject
+	private UserService userService;
+	@Inject
+	private HistoryEntryService historyService;
+	@Inject
+	private CommentService commentService;
+	@Inject
+	private BlobFileService blobFileService;
+	@Inject
+	private TransitionLogService transitionLog;
+	@Inject
+	private BlobStoreService blobStoreService;
+	@Resource
+	private TransactionSynchronizationRegistry transactionRegistry;
+
+	/**
+	 * Creates the project and logs it in its initial state.
+	 *
+	 * @param username
+	 *            of the user creating the project
+	 * @param project
+	 *            the new project
+	 */
+	public void createProject(String username, Project project) {
+		long start = System.nanoTime();
+		try {
+			/* flushed, so the id of the project is known */
+			projectService.saveAll(Collections.singletonList(project));
+			if (project.getCurrentState() != null) {
+				Long workflowId = (project.getWorkflow() == null) ? null : project.getWorkflow().getId();
+				transitionLog.append(project.getId(), workflowId, null, project.getCurrentState().getId(), null, username, new Date());
+			}
+		} finally {
+			record(CREATE_PROJECT, start);
+		}
+	}
+
+	/**
+	 * Executes the action on the project and logs it in the history and in the transition log, if it took effect.
+	 *
+	 * @param username
+	 *            of the user executing the action
+	 * @param projectId
+	 * @param actionId
+	 * @return the {@link ActionResult}
+	 * @see {@link ProjectService#executeAction(Long, Long)}
+	 */
+	public ActionResult executeAction(String username, Long projectId, Long actionId) {
+		long start = System.nanoTime();
+		try {
+			ActionType action = actionService.selectById(actionId);
+			ActionResult result = projectService.executeAction(projectId, actionId);
+			if (!result.isConflict()) {
+				Date now = new Date();
+				transitionLog.append(projectId, result.getWorkflowId(), result.getFromStateId(), result.getCurrentStateId(), actionId, username, now);
+				historyService.log(username, now, HistoryEntryEventType.DONE_ACTION,
+						"done: " + action.getActionTypeName() + " in state: " + result.getFromStateName(), projectId, result.getCurrentStateName());
+			}
+			return result;
+		} finally {
+			record(EXECUTE_ACTION, start);
+		}
+	}
+
+	/**
+	 * Executes the action on the projects given by their ids, or on the active projects of the workflow being in the
+	 * given state, and logs it in the history and in the transition log for each project it took effect on.
+	 *
+	 * @param username
+	 *            of the user executing the action
+	 * @param projectIds
+	 *            may be empty, if the workflow and the state are given
+	 * @param workflowId
+	 * @param stateId
+	 * @param actionId
+	 * @param domainIds
+	 *            the ids of the domains the user may execute actions in
+	 * @return the {@link BulkActionResult}
+	 * @throws IllegalArgumentException
+	 *             if neither the projects nor the workflow and the state are given
+	 * @see {@link ProjectService#executeActionOnAll(Collection, Long, Collection)}
+	 */
+	public BulkActionResult executeActionOnAll(String username, Collection<Long> projectIds, Long workflowId, Long stateId, Long actionId,
+												Collection<Long> domainIds) throws IllegalArgumentException {
+		long start = System.nanoTime();
+		try {
+			ActionType action = actionService.selectById(actionId);
+			if (action == null) {
+				throw new IllegalArgumentException("There is no action " + actionId);
+			}
+			BulkActionResult result;
+			if (projectIds != null && !projectIds.isEmpty()) {
+				result = projectService.executeActionOnAll(projectIds, actionId, domainIds);
+			} else if (workflowId != null && stateId != null) {
+				result = projectService.executeActionOnAll(workflowId, stateId, actionId, domainIds);
+			} else {
+				throw new IllegalArgumentException("Either the projects or the workflow and the state must be given.");
+			}
+			Date now = new Date();
+			transitionLog.appendAll(username, now, result);
+			historyService.logActions(username, now, action.getActionTypeName(), result);
+			return result;
+		} finally {
+			record(EXECUTE_ACTION_ON_ALL, start);
+		}
+	}
+
+	/**
+	 * Comments on the project and logs it.
+	 *
+	 * @param userId
+	 *            of the user commenting
+	 * @param projectId
+	 * @param message
+	 */
+	public void comment(Long userId, Long projectId, String message) {
+		long start = System.nanoTime();
+		try {
+			User user = userService.selectById(userId);
+			Project project = projectService.selectById(projectId);
+
+			Comment comment = new Comment(user, project, message);
+			commentService.save(comment);
+			historyService.log(user.getUsername(), comment.getPostDate(), HistoryEntryEventType.COMMENTED, "commented", project,
+					project.getCurrentState().getName());
+		} finally {
+			record(COMMENT, start);
+		}
+	}
+
+	/**
+	 * Assigns the user to the project and logs it.
+	 *
+	 * @param username
+	 *            of the user assigning
+	 * @param projectId
+	 * @param userId
+	 *            of the user to assign
+	 * @throws IllegalArgumentException
+	 *             if the user is already assigned
+	 */
+	public void assignUser(String username, Long projectId, Long userId) throws IllegalArgumentException {
+		long start = System.nanoTime();
+		try {
+			Project project = projectService.selectById(projectId);
+			User user = userService.selectById(userId);
+
+			projectService.assignUser(project, user);
+			historyService.log(username, new Date(), HistoryEntryEventType.ASSIGNED_USER, "assigned " + user.getUsername(), project,
+					project.getCurrentState().getName());
+		} finally {
+			record(ASSIGN_USER, start);
+		}
+	}
+
+	/**
+	 * Removes the assignment of the user to the project and logs it.
+	 *
+	 * @param username
+	 *            of the user unassigning
+	 * @param projectId
+	 * @param userId
+	 *            of the user to unassign
+	 * @throws EntityNotDeletableException
+	 */
+	public void unassignUser(String username, Long projectId, Long userId) throws EntityNotDeletableException {
+		long start = System.nanoTime();
+		try {
+			Project project = projectService.selectById(projectId);
+			User user = userService.selectById(userId);
+
+			projectService.unassignUser(project, user);
+			historyService.log(username, new Date(), HistoryEntryEventType.UNASSIGNED_USER, "unassigned " + user.getUsername(), project,
+					project.getCurrentState().getName());
+		} finally {
+			record(UNASSIGN_USER, start);
+		}
+	}
+
+	/**
+	 * Attaches a content already in the {@link BlobStoreService} to the project as a file and logs it. The content is
+	 * discarded if it was created by this upload and the transaction rolls back.
+	 *
+	 * @param username
+	 *            of the user uploading
+	 * @param projectId
+	 * @param fileName
+	 * @param contentType
+	 * @param blob
+	 *            the stored content
+	 * @return the new {@link BlobFile}
+	 */
+	public BlobFile uploadFile(String username, Long projectId, String fileName, String contentType, final StoredBlob blob) {
+		long start = System.nanoTime();
+		if (blob.isCreated() && transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status != Status.STATUS_COMMITTED)
+						blobStoreService.discard(blob);
+				}
+			});
+		}
+		try {
+			Project project = projectService.selectById(projectId);
+
+			BlobFile blobFile = new BlobFile(fileName, contentType, blob.getSize(), blob.getHash(), project);
+			blobFileService.save(blobFile);
+			historyService.log(username, new Date(), HistoryEntryEventType.UPLOADED_FILE, "uploaded a file: " + fileName, project,
+					project.getCurrentState().getName());
+			return blobFile;
+		} finally {
+			record(UPLOAD_FILE, start);
+		}
+	}
+
+	/**
+	 * @return the count, the total and the maximal duration in milliseconds of the executions of each command
+	 */
+	public static Map<String, Object> statistics() {
+		Map<String, Object> statistics = new TreeMap<String, Object>();
+		for (Map.Entry<String, Timing> entry : TIMINGS.entrySet()) {
+			statistics.put(entry.getKey(), entry.getValue().toMap());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Records the duration of the command when its transaction completes, or at once if there is no active one.
+	 */
+	private void record(final String command, final long start) {
+		if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					timingOf(command).add(System.nanoTime() - start);
+				}
+			});
+		} else {
+			timingOf(command).add(System.nanoTime() - start);
+		}
+	}
+
+	private static Timing timingOf(String command) {
+		Timing timing = TIMINGS.get(command);
+		if (timing == null) {
+			Timing candidate = new Timing();
+			timing = TIMINGS.putIfAbsent(command, candidate);
+			timing = (timing == null) ? candidate : timing;
+		}
+		return timing;
+	}
+
+	public void setTestServices(ProjectService projectService, ActionTypeService actionService, UserService userService,
+								HistoryEntryService historyService, CommentService commentService, BlobFileService blobFileService,
+								TransitionLogService transitionLog) {
+		this.projectService = projectService;
+		this.actionService = actionService;
+		this.userService = userService;
+		this.historyService = historyService;
+		this.commentService = commentService;
+		this.blobFileService = blobFileService;
+		this.transitionLog = transitionLog;
+	}
+
+	public void setTestBlobStoreService(BlobStoreService blobStoreService) {
+		this.blobStoreService = blobStoreService;
+	}
+
+	public void setTestTransactionRegistry(TransactionSynchronizationRegistry transactionRegistry) {
+		this.transactionRegistry = transactionRegistry;
+	}
+
+	/**
+	 * Lock-free accumulator of the durations of a command.
+	 */
+	private static final class Timing {
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void add(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		Map<String, Object> toMap() {
+			long executions = count.get();
+			long total = totalNanos.get();
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("count", executions);
+			map.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(total));
+			map.put("averageMillis", (executions == 0) ? 0.0 : total / 1e6 / executions);
+			map.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+			return map;
+		}
+	}
+}
@@ -1,30 +1,42 @@
 package hu.bme.aut.wman.service;
 
 import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
-import hu.bme.aut.wman.model.ActionType;
 import hu.bme.aut.wman.model.Comment;
 import hu.bme.aut.wman.model.Project;
 import hu.bme.aut.wman.model.ProjectAssignment;
 import hu.bme.aut.wman.model.Role;
 import hu.bme.aut.wman.model.State;
-import hu.bme.aut.wman.model.Transition;
 import hu.bme.aut.wman.model.User;
 import hu.bme.aut.wman.model.Workflow;
+import hu.bme.aut.wman.security.PermissionDecisionCache;
 import hu.bme.aut.wman.view.objects.NewProjectVO;
+import hu.bme.aut.wman.view.objects.ProjectSummaryVO;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import javax.annotation.Resource;
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
 
 /**
  * Helps make operations with <code>Project</code>.
@@ -37,6 +49,65 @@ public class ProjectService extends AbstractDataService<Project> {
 
 	private static final long serialVersionUID = -113131268291497988L;
 
+	/** the number of times an action is tried on a project changed concurrently */
+	public static final int MAX_ACTION_ATTEMPTS = 3;
+
+	private static final String SELECT_VISIBLE = "SELECT NEW hu.bme.aut.wman.view.objects.ProjectSummaryVO(p.id, p.name, p.description, w.name, s.name, o.username) " +
+			"FROM Project p JOIN p.workflow w LEFT JOIN p.currentState s LEFT JOIN p.owner o " +
+			"WHERE p.active = :active " +
+			"AND EXISTS (SELECT da.id FROM DomainAssignment da, Role r, Privilege pr " +
+			"WHERE da.domain = w.domain " +
+			"AND da.user.username = :username " +
+			"AND r MEMBER OF da.userRoles " +
+			"AND pr MEMBER OF r.privileges " +
+			"AND pr.name = :privilegeName) ";
+
+	/**
+	 * The orders the visible <code>Project</code>s can be listed in. Each of them orders by the <code>Project</code> id
+	 * as well, so the key (sort key, id) is unique and usable for keyset pagination. Projects with no sort key
+	 * (e.g. without current state or owner) come last, as NULLs are sorted high.
+	 * */
+	public enum ProjectOrder {
+		NAME("p.name"), STATE("s.name"), OWNER("o.username");
+
+		private final String firstPage;
+		private final String afterKey;
+		private final String afterNullKey;
+
+		private ProjectOrder(String key) {
+			String orderBy = "ORDER BY " + key + ", p.id";
+			this.firstPage = SELECT_VISIBLE + orderBy;
+			this.afterKey = SELECT_VISIBLE +
+					"AND (" + key + " > :afterKey OR (" + key + " = :afterKey AND p.id > :afterId) OR " + key + " IS NULL) " + orderBy;
+			this.afterNullKey = SELECT_VISIBLE + "AND " + key + " IS NULL AND p.id > :afterId " + orderBy;
+		}
+
+		/**
+		 * @param name case insensitive name of the order
+		 * @return the corresponding order, NAME when no or an unknown name is given
+		 * */
+		public static ProjectOrder of(String name) {
+			if (name != null) {
+				for (ProjectOrder order : values()) {
+					if (order.name().equals(name.toUpperCase(Locale.ENGLISH)))
+						return order;
+				}
+			}
+			return NAME;
+		}
+
+		private String keyOf(ProjectSummaryVO project) {
+			switch (this) {
+			case STATE:
+				return project.getStateName();
+			case OWNER:
+				return project.getOwnerName();
+			default:
+				return project.getName();
+			}
+		}
+	}
+
 	@Inject
 	private TransitionService transitionService;
 	@Inject
@@ -49,6 +120,50 @@ public class ProjectService extends AbstractDataService<Project> {
 	private WorkflowService workflowService;
 	@Inject
 	private ActionTypeService actionService;
+	@Inject
+	private BlobFileService blobFileService;
+	@Inject
+	private BlobStoreService blobStoreService;
+	@Resource
+	private TransactionSynchronizationRegistry transactionRegistry;
+
+	/**
+	 * Deletes the <code>Project</code> with its files. The contents no other <code>Project</code> refers to are deleted
+	 * from the <code>BlobStoreService</code> too, but only after the transaction is committed, so a rollback keeps them.
+	 *
+	 * @param project
+	 * @throws EntityNotDeletableException
+	 */
+	@Override
+	public void delete(Project project) throws EntityNotDeletableException {
+		final List<String> hashes = blobFileService.selectHashesOnlyOf(project.getId());
+		super.delete(project);
+		if (hashes.isEmpty()) {
+			return;
+		}
+		if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED)
+						deleteContents(hashes);
+				}
+			});
+		} else {
+			deleteContents(hashes);
+		}
+	}
+
+	private void deleteContents(List<String> hashes) {
+		for (String hash : hashes) {
+			blobStoreService.delete(hash);
+		}
+	}
 
 	public void save(NewProjectVO projectVO) {
 		Workflow workflow = workflowService.selectById(projectVO.getWorkflowId());
@@ -62,11 +177,20 @@ public class ProjectService extends AbstractDataService<Project> {
 		super.save(project);
 	}
 
-	public void save(Long id, String name, String description) {
+	/**
+	 * Renames the project and sets its description.
+	 *
+	 * @param id
+	 * @param name
+	 * @param description
+	 * @return the edited project
+	 */
+	public Project save(Long id, String name, String description) {
 		Project project = selectById(id);
 
 		project.setName(name);
 		project.setDescription(description);
+		return project;
 	}
 
 	/**
@@ -87,9 +211,12 @@ public class ProjectService extends AbstractDataService<Project> {
 	 * Finds and closes the project by id.
 	 *
 	 * @param projectId
+	 * @return the closed project
 	 */
-	public void closeById(Long projectId) {
-		close(selectById(projectId));
+	public Project closeById(Long projectId) {
+		Project project = selectById(projectId);
+		close(project);
+		return project;
 	}
 
 	/**
@@ -116,10 +243,13 @@ public class ProjectService extends AbstractDataService<Project> {
 	 * Finds and opens the project by id.
 	 *
 	 * @param projectId
+	 * @return the reopened project
 	 * @throws Exception
 	 */
-	public void reopenById(Long projectId) throws Exception {
-		reopen(selectById(projectId));
+	public Project reopenById(Long projectId) throws Exception {
+		Project project = selectById(projectId);
+		reopen(project);
+		return project;
 	}
 
 	/**
@@ -141,31 +271,185 @@ public class ProjectService extends AbstractDataService<Project> {
 
 	/**
 	 * Executes the given action on the project. The project will go from the current state into an other.
+	 * The next state is looked up in the compiled {@link TransitionTable} of the workflow, and the project is
+	 * moved with a single UPDATE conditional on its current state and version, without loading the entities
+	 * involved. If the project was changed concurrently, the action is retried from its new state while it is
+	 * still valid there, at most {@link ProjectService#MAX_ACTION_ATTEMPTS} times.
 	 *
-	 * @param project
-	 * @param action
+	 * @param projectId
+	 * @param actionId
 	 *            to execute
+	 * @return the {@link ActionResult}, either the transition made or the conflict with the current state
+	 * @throws IllegalArgumentException
+	 *             if there is no such project, or the action leads nowhere from the current state of it
 	 */
-	public void executeAction(Long projectId, Long actionId) {
-		Project project = selectById(projectId);
-		final ActionType action = actionService.selectById(actionId);
+	public ActionResult executeAction(Long projectId, Long actionId) {
+		Object[] row = null;
+		for (int attempt = 1; attempt <= MAX_ACTION_ATTEMPTS; ++attempt) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectID", projectId));
+			List<Object[]> rows = callNamedQuery(Project.NQ_FIND_WORKFLOW_AND_STATE_BY_ID, parameterList, Object[].class);
+			if (rows.isEmpty()) {
+				throw new IllegalArgumentException("There is no project with id " + projectId + ".");
+			}
+			/* (workflow id, current state id, current state name, version) */
+			row = rows.get(0);
+			Long currentStateId = (Long) row[1];
+			long version = versionOf(row[3]);
+
+			Long nextStateId = transitionService.transitionTableOf((Long) row[0]).nextStateIdOf(currentStateId, actionId);
+			if (nextStateId == null && attempt == 1) {
+				throw new IllegalArgumentException("There is no transition with action " + actionId + " from state " + currentStateId
+						+ " on project " + projectId + ".");
+			} else if (nextStateId == null) {
+				/* the project was moved to a state the action is not valid in */
+				return ActionResult.conflict(projectId, (Long) row[0], currentStateId, (String) row[2], version, attempt - 1);
+			}
 
-		State currentState = project.getCurrentState();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("currentState", referenceOf(State.class, currentStateId)));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("nextState", referenceOf(State.class, nextStateId)));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("version", version));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("nextVersion", version + 1));
+			if (executeNamedQuery(Project.NQ_UPDATE_CURRENT_STATE, parameterList) == 1) {
+				return ActionResult.done(projectId, (Long) row[0], currentStateId, (String) row[2], nextStateId, stateNameOf(nextStateId), version + 1,
+						attempt);
+			}
+		}
+		return ActionResult.conflict(projectId, (Long) row[0], (Long) row[1], (String) row[2], versionOf(row[3]), MAX_ACTION_ATTEMPTS);
+	}
 
-		Collection<Transition> transitions = Collections2.filter(transitionService.selectByParentId(currentState.getId()), new Predicate<Transition>() {
+	/* the rows written before the version column was added have none, see SchemaBackfillService */
+	private static long versionOf(Object version) {
+		return (version == null) ? 0 : ((Number) version).longValue();
+	}
 
-			@Override
-			public boolean apply(Transition transition) {
-				return transition.getActionType() == action;
+	private String stateNameOf(Long stateId) {
+		return stateNamesOf(Collections.singleton(stateId)).get(stateId);
+	}
+
+	/**
+	 * Executes the given action on all of the given projects at once. The transitions are validated in memory against
+	 * the compiled {@link TransitionTable}s, and the projects are moved by UPDATEs conditioned on the version read, sent
+	 * in JDBC batches, instead of loading and merging each of them.
+	 *
+	 * @param projectIds
+	 * @param actionId
+	 *            to execute
+	 * @param domainIds
+	 *            the ids of the domains the user may execute actions in
+	 * @return the {@link BulkActionResult} reporting the outcome for each project
+	 */
+	public BulkActionResult executeActionOnAll(Collection<Long> projectIds, Long actionId, Collection<Long> domainIds) {
+		BulkActionResult result = new BulkActionResult(actionId);
+		Set<Long> missingIds = new LinkedHashSet<Long>(projectIds);
+		List<Object[]> rows = new ArrayList<Object[]>(missingIds.size());
+		for (List<Long> chunk : Lists.partition(new ArrayList<Long>(missingIds), getBatchSize())) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectIDs", chunk));
+			rows.addAll(callNamedQuery(Project.NQ_FIND_ACTION_KEYS_BY_IDS, parameterList, Object[].class));
+		}
+		for (Object[] row : rows) {
+			missingIds.remove(row[0]);
+		}
+		for (Long missingId : missingIds) {
+			result.fail(missingId, BulkActionResult.Failure.NOT_FOUND);
+		}
+		return executeActionOnRows(rows, actionId, domainIds, result);
+	}
+
+	/**
+	 * Executes the given action on all of the active projects of the workflow being in the given state.
+	 *
+	 * @param workflowId
+	 * @param stateId
+	 * @param actionId
+	 *            to execute
+	 * @param domainIds
+	 *            the ids of the domains the user may execute actions in
+	 * @return the {@link BulkActionResult} reporting the outcome for each project
+	 * @see {@link ProjectService#executeActionOnAll(Collection, Long, Collection)}
+	 */
+	public BulkActionResult executeActionOnAll(Long workflowId, Long stateId, Long actionId, Collection<Long> domainIds) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("workflowID", workflowId));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("stateID", stateId));
+		List<Object[]> rows = callNamedQuery(Project.NQ_FIND_ACTION_KEYS_BY_STATE, parameterList, Object[].class);
+		return executeActionOnRows(rows, actionId, domainIds, new BulkActionResult(actionId));
+	}
+
+	/* rows are (project id, workflow id, domain id, current state id, current state name, version) */
+	private BulkActionResult executeActionOnRows(List<Object[]> rows, Long actionId, Collection<Long> domainIds, BulkActionResult result) {
+		Map<Long, TransitionTable> tables = new HashMap<Long, TransitionTable>();
+		Map<Long, String> stateNames = new HashMap<Long, String>();
+		List<Object[]> moves = new ArrayList<Object[]>(rows.size());
+		Map<Long, Long> workflowIds = new HashMap<Long, Long>();
+		Set<Long> allowedDomainIds = new HashSet<Long>(domainIds);
+
+		for (Object[] row : rows) {
+			Long projectId = (Long) row[0];
+			Long workflowId = (Long) row[1];
+			Long currentStateId = (Long) row[3];
+			stateNames.put(currentStateId, (String) row[4]);
+			if (!allowedDomainIds.contains(row[2])) {
+				result.fail(projectId, BulkActionResult.Failure.FORBIDDEN);
+				continue;
 			}
-		});
 
-		if (!transitions.isEmpty()) {
-			project.setCurrentState(transitions.iterator().next().getNextState());
-			save(project);
-		} else {
-			throw new IllegalArgumentException("There is no transition with this " + action + " from the " + currentState + " on " + project + ".");
+			TransitionTable table = tables.get(workflowId);
+			if (table == null) {
+				table = transitionService.transitionTableOf(workflowId);
+				tables.put(workflowId, table);
+			}
+			Long nextStateId = table.nextStateIdOf(currentStateId, actionId);
+			if (nextStateId == null) {
+				result.fail(projectId, BulkActionResult.Failure.NO_TRANSITION);
+				continue;
+			}
+
+			/* the parameters of the UPDATE below, conditioned on the version read, so a concurrent change is never overwritten */
+			moves.add(new Object[] { nextStateId, projectId, currentStateId, versionOf(row[5]) });
+			workflowIds.put(projectId, workflowId);
+		}
+		if (moves.isEmpty()) {
+			return result;
+		}
+
+		Set<Long> unknownStateIds = new HashSet<Long>();
+		for (Object[] move : moves) {
+			unknownStateIds.add((Long) move[0]);
+		}
+		unknownStateIds.removeAll(stateNames.keySet());
+		stateNames.putAll(stateNamesOf(unknownStateIds));
+
+		String version = columnOf(Project.class, "version");
+		String currentState = columnOf(Project.class, Project.PR_CURRENT_STATE);
+		String sql = "UPDATE " + tableOf(Project.class) + " SET " + currentState + " = ?, " + version + " = COALESCE(" + version + ", 0) + 1 "
+				+ "WHERE " + columnOf(Project.class, "id") + " = ? AND " + currentState + " = ? AND COALESCE(" + version + ", 0) = ?";
+		int[] updated = executeNativeBatch(sql, moves);
+		for (int i = 0; i < moves.size(); ++i) {
+			Long nextStateId = (Long) moves.get(i)[0];
+			Long projectId = (Long) moves.get(i)[1];
+			Long currentStateId = (Long) moves.get(i)[2];
+			if (updated[i] == 1) {
+				result.succeed(projectId, workflowIds.get(projectId), currentStateId, stateNames.get(currentStateId), nextStateId,
+						stateNames.get(nextStateId));
+			} else {
+				result.fail(projectId, BulkActionResult.Failure.CONFLICT);
+			}
+		}
+		return result;
+	}
+
+	private Map<Long, String> stateNamesOf(Collection<Long> stateIds) {
+		Map<Long, String> names = new HashMap<Long, String>();
+		if (!stateIds.isEmpty()) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("ids", stateIds));
+			for (Object[] row : callNamedQuery(State.NQ_FIND_NAMES_BY_IDS, parameterList, Object[].class)) {
+				names.put((Long) row[0], (String) row[1]);
+			}
 		}
+		return names;
 	}
 
 	/**
@@ -223,9 +507,18 @@ public class ProjectService extends AbstractDataService<Project> {
 	}
 
 	public void assignUser(Long projectId, Long userId) throws IllegalArgumentException {
-		Project project = selectById(projectId);
-		User user = userService.selectById(userId);
+		assignUser(selectById(projectId), userService.selectById(userId));
+	}
 
+	/**
+	 * Assigns the user to the project, both already loaded.
+	 *
+	 * @param project
+	 * @param user
+	 * @throws IllegalArgumentException
+	 *             if the user is already assigned
+	 */
+	public void assignUser(Project project, User user) throws IllegalArgumentException {
 		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
 		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(ProjectAssignment.PR_PROJECT, project));
 		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(ProjectAssignment.PR_USER, user));
@@ -236,18 +529,28 @@ public class ProjectService extends AbstractDataService<Project> {
 		ProjectAssignment assignment = new ProjectAssignment(user, project);
 
 		projectAssignmentService.save(assignment);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
 	}
 
 	public void unassignUser(Long projectId, Long userId) throws EntityNotDeletableException {
-		Project project = selectById(projectId);
-		User user = userService.selectById(userId);
+		unassignUser(selectById(projectId), userService.selectById(userId));
+	}
 
+	/**
+	 * Removes the assignment of the user to the project, both already loaded.
+	 *
+	 * @param project
+	 * @param user
+	 * @throws EntityNotDeletableException
+	 */
+	public void unassignUser(Project project, User user) throws EntityNotDeletableException {
 		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
 		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(ProjectAssignment.PR_PROJECT, project));
 		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(ProjectAssignment.PR_USER, user));
 		ProjectAssignment assignment = projectAssignmentService.selectByParameters(parameterList).get(0);
 
 		projectAssignmentService.delete(assignment);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
 	}
 
 	/**
@@ -270,6 +573,17 @@ public class ProjectService extends AbstractDataService<Project> {
 		return selectByParameters(parameterList);
 	}
 
+	/**
+	 * @param stateId
+	 * @return the number of the projects in the given state, counted by the database
+	 */
+	public long countByCurrentStateId(Long stateId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("stateID", stateId));
+		List<Long> count = callNamedQuery(Project.NQ_FIND_COUNT_IN_STATE, parameterList, Long.class);
+		return (count.isEmpty() || count.get(0) == null) ? 0L : count.get(0);
+	}
+
 	/**
 	 * @param workflowName
 	 * @return the projects which are in the given state
@@ -331,6 +645,52 @@ public class ProjectService extends AbstractDataService<Project> {
 	}
 
 
+	/**
+	 * Selects one page of the <code>Project</code>s that the <code>User</code> specified by its username owns the given
+	 * <code>Privilege</code> for in the <code>Domain</code> of their <code>Workflow</code>s. The visibility check, the ordering
+	 * and the pagination are all done by a single query, returning lightweight projections instead of entities.
+	 *
+	 * @param username
+	 * @param active
+	 * @param privilegeName
+	 * @param order
+	 * @param cursor of the page, <code>null</code> for the first one
+	 * @param limit the maximal number of elements in the page
+	 * @return the {@link Page} of the {@link ProjectSummaryVO}s
+	 * @throws IllegalArgumentException when the cursor is malformed
+	 * */
+	public Page<ProjectSummaryVO> selectVisiblePage(String username, boolean active, String privilegeName, ProjectOrder order,
+													String cursor, int limit) throws IllegalArgumentException {
+		Long afterId = Page.afterIdOf(cursor);
+		String afterKey = Page.afterKeyOf(cursor);
+		List<Entry<String, Object>> parameters = visibilityParametersOf(username, active, privilegeName);
+		String jpql = order.firstPage;
+		if (afterId != null) {
+			parameters.add(new AbstractMap.SimpleEntry<String, Object>("afterId", afterId));
+			jpql = order.afterNullKey;
+			if (afterKey != null) {
+				parameters.add(new AbstractMap.SimpleEntry<String, Object>("afterKey", afterKey));
+				jpql = order.afterKey;
+			}
+		}
+
+		List<ProjectSummaryVO> results = callQuery(jpql, parameters, ProjectSummaryVO.class, limit + 1);
+		if (results.size() <= limit) {
+			return new Page<ProjectSummaryVO>(results, null);
+		}
+		List<ProjectSummaryVO> elements = new ArrayList<ProjectSummaryVO>(results.subList(0, limit));
+		ProjectSummaryVO last = elements.get(limit - 1);
+		return new Page<ProjectSummaryVO>(elements, Page.cursorOf(order.keyOf(last), last.getId()));
+	}
+
+	private static List<Entry<String, Object>> visibilityParametersOf(String username, boolean active, String privilegeName) {
+		List<Entry<String, Object>> parameters = new ArrayList<Entry<String, Object>>();
+		parameters.add(new AbstractMap.SimpleEntry<String, Object>(Project.PR_ACTIVE, active));
+		parameters.add(new AbstractMap.SimpleEntry<String, Object>("username", username));
+		parameters.add(new AbstractMap.SimpleEntry<String, Object>("privilegeName", privilegeName));
+		return parameters;
+	}
+
 	@Override
 	protected Class<Project> getEntityClass() {
 		return Project.class;
@@ -343,4 +703,16 @@ public class ProjectService extends AbstractDataService<Project> {
 	public void setTestWorkflowService(WorkflowService workflowService) {
 		this.workflowService = workflowService;
 	}
+
+	public void setTestTransitionService(TransitionService transitionService) {
+		this.transitionService = transitionService;
+	}
+
+	public void setTestBlobFileService(BlobFileService blobFileService) {
+		this.blobFileService = blobFileService;
+	}
+
+	public void setTestBlobStoreService(BlobStoreService blobStoreService) {
+		this.blobStoreService = blobStoreService;
+	}
 }
@@ -1,9 +1,12 @@
 package hu.bme.aut.wman.service;
 
 import static java.lang.String.format;
+import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
+import hu.bme.aut.wman.model.AbstractEntity;
 import hu.bme.aut.wman.model.ActionType;
 import hu.bme.aut.wman.model.Domain;
 import hu.bme.aut.wman.model.Role;
+import hu.bme.aut.wman.security.PermissionDecisionCache;
 import hu.bme.aut.wman.service.validation.RoleValidator;
 import hu.bme.aut.wman.service.validation.ValidationEngine;
 
@@ -16,9 +19,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
 import javax.persistence.EntityNotFoundException;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
@@ -35,6 +40,9 @@ public class RoleService extends AbstractDataService<Role> implements Serializab
 
 	private ValidationEngine<Role> validator;
 
+	@Resource
+	private TransactionSynchronizationRegistry transactionRegistry;
+
 	@PostConstruct
 	public void setup() {
 		validator = new RoleValidator();
@@ -188,6 +196,28 @@ public class RoleService extends AbstractDataService<Role> implements Serializab
 		return roles;
 	}
 	
+	/**
+	 * Saves the given <code>Role</code> and invalidates the cached permission decisions.
+	 * 
+	 * @see {@link AbstractDataService#save(AbstractEntity)}
+	 * */
+	@Override
+	public void save(Role entity) {
+		super.save(entity);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+	}
+
+	/**
+	 * Deletes the given <code>Role</code> and invalidates the cached permission decisions.
+	 * 
+	 * @see {@link AbstractDataService#delete(AbstractEntity)}
+	 * */
+	@Override
+	public void delete(Role entity) throws EntityNotDeletableException {
+		super.delete(entity);
+		PermissionDecisionCache.invalidateAll(transactionRegistry);
+	}
+
 	/**
 	 * @see {@link AbstractDataService#getEntityClass()}
 	 * */
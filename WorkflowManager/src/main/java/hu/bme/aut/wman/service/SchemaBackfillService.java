@@ -0,0 +1,114 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.model.TransitionEvent;
+import hu.bme.aut.wman.model.Workflow;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.log4j.Logger;
+import org.apache.openjpa.jdbc.conf.JDBCConfiguration;
+import org.apache.openjpa.jdbc.meta.ClassMapping;
+import org.apache.openjpa.jdbc.sql.DBDictionary;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactorySPI;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
+
+/**
+ * Fills the columns OpenJPA added to the tables of existing entities with NULLs in the existing rows: the
+ * <code>@Version</code> columns, and the workflow of the <code>TransitionEvent</code>s logged before it was kept, from
+ * their projects still existing. The statements touch the rows left NULL only, so they do nothing once the data is
+ * migrated.
+ *
+ * @version "%I%, %G%"
+ */
+@Singleton
+@Startup
+public class SchemaBackfillService implements Serializable {
+
+	private static final long serialVersionUID = 2871350412256734807L;
+
+	private static final Logger LOGGER = Logger.getLogger(SchemaBackfillService.class);
+
+	/** the entities whose version column was added to an existing table */
+	private static final List<Class<?>> VERSIONED = Collections.unmodifiableList(Arrays.<Class<?>> asList(Project.class, Workflow.class));
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Backfills the versions and the workflows of the events, a failure is logged only and retried on the next start.
+	 */
+	@PostConstruct
+	public void backfill() {
+		OpenJPAEntityManager oem = OpenJPAPersistence.cast(em);
+		JDBCConfiguration conf = (JDBCConfiguration) ((OpenJPAEntityManagerFactorySPI) oem.getEntityManagerFactory()).getConfiguration();
+		DBDictionary dictionary = conf.getDBDictionaryInstance();
+
+		Connection connection = (Connection) oem.getConnection();
+		try {
+			backfillVersions(conf, dictionary, connection);
+			backfillEventWorkflows(conf, dictionary, connection);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to release the connection", e);
+			}
+		}
+	}
+
+	private static void backfillVersions(JDBCConfiguration conf, DBDictionary dictionary, Connection connection) {
+		for (Class<?> entityClass : VERSIONED) {
+			try {
+				ClassMapping mapping = conf.getMappingRepositoryInstance().getMapping(entityClass, entityClass.getClassLoader(), true);
+				String table = dictionary.toDBName(mapping.getTable().getFullIdentifier());
+				String column = dictionary.toDBName(mapping.getVersion().getColumns()[0].getIdentifier());
+				try (Statement statement = connection.createStatement()) {
+					int updated = statement.executeUpdate("UPDATE " + table + " SET " + column + " = 0 WHERE " + column + " IS NULL");
+					if (updated > 0) {
+						LOGGER.info("Backfilled the version of " + updated + " rows of " + entityClass.getSimpleName());
+					}
+				}
+			} catch (SQLException | RuntimeException e) {
+				LOGGER.warn("Unable to backfill the versions of " + entityClass.getSimpleName(), e);
+			}
+		}
+	}
+
+	private static void backfillEventWorkflows(JDBCConfiguration conf, DBDictionary dictionary, Connection connection) {
+		try {
+			ClassMapping events = conf.getMappingRepositoryInstance().getMapping(TransitionEvent.class, TransitionEvent.class.getClassLoader(), true);
+			ClassMapping projects = conf.getMappingRepositoryInstance().getMapping(Project.class, Project.class.getClassLoader(), true);
+			String workflowId = dictionary.toDBName(events.getFieldMapping(TransitionEvent.PR_WORKFLOW_ID).getColumns()[0].getIdentifier());
+			String projectId = dictionary.toDBName(events.getFieldMapping(TransitionEvent.PR_PROJECT_ID).getColumns()[0].getIdentifier());
+			String projectTable = dictionary.toDBName(projects.getTable().getFullIdentifier());
+			String projectKey = dictionary.toDBName(projects.getPrimaryKeyColumns()[0].getIdentifier());
+			String workflow = dictionary.toDBName(projects.getFieldMapping(Project.PR_WORKFLOW).getColumns()[0].getIdentifier());
+			/* the events of the projects deleted since are left NULL, they are skipped by the analytics */
+			String sql = "UPDATE " + dictionary.toDBName(events.getTable().getFullIdentifier()) + " SET " + workflowId + " = (SELECT " + workflow
+					+ " FROM " + projectTable + " WHERE " + projectKey + " = " + projectId + ") WHERE " + workflowId + " IS NULL AND EXISTS (SELECT "
+					+ projectKey + " FROM " + projectTable + " WHERE " + projectKey + " = " + projectId + ")";
+			try (Statement statement = connection.createStatement()) {
+				int updated = statement.executeUpdate(sql);
+				if (updated > 0) {
+					LOGGER.info("Backfilled the workflow of " + updated + " transition events");
+				}
+			}
+		} catch (SQLException | RuntimeException e) {
+			LOGGER.warn("Unable to backfill the workflows of the transition events", e);
+		}
+	}
+}
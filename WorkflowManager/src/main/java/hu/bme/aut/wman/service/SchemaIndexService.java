@@ -0,0 +1,134 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.HistoryEntry;
+import hu.bme.aut.wman.model.TransitionEvent;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.apache.log4j.Logger;
+import org.apache.openjpa.jdbc.conf.JDBCConfiguration;
+import org.apache.openjpa.jdbc.meta.ClassMapping;
+import org.apache.openjpa.jdbc.schema.Column;
+import org.apache.openjpa.jdbc.sql.DBDictionary;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactorySPI;
+import org.apache.openjpa.persistence.OpenJPAPersistence;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Creates the composite indexes the schema built by OpenJPA lacks, as its <code>@Index</code> covers a single column
+ * only. The names of the tables and the columns are resolved from the mapping, since some of them (e.g.
+ * <code>when</code>) are reserved words renamed by the dictionary. Existing indexes are left untouched.
+ *
+ * @version "%I%, %G%"
+ */
+@Singleton
+@Startup
+public class SchemaIndexService implements Serializable {
+
+	private static final long serialVersionUID = -3198806712437021654L;
+
+	private static final Logger LOGGER = Logger.getLogger(SchemaIndexService.class);
+
+	/** the indexes to create, the fields given by their property names, in the order of the columns */
+	private static final List<IndexDefinition> INDEXES = Collections.unmodifiableList(Arrays.asList(
+			new IndexDefinition("I_HISTORY_PROJECT_WHEN", HistoryEntry.class, HistoryEntry.PR_PROJECT, HistoryEntry.PR_WHEN),
+			new IndexDefinition("I_HISTORY_USER_WHEN", HistoryEntry.class, HistoryEntry.PR_USER_NAME, HistoryEntry.PR_WHEN),
+			new IndexDefinition("I_TRANSITION_EVENT_PROJECT_AT", TransitionEvent.class, TransitionEvent.PR_PROJECT_ID, TransitionEvent.PR_OCCURRED_AT)));
+
+	@PersistenceContext
+	private EntityManager em;
+
+	/**
+	 * Creates the missing indexes, a failure is logged only, as the application works without the indexes, if slower.
+	 */
+	@PostConstruct
+	public void createIndexes() {
+		OpenJPAEntityManager oem = OpenJPAPersistence.cast(em);
+		JDBCConfiguration conf = (JDBCConfiguration) ((OpenJPAEntityManagerFactorySPI) oem.getEntityManagerFactory()).getConfiguration();
+		DBDictionary dictionary = conf.getDBDictionaryInstance();
+
+		Connection connection = (Connection) oem.getConnection();
+		try {
+			DatabaseMetaData metaData = connection.getMetaData();
+			for (IndexDefinition index : INDEXES) {
+				try {
+					ClassMapping mapping = conf.getMappingRepositoryInstance().getMapping(index.entityClass, index.entityClass.getClassLoader(), true);
+					String table = dictionary.toDBName(mapping.getTable().getFullIdentifier());
+					if (exists(metaData, dictionary.toDBName(mapping.getTable().getIdentifier()), index.name)) {
+						continue;
+					}
+
+					List<String> columns = new ArrayList<String>();
+					for (String field : index.fields) {
+						for (Column column : mapping.getFieldMapping(field).getColumns()) {
+							columns.add(dictionary.toDBName(column.getIdentifier()));
+						}
+					}
+					String ddl = "CREATE INDEX " + index.name + " ON " + table + " (" + Joiner.on(", ").join(columns) + ")";
+					try (Statement statement = connection.createStatement()) {
+						statement.executeUpdate(ddl);
+					}
+					LOGGER.info("Created index: " + ddl);
+				} catch (SQLException | RuntimeException e) {
+					LOGGER.warn("Unable to create the index " + index.name, e);
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Unable to read the metadata of the database, no index is created", e);
+		} finally {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOGGER.warn("Unable to release the connection", e);
+			}
+		}
+	}
+
+	private static boolean exists(DatabaseMetaData metaData, String table, String index) throws SQLException {
+		/* unquoted identifiers are stored in upper case by Derby */
+		for (String tableName : Arrays.asList(table, table.toUpperCase(Locale.ENGLISH))) {
+			try (ResultSet indexes = metaData.getIndexInfo(null, null, tableName, false, true)) {
+				while (indexes.next()) {
+					if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A composite index over the columns of the fields of an entity.
+	 */
+	private static final class IndexDefinition {
+
+		private final String name;
+		private final Class<?> entityClass;
+		private final String[] fields;
+
+		IndexDefinition(String name, Class<?> entityClass, String... fields) {
+			this.name = name;
+			this.entityClass = entityClass;
+			this.fields = fields;
+		}
+	}
+}
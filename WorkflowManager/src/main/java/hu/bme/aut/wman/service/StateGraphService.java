@@ -3,16 +3,38 @@ package hu.bme.aut.wman.service;
 import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
 import hu.bme.aut.wman.model.AbstractEntity;
 import hu.bme.aut.wman.model.graph.GraphEdge;
+import hu.bme.aut.wman.model.graph.GraphNode;
 import hu.bme.aut.wman.model.graph.StateGraph;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Resource;
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 
 /**
  * Helps make operations with <code>BlobFile</code>.
@@ -25,10 +47,45 @@ public class StateGraphService extends AbstractDataService<StateGraph> {
 
 	private static final long serialVersionUID = 1L;
 
+	/** the maximal number of bytes of the serialized graphs kept */
+	public static final long MAX_CACHED_JSON_BYTES = 32L * 1024 * 1024;
+
+	/** the maximal number of the layouts of the graphs kept */
+	public static final int MAX_CACHED_LAYOUTS = 1000;
+
+	/* the layouts of the graphs, per workflow id */
+	private static final Cache<Long, GraphLayout> LAYOUTS = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_LAYOUTS).build();
+	/*
+	 * the versions of the graphs, per workflow id, starting from 0 in each run, told apart by the epoch; an entry is
+	 * made by the first change of a graph only, and removed when its workflow is deleted
+	 */
+	private static final ConcurrentMap<Long, AtomicLong> GRAPH_VERSIONS = new ConcurrentHashMap<Long, AtomicLong>();
+	private static final String EPOCH = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+	/* the serialized graphs, by their entity tags */
+	private static final Cache<String, GraphJson> GRAPH_JSONS = CacheBuilder.newBuilder()
+			.maximumWeight(MAX_CACHED_JSON_BYTES)
+			.weigher(new Weigher<String, GraphJson>() {
+
+				@Override
+				public int weigh(String etag, GraphJson json) {
+					return json.getBytes().length;
+				}
+			})
+			.recordStats()
+			.build();
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Resource
+	private TransactionSynchronizationRegistry transactionRegistry;
+
 	@Inject
 	GraphNodeService graphNodeService;
 	@Inject
 	GraphEdgeService graphEdgeService;
+	@Inject
+	TransitionService transitionService;
+	@Inject
+	GraphPositionWriterService positionWriter;
 
 	/**
 	 * @param workflowId
@@ -40,60 +97,279 @@ public class StateGraphService extends AbstractDataService<StateGraph> {
 		return callNamedQuery(StateGraph.NQ_FIND_BY_WORKFLOW_ID, parameterList);
 	}
 
-	public Long getStateIdOfNode(Long nodeId) {
-		return graphNodeService.selectById(nodeId).getStateId();
+	/**
+	 * Returns the graph of the workflow, the nodes moved to their positions not written yet, and the ones without
+	 * position placed by its {@link GraphLayout}. The layout is computed again only if the states or the transitions
+	 * of the workflow changed since the cached one was made. The graph is returned detached, so the positions are not
+	 * saved.
+	 *
+	 * @param workflowId
+	 * @return the graph of the workflow
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public StateGraph selectLaidOutByWorkflowId(Long workflowId) {
+		// the version is read first, so a layout of a newer graph is never cached as of an older version
+		long version = transitionService.versionOf(workflowId);
+		StateGraph graph = selectByWorkflowId(workflowId).get(0);
+		positionWriter.applyPendingTo(graph);
+		if (hasUnplacedNode(graph)) {
+			layoutOf(graph, version).applyTo(graph);
+		}
+		return graph;
 	}
 
-	public Long getTransitionIdOfEdge(Long edgeId) {
-		return graphEdgeService.selectById(edgeId).getTransitionId();
+	/**
+	 * Returns the graph of the workflow serialized to JSON, see
+	 * {@link StateGraphService#selectLaidOutByWorkflowId(Long)}. The serialized graphs are cached by their version,
+	 * so the graph is read and serialized again only if it changed since.
+	 *
+	 * @param workflowId
+	 * @return the JSON of the current version of the graph, with its entity tag
+	 * @throws IOException
+	 *             if the graph can not be serialized
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public GraphJson selectJsonByWorkflowId(Long workflowId) throws IOException {
+		// the version is read first, so a newer graph may get cached as of an outdated version, which is not served
+		String etag = etagOf(workflowId);
+		GraphJson json = GRAPH_JSONS.getIfPresent(etag);
+		if (json == null) {
+			json = new GraphJson(etag, MAPPER.writeValueAsBytes(selectLaidOutByWorkflowId(workflowId)));
+			GRAPH_JSONS.put(etag, json);
+		}
+		return json;
+	}
+
+	/**
+	 * @param workflowId
+	 * @return the entity tag of the current version of the graph of the workflow, without reading it
+	 */
+	public static String etagOf(Long workflowId) {
+		AtomicLong version = GRAPH_VERSIONS.get(workflowId);
+		return "\"" + workflowId + "-" + EPOCH + "-" + ((version == null) ? 0L : version.get()) + "\"";
 	}
 
-	public void deleteNode(Long nodeId) throws EntityNotDeletableException {
-		// Select those navigation entries where this state is a nextState, so we get its parents
-		List<GraphEdge> starts = graphEdgeService.selectByEndId(nodeId);
-		// Select those navigation entries where this state is a parentState, so we get its nexStates
-		List<GraphEdge> ends = graphEdgeService.selectByStartId(nodeId);
+	/**
+	 * Drops the version, the layout and the serialized forms of the graph of the deleted <code>Workflow</code>. When
+	 * called in a transaction, they are dropped after its commit only.
+	 *
+	 * @param workflowId
+	 */
+	public void evictGraph(final Long workflowId) {
+		if (workflowId == null) {
+			return;
+		}
+		if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
 
-		StateGraph graph = graphNodeService.getGraphByNodeId(nodeId);
+				@Override
+				public void beforeCompletion() {
+				}
 
-		// Create new entries with every parent and every nextState
-		for (GraphEdge start : starts) {
-			for (GraphEdge end : ends) {
-				if (start.getStart()==end.getEnd()) {
-					continue;
+				@Override
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED) {
+						evict(workflowId);
+					}
 				}
-				GraphEdge edge = new GraphEdge();
-				edge.setEnd(end.getEnd());
-				edge.setStart(start.getStart());
-				edge.setTransitionId(start.getTransitionId());
-				edge.setLabel(start.getLabel());
-				edge.setGraph(graph);
-				graph.getEdges().add(edge);
+			});
+		} else {
+			evict(workflowId);
+		}
+	}
 
+	private static void evict(Long workflowId) {
+		GRAPH_VERSIONS.remove(workflowId);
+		LAYOUTS.invalidate(workflowId);
+		String prefix = "\"" + workflowId + "-";
+		for (String etag : GRAPH_JSONS.asMap().keySet()) {
+			if (etag.startsWith(prefix)) {
+				GRAPH_JSONS.invalidate(etag);
 			}
 		}
+	}
 
-		// Delete old entries first
-		for (GraphEdge start : starts) {
-			graph.getEdges().remove(start);
-			graphEdgeService.delete(start);
+	/**
+	 * Invalidates the serialized graph of the <code>Workflow</code>. Must be called whenever a node or an edge of the
+	 * graph, or a <code>State</code> or a <code>Transition</code> of the workflow changes, the latter ones are called
+	 * by {@link TransitionService#invalidateTransitionTable(Long)}. When called in a transaction, it is invalidated
+	 * after its completion again, so the one made of the uncommitted state is not served either.
+	 *
+	 * @param workflowId
+	 */
+	public void invalidateGraph(final Long workflowId) {
+		if (workflowId == null) {
+			return;
 		}
+		bumpGraphVersion(workflowId);
+		if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+
+				@Override
+				public void beforeCompletion() {
+				}
 
-		for (GraphEdge end : ends) {
-			graph.getEdges().remove(end);
-			graphEdgeService.delete(end);
+				@Override
+				public void afterCompletion(int status) {
+					bumpGraphVersion(workflowId);
+				}
+			});
 		}
+	}
+
+	/**
+	 * Increases the version of the graph of the workflow, so its serialized form cached is not served any more.
+	 *
+	 * @param workflowId
+	 */
+	static void bumpGraphVersion(Long workflowId) {
+		graphVersionCounterOf(workflowId).incrementAndGet();
+	}
 
-		// We can delete that state finally
-		graphNodeService.deleteById(nodeId);
+	private static AtomicLong graphVersionCounterOf(Long workflowId) {
+		AtomicLong version = GRAPH_VERSIONS.get(workflowId);
+		if (version == null) {
+			AtomicLong candidate = new AtomicLong();
+			version = GRAPH_VERSIONS.putIfAbsent(workflowId, candidate);
+			version = (version == null) ? candidate : version;
+		}
+		return version;
+	}
+
+	/**
+	 * @return the number of the serialized graphs cached, their size, and the hit rate of the cache
+	 */
+	public static Map<String, Object> jsonStatistics() {
+		CacheStats stats = GRAPH_JSONS.stats();
+		long bytes = 0;
+		for (GraphJson json : GRAPH_JSONS.asMap().values()) {
+			bytes += json.getBytes().length;
+		}
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("size", GRAPH_JSONS.size());
+		statistics.put("bytes", bytes);
+		statistics.put("hits", stats.hitCount());
+		statistics.put("misses", stats.missCount());
+		statistics.put("hitRate", stats.hitRate());
+		statistics.put("evictions", stats.evictionCount());
+		return statistics;
+	}
+
+	/**
+	 * @param graph
+	 * @param version
+	 *            of the states and the transitions the graph was read in
+	 * @return the cached layout of the version, if it places every node without position, or a new one
+	 */
+	GraphLayout layoutOf(StateGraph graph, long version) {
+		GraphLayout layout = LAYOUTS.getIfPresent(graph.getWorkflowId());
+		if (layout != null && layout.getVersion() == version && layout.covers(graph)) {
+			return layout;
+		}
+
+		List<GraphNode> nodes = graph.getPoints();
+		long[] nodeIds = new long[nodes.size()];
+		Long initialNodeId = null;
+		for (int i = 0; i < nodeIds.length; ++i) {
+			nodeIds[i] = nodes.get(i).getId();
+			if (nodes.get(i).isInitial()) {
+				initialNodeId = nodeIds[i];
+			}
+		}
+		List<GraphEdge> edges = graph.getEdges();
+		long[] edgeStarts = new long[edges.size()];
+		long[] edgeEnds = new long[edges.size()];
+		for (int i = 0; i < edgeStarts.length; ++i) {
+			edgeStarts[i] = edges.get(i).getStart().getId();
+			edgeEnds[i] = edges.get(i).getEnd().getId();
+		}
+
+		layout = GraphLayout.compute(version, nodeIds, initialNodeId, edgeStarts, edgeEnds);
+		LAYOUTS.put(graph.getWorkflowId(), layout);
+		return layout;
+	}
+
+	private static boolean hasUnplacedNode(StateGraph graph) {
+		for (GraphNode node : graph.getPoints()) {
+			if (GraphLayout.isUnplaced(node)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Long getStateIdOfNode(Long nodeId) {
+		return graphNodeService.selectById(nodeId).getStateId();
+	}
+
+	public Long getTransitionIdOfEdge(Long edgeId) {
+		return graphEdgeService.selectById(edgeId).getTransitionId();
+	}
+
+	/**
+	 * Deletes the node of the state, connecting the nodes leading into it to the ones it leads to, by the transitions
+	 * bypassing the state. The edges are rewired by set-based statements, without loading them. Must be called after
+	 * {@link TransitionService#insertBypasses(Long)}, but before the transitions of the state are deleted.
+	 *
+	 * @param stateId
+	 */
+	public void deleteNodeOfState(Long stateId) {
+		Long nodeId = graphNodeService.selectIdByStateId(stateId);
+		if (nodeId == null) {
+			return;
+		}
+		graphEdgeService.insertBypasses(nodeId);
+		graphEdgeService.deleteByNodeId(nodeId);
+		graphNodeService.deleteAllByIds(Collections.singletonList(nodeId));
 	}
 
 	public void deleteEdge(Long edgeId) throws EntityNotDeletableException {
-		graphEdgeService.deleteById(edgeId);
+		GraphEdge edge = graphEdgeService.selectById(edgeId);
+		graphEdgeService.delete(edge);
+		invalidateGraph(edge.getGraph().getWorkflowId());
+	}
+
+	public void setTestTransitionService(TransitionService transitionService) {
+		this.transitionService = transitionService;
+	}
+
+	public void setTestPositionWriter(GraphPositionWriterService positionWriter) {
+		this.positionWriter = positionWriter;
+	}
+
+	public void setTestTransactionRegistry(TransactionSynchronizationRegistry transactionRegistry) {
+		this.transactionRegistry = transactionRegistry;
 	}
 
 	@Override
 	protected Class<StateGraph> getEntityClass() {
 		return StateGraph.class;
 	}
+
+	/**
+	 * A graph serialized to JSON, with its entity tag.
+	 */
+	public static final class GraphJson implements Serializable {
+
+		private static final long serialVersionUID = 7165120943867364811L;
+
+		private final String etag;
+		private final byte[] bytes;
+
+		GraphJson(String etag, byte[] bytes) {
+			this.etag = etag;
+			this.bytes = bytes;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return the UTF-8 encoded JSON, not to be modified
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+	}
 }
@@ -3,7 +3,6 @@ package hu.bme.aut.wman.service;
 import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
 import hu.bme.aut.wman.model.AbstractEntity;
 import hu.bme.aut.wman.model.ActionType;
-import hu.bme.aut.wman.model.Project;
 import hu.bme.aut.wman.model.State;
 import hu.bme.aut.wman.model.Transition;
 import hu.bme.aut.wman.model.Workflow;
@@ -49,6 +48,9 @@ public class StateService extends AbstractDataService<State> {
 			node.setContent(entity.getDescription());
 		}
 		super.save(entity);
+		if (entity.getWorkflow() != null) {
+			graphService.invalidateGraph(entity.getWorkflow().getId());
+		}
 	}
 
 	public void saveNew(State entity, Long workflowId) {
@@ -73,12 +75,17 @@ public class StateService extends AbstractDataService<State> {
 		graphPoint.setGraph(graph);
 
 		graph.getPoints().add(graphPoint);
+		transitionService.invalidateTransitionTable(workflowId);
 	};
 
 	/**
 	 * Deletes the state.
 	 * You can not delete a state, if it is an initial state or there is at least one project in that state at the moment.
 	 * (If you want delete a state from the client you should call WorkflowService.removeState)
+	 * <p>
+	 * The transitions and the edges of the graph leading into the state are continued to every state it leads to, and
+	 * the ones of the state are deleted with its node, in a constant number of set-based statements, in the transaction
+	 * of the caller.
 	 *
 	 * @param entity
 	 *            the state to delete
@@ -91,43 +98,21 @@ public class StateService extends AbstractDataService<State> {
 			throw new EntityNotDeletableException("The initial state can not be deleted.");
 		}
 
-		List<Project> relatedProjects = projectService.selectByCurrentState(entity);
-		if (relatedProjects.size() > 0) {
-			throw new EntityNotDeletableException("There is " + relatedProjects.size() + " project(s), which are in this state.");
-		}
-
-		// Select those navigation entries where this state is a nextState, so we get its parents
-		List<Transition> parents = transitionService.selectByNextStateId(entity.getId());
-		// Select those navigation entries where this state is a parentState, so we get its nexStates
-		List<Transition> nextStates = transitionService.selectByParentId(entity.getId());
-
-		// Create new entries with every parent and every nextState
-		List<Transition> transitions = new ArrayList<Transition>();
-		for (Transition parent : parents) {
-			for (Transition nextState : nextStates) {
-				if (parent.getParent()==nextState.getNextState()) {
-					continue;
-				}
-				transitions.add(new Transition(parent.getActionType(), nextState.getNextState(), parent.getParent()));
-			}
-		}
-
-		// Delete old entries first
-		for (Transition parent : parents) {
-			transitionService.delete(parent);
-		}
-
-		for (Transition nextState : nextStates) {
-			transitionService.delete(nextState);
+		long relatedProjects = projectService.countByCurrentStateId(entity.getId());
+		if (relatedProjects > 0) {
+			throw new EntityNotDeletableException("There is " + relatedProjects + " project(s), which are in this state.");
 		}
 
-		// Save new entries
-		for (Transition transition : transitions) {
-			transitionService.save(transition);
-		}
+		// Bypass the state, the edges are bound to the new transitions, so those are deleted after them
+		transitionService.insertBypasses(entity.getId());
+		graphService.deleteNodeOfState(entity.getId());
+		transitionService.deleteByStateId(entity.getId());
 
 		// We can delete that state finally
 		super.delete(entity);
+		if (entity.getWorkflow() != null) {
+			transitionService.invalidateTransitionTable(entity.getWorkflow().getId());
+		}
 	}
 
 	/**
@@ -213,6 +198,14 @@ public class StateService extends AbstractDataService<State> {
 		this.graphService = graphService;
 	}
 
+	public ProjectService getTestProjectService() {
+		return projectService;
+	}
+
+	public void setTestProjectService(ProjectService projectService) {
+		this.projectService = projectService;
+	}
+
 	public TransitionService getTestTransitionService() {
 		return transitionService;
 	}
@@ -0,0 +1,175 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.model.StateSnapshot;
+import hu.bme.aut.wman.model.TransitionEvent;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Schedule;
+import javax.ejb.Stateless;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Helps make operations with <code>StateSnapshot</code>.
+ * <p>
+ * A snapshot is taken every night by replaying the <code>TransitionEvent</code>s after the previous one, so
+ * answering the state of the projects at a time replays the events of at most a day. The first snapshot is seeded
+ * from the current states of the projects, as the events are logged only since then.
+ * <p>
+ * The ids of the events are assigned when they are inserted, not when they are committed, so the highest id is no
+ * safe watermark: an event with a lower id may still be committed after it, and would be skipped by every later
+ * replay. A snapshot covers the events which occurred {@link StateSnapshotService#SETTLE_MILLIS} before it only, as
+ * no transaction logging an event before that may still be running.
+ * <p>
+ * The daily snapshots are kept for {@link StateSnapshotService#DAILY_RETENTION_DAYS} days, the older ones are thinned
+ * out to the first one of each month, which still bounds the replay of a query of a past time to a month.
+ *
+ * @version "%I%, %G%"
+ * @see {@link TransitionLogService}
+ */
+@Stateless
+@LocalBean
+public class StateSnapshotService extends AbstractDataService<StateSnapshot> {
+
+	private static final long serialVersionUID = 7514693810386305271L;
+
+	private static final Logger LOGGER = Logger.getLogger(StateSnapshotService.class);
+
+	/** the number of events replayed by one query */
+	public static final int REPLAY_CHUNK_SIZE = 10000;
+	/** the age of the events a snapshot covers, well above the transaction timeout of the container */
+	public static final long SETTLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	public static final int DAILY_RETENTION_DAYS = 31;
+
+	/**
+	 * Takes a snapshot of the states of all the projects after the events settled so far, and prunes the old
+	 * snapshots.
+	 *
+	 * @return the new {@link StateSnapshot}
+	 */
+	@Schedule(hour = "3", minute = "0", persistent = false)
+	public StateSnapshot takeSnapshot() {
+		StateSnapshot snapshot = takeSnapshot(new Date(System.currentTimeMillis() - SETTLE_MILLIS));
+		prune(new Date(snapshot.getTakenAt().getTime() - TimeUnit.DAYS.toMillis(DAILY_RETENTION_DAYS)));
+		return snapshot;
+	}
+
+	/**
+	 * Takes a snapshot of the states of all the projects after the events occurred until the given time. The
+	 * transactions logging these events must have completed.
+	 *
+	 * @param settledAt
+	 * @return the new {@link StateSnapshot}
+	 */
+	public StateSnapshot takeSnapshot(Date settledAt) {
+		List<Entry<String, Object>> settledParameters = new ArrayList<Entry<String, Object>>();
+		settledParameters.add(new AbstractMap.SimpleEntry<String, Object>("settledAt", settledAt));
+		List<Long> maxIds = callNamedQuery(TransitionEvent.NQ_FIND_MAX_ID_SETTLED, settledParameters, Long.class);
+		long lastEventId = (maxIds.isEmpty() || maxIds.get(0) == null) ? 0L : maxIds.get(0);
+
+		StateSnapshot previous = selectLatest();
+		if (previous != null) {
+			/* nothing settled since the previous one */
+			lastEventId = Math.max(lastEventId, previous.getLastEventId());
+		}
+		Map<Long, Long> states;
+		if (previous == null) {
+			/* the events committed meanwhile are replayed again onto the snapshot, setting the same states */
+			states = new HashMap<Long, Long>();
+			for (Object[] row : callNamedQuery(Project.NQ_FIND_CURRENT_STATES, Collections.<Entry<String, Object>> emptyList(), Object[].class)) {
+				states.put((Long) row[0], (Long) row[1]);
+			}
+		} else {
+			states = previous.toMap();
+			replay(states, previous.getLastEventId(), lastEventId);
+		}
+
+		StateSnapshot snapshot = new StateSnapshot(settledAt, lastEventId, states);
+		save(snapshot);
+		LOGGER.info(String.format("Took a snapshot of %d projects after event %d", states.size(), lastEventId));
+		return snapshot;
+	}
+
+	/**
+	 * Deletes the snapshots taken before the given time, except the first one of each month (UTC).
+	 *
+	 * @param before
+	 * @return the number of the snapshots deleted
+	 */
+	public int prune(Date before) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("before", before));
+		List<Long> pruned = new ArrayList<Long>();
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		int lastMonth = -1;
+		for (Object[] row : callNamedQuery(StateSnapshot.NQ_FIND_TAKEN_BEFORE, parameterList, Object[].class)) {
+			calendar.setTime((Date) row[1]);
+			int month = calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+			if (month == lastMonth) {
+				pruned.add((Long) row[0]);
+			}
+			lastMonth = month;
+		}
+		int deleted = deleteAllByIds(pruned);
+		if (deleted > 0) {
+			LOGGER.info(String.format("Pruned %d snapshots taken before %s", deleted, before));
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return the latest {@link StateSnapshot}, or <code>null</code> if none was taken yet
+	 */
+	public StateSnapshot selectLatest() {
+		List<StateSnapshot> snapshots = callNamedQuery(StateSnapshot.NQ_FIND_LATEST, Collections.<Entry<String, Object>> emptyList(),
+				StateSnapshot.class, 1);
+		return snapshots.isEmpty() ? null : snapshots.get(0);
+	}
+
+	/**
+	 * @param at
+	 * @return the latest {@link StateSnapshot} taken at or before the given time, or <code>null</code> if there is none
+	 */
+	public StateSnapshot selectLatestAt(Date at) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("at", at));
+		List<StateSnapshot> snapshots = callNamedQuery(StateSnapshot.NQ_FIND_LATEST_AT, parameterList, StateSnapshot.class, 1);
+		return snapshots.isEmpty() ? null : snapshots.get(0);
+	}
+
+	/* applies the events in (afterId, untilId] in their order */
+	private void replay(Map<Long, Long> states, long afterId, long untilId) {
+		long from = afterId;
+		while (from < untilId) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("afterID", from));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("untilID", untilId));
+			List<Object[]> rows = callNamedQuery(TransitionEvent.NQ_FIND_TARGETS_AFTER, parameterList, Object[].class, REPLAY_CHUNK_SIZE);
+			if (rows.isEmpty()) {
+				break;
+			}
+			for (Object[] row : rows) {
+				states.put((Long) row[1], (Long) row[2]);
+			}
+			from = (Long) rows.get(rows.size() - 1)[0];
+		}
+	}
+
+	@Override
+	protected Class<StateSnapshot> getEntityClass() {
+		return StateSnapshot.class;
+	}
+}
@@ -0,0 +1,89 @@
+package hu.bme.aut.wman.service;
+
+import java.util.Arrays;
+
+/**
+ * Growable, column-wise buffer of the <code>TransitionEvent</code>s to be aggregated, holding primitives only, so
+ * the whole log fits into memory for the backfill of the {@link WorkflowAnalytics}. The events of a project must be
+ * added in their order, and the projects one after the other.
+ *
+ * @version "%I%, %G%"
+ */
+public final class TransitionColumns {
+
+	/* stands for the missing state the created projects came from, as the ids are positive */
+	private static final long NO_STATE = -1;
+
+	private long[] projectIds;
+	private long[] workflowIds;
+	private long[] fromStateIds;
+	private long[] toStateIds;
+	private long[] occurredAts;
+	private boolean[] toFinal;
+	private int size;
+
+	public TransitionColumns(int initialCapacity) {
+		int capacity = Math.max(16, initialCapacity);
+		projectIds = new long[capacity];
+		workflowIds = new long[capacity];
+		fromStateIds = new long[capacity];
+		toStateIds = new long[capacity];
+		occurredAts = new long[capacity];
+		toFinal = new boolean[capacity];
+	}
+
+	/**
+	 * @param projectId
+	 * @param workflowId
+	 * @param fromStateId
+	 *            <code>null</code> if the project was created
+	 * @param toStateId
+	 * @param occurredAt
+	 * @param isFinal
+	 *            whether the project reached a final state
+	 */
+	public void add(long projectId, long workflowId, Long fromStateId, long toStateId, long occurredAt, boolean isFinal) {
+		if (size == projectIds.length) {
+			int capacity = size * 2;
+			projectIds = Arrays.copyOf(projectIds, capacity);
+			workflowIds = Arrays.copyOf(workflowIds, capacity);
+			fromStateIds = Arrays.copyOf(fromStateIds, capacity);
+			toStateIds = Arrays.copyOf(toStateIds, capacity);
+			occurredAts = Arrays.copyOf(occurredAts, capacity);
+			toFinal = Arrays.copyOf(toFinal, capacity);
+		}
+		projectIds[size] = projectId;
+		workflowIds[size] = workflowId;
+		fromStateIds[size] = (fromStateId == null) ? NO_STATE : fromStateId;
+		toStateIds[size] = toStateId;
+		occurredAts[size] = occurredAt;
+		toFinal[size] = isFinal;
+		++size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param index
+	 * @return the first index not before the given one holding an event of an other project than the previous index
+	 */
+	int projectBoundaryFrom(int index) {
+		int boundary = Math.max(1, index);
+		while (boundary < size && projectIds[boundary] == projectIds[boundary - 1]) {
+			++boundary;
+		}
+		return boundary;
+	}
+
+	/**
+	 * Applies the events in the [from, to) range of indices to the analytics.
+	 */
+	void applyTo(WorkflowAnalytics analytics, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			analytics.apply(projectIds[i], workflowIds[i], (fromStateIds[i] == NO_STATE) ? null : fromStateIds[i], toStateIds[i],
+					occurredAts[i], toFinal[i]);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.model.StateSnapshot;
+import hu.bme.aut.wman.model.TransitionEvent;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+
+/**
+ * Helps make operations with <code>TransitionEvent</code>, the append-only log of the states of the
+ * <code>Project</code>s. The events are appended in the transaction changing the current state, and the state of
+ * the projects at any time is answered from the log: by the last event of a project before the time (an indexed
+ * lookup), or by the latest {@link StateSnapshot} before it, replayed with the events after it.
+ *
+ * @version "%I%, %G%"
+ */
+@Stateless
+@LocalBean
+public class TransitionLogService extends AbstractDataService<TransitionEvent> {
+
+	private static final long serialVersionUID = -2471913690154632768L;
+
+	private static final String SELECT_LAST_TARGET_AT = "SELECT e.toStateId FROM TransitionEvent e " +
+			"WHERE e.projectId = :projectID AND e.occurredAt <= :at ORDER BY e.occurredAt DESC, e.id DESC";
+
+	@Inject
+	private StateSnapshotService snapshotService;
+
+	/**
+	 * Logs the transition of a project, or its creation if there is no state it came from.
+	 *
+	 * @param projectId
+	 * @param workflowId
+	 *            of the project
+	 * @param fromStateId
+	 *            <code>null</code> if the project was created
+	 * @param toStateId
+	 * @param actionId
+	 *            <code>null</code> if the project was created
+	 * @param userName
+	 * @param when
+	 */
+	public void append(Long projectId, Long workflowId, Long fromStateId, Long toStateId, Long actionId, String userName, Date when) {
+		save(new TransitionEvent(projectId, workflowId, fromStateId, toStateId, actionId, userName, when));
+	}
+
+	/**
+	 * Logs the transitions of the projects moved by a bulk action, saving them by one call to
+	 * {@link AbstractDataService#saveAll(java.util.Collection)}.
+	 *
+	 * @param userName
+	 * @param when
+	 * @param result
+	 */
+	public void appendAll(String userName, Date when, BulkActionResult result) {
+		List<TransitionEvent> events = new ArrayList<TransitionEvent>(result.getSucceeded().size());
+		for (BulkActionResult.Transitioned transitioned : result.getSucceeded()) {
+			events.add(new TransitionEvent(transitioned.getProjectId(), transitioned.getWorkflowId(), transitioned.getFromStateId(), transitioned.getToStateId(),
+					result.getActionId(), userName, when));
+		}
+		saveAll(events);
+	}
+
+	/**
+	 * @param projectId
+	 * @return the events of the project, the oldest first
+	 */
+	public List<TransitionEvent> selectByProjectId(Long projectId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectID", projectId));
+		return callNamedQuery(TransitionEvent.NQ_FIND_BY_PROJECT, parameterList);
+	}
+
+	/**
+	 * Answers the state of the project at the given time.
+	 *
+	 * @param projectId
+	 * @param at
+	 * @return the id of the state, or <code>null</code> if it is unknown, as the project did not exist then, or
+	 *         neither an event nor a snapshot holds it
+	 */
+	public Long stateIdAt(Long projectId, Date at) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("projectID", projectId));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("at", at));
+		List<Long> targets = callQuery(SELECT_LAST_TARGET_AT, parameterList, Long.class, 1);
+		if (!targets.isEmpty()) {
+			return targets.get(0);
+		}
+
+		/* the projects existing before the events were logged are known by the snapshots only */
+		StateSnapshot snapshot = snapshotService.selectLatestAt(at);
+		return (snapshot == null) ? null : snapshot.stateOf(projectId);
+	}
+
+	/**
+	 * Answers the projects being in the given state at the given time, replaying the events after the latest
+	 * snapshot before the time onto it.
+	 *
+	 * @param stateId
+	 * @param at
+	 * @return the ids of the projects, in ascending order
+	 */
+	public List<Long> projectIdsInStateAt(Long stateId, Date at) {
+		StateSnapshot snapshot = snapshotService.selectLatestAt(at);
+		TreeSet<Long> projectIds = new TreeSet<Long>();
+		long afterId = 0L;
+		if (snapshot != null) {
+			projectIds.addAll(snapshot.projectIdsIn(stateId));
+			afterId = snapshot.getLastEventId();
+		}
+
+		Map<Long, Long> lastStates = new HashMap<Long, Long>();
+		while (true) {
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("afterID", afterId));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("at", at));
+			List<Object[]> rows = callNamedQuery(TransitionEvent.NQ_FIND_TARGETS_AFTER_AT, parameterList, Object[].class,
+					StateSnapshotService.REPLAY_CHUNK_SIZE);
+			for (Object[] row : rows) {
+				lastStates.put((Long) row[1], (Long) row[2]);
+			}
+			if (rows.size() < StateSnapshotService.REPLAY_CHUNK_SIZE) {
+				break;
+			}
+			afterId = (Long) rows.get(rows.size() - 1)[0];
+		}
+
+		for (Map.Entry<Long, Long> lastState : lastStates.entrySet()) {
+			if (stateId.equals(lastState.getValue())) {
+				projectIds.add(lastState.getKey());
+			} else {
+				projectIds.remove(lastState.getKey());
+			}
+		}
+		return Collections.unmodifiableList(new ArrayList<Long>(projectIds));
+	}
+
+	/**
+	 * @return the lowest and the highest id of the projects having events, and the highest id of the events, or
+	 *         <code>null</code> if the log is empty
+	 */
+	public long[] selectBounds() {
+		List<Object[]> rows = callNamedQuery(TransitionEvent.NQ_FIND_BOUNDS, Collections.<Entry<String, Object>> emptyList(), Object[].class);
+		if (rows.isEmpty() || rows.get(0)[2] == null) {
+			return null;
+		}
+		Object[] row = rows.get(0);
+		return new long[] { (Long) row[0], (Long) row[1], (Long) row[2] };
+	}
+
+	/**
+	 * Selects the events after the given one, in their order, as (id, project id, workflow id, from state id, to
+	 * state id, time) rows. Only the events which occurred till the given time are selected, so the ones of the
+	 * transactions still in progress are not skipped by the next call.
+	 *
+	 * @param afterId
+	 * @param settledAt
+	 * @param limit
+	 * @return the rows of at most the given number of events
+	 */
+	public List<Object[]> selectFlowsAfter(long afterId, Date settledAt, int limit) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("afterID", afterId));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("settledAt", settledAt));
+		return callNamedQuery(TransitionEvent.NQ_FIND_FLOWS_AFTER, parameterList, Object[].class, limit);
+	}
+
+	/**
+	 * Selects the events of the projects in the [fromId, toId) range of ids, up to (and including) the given event,
+	 * ordered by project, then by time, as in {@link TransitionLogService#selectFlowsAfter(long, Date, int)}.
+	 *
+	 * @param fromId
+	 * @param toId
+	 * @param untilId
+	 * @return the rows of the events
+	 */
+	public List<Object[]> selectFlowsOfProjects(long fromId, long toId, long untilId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("fromID", fromId));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("toID", toId));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("untilID", untilId));
+		return callNamedQuery(TransitionEvent.NQ_FIND_FLOWS_OF_PROJECTS, parameterList, Object[].class);
+	}
+
+	public void setSnapshotService(StateSnapshotService snapshotService) {
+		this.snapshotService = snapshotService;
+	}
+
+	@Override
+	protected Class<TransitionEvent> getEntityClass() {
+		return TransitionEvent.class;
+	}
+}
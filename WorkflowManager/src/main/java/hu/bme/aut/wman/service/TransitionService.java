@@ -1,5 +1,7 @@
 package hu.bme.aut.wman.service;
 
+import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
+import hu.bme.aut.wman.model.AbstractEntity;
 import hu.bme.aut.wman.model.ActionType;
 import hu.bme.aut.wman.model.State;
 import hu.bme.aut.wman.model.Transition;
@@ -13,10 +15,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Resource;
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
@@ -32,6 +41,14 @@ public class TransitionService extends AbstractDataService<Transition> {
 
 	private static final long serialVersionUID = 6443637422553071946L;
 
+	/* compiled transition tables and the versions of the transitions, per workflow id */
+	private static final ConcurrentMap<Long, TransitionTable> TABLES = new ConcurrentHashMap<Long, TransitionTable>();
+	private static final ConcurrentMap<Long, WorkflowAnalysis> ANALYSES = new ConcurrentHashMap<Long, WorkflowAnalysis>();
+	private static final ConcurrentMap<Long, AtomicLong> VERSIONS = new ConcurrentHashMap<Long, AtomicLong>();
+
+	@Resource
+	private TransactionSynchronizationRegistry transactionRegistry;
+
 	@Inject
 	GraphNodeService nodeService;
 	@Inject
@@ -74,6 +91,167 @@ public class TransitionService extends AbstractDataService<Transition> {
 		graphEdge.setTransitionId(transition.getId());
 
 		graph.getEdges().add(graphEdge);
+		invalidateTransitionTable(workflowIdOf(fromState));
+	}
+
+	@Override
+	public void save(Transition transition) {
+		super.save(transition);
+		invalidateTransitionTable(workflowIdOf(transition.getParent()));
+	}
+
+	@Override
+	public void delete(Transition transition) throws EntityNotDeletableException {
+		super.delete(transition);
+		invalidateTransitionTable(workflowIdOf(transition.getParent()));
+	}
+
+	/**
+	 * Returns the compiled <code>TransitionTable</code> of the <code>Workflow</code>, compiling it with a single
+	 * query if there is no up-to-date one cached.
+	 *
+	 * @param workflowId
+	 * @return the {@link TransitionTable} of the current version of the transitions
+	 */
+	public TransitionTable transitionTableOf(Long workflowId) {
+		long version = versionCounterOf(workflowId).get();
+		TransitionTable table = TABLES.get(workflowId);
+		if (table != null && table.getVersion() == version) {
+			return table;
+		}
+
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("workflowId", workflowId));
+		table = TransitionTable.compile(workflowId, version, callNamedQuery(Transition.NQ_FIND_TABLE_BY_WORKFLOW_ID, parameterList, Object[].class));
+		// a table compiled from an outdated version may get cached, but it is never served
+		TABLES.put(workflowId, table);
+		return table;
+	}
+
+	/**
+	 * Returns the <code>WorkflowAnalysis</code> of the graph of the <code>Workflow</code>, analyzing it again only if
+	 * its states or transitions changed since the cached one was made.
+	 *
+	 * @param workflowId
+	 * @return the {@link WorkflowAnalysis} of the current version of the transitions
+	 */
+	public WorkflowAnalysis analysisOf(Long workflowId) {
+		long version = versionCounterOf(workflowId).get();
+		WorkflowAnalysis analysis = ANALYSES.get(workflowId);
+		if (analysis != null && analysis.getVersion() == version) {
+			return analysis;
+		}
+
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("id", workflowId));
+		List<Object[]> states = callNamedQuery(State.NQ_FIND_IDS_BY_WORKFLOW_ID, parameterList, Object[].class);
+		long[] stateIds = new long[states.size()];
+		Long initialStateId = null;
+		for (int i = 0; i < stateIds.length; ++i) {
+			stateIds[i] = (Long) states.get(i)[0];
+			if (Boolean.TRUE.equals(states.get(i)[1])) {
+				initialStateId = stateIds[i];
+			}
+		}
+
+		parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("workflowId", workflowId));
+		analysis = WorkflowAnalysis.analyze(workflowId, version, stateIds, initialStateId,
+				callNamedQuery(Transition.NQ_FIND_TABLE_BY_WORKFLOW_ID, parameterList, Object[].class));
+		ANALYSES.put(workflowId, analysis);
+		return analysis;
+	}
+
+	/**
+	 * @param workflowId
+	 * @return the version of the states and the transitions of the <code>Workflow</code>, increased by every
+	 *         {@link TransitionService#invalidateTransitionTable(Long)}
+	 */
+	public long versionOf(Long workflowId) {
+		return versionCounterOf(workflowId).get();
+	}
+
+	/**
+	 * Invalidates the compiled <code>TransitionTable</code>, the <code>WorkflowAnalysis</code> and the serialized
+	 * <code>StateGraph</code> of the <code>Workflow</code>. Must be called whenever a <code>Transition</code> or a <code>State</code> of it changes.
+	 * When called in a transaction, they are invalidated after its completion again, so the ones made of the
+	 * uncommitted state are not kept either.
+	 *
+	 * @param workflowId
+	 */
+	public void invalidateTransitionTable(final Long workflowId) {
+		if (workflowId == null) {
+			return;
+		}
+		invalidate(workflowId);
+		if (transactionRegistry != null && transactionRegistry.getTransactionStatus() == Status.STATUS_ACTIVE) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					invalidate(workflowId);
+				}
+			});
+		}
+	}
+
+	private static void invalidate(Long workflowId) {
+		versionCounterOf(workflowId).incrementAndGet();
+		StateGraphService.bumpGraphVersion(workflowId);
+		TABLES.remove(workflowId);
+		ANALYSES.remove(workflowId);
+	}
+
+	private static AtomicLong versionCounterOf(Long workflowId) {
+		AtomicLong version = VERSIONS.get(workflowId);
+		if (version == null) {
+			AtomicLong candidate = new AtomicLong();
+			version = VERSIONS.putIfAbsent(workflowId, candidate);
+			version = (version == null) ? candidate : version;
+		}
+		return version;
+	}
+
+	private static Long workflowIdOf(State state) {
+		return (state == null || state.getWorkflow() == null) ? null : state.getWorkflow().getId();
+	}
+
+	/**
+	 * Adds the transitions bypassing the state with one INSERT ... SELECT statement: each transition leading into the
+	 * state is continued, by its own action, to every state the state leads to, unless such a transition exists
+	 * already. The transitions of the state itself are kept, see {@link TransitionService#deleteByStateId(Long)}.
+	 *
+	 * @param stateId
+	 * @return the number of the transitions added
+	 */
+	public int insertBypasses(Long stateId) {
+		String table = tableOf(Transition.class);
+		String id = columnOf(Transition.class, AbstractEntity.PR_ID);
+		String parent = columnOf(Transition.class, Transition.PR_PARENT_STATE);
+		String action = columnOf(Transition.class, Transition.PR_ACTION_TYPE);
+		String next = columnOf(Transition.class, Transition.PR_NEXT_STATE);
+		return executeNativeUpdate("INSERT INTO " + table + " (" + parent + ", " + action + ", " + next + ") " +
+				"SELECT DISTINCT i." + parent + ", i." + action + ", o." + next + " FROM " + table + " i, " + table + " o " +
+				"WHERE i." + next + " = ? AND o." + parent + " = ? AND i." + parent + " <> ? AND o." + next + " <> ? " +
+				"AND i." + parent + " <> o." + next + " AND NOT EXISTS (SELECT e." + id + " FROM " + table + " e " +
+				"WHERE e." + parent + " = i." + parent + " AND e." + action + " = i." + action + " AND e." + next + " = o." + next + ")",
+				stateId, stateId, stateId, stateId);
+	}
+
+	/**
+	 * Deletes the transitions from and to the state with one DELETE statement.
+	 *
+	 * @param stateId
+	 * @return the number of the transitions deleted
+	 */
+	public int deleteByStateId(Long stateId) {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("stateId", stateId));
+		return executeNamedQuery(Transition.NQ_DELETE_BY_STATE_ID, parameterList);
 	}
 
 	public List<Transition> selectByParentId(Long parentId) {
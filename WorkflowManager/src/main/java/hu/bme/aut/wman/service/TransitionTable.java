@@ -0,0 +1,145 @@
+package hu.bme.aut.wman.service;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, compiled form of the <code>Transition</code>s of a <code>Workflow</code>: a table of
+ * state ordinal &times; action ordinal &rarr; next state ordinal held in a primitive <code>int</code> array,
+ * so finding the next state of an action is a constant time lookup.
+ *
+ * @version "%I%, %G%"
+ * @see {@link TransitionService#transitionTableOf(Long)}
+ */
+public final class TransitionTable implements Serializable {
+
+	private static final long serialVersionUID = -5167853203584307433L;
+
+	private static final int NONE = -1;
+
+	private final Long workflowId;
+	private final long version;
+	private final long[] stateIds;
+	private final Map<Long, Integer> stateOrdinals;
+	private final Map<Long, Integer> actionOrdinals;
+	private final int[] nextStates;
+
+	private TransitionTable(Long workflowId, long version, long[] stateIds, Map<Long, Integer> stateOrdinals,
+							Map<Long, Integer> actionOrdinals, int[] nextStates) {
+		this.workflowId = workflowId;
+		this.version = version;
+		this.stateIds = stateIds;
+		this.stateOrdinals = stateOrdinals;
+		this.actionOrdinals = actionOrdinals;
+		this.nextStates = nextStates;
+	}
+
+	/**
+	 * Compiles the table from the (parent state id, action type id, next state id) triples of the
+	 * <code>Transition</code>s of a <code>Workflow</code>.
+	 *
+	 * @param workflowId
+	 * @param version
+	 *            of the transitions of the workflow the triples were read in
+	 * @param transitions
+	 *            the triples as {@link Object} arrays of {@link Long}s
+	 * @return the compiled {@link TransitionTable}
+	 */
+	public static TransitionTable compile(Long workflowId, long version, List<Object[]> transitions) {
+		Map<Long, Integer> stateOrdinals = new HashMap<Long, Integer>();
+		Map<Long, Integer> actionOrdinals = new HashMap<Long, Integer>();
+		for (Object[] transition : transitions) {
+			ordinalOf(stateOrdinals, (Long) transition[0]);
+			ordinalOf(actionOrdinals, (Long) transition[1]);
+			ordinalOf(stateOrdinals, (Long) transition[2]);
+		}
+
+		long[] stateIds = new long[stateOrdinals.size()];
+		for (Map.Entry<Long, Integer> entry : stateOrdinals.entrySet()) {
+			stateIds[entry.getValue()] = entry.getKey();
+		}
+
+		int actions = actionOrdinals.size();
+		int[] nextStates = new int[stateIds.length * actions];
+		Arrays.fill(nextStates, NONE);
+		for (Object[] transition : transitions) {
+			int from = stateOrdinals.get(transition[0]);
+			int action = actionOrdinals.get(transition[1]);
+			nextStates[from * actions + action] = stateOrdinals.get(transition[2]);
+		}
+		return new TransitionTable(workflowId, version, stateIds, stateOrdinals, actionOrdinals, nextStates);
+	}
+
+	private static int ordinalOf(Map<Long, Integer> ordinals, Long id) {
+		Integer ordinal = ordinals.get(id);
+		if (ordinal == null) {
+			ordinal = ordinals.size();
+			ordinals.put(id, ordinal);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * @param stateId
+	 * @param actionId
+	 * @return the id of the state the action leads to from the given state, or <code>null</code> if there is no
+	 *         such transition
+	 */
+	public Long nextStateIdOf(Long stateId, Long actionId) {
+		Integer from = stateOrdinals.get(stateId);
+		Integer action = actionOrdinals.get(actionId);
+		if (from == null || action == null) {
+			return null;
+		}
+		int next = nextStates[from * actionOrdinals.size() + action];
+		return (next == NONE) ? null : stateIds[next];
+	}
+
+	/**
+	 * @param stateId
+	 * @return whether no action leads anywhere from the state
+	 */
+	public boolean isFinal(Long stateId) {
+		Integer from = stateOrdinals.get(stateId);
+		if (from == null) {
+			return true;
+		}
+		int actions = actionOrdinals.size();
+		for (int action = 0; action < actions; ++action) {
+			if (nextStates[from * actions + action] != NONE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the id of the workflow
+	 */
+	public Long getWorkflowId() {
+		return workflowId;
+	}
+
+	/**
+	 * @return the version of the transitions of the workflow the table was compiled from
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of transitions in the table
+	 */
+	public int size() {
+		int size = 0;
+		for (int next : nextStates) {
+			if (next != NONE) {
+				++size;
+			}
+		}
+		return size;
+	}
+}
@@ -0,0 +1,378 @@
+package hu.bme.aut.wman.service;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Immutable report of the structure of the <code>State</code>/<code>Transition</code> graph of a <code>Workflow</code>:
+ * the states unreachable from the initial state, the terminal states (without outgoing transitions), the dead-end
+ * states (from which no terminal state can be reached), the ambiguous (state, action) pairs leading to more than one
+ * state, and the strongly connected components.
+ * <p>
+ * The graph is compiled into adjacency arrays, and walked by breadth-first searches and an iterative Tarjan, so the
+ * analysis takes linear time and constant stack depth in the number of states and transitions.
+ *
+ * @version "%I%, %G%"
+ * @see {@link TransitionService#analysisOf(Long)}
+ */
+public final class WorkflowAnalysis implements Serializable {
+
+	private static final long serialVersionUID = 6922470138706213597L;
+
+	private final Long workflowId;
+	private final long version;
+	private final Long initialStateId;
+	private final int stateCount;
+	private final int transitionCount;
+	private final List<Long> unreachableStateIds;
+	private final List<Long> terminalStateIds;
+	private final List<Long> deadEndStateIds;
+	private final List<AmbiguousAction> ambiguousActions;
+	private final int componentCount;
+	private final List<List<Long>> cycles;
+
+	private WorkflowAnalysis(Long workflowId, long version, Long initialStateId, int stateCount, int transitionCount,
+							 List<Long> unreachableStateIds, List<Long> terminalStateIds, List<Long> deadEndStateIds,
+							 List<AmbiguousAction> ambiguousActions, int componentCount, List<List<Long>> cycles) {
+		this.workflowId = workflowId;
+		this.version = version;
+		this.initialStateId = initialStateId;
+		this.stateCount = stateCount;
+		this.transitionCount = transitionCount;
+		this.unreachableStateIds = unreachableStateIds;
+		this.terminalStateIds = terminalStateIds;
+		this.deadEndStateIds = deadEndStateIds;
+		this.ambiguousActions = ambiguousActions;
+		this.componentCount = componentCount;
+		this.cycles = cycles;
+	}
+
+	/**
+	 * Analyzes the graph of the states and the transitions of a workflow.
+	 *
+	 * @param workflowId
+	 * @param version
+	 *            of the transitions of the workflow the graph was read in
+	 * @param stateIds
+	 *            the ids of all the states of the workflow
+	 * @param initialStateId
+	 *            <code>null</code> if the workflow has no initial state
+	 * @param transitions
+	 *            the (parent state id, action type id, next state id) triples as {@link Object} arrays of {@link Long}s
+	 * @return the {@link WorkflowAnalysis}
+	 */
+	public static WorkflowAnalysis analyze(Long workflowId, long version, long[] stateIds, Long initialStateId, List<Object[]> transitions) {
+		int n = stateIds.length;
+		Map<Long, Integer> ordinals = new HashMap<Long, Integer>(n * 2);
+		for (int i = 0; i < n; ++i) {
+			ordinals.put(stateIds[i], i);
+		}
+
+		/* the transitions as (from, to) ordinal pairs, and the targets of each (state, action) pair */
+		int[] froms = new int[transitions.size()];
+		int[] tos = new int[transitions.size()];
+		int m = 0;
+		Map<Map.Entry<Long, Long>, TreeSet<Long>> targets = new LinkedHashMap<Map.Entry<Long, Long>, TreeSet<Long>>();
+		for (Object[] transition : transitions) {
+			Integer from = ordinals.get(transition[0]);
+			Integer to = ordinals.get(transition[2]);
+			if (from == null || to == null) {
+				continue;
+			}
+			froms[m] = from;
+			tos[m] = to;
+			++m;
+
+			Map.Entry<Long, Long> key = new AbstractMap.SimpleImmutableEntry<Long, Long>((Long) transition[0], (Long) transition[1]);
+			TreeSet<Long> next = targets.get(key);
+			if (next == null) {
+				next = new TreeSet<Long>();
+				targets.put(key, next);
+			}
+			next.add((Long) transition[2]);
+		}
+
+		int[] outOffsets = new int[n + 1];
+		int[] outTargets = adjacency(n, m, froms, tos, outOffsets);
+		int[] inOffsets = new int[n + 1];
+		int[] inSources = adjacency(n, m, tos, froms, inOffsets);
+
+		boolean[] reachable = new boolean[n];
+		Integer initial = (initialStateId == null) ? null : ordinals.get(initialStateId);
+		if (initial != null) {
+			search(new int[] { initial }, outOffsets, outTargets, reachable);
+		}
+
+		List<Long> terminalStateIds = new ArrayList<Long>();
+		int[] terminals = new int[n];
+		int terminalCount = 0;
+		for (int i = 0; i < n; ++i) {
+			if (outOffsets[i + 1] == outOffsets[i]) {
+				terminals[terminalCount++] = i;
+				terminalStateIds.add(stateIds[i]);
+			}
+		}
+		boolean[] reachesTerminal = new boolean[n];
+		search(Arrays.copyOf(terminals, terminalCount), inOffsets, inSources, reachesTerminal);
+
+		List<Long> unreachableStateIds = new ArrayList<Long>();
+		List<Long> deadEndStateIds = new ArrayList<Long>();
+		for (int i = 0; i < n; ++i) {
+			if (!reachable[i]) {
+				unreachableStateIds.add(stateIds[i]);
+			}
+			if (!reachesTerminal[i]) {
+				deadEndStateIds.add(stateIds[i]);
+			}
+		}
+
+		List<AmbiguousAction> ambiguousActions = new ArrayList<AmbiguousAction>();
+		for (Map.Entry<Map.Entry<Long, Long>, TreeSet<Long>> target : targets.entrySet()) {
+			if (target.getValue().size() > 1) {
+				ambiguousActions.add(new AmbiguousAction(target.getKey().getKey(), target.getKey().getValue(),
+						new ArrayList<Long>(target.getValue())));
+			}
+		}
+
+		List<List<Long>> cycles = new ArrayList<List<Long>>();
+		int componentCount = stronglyConnectedComponents(stateIds, outOffsets, outTargets, cycles);
+
+		Collections.sort(unreachableStateIds);
+		Collections.sort(terminalStateIds);
+		Collections.sort(deadEndStateIds);
+		return new WorkflowAnalysis(workflowId, version, (initial == null) ? null : initialStateId, n, m,
+				Collections.unmodifiableList(unreachableStateIds), Collections.unmodifiableList(terminalStateIds),
+				Collections.unmodifiableList(deadEndStateIds), Collections.unmodifiableList(ambiguousActions), componentCount,
+				Collections.unmodifiableList(cycles));
+	}
+
+	/* compiles the edges into an array of the ends, the ones of the i-th node in [offsets[i], offsets[i + 1]) */
+	private static int[] adjacency(int n, int m, int[] starts, int[] ends, int[] offsets) {
+		for (int e = 0; e < m; ++e) {
+			++offsets[starts[e] + 1];
+		}
+		for (int i = 0; i < n; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+		int[] cursors = Arrays.copyOf(offsets, n);
+		int[] adjacent = new int[m];
+		for (int e = 0; e < m; ++e) {
+			adjacent[cursors[starts[e]]++] = ends[e];
+		}
+		return adjacent;
+	}
+
+	/* marks the nodes reachable from the sources, breadth first */
+	private static void search(int[] sources, int[] offsets, int[] adjacent, boolean[] visited) {
+		int[] queue = new int[visited.length];
+		int head = 0;
+		int tail = 0;
+		for (int source : sources) {
+			if (!visited[source]) {
+				visited[source] = true;
+				queue[tail++] = source;
+			}
+		}
+		while (head < tail) {
+			int node = queue[head++];
+			for (int e = offsets[node]; e < offsets[node + 1]; ++e) {
+				if (!visited[adjacent[e]]) {
+					visited[adjacent[e]] = true;
+					queue[tail++] = adjacent[e];
+				}
+			}
+		}
+	}
+
+	/* iterative Tarjan, collecting the components with a cycle, returns the number of all the components */
+	private static int stronglyConnectedComponents(long[] stateIds, int[] offsets, int[] adjacent, List<List<Long>> cycles) {
+		int n = stateIds.length;
+		int[] index = new int[n];
+		int[] low = new int[n];
+		boolean[] onStack = new boolean[n];
+		int[] stack = new int[n];
+		int[] callNodes = new int[n];
+		int[] callEdges = new int[n];
+		Arrays.fill(index, -1);
+		int counter = 0;
+		int top = 0;
+		int componentCount = 0;
+
+		for (int root = 0; root < n; ++root) {
+			if (index[root] != -1) {
+				continue;
+			}
+			int depth = 0;
+			index[root] = low[root] = counter++;
+			stack[top++] = root;
+			onStack[root] = true;
+			callNodes[depth] = root;
+			callEdges[depth++] = offsets[root];
+
+			while (depth > 0) {
+				int node = callNodes[depth - 1];
+				if (callEdges[depth - 1] < offsets[node + 1]) {
+					int next = adjacent[callEdges[depth - 1]++];
+					if (index[next] == -1) {
+						index[next] = low[next] = counter++;
+						stack[top++] = next;
+						onStack[next] = true;
+						callNodes[depth] = next;
+						callEdges[depth++] = offsets[next];
+					} else if (onStack[next]) {
+						low[node] = Math.min(low[node], index[next]);
+					}
+					continue;
+				}
+
+				--depth;
+				if (depth > 0) {
+					int parent = callNodes[depth - 1];
+					low[parent] = Math.min(low[parent], low[node]);
+				}
+				if (low[node] == index[node]) {
+					++componentCount;
+					List<Long> component = new ArrayList<Long>();
+					int member;
+					do {
+						member = stack[--top];
+						onStack[member] = false;
+						component.add(stateIds[member]);
+					} while (member != node);
+					if (component.size() > 1 || hasLoop(node, offsets, adjacent)) {
+						Collections.sort(component);
+						cycles.add(Collections.unmodifiableList(component));
+					}
+				}
+			}
+		}
+		return componentCount;
+	}
+
+	private static boolean hasLoop(int node, int[] offsets, int[] adjacent) {
+		for (int e = offsets[node]; e < offsets[node + 1]; ++e) {
+			if (adjacent[e] == node) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the workflow has an initial state, every state is reachable from it and can reach a terminal
+	 *         state, and every action leads to one state only
+	 */
+	public boolean isValid() {
+		return stateCount > 0 && initialStateId != null && unreachableStateIds.isEmpty() && deadEndStateIds.isEmpty()
+				&& ambiguousActions.isEmpty();
+	}
+
+	public Long getWorkflowId() {
+		return workflowId;
+	}
+
+	/**
+	 * @return the version of the transitions of the workflow the analysis was made of
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the id of the initial state, or <code>null</code> if there is none
+	 */
+	public Long getInitialStateId() {
+		return initialStateId;
+	}
+
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	public int getTransitionCount() {
+		return transitionCount;
+	}
+
+	/**
+	 * @return the ids of the states not reachable from the initial state, in ascending order
+	 */
+	public List<Long> getUnreachableStateIds() {
+		return unreachableStateIds;
+	}
+
+	/**
+	 * @return the ids of the states without outgoing transitions, in ascending order
+	 */
+	public List<Long> getTerminalStateIds() {
+		return terminalStateIds;
+	}
+
+	/**
+	 * @return the ids of the states from which no terminal state can be reached, in ascending order
+	 */
+	public List<Long> getDeadEndStateIds() {
+		return deadEndStateIds;
+	}
+
+	/**
+	 * @return the (state, action) pairs leading to more than one state
+	 */
+	public List<AmbiguousAction> getAmbiguousActions() {
+		return ambiguousActions;
+	}
+
+	/**
+	 * @return the number of the strongly connected components, single states included
+	 */
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * @return the ids of the states of each strongly connected component containing a cycle, in ascending order
+	 */
+	public List<List<Long>> getCycles() {
+		return cycles;
+	}
+
+	/**
+	 * An action leading from a state to more than one state.
+	 */
+	public static final class AmbiguousAction implements Serializable {
+
+		private static final long serialVersionUID = -3580945271040474218L;
+
+		private final Long stateId;
+		private final Long actionId;
+		private final List<Long> nextStateIds;
+
+		AmbiguousAction(Long stateId, Long actionId, List<Long> nextStateIds) {
+			this.stateId = stateId;
+			this.actionId = actionId;
+			this.nextStateIds = Collections.unmodifiableList(nextStateIds);
+		}
+
+		public Long getStateId() {
+			return stateId;
+		}
+
+		public Long getActionId() {
+			return actionId;
+		}
+
+		/**
+		 * @return the ids of the states the action leads to, in ascending order
+		 */
+		public List<Long> getNextStateIds() {
+			return nextStateIds;
+		}
+	}
+}
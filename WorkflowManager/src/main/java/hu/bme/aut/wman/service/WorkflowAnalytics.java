@@ -0,0 +1,272 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.utils.QuantileSketch;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Streaming aggregates of the <code>TransitionEvent</code>s: the time spent by the projects in each state of each
+ * workflow, and the cycle time of each workflow, from the creation of a project till it reaches a final state (one
+ * without outgoing transitions). Each aggregate holds the count, the sum and a {@link QuantileSketch} of the
+ * durations, so answering them does not depend on the length of the log.
+ * <p>
+ * The events of a project must be applied in their order. The aggregates of disjoint sets of projects are merged by
+ * {@link WorkflowAnalytics#merge(WorkflowAnalytics)}. Not thread-safe.
+ *
+ * @version "%I%, %G%"
+ * @see {@link WorkflowAnalyticsService}
+ */
+public class WorkflowAnalytics implements Serializable {
+
+	private static final long serialVersionUID = 3381985460307914337L;
+
+	/* by workflow id, then by state id */
+	private final Map<Long, Map<Long, Aggregate>> timesInState = new HashMap<Long, Map<Long, Aggregate>>();
+	/* by workflow id */
+	private final Map<Long, Aggregate> cycleTimes = new HashMap<Long, Aggregate>();
+	/* the projects not in a final state, by id */
+	private final Map<Long, OpenProject> openProjects = new HashMap<Long, OpenProject>();
+	private long eventCount;
+
+	/**
+	 * Applies an event: the time the project spent in the state it left is counted, and if it reached a final state,
+	 * the time since its creation.
+	 *
+	 * @param projectId
+	 * @param workflowId
+	 * @param fromStateId
+	 *            <code>null</code> if the project was created
+	 * @param toStateId
+	 * @param occurredAt
+	 *            the time of the event in milliseconds
+	 * @param toFinal
+	 *            whether the project reached a final state
+	 */
+	public void apply(long projectId, long workflowId, Long fromStateId, long toStateId, long occurredAt, boolean toFinal) {
+		++eventCount;
+		OpenProject open = openProjects.remove(projectId);
+		long createdAt = -1;
+		if (fromStateId == null) {
+			createdAt = occurredAt;
+		} else if (open != null) {
+			aggregateOf(open.workflowId, open.stateId).add(Math.max(0, occurredAt - open.enteredAt));
+			createdAt = open.createdAt;
+		}
+
+		if (!toFinal) {
+			openProjects.put(projectId, new OpenProject(workflowId, toStateId, occurredAt, createdAt));
+		} else if (createdAt >= 0) {
+			Aggregate cycleTime = cycleTimes.get(workflowId);
+			if (cycleTime == null) {
+				cycleTime = new Aggregate();
+				cycleTimes.put(workflowId, cycleTime);
+			}
+			cycleTime.add(Math.max(0, occurredAt - createdAt));
+		}
+	}
+
+	/**
+	 * Adds the aggregates of the other projects to these.
+	 *
+	 * @param other
+	 *            the aggregates of a disjoint set of projects
+	 */
+	public void merge(WorkflowAnalytics other) {
+		for (Map.Entry<Long, Map<Long, Aggregate>> workflow : other.timesInState.entrySet()) {
+			for (Map.Entry<Long, Aggregate> state : workflow.getValue().entrySet()) {
+				aggregateOf(workflow.getKey(), state.getKey()).merge(state.getValue());
+			}
+		}
+		for (Map.Entry<Long, Aggregate> cycleTime : other.cycleTimes.entrySet()) {
+			Aggregate aggregate = cycleTimes.get(cycleTime.getKey());
+			if (aggregate == null) {
+				cycleTimes.put(cycleTime.getKey(), cycleTime.getValue().copy());
+			} else {
+				aggregate.merge(cycleTime.getValue());
+			}
+		}
+		openProjects.putAll(other.openProjects);
+		eventCount += other.eventCount;
+	}
+
+	/**
+	 * Aggregates the events in parallel: the buffer is split recursively at the boundaries of the projects, the parts
+	 * are applied to separate analytics, which are merged then.
+	 *
+	 * @param columns
+	 *            the events, ordered by project
+	 * @param pool
+	 *            to run the parts in
+	 * @return the analytics of all the events
+	 */
+	public static WorkflowAnalytics aggregate(TransitionColumns columns, ForkJoinPool pool) {
+		return pool.invoke(new AggregateTask(columns, 0, columns.size()));
+	}
+
+	/**
+	 * Summarizes the aggregates of the workflow, in time proportional to the number of its states.
+	 *
+	 * @param workflowId
+	 * @return the summaries of the time in state by the id of the state, and of the cycle time, see
+	 *         {@link Aggregate#toMap()}
+	 */
+	public Map<String, Object> summaryOf(Long workflowId) {
+		Map<String, Object> states = new TreeMap<String, Object>();
+		Map<Long, Aggregate> aggregates = timesInState.get(workflowId);
+		if (aggregates != null) {
+			for (Map.Entry<Long, Aggregate> state : aggregates.entrySet()) {
+				states.put(String.valueOf(state.getKey()), state.getValue().toMap());
+			}
+		}
+		Aggregate cycleTime = cycleTimes.get(workflowId);
+
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("workflowId", workflowId);
+		summary.put("timeInState", states);
+		summary.put("cycleTime", (cycleTime == null) ? new Aggregate().toMap() : cycleTime.toMap());
+		return summary;
+	}
+
+	/**
+	 * @return the number of events applied
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * @return the number of projects not in a final state
+	 */
+	public int getOpenProjectCount() {
+		return openProjects.size();
+	}
+
+	private Aggregate aggregateOf(Long workflowId, Long stateId) {
+		Map<Long, Aggregate> states = timesInState.get(workflowId);
+		if (states == null) {
+			states = new HashMap<Long, Aggregate>();
+			timesInState.put(workflowId, states);
+		}
+		Aggregate aggregate = states.get(stateId);
+		if (aggregate == null) {
+			aggregate = new Aggregate();
+			states.put(stateId, aggregate);
+		}
+		return aggregate;
+	}
+
+	/**
+	 * The count, the sum and the distribution of durations in milliseconds.
+	 */
+	public static final class Aggregate implements Serializable {
+
+		private static final long serialVersionUID = -7120448795101788604L;
+
+		private long count;
+		private long sumMillis;
+		private final QuantileSketch sketch;
+
+		Aggregate() {
+			this(new QuantileSketch());
+		}
+
+		private Aggregate(QuantileSketch sketch) {
+			this.sketch = sketch;
+		}
+
+		void add(long millis) {
+			++count;
+			sumMillis += millis;
+			sketch.add(millis);
+		}
+
+		void merge(Aggregate other) {
+			count += other.count;
+			sumMillis += other.sumMillis;
+			sketch.merge(other.sketch);
+		}
+
+		Aggregate copy() {
+			Aggregate copy = new Aggregate(sketch.copy());
+			copy.count = count;
+			copy.sumMillis = sumMillis;
+			return copy;
+		}
+
+		/**
+		 * @return the count, the average, the median, the 90th and 99th percentiles in milliseconds
+		 */
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("count", count);
+			map.put("averageMillis", (count == 0) ? 0 : sumMillis / count);
+			map.put("p50Millis", (count == 0) ? 0 : Math.round(sketch.quantile(0.5)));
+			map.put("p90Millis", (count == 0) ? 0 : Math.round(sketch.quantile(0.9)));
+			map.put("p99Millis", (count == 0) ? 0 : Math.round(sketch.quantile(0.99)));
+			return map;
+		}
+	}
+
+	/**
+	 * Aggregates a range of the events, split at a project boundary if it is too long.
+	 */
+	private static final class AggregateTask extends RecursiveTask<WorkflowAnalytics> {
+
+		private static final long serialVersionUID = -4313196733129906562L;
+
+		private static final int SEQUENTIAL_THRESHOLD = 10000;
+
+		private final TransitionColumns columns;
+		private final int from;
+		private final int to;
+
+		AggregateTask(TransitionColumns columns, int from, int to) {
+			this.columns = columns;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected WorkflowAnalytics compute() {
+			int middle = (to - from > SEQUENTIAL_THRESHOLD) ? columns.projectBoundaryFrom((from + to) >>> 1) : to;
+			if (middle >= to) {
+				WorkflowAnalytics analytics = new WorkflowAnalytics();
+				columns.applyTo(analytics, from, to);
+				return analytics;
+			}
+
+			AggregateTask left = new AggregateTask(columns, from, middle);
+			left.fork();
+			WorkflowAnalytics analytics = new AggregateTask(columns, middle, to).compute();
+			analytics.merge(left.join());
+			return analytics;
+		}
+	}
+
+	/**
+	 * The state a project is in, and since when.
+	 */
+	private static final class OpenProject implements Serializable {
+
+		private static final long serialVersionUID = 5802906131424315521L;
+
+		private final long workflowId;
+		private final long stateId;
+		private final long enteredAt;
+		/* -1 if the creation of the project was not logged */
+		private final long createdAt;
+
+		OpenProject(long workflowId, long stateId, long enteredAt, long createdAt) {
+			this.workflowId = workflowId;
+			this.stateId = stateId;
+			this.enteredAt = enteredAt;
+			this.createdAt = createdAt;
+		}
+	}
+}
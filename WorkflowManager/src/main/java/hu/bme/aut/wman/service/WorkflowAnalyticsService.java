@@ -0,0 +1,322 @@
+package hu.bme.aut.wman.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the {@link WorkflowAnalytics} of the <code>TransitionEvent</code>s up to date, so the time spent in the states
+ * and the cycle time of a <code>Workflow</code> are answered in time proportional to the number of its states.
+ * <p>
+ * On the first run the analytics are backfilled from the whole log: the events are read project range by project
+ * range, and aggregated in parallel by a {@link ForkJoinPool}. Every minute after that, the events logged since are
+ * applied incrementally. The events younger than {@link WorkflowAnalyticsService#SETTLE_MILLIS} are left for the next
+ * run, so the ones of the transactions still in progress are not skipped.
+ * <p>
+ * The analytics are saved to a checkpoint file with the id of the last event applied, after the backfill, at most every
+ * {@link WorkflowAnalyticsService#CHECKPOINT_MILLIS} and on shutdown. After a restart they are restored from it, and
+ * only the events logged since are applied, the whole log is backfilled only if there is no readable checkpoint.
+ *
+ * @version "%I%, %G%"
+ * @see {@link TransitionLogService}
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class WorkflowAnalyticsService implements Serializable {
+
+	private static final long serialVersionUID = 1846417255190935620L;
+
+	private static final Logger LOGGER = Logger.getLogger(WorkflowAnalyticsService.class);
+
+	/** the number of project ids the events are read for by one query of the backfill */
+	public static final int PROJECT_SPAN = 1000;
+	/** the number of events applied by one query of a refresh */
+	public static final int CHUNK_SIZE = 10000;
+	public static final long SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	public static final String CHECKPOINT_PROPERTY = "wman.analytics.checkpoint";
+	/** the minimum time between two checkpoints written by the refreshes */
+	public static final long CHECKPOINT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private final ReentrantLock refreshLock = new ReentrantLock();
+	private final ReadWriteLock analyticsLock = new ReentrantReadWriteLock();
+	/* null until backfilled, guarded by the analyticsLock */
+	private WorkflowAnalytics analytics;
+	/* the id of the last event applied, guarded by the refreshLock */
+	private long lastEventId;
+	private final Path checkpoint;
+	/* the id of the last event and the time of the last checkpoint written, guarded by the refreshLock */
+	private long checkpointedEventId;
+	private long checkpointedAt;
+
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong failedRefreshes = new AtomicLong();
+	private final AtomicLong backfillNanos = new AtomicLong();
+	private final AtomicLong lastRefreshNanos = new AtomicLong();
+
+	@Inject
+	private TransitionLogService transitionLog;
+
+	@Inject
+	private TransitionService transitionService;
+
+	public WorkflowAnalyticsService() {
+		this(Paths.get(System.getProperty(CHECKPOINT_PROPERTY, Paths.get(System.getProperty("user.home"), "wman-analytics.checkpoint").toString())));
+	}
+
+	public WorkflowAnalyticsService(Path checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Backfills the analytics, or applies the events logged since the last run. Called every minute by the container,
+	 * a run in progress is not waited for.
+	 */
+	@Schedule(minute = "*", hour = "*", persistent = false)
+	public void refresh() {
+		if (refreshLock.tryLock()) {
+			long start = System.nanoTime();
+			try {
+				if (isBackfilled()) {
+					applyAfter(new Date(System.currentTimeMillis() - SETTLE_MILLIS));
+					if (lastEventId != checkpointedEventId && System.currentTimeMillis() - checkpointedAt >= CHECKPOINT_MILLIS) {
+						saveCheckpoint();
+					}
+				} else if (!restoreCheckpoint()) {
+					backfill();
+					backfillNanos.set(System.nanoTime() - start);
+					saveCheckpoint();
+				}
+			} catch (RuntimeException e) {
+				failedRefreshes.incrementAndGet();
+				LOGGER.error("Unable to refresh the workflow analytics, retrying later", e);
+			} finally {
+				refreshes.incrementAndGet();
+				lastRefreshNanos.set(System.nanoTime() - start);
+				refreshLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Saves the events applied since the last checkpoint.
+	 */
+	@PreDestroy
+	public void close() {
+		refreshLock.lock();
+		try {
+			if (isBackfilled() && lastEventId != checkpointedEventId) {
+				saveCheckpoint();
+			}
+		} finally {
+			refreshLock.unlock();
+		}
+	}
+
+	/**
+	 * @param workflowId
+	 * @return the summary of the workflow, see {@link WorkflowAnalytics#summaryOf(Long)}, with the <code>ready</code>
+	 *         flag telling whether the backfill is done
+	 */
+	public Map<String, Object> summaryOf(Long workflowId) {
+		analyticsLock.readLock().lock();
+		try {
+			Map<String, Object> summary = (analytics == null) ? new WorkflowAnalytics().summaryOf(workflowId) : analytics.summaryOf(workflowId);
+			summary.put("ready", analytics != null);
+			return summary;
+		} finally {
+			analyticsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of the refreshes, the failed ones, the durations of the backfill and the last refresh, and
+	 *         the number of the events applied and the projects not in a final state
+	 */
+	public Map<String, Object> statistics() {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("refreshes", refreshes.get());
+		statistics.put("failedRefreshes", failedRefreshes.get());
+		statistics.put("backfillMillis", TimeUnit.NANOSECONDS.toMillis(backfillNanos.get()));
+		statistics.put("lastRefreshMillis", TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos.get()));
+		analyticsLock.readLock().lock();
+		try {
+			statistics.put("events", (analytics == null) ? 0L : analytics.getEventCount());
+			statistics.put("openProjects", (analytics == null) ? 0 : analytics.getOpenProjectCount());
+		} finally {
+			analyticsLock.readLock().unlock();
+		}
+		return statistics;
+	}
+
+	/* reads the events up to the last one logged by project ranges, and aggregates them in parallel */
+	private void backfill() {
+		long[] bounds = transitionLog.selectBounds();
+		WorkflowAnalytics backfilled = new WorkflowAnalytics();
+		long untilId = 0L;
+		if (bounds != null) {
+			untilId = bounds[2];
+			TransitionColumns columns = new TransitionColumns(CHUNK_SIZE);
+			for (long fromId = bounds[0]; fromId <= bounds[1]; fromId += PROJECT_SPAN) {
+				for (Object[] row : transitionLog.selectFlowsOfProjects(fromId, fromId + PROJECT_SPAN, untilId)) {
+					if (row[2] == null) {
+						continue;
+					}
+					columns.add((Long) row[1], (Long) row[2], (Long) row[3], (Long) row[4], ((Date) row[5]).getTime(),
+							isFinal((Long) row[2], (Long) row[4]));
+				}
+			}
+
+			ForkJoinPool pool = new ForkJoinPool();
+			try {
+				backfilled = WorkflowAnalytics.aggregate(columns, pool);
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		analyticsLock.writeLock().lock();
+		try {
+			analytics = backfilled;
+			lastEventId = untilId;
+		} finally {
+			analyticsLock.writeLock().unlock();
+		}
+		LOGGER.info(String.format("Backfilled the workflow analytics with %d events", backfilled.getEventCount()));
+	}
+
+	/* applies the events after the last one applied, which occurred till the given time */
+	private void applyAfter(Date settledAt) {
+		while (true) {
+			List<Object[]> rows = transitionLog.selectFlowsAfter(lastEventId, settledAt, CHUNK_SIZE);
+			if (rows.isEmpty()) {
+				break;
+			}
+
+			analyticsLock.writeLock().lock();
+			try {
+				for (Object[] row : rows) {
+					if (row[2] == null) {
+						continue;
+					}
+					analytics.apply((Long) row[1], (Long) row[2], (Long) row[3], (Long) row[4], ((Date) row[5]).getTime(),
+							isFinal((Long) row[2], (Long) row[4]));
+				}
+			} finally {
+				analyticsLock.writeLock().unlock();
+			}
+			lastEventId = (Long) rows.get(rows.size() - 1)[0];
+			if (rows.size() < CHUNK_SIZE) {
+				break;
+			}
+		}
+	}
+
+	/* reads the analytics and the id of the last event applied from the checkpoint, false if there is none usable */
+	private boolean restoreCheckpoint() {
+		WorkflowAnalytics restored;
+		long restoredEventId;
+		try (InputStream in = Files.newInputStream(checkpoint); ObjectInputStream objects = new ObjectInputStream(in)) {
+			restoredEventId = objects.readLong();
+			restored = (WorkflowAnalytics) objects.readObject();
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			LOGGER.warn("Unable to restore the workflow analytics from " + checkpoint + ", backfilling them", e);
+			return false;
+		}
+		long[] bounds = transitionLog.selectBounds();
+		if (restoredEventId > ((bounds == null) ? 0L : bounds[2])) {
+			LOGGER.warn("The checkpoint of the workflow analytics is ahead of the log, backfilling them");
+			return false;
+		}
+
+		analyticsLock.writeLock().lock();
+		try {
+			analytics = restored;
+			lastEventId = restoredEventId;
+		} finally {
+			analyticsLock.writeLock().unlock();
+		}
+		checkpointedEventId = restoredEventId;
+		checkpointedAt = System.currentTimeMillis();
+		LOGGER.info(String.format("Restored the workflow analytics of %d events from the checkpoint", restored.getEventCount()));
+		return true;
+	}
+
+	/* writes a temporary file moved over the checkpoint, so a crash never leaves a partial one; a failure is logged only */
+	private void saveCheckpoint() {
+		Path written = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		analyticsLock.readLock().lock();
+		try (OutputStream out = Files.newOutputStream(written); ObjectOutputStream objects = new ObjectOutputStream(out)) {
+			objects.writeLong(lastEventId);
+			objects.writeObject(analytics);
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write the checkpoint of the workflow analytics", e);
+			return;
+		} finally {
+			analyticsLock.readLock().unlock();
+		}
+
+		try {
+			Files.move(written, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			checkpointedEventId = lastEventId;
+			checkpointedAt = System.currentTimeMillis();
+		} catch (IOException e) {
+			LOGGER.warn("Unable to write the checkpoint of the workflow analytics", e);
+		}
+	}
+
+	/* by the current transitions of the workflow, as the earlier ones are not kept */
+	private boolean isFinal(Long workflowId, Long stateId) {
+		return transitionService.transitionTableOf(workflowId).isFinal(stateId);
+	}
+
+	private boolean isBackfilled() {
+		analyticsLock.readLock().lock();
+		try {
+			return analytics != null;
+		} finally {
+			analyticsLock.readLock().unlock();
+		}
+	}
+
+	public void setTransitionLogService(TransitionLogService transitionLog) {
+		this.transitionLog = transitionLog;
+	}
+
+	public void setTransitionService(TransitionService transitionService) {
+		this.transitionService = transitionService;
+	}
+}
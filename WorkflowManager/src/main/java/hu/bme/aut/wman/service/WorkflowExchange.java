@@ -0,0 +1,598 @@
+package hu.bme.aut.wman.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * The interchange formats of a <code>Workflow</code>: its header, then the <code>ActionType</code>s, the
+ * <code>State</code>s with the positions of their nodes, and the <code>Transition</code>s, in this order. The items
+ * refer to each other by references unique within the document, e.g. the ids they had where they were exported.
+ * <p>
+ * Both formats are read and written item by item, neither the document nor the workflow is held in memory:
+ * <ul>
+ * <li>{@link Format#JSON}:
+ * <code>{"format":"wman-workflow","version":2,"workflow":{"name","description","domain"},
+ * "actionTypes":[{"ref","name"}],"states":[{"ref","name","description","initial","x","y"}],
+ * "transitions":[{"from","action","to"}]}</code>, the unknown fields are skipped.</li>
+ * <li>{@link Format#BINARY}: the magic number and the version, followed by records tagged by their type, closed by
+ * an end tag. The strings are written as the length of their UTF-8 bytes and the bytes, as of version 2, in the
+ * modified UTF-8 of <code>DataOutput</code>, limited to 65535 bytes, before.</li>
+ * </ul>
+ *
+ * @version "%I%, %G%"
+ * @see {@link WorkflowExchangeService}
+ */
+public final class WorkflowExchange {
+
+	/** the version of the formats written, the older ones are read too */
+	public static final int FORMAT_VERSION = 2;
+	/** the name of the JSON format */
+	public static final String JSON_FORMAT_NAME = "wman-workflow";
+	/** the first bytes of the binary format, "WMWF" */
+	public static final int MAGIC = 0x574D5746;
+
+	/** the position of the nodes without one, they are placed by {@link GraphLayout} */
+	public static final int UNPLACED = GraphLayout.UNPLACED;
+
+	/** the longest string read from a binary document, in UTF-8 bytes, so a corrupt length is not allocated */
+	public static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	static {
+		JSON_FACTORY.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		JSON_FACTORY.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+	}
+
+	/* the sections of a document, in their order */
+	private static final int NONE = 0;
+	private static final int WORKFLOW = 1;
+	private static final int ACTION_TYPES = 2;
+	private static final int STATES = 3;
+	private static final int TRANSITIONS = 4;
+	private static final String[] SECTION_NAMES = { "start", "workflow", "actionTypes", "states", "transitions" };
+
+	/* the tags of the binary records */
+	private static final int TAG_END = 0;
+	private static final int TAG_WORKFLOW = 1;
+	private static final int TAG_ACTION_TYPE = 2;
+	private static final int TAG_STATE = 3;
+	private static final int TAG_TRANSITION = 4;
+
+	private WorkflowExchange() {
+	}
+
+	/**
+	 * The formats a workflow is exchanged in.
+	 */
+	public enum Format {
+		JSON("application/json", "json"),
+		BINARY("application/octet-stream", "wmwf");
+
+		private final String contentType;
+		private final String extension;
+
+		private Format(String contentType, String extension) {
+			this.contentType = contentType;
+			this.extension = extension;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		/**
+		 * @param name
+		 *            the name or the file extension of the format, case insensitive, or <code>null</code>
+		 * @return the format, {@link Format#JSON} if the name is <code>null</code>
+		 * @throws IllegalArgumentException
+		 *             if there is no such format
+		 */
+		public static Format of(String name) {
+			if (name == null || name.isEmpty()) {
+				return JSON;
+			}
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(name) || format.extension.equalsIgnoreCase(name)) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Unknown workflow format: " + name);
+		}
+	}
+
+	/**
+	 * Receives the items of a document in their order: the header first, then the action types, the states and the
+	 * transitions.
+	 */
+	public interface Handler {
+
+		void workflow(String name, String description, String domain) throws IOException;
+
+		void actionType(long ref, String name) throws IOException;
+
+		/**
+		 * @param x
+		 *            the position of the node of the state, {@link WorkflowExchange#UNPLACED} if it has none
+		 * @param y
+		 */
+		void state(long ref, String name, String description, boolean initial, int x, int y) throws IOException;
+
+		void transition(long fromRef, long actionRef, long toRef) throws IOException;
+	}
+
+	/**
+	 * Writes a document. Closing it completes the document and flushes it, but does not close the stream.
+	 */
+	public interface Output extends Handler, Closeable {
+	}
+
+	/**
+	 * @param format
+	 * @param out
+	 * @return the writer of a document to the stream
+	 * @throws IOException
+	 */
+	public static Output outputOf(Format format, OutputStream out) throws IOException {
+		return (format == Format.BINARY) ? new BinaryOutput(out) : new JsonOutput(out);
+	}
+
+	/**
+	 * Reads the document, passing its items to the handler one by one.
+	 *
+	 * @param format
+	 * @param in
+	 *            not closed
+	 * @param handler
+	 * @throws IOException
+	 *             if the document is malformed, its items are out of order, or its version is not supported
+	 */
+	public static void read(Format format, InputStream in, Handler handler) throws IOException {
+		OrderedHandler ordered = new OrderedHandler(handler);
+		if (format == Format.BINARY) {
+			readBinary(in, ordered);
+		} else {
+			readJson(in, ordered);
+		}
+		if (ordered.section == NONE) {
+			throw new IOException("The document has no workflow");
+		}
+	}
+
+	/* returns the next section, if the items of the section may follow the ones of the current one */
+	private static int advance(int current, int next) throws IOException {
+		if (next < current || (next == WORKFLOW) == (current != NONE)) {
+			throw new IOException("Unexpected " + SECTION_NAMES[next] + " after " + SECTION_NAMES[current]);
+		}
+		return next;
+	}
+
+	private static void checkVersion(int version) throws IOException {
+		if (version < 1 || version > FORMAT_VERSION) {
+			throw new IOException("Unsupported workflow format version: " + version);
+		}
+	}
+
+	private static void readJson(InputStream in, Handler handler) throws IOException {
+		JsonParser parser = JSON_FACTORY.createJsonParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("The document is not a JSON object");
+			}
+			boolean versionRead = false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("format".equals(field)) {
+					if (!JSON_FORMAT_NAME.equals(parser.getText())) {
+						throw new IOException("The document is not a workflow: " + parser.getText());
+					}
+				} else if ("version".equals(field)) {
+					checkVersion(parser.getIntValue());
+					versionRead = true;
+				} else if ("workflow".equals(field)) {
+					if (!versionRead) {
+						throw new IOException("The version of the document must precede its workflow");
+					}
+					readJsonWorkflow(parser, handler);
+				} else if ("actionTypes".equals(field)) {
+					expect(parser, value, JsonToken.START_ARRAY);
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						readJsonActionType(parser, handler);
+					}
+					expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+				} else if ("states".equals(field)) {
+					expect(parser, value, JsonToken.START_ARRAY);
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						readJsonState(parser, handler);
+					}
+					expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+				} else if ("transitions".equals(field)) {
+					expect(parser, value, JsonToken.START_ARRAY);
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						readJsonTransition(parser, handler);
+					}
+					expect(parser, parser.getCurrentToken(), JsonToken.END_ARRAY);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} finally {
+			parser.close();
+		}
+	}
+
+	private static void readJsonWorkflow(JsonParser parser, Handler handler) throws IOException {
+		expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+		String name = null;
+		String description = null;
+		String domain = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("name".equals(field)) {
+				name = textOf(parser);
+			} else if ("description".equals(field)) {
+				description = textOf(parser);
+			} else if ("domain".equals(field)) {
+				domain = textOf(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		handler.workflow(name, description, domain);
+	}
+
+	private static void readJsonActionType(JsonParser parser, Handler handler) throws IOException {
+		Long ref = null;
+		String name = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("ref".equals(field)) {
+				ref = parser.getLongValue();
+			} else if ("name".equals(field)) {
+				name = textOf(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+		handler.actionType(required(parser, ref, "ref"), name);
+	}
+
+	private static void readJsonState(JsonParser parser, Handler handler) throws IOException {
+		Long ref = null;
+		String name = null;
+		String description = null;
+		boolean initial = false;
+		int x = UNPLACED;
+		int y = UNPLACED;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("ref".equals(field)) {
+				ref = parser.getLongValue();
+			} else if ("name".equals(field)) {
+				name = textOf(parser);
+			} else if ("description".equals(field)) {
+				description = textOf(parser);
+			} else if ("initial".equals(field)) {
+				initial = parser.getBooleanValue();
+			} else if ("x".equals(field)) {
+				x = parser.getIntValue();
+			} else if ("y".equals(field)) {
+				y = parser.getIntValue();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		handler.state(required(parser, ref, "ref"), name, description, initial, x, y);
+	}
+
+	private static void readJsonTransition(JsonParser parser, Handler handler) throws IOException {
+		Long from = null;
+		Long action = null;
+		Long to = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			if ("from".equals(field)) {
+				from = parser.getLongValue();
+			} else if ("action".equals(field)) {
+				action = parser.getLongValue();
+			} else if ("to".equals(field)) {
+				to = parser.getLongValue();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		handler.transition(required(parser, from, "from"), required(parser, action, "action"), required(parser, to, "to"));
+	}
+
+	private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+		if (actual != expected) {
+			throw new IOException("Expected " + expected + " instead of " + actual + " at " + parser.getCurrentLocation());
+		}
+	}
+
+	private static long required(JsonParser parser, Long value, String field) throws IOException {
+		if (value == null) {
+			throw new IOException("Missing \"" + field + "\" at " + parser.getCurrentLocation());
+		}
+		return value;
+	}
+
+	private static String textOf(JsonParser parser) throws IOException {
+		return (parser.getCurrentToken() == JsonToken.VALUE_NULL) ? null : parser.getText();
+	}
+
+	private static void readBinary(InputStream in, Handler handler) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		try {
+			if (data.readInt() != MAGIC) {
+				throw new IOException("The document is not a workflow");
+			}
+			int version = data.readShort();
+			checkVersion(version);
+			for (int tag = data.readUnsignedByte(); tag != TAG_END; tag = data.readUnsignedByte()) {
+				switch (tag) {
+				case TAG_WORKFLOW:
+					handler.workflow(readString(data, version), readNullable(data, version), readNullable(data, version));
+					break;
+				case TAG_ACTION_TYPE:
+					handler.actionType(data.readLong(), readString(data, version));
+					break;
+				case TAG_STATE:
+					handler.state(data.readLong(), readString(data, version), readNullable(data, version), data.readBoolean(), data.readInt(),
+							data.readInt());
+					break;
+				case TAG_TRANSITION:
+					handler.transition(data.readLong(), data.readLong(), data.readLong());
+					break;
+				default:
+					throw new IOException("Unknown record: " + tag);
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException("The document is truncated", e);
+		}
+	}
+
+	private static String readNullable(DataInputStream data, int version) throws IOException {
+		return data.readBoolean() ? readString(data, version) : null;
+	}
+
+	private static String readString(DataInputStream data, int version) throws IOException {
+		if (version < 2) {
+			return data.readUTF();
+		}
+		int length = data.readInt();
+		if (length < 0 || length > MAX_STRING_BYTES) {
+			throw new IOException("Invalid string length: " + length);
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Passes the items to the handler, checking they come in the order of the sections.
+	 */
+	private static final class OrderedHandler implements Handler {
+
+		private final Handler handler;
+		private int section = NONE;
+
+		OrderedHandler(Handler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void workflow(String name, String description, String domain) throws IOException {
+			section = advance(section, WORKFLOW);
+			handler.workflow(name, description, domain);
+		}
+
+		@Override
+		public void actionType(long ref, String name) throws IOException {
+			section = advance(section, ACTION_TYPES);
+			handler.actionType(ref, name);
+		}
+
+		@Override
+		public void state(long ref, String name, String description, boolean initial, int x, int y) throws IOException {
+			section = advance(section, STATES);
+			handler.state(ref, name, description, initial, x, y);
+		}
+
+		@Override
+		public void transition(long fromRef, long actionRef, long toRef) throws IOException {
+			section = advance(section, TRANSITIONS);
+			handler.transition(fromRef, actionRef, toRef);
+		}
+	}
+
+	/*
+	 * Writes the document by the streaming generator, opening the arrays of the sections as their first items come.
+	 * The sections left empty are written on closing.
+	 */
+	private static final class JsonOutput implements Output {
+
+		private static final String[] ARRAY_NAMES = { null, null, "actionTypes", "states", "transitions" };
+
+		private final JsonGenerator generator;
+		private int section = NONE;
+
+		JsonOutput(OutputStream out) throws IOException {
+			generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+			generator.writeStartObject();
+			generator.writeStringField("format", JSON_FORMAT_NAME);
+			generator.writeNumberField("version", FORMAT_VERSION);
+		}
+
+		@Override
+		public void workflow(String name, String description, String domain) throws IOException {
+			section = advance(section, WORKFLOW);
+			generator.writeObjectFieldStart("workflow");
+			generator.writeStringField("name", name);
+			generator.writeStringField("description", description);
+			generator.writeStringField("domain", domain);
+			generator.writeEndObject();
+		}
+
+		@Override
+		public void actionType(long ref, String name) throws IOException {
+			enter(ACTION_TYPES);
+			generator.writeStartObject();
+			generator.writeNumberField("ref", ref);
+			generator.writeStringField("name", name);
+			generator.writeEndObject();
+		}
+
+		@Override
+		public void state(long ref, String name, String description, boolean initial, int x, int y) throws IOException {
+			enter(STATES);
+			generator.writeStartObject();
+			generator.writeNumberField("ref", ref);
+			generator.writeStringField("name", name);
+			generator.writeStringField("description", description);
+			generator.writeBooleanField("initial", initial);
+			generator.writeNumberField("x", x);
+			generator.writeNumberField("y", y);
+			generator.writeEndObject();
+		}
+
+		@Override
+		public void transition(long fromRef, long actionRef, long toRef) throws IOException {
+			enter(TRANSITIONS);
+			generator.writeStartObject();
+			generator.writeNumberField("from", fromRef);
+			generator.writeNumberField("action", actionRef);
+			generator.writeNumberField("to", toRef);
+			generator.writeEndObject();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (section == NONE) {
+				throw new IOException("The document has no workflow");
+			}
+			enter(TRANSITIONS);
+			generator.writeEndArray();
+			generator.writeEndObject();
+			generator.close();
+		}
+
+		/* closes the arrays of the sections up to the given one, and opens its array */
+		private void enter(int next) throws IOException {
+			int current = section;
+			section = advance(current, next);
+			if (current != next) {
+				if (current > WORKFLOW) {
+					generator.writeEndArray();
+				}
+				for (int skipped = Math.max(current, WORKFLOW) + 1; skipped < next; ++skipped) {
+					generator.writeArrayFieldStart(ARRAY_NAMES[skipped]);
+					generator.writeEndArray();
+				}
+				generator.writeArrayFieldStart(ARRAY_NAMES[next]);
+			}
+		}
+	}
+
+	/*
+	 * Writes the document as records of primitive values.
+	 */
+	private static final class BinaryOutput implements Output {
+
+		private final DataOutputStream data;
+		private int section = NONE;
+
+		BinaryOutput(OutputStream out) throws IOException {
+			data = new DataOutputStream(new BufferedOutputStream(out));
+			data.writeInt(MAGIC);
+			data.writeShort(FORMAT_VERSION);
+		}
+
+		@Override
+		public void workflow(String name, String description, String domain) throws IOException {
+			section = advance(section, WORKFLOW);
+			data.writeByte(TAG_WORKFLOW);
+			writeString(name);
+			writeNullable(description);
+			writeNullable(domain);
+		}
+
+		@Override
+		public void actionType(long ref, String name) throws IOException {
+			section = advance(section, ACTION_TYPES);
+			data.writeByte(TAG_ACTION_TYPE);
+			data.writeLong(ref);
+			writeString(name);
+		}
+
+		@Override
+		public void state(long ref, String name, String description, boolean initial, int x, int y) throws IOException {
+			section = advance(section, STATES);
+			data.writeByte(TAG_STATE);
+			data.writeLong(ref);
+			writeString(name);
+			writeNullable(description);
+			data.writeBoolean(initial);
+			data.writeInt(x);
+			data.writeInt(y);
+		}
+
+		@Override
+		public void transition(long fromRef, long actionRef, long toRef) throws IOException {
+			section = advance(section, TRANSITIONS);
+			data.writeByte(TAG_TRANSITION);
+			data.writeLong(fromRef);
+			data.writeLong(actionRef);
+			data.writeLong(toRef);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (section == NONE) {
+				throw new IOException("The document has no workflow");
+			}
+			data.writeByte(TAG_END);
+			data.flush();
+		}
+
+		private void writeNullable(String value) throws IOException {
+			data.writeBoolean(value != null);
+			if (value != null) {
+				writeString(value);
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > MAX_STRING_BYTES) {
+				throw new IOException("The string is longer than " + MAX_STRING_BYTES + " bytes");
+			}
+			data.writeInt(bytes.length);
+			data.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package hu.bme.aut.wman.service;
+
+import hu.bme.aut.wman.exceptions.WorkflowImportException;
+import hu.bme.aut.wman.model.AbstractEntity;
+import hu.bme.aut.wman.model.ActionType;
+import hu.bme.aut.wman.model.Domain;
+import hu.bme.aut.wman.model.State;
+import hu.bme.aut.wman.model.Transition;
+import hu.bme.aut.wman.model.Workflow;
+import hu.bme.aut.wman.model.graph.GraphEdge;
+import hu.bme.aut.wman.model.graph.GraphItem;
+import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.model.graph.StateGraph;
+import hu.bme.aut.wman.service.WorkflowExchange.Format;
+import hu.bme.aut.wman.service.WorkflowExchange.Handler;
+import hu.bme.aut.wman.service.WorkflowExchange.Output;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exports and imports <code>Workflow</code>s in the formats of {@link WorkflowExchange}.
+ * <p>
+ * The export reads the states and the transitions page by page by projection queries, writing them as they come, so
+ * no entities are loaded. The import inserts the states, their nodes and the transitions by multi-row INSERT
+ * statements of {@link WorkflowExchangeService#CHUNK_SIZE} items at most, and the edges of the graph by one
+ * INSERT ... SELECT, in the transaction of the caller. Only the ids of the items read so far are kept in memory.
+ *
+ * @version "%I%, %G%"
+ */
+@Stateless
+@LocalBean
+public class WorkflowExchangeService extends AbstractDataService<Workflow> {
+
+	private static final long serialVersionUID = -3160845587214366520L;
+
+	private static final Logger LOGGER = Logger.getLogger(WorkflowExchangeService.class);
+
+	/** the number of items read by one query on export, and inserted at once on import */
+	public static final int CHUNK_SIZE = 1000;
+
+	/**
+	 * the prefix of the names the states are inserted with on import, followed by their position in the chunk, till
+	 * their ids are read
+	 */
+	public static final String PENDING_STATE_NAME = "\u0001wman-import:";
+
+	@Inject
+	private DomainService domainService;
+	@Inject
+	private ActionTypeService actionTypeService;
+	@Inject
+	private StateGraphService graphService;
+	@Inject
+	private TransitionService transitionService;
+
+	/**
+	 * Writes the workflow, its action types, states with the positions of their nodes, and transitions to the stream.
+	 * The ids of the items are used as their references.
+	 *
+	 * @param workflowId
+	 * @param format
+	 * @param out
+	 *            not closed
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if there is no such workflow
+	 */
+	public void exportWorkflow(Long workflowId, Format format, OutputStream out) throws IOException {
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>(AbstractEntity.PR_ID, workflowId));
+		List<Object[]> headers = callNamedQuery(Workflow.NQ_FIND_HEADER_BY_ID, parameterList, Object[].class);
+		if (headers.isEmpty()) {
+			throw new IllegalArgumentException("There is no workflow " + workflowId);
+		}
+		List<Long> graphIds = callNamedQuery(StateGraph.NQ_FIND_FIRST_ID_BY_WORKFLOW_ID, parameterList, Long.class);
+		Long graphId = graphIds.isEmpty() ? null : graphIds.get(0);
+
+		Output output = WorkflowExchange.outputOf(format, out);
+		Object[] header = headers.get(0);
+		output.workflow((String) header[0], (String) header[1], (String) header[2]);
+
+		List<Entry<String, Object>> workflowParameter = new ArrayList<Entry<String, Object>>();
+		workflowParameter.add(new AbstractMap.SimpleEntry<String, Object>("workflowId", workflowId));
+		for (Object[] row : callNamedQuery(Transition.NQ_FIND_ACTION_TYPES_BY_WORKFLOW_ID, workflowParameter, Object[].class)) {
+			output.actionType((Long) row[0], (String) row[1]);
+		}
+
+		long afterId = 0L;
+		List<Object[]> states;
+		do {
+			List<Entry<String, Object>> pageParameters = new ArrayList<Entry<String, Object>>(parameterList);
+			pageParameters.add(new AbstractMap.SimpleEntry<String, Object>("afterId", afterId));
+			states = callNamedQuery(State.NQ_FIND_PAGE_BY_WORKFLOW_ID, pageParameters, Object[].class, CHUNK_SIZE);
+			Map<Long, int[]> positions = positionsOf(graphId, states);
+			for (Object[] row : states) {
+				int[] position = positions.get(row[0]);
+				output.state((Long) row[0], (String) row[1], (String) row[2], (Boolean) row[3],
+						(position == null) ? WorkflowExchange.UNPLACED : position[0],
+						(position == null) ? WorkflowExchange.UNPLACED : position[1]);
+				afterId = (Long) row[0];
+			}
+		} while (states.size() == CHUNK_SIZE);
+
+		afterId = 0L;
+		List<Object[]> transitions;
+		do {
+			List<Entry<String, Object>> pageParameters = new ArrayList<Entry<String, Object>>(workflowParameter);
+			pageParameters.add(new AbstractMap.SimpleEntry<String, Object>("afterId", afterId));
+			transitions = callNamedQuery(Transition.NQ_FIND_PAGE_BY_WORKFLOW_ID, pageParameters, Object[].class, CHUNK_SIZE);
+			for (Object[] row : transitions) {
+				output.transition((Long) row[1], (Long) row[2], (Long) row[3]);
+				afterId = (Long) row[0];
+			}
+		} while (transitions.size() == CHUNK_SIZE);
+
+		output.close();
+	}
+
+	/* the positions of the nodes of the states of the page, by the ids of the states */
+	private Map<Long, int[]> positionsOf(Long graphId, List<Object[]> states) {
+		Map<Long, int[]> positions = new HashMap<Long, int[]>();
+		if (graphId == null || states.isEmpty()) {
+			return positions;
+		}
+		List<Long> stateIds = new ArrayList<Long>(states.size());
+		for (Object[] row : states) {
+			stateIds.add((Long) row[0]);
+		}
+		List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("graphId", graphId));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("stateIds", stateIds));
+		for (Object[] row : callNamedQuery(GraphNode.NQ_FIND_POSITIONS_BY_STATE_IDS, parameterList, Object[].class)) {
+			positions.put((Long) row[0], new int[] { (Integer) row[1], (Integer) row[2] });
+		}
+		return positions;
+	}
+
+	/**
+	 * Reads a workflow from the stream and inserts it as a new one, with its states, the nodes and the edges of its
+	 * graph, and its transitions. The action types are matched to the ones of the domain by their names, the missing
+	 * ones are added to it. Either the whole workflow is inserted, or the transaction is rolled back.
+	 *
+	 * @param format
+	 * @param in
+	 *            not closed
+	 * @param domainName
+	 *            the name of the domain of the new workflow, or <code>null</code> for the one in the document
+	 * @return the id of the new workflow
+	 * @throws WorkflowImportException
+	 *             if the document can not be read, or it does not describe a valid workflow
+	 */
+	public Long importWorkflow(Format format, InputStream in, String domainName) {
+		Importer importer = new Importer(domainName);
+		try {
+			WorkflowExchange.read(format, in, importer);
+		} catch (IOException e) {
+			LOGGER.info("Unable to read the workflow: " + e.getMessage());
+			throw new WorkflowImportException("The document is not a readable workflow in the " + format + " format", e);
+		}
+		return importer.finish();
+	}
+
+	public void setTestDomainService(DomainService domainService) {
+		this.domainService = domainService;
+	}
+
+	public void setTestActionTypeService(ActionTypeService actionTypeService) {
+		this.actionTypeService = actionTypeService;
+	}
+
+	public void setTestGraphService(StateGraphService graphService) {
+		this.graphService = graphService;
+	}
+
+	public void setTestTransitionService(TransitionService transitionService) {
+		this.transitionService = transitionService;
+	}
+
+	@Override
+	protected Class<Workflow> getEntityClass() {
+		return Workflow.class;
+	}
+
+	/*
+	 * Inserts the items as they are read, buffering at most a chunk of the states and of the transitions.
+	 */
+	private final class Importer implements Handler {
+
+		private final String domainName;
+
+		private Domain domain;
+		private Long workflowId;
+		private Long graphId;
+
+		/*
+		 * the ids of the action types by their references and by their names, or the new ones, which are saved before
+		 * the first transition
+		 */
+		private final Map<Long, Object> actionTypes = new HashMap<Long, Object>();
+		private Map<String, Object> domainActionTypes;
+		private final List<ActionType> newActionTypes = new ArrayList<ActionType>();
+
+		/* the ids of the states inserted by their references */
+		private final Map<Long, Long> states = new HashMap<Long, Long>();
+		private int initialStates = 0;
+		private final List<Long> stateRefs = new ArrayList<Long>();
+		private final List<String> stateNames = new ArrayList<String>();
+		private final List<Object> stateRows = new ArrayList<Object>();
+		private final List<Object> nodeRows = new ArrayList<Object>();
+
+		private final List<Object> transitionRows = new ArrayList<Object>();
+		private int transitionCount = 0;
+
+		Importer(String domainName) {
+			this.domainName = domainName;
+		}
+
+		@Override
+		public void workflow(String name, String description, String domain) {
+			String resolvedName = (domainName != null) ? domainName : domain;
+			this.domain = (resolvedName == null) ? null : domainService.selectByName(resolvedName);
+			if (this.domain == null) {
+				throw new WorkflowImportException("There is no domain " + resolvedName);
+			}
+
+			Workflow workflow = new Workflow(name, description, this.domain);
+			this.domain.getWorkflows().add(workflow);
+			saveAll(Collections.singletonList(workflow));
+			workflowId = workflow.getId();
+
+			StateGraph graph = new StateGraph(workflowId);
+			graphService.saveAll(Collections.singletonList(graph));
+			graphId = graph.getId();
+		}
+
+		@Override
+		public void actionType(long ref, String name) {
+			if (domainActionTypes == null) {
+				domainActionTypes = new HashMap<String, Object>();
+				List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+				parameterList.add(new AbstractMap.SimpleEntry<String, Object>("domainId", domain.getId()));
+				for (Object[] row : callNamedQuery(ActionType.NQ_FIND_NAMES_BY_DOMAIN_ID, parameterList, Object[].class)) {
+					domainActionTypes.put((String) row[1], (Long) row[0]);
+				}
+			}
+			if (name == null) {
+				throw new WorkflowImportException("The action " + ref + " has no name");
+			}
+
+			Object actionType = domainActionTypes.get(name);
+			if (actionType == null) {
+				ActionType newActionType = new ActionType(name, domain);
+				domain.getActionTypes().add(newActionType);
+				newActionTypes.add(newActionType);
+				domainActionTypes.put(name, newActionType);
+				actionType = newActionType;
+			}
+			putUnique(actionTypes, ref, actionType, "action");
+		}
+
+		@Override
+		public void state(long ref, String name, String description, boolean initial, int x, int y) {
+			if (name == null) {
+				throw new WorkflowImportException("The state " + ref + " has no name");
+			}
+			if (initial) {
+				++initialStates;
+			}
+			Collections.addAll(stateRows, PENDING_STATE_NAME + stateRefs.size(), description, initial, workflowId);
+			stateRefs.add(ref);
+			stateNames.add(name);
+			Collections.addAll(nodeRows, null, name, description, initial, graphId, x, y);
+			if (stateRefs.size() == CHUNK_SIZE) {
+				insertStates();
+			}
+		}
+
+		@Override
+		public void transition(long fromRef, long actionRef, long toRef) {
+			if (transitionCount++ == 0) {
+				insertStates();
+				insertActionTypes();
+			}
+			Collections.addAll(transitionRows, idOf(states, fromRef, "state"), idOf(actionTypes, actionRef, "action"),
+					idOf(states, toRef, "state"));
+			if (transitionRows.size() == 3 * CHUNK_SIZE) {
+				insertTransitions();
+			}
+		}
+
+		/* inserts the items buffered, and the edges of the graph, returning the id of the workflow */
+		Long finish() {
+			insertStates();
+			insertActionTypes();
+			insertTransitions();
+			if (initialStates != 1) {
+				throw new WorkflowImportException("The workflow has " + initialStates + " initial states instead of one");
+			}
+
+			int edges = insertEdges();
+			transitionService.invalidateTransitionTable(workflowId);
+			LOGGER.info(String.format("Imported workflow %d with %d states, %d transitions and %d edges", workflowId, states.size(),
+					transitionCount, edges));
+			return workflowId;
+		}
+
+		/*
+		 * The order the identity values of the rows of an INSERT are assigned in is not specified, so the states are
+		 * inserted with a pending name telling their position in the chunk, read back with their ids, then renamed.
+		 * Any row not matching one of the chunk fails the import, so it is rolled back.
+		 */
+		private void insertStates() {
+			if (stateRefs.isEmpty()) {
+				return;
+			}
+			executeNativeInsert(tableOf(State.class), new String[] { columnOf(State.class, State.PR_NAME),
+					columnOf(State.class, State.PR_DESCRIPTION), columnOf(State.class, State.PR_INITIAL),
+					columnOf(State.class, State.PR_WORKFLOW) }, stateRows);
+
+			List<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>(AbstractEntity.PR_ID, workflowId));
+			parameterList.add(new AbstractMap.SimpleEntry<String, Object>("prefix", PENDING_STATE_NAME + "%"));
+			List<Object[]> rows = callNamedQuery(State.NQ_FIND_IDS_BY_NAME_PREFIX, parameterList, Object[].class);
+			if (rows.size() != stateRefs.size()) {
+				throw new IllegalStateException(rows.size() + " states found after inserting " + stateRefs.size());
+			}
+			Long[] ids = new Long[stateRefs.size()];
+			for (Object[] row : rows) {
+				int position = positionOf((String) row[1]);
+				if (position < 0 || position >= ids.length || ids[position] != null) {
+					throw new IllegalStateException("The state " + row[0] + " named " + row[1] + " is not one of the chunk inserted");
+				}
+				ids[position] = (Long) row[0];
+			}
+
+			List<Object[]> names = new ArrayList<Object[]>(ids.length);
+			for (int i = 0; i < ids.length; ++i) {
+				putUnique(states, stateRefs.get(i), ids[i], "state");
+				nodeRows.set(7 * i, ids[i]);
+				names.add(new Object[] { stateNames.get(i), ids[i] });
+			}
+			int[] renamed = executeNativeBatch("UPDATE " + tableOf(State.class) + " SET " + columnOf(State.class, State.PR_NAME) + " = ? WHERE "
+					+ columnOf(State.class, AbstractEntity.PR_ID) + " = ?", names);
+			for (int i = 0; i < renamed.length; ++i) {
+				if (renamed[i] != 1) {
+					throw new IllegalStateException("The state " + ids[i] + " was not renamed to " + stateNames.get(i));
+				}
+			}
+
+			executeNativeInsert(tableOf(GraphNode.class), new String[] { columnOf(GraphNode.class, GraphNode.PR_STATE_ID),
+					columnOf(GraphNode.class, GraphNode.PR_LABEL), columnOf(GraphNode.class, GraphNode.PR_CONTENT),
+					columnOf(GraphNode.class, GraphNode.PR_INITIAL), columnOf(GraphNode.class, GraphNode.PR_GRAPH),
+					columnOf(GraphNode.class, GraphItem.PR_X), columnOf(GraphNode.class, GraphItem.PR_Y) }, nodeRows);
+			stateRefs.clear();
+			stateNames.clear();
+			stateRows.clear();
+			nodeRows.clear();
+		}
+
+		private void insertActionTypes() {
+			if (newActionTypes.isEmpty()) {
+				return;
+			}
+			actionTypeService.saveAll(newActionTypes);
+			for (Entry<Long, Object> entry : actionTypes.entrySet()) {
+				if (entry.getValue() instanceof ActionType) {
+					entry.setValue(((ActionType) entry.getValue()).getId());
+				}
+			}
+			newActionTypes.clear();
+		}
+
+		private void insertTransitions() {
+			if (transitionRows.isEmpty()) {
+				return;
+			}
+			executeNativeInsert(tableOf(Transition.class), new String[] { columnOf(Transition.class, Transition.PR_PARENT_STATE),
+					columnOf(Transition.class, Transition.PR_ACTION_TYPE), columnOf(Transition.class, Transition.PR_NEXT_STATE) },
+					transitionRows);
+			transitionRows.clear();
+		}
+
+		/* adds an edge between the nodes of the states of each transition, labelled by its action */
+		private int insertEdges() {
+			String edges = tableOf(GraphEdge.class);
+			String nodes = tableOf(GraphNode.class);
+			String transitions = tableOf(Transition.class);
+			String stateTable = tableOf(State.class);
+			String actions = tableOf(ActionType.class);
+			String id = columnOf(Transition.class, AbstractEntity.PR_ID);
+			String parent = columnOf(Transition.class, Transition.PR_PARENT_STATE);
+			String action = columnOf(Transition.class, Transition.PR_ACTION_TYPE);
+			String next = columnOf(Transition.class, Transition.PR_NEXT_STATE);
+			String stateId = columnOf(GraphNode.class, GraphNode.PR_STATE_ID);
+			String nodeGraph = columnOf(GraphNode.class, GraphNode.PR_GRAPH);
+			return executeNativeUpdate("INSERT INTO " + edges + " (" + columnOf(GraphEdge.class, GraphEdge.PR_START) + ", "
+					+ columnOf(GraphEdge.class, GraphEdge.PR_END) + ", " + columnOf(GraphEdge.class, GraphEdge.PR_TRANSITION_ID) + ", "
+					+ columnOf(GraphEdge.class, GraphEdge.PR_LABEL) + ", " + columnOf(GraphEdge.class, GraphEdge.PR_GRAPH) + ") "
+					+ "SELECT s." + columnOf(GraphNode.class, AbstractEntity.PR_ID) + ", e." + columnOf(GraphNode.class, AbstractEntity.PR_ID)
+					+ ", t." + id + ", a." + columnOf(ActionType.class, ActionType.PR_NAME) + ", s." + nodeGraph
+					+ " FROM " + transitions + " t, " + stateTable + " p, " + nodes + " s, " + nodes + " e, " + actions + " a"
+					+ " WHERE p." + columnOf(State.class, AbstractEntity.PR_ID) + " = t." + parent
+					+ " AND p." + columnOf(State.class, State.PR_WORKFLOW) + " = ?"
+					+ " AND s." + stateId + " = t." + parent + " AND s." + nodeGraph + " = ?"
+					+ " AND e." + stateId + " = t." + next + " AND e." + nodeGraph + " = ?"
+					+ " AND a." + columnOf(ActionType.class, AbstractEntity.PR_ID) + " = t." + action,
+					workflowId, graphId, graphId);
+		}
+
+		private int positionOf(String name) {
+			if (name == null || !name.startsWith(PENDING_STATE_NAME)) {
+				return -1;
+			}
+			try {
+				return Integer.parseInt(name.substring(PENDING_STATE_NAME.length()));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		private <V> void putUnique(Map<Long, V> map, Long ref, V value, String item) {
+			if (map.put(ref, value) != null) {
+				throw new WorkflowImportException("The " + item + " " + ref + " is defined twice");
+			}
+		}
+
+		private Object idOf(Map<Long, ?> map, long ref, String item) {
+			Object id = map.get(ref);
+			if (id == null) {
+				throw new WorkflowImportException("The " + item + " " + ref + " is not defined");
+			}
+			return id;
+		}
+	}
+}
@@ -50,6 +50,8 @@ public class WorkflowService extends AbstractDataService<Workflow> {
 	private StateGraphService graphService;
 	@Inject
 	private DomainService domainService;
+	@Inject
+	private TransitionService transitionService;
 
 	@Override
 	public void save(Workflow entity) {
@@ -108,6 +110,7 @@ public class WorkflowService extends AbstractDataService<Workflow> {
 			throw new EntityNotDeletableException("There are " + relatedActiveProjects.size() + " active project(s) using this workflow");
 		} else {
 			super.delete(entity);
+			graphService.evictGraph(entity.getId());
 		}
 	}
 
@@ -140,6 +143,7 @@ public class WorkflowService extends AbstractDataService<Workflow> {
 		Workflow workflow = selectById(workflowId);
 		workflow.getStates().remove(state);
 		save(workflow);
+		transitionService.invalidateTransitionTable(workflowId);
 	}
 
 	/**
@@ -0,0 +1,105 @@
+/**
+ * ByteRange.java
+ */
+package hu.bme.aut.wman.utils;
+
+/**
+ * Immutable, satisfiable single byte range of a content of known length, as requested by the <code>Range</code>
+ * HTTP header (RFC 7233), with both ends inclusive.
+ *
+ * @version "%I%, %G%"
+ */
+public final class ByteRange {
+
+	private static final String BYTES_UNIT = "bytes=";
+
+	private final long start;
+	private final long end;
+	private final long contentLength;
+
+	public ByteRange(long start, long end, long contentLength) {
+		if (start < 0 || end < start || end >= contentLength)
+			throw new IllegalArgumentException(String.format("Invalid range %d-%d of %d bytes", start, end, contentLength));
+		this.start = start;
+		this.end = end;
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * Parses the value of a <code>Range</code> header. Headers that are absent, syntactically invalid, of other units
+	 * than bytes or request multiple ranges are ignored, as the RFC allows, and the whole content is to be served.
+	 *
+	 * @param header
+	 *            the value of the <code>Range</code> header, may be <code>null</code>
+	 * @param contentLength
+	 * @return the {@link ByteRange} requested, or <code>null</code> if the whole content is to be served
+	 * @throws IllegalArgumentException
+	 *             if the range is not satisfiable, i.e. it starts after the end of the content
+	 */
+	public static ByteRange parse(String header, long contentLength) throws IllegalArgumentException {
+		if (header == null || !header.startsWith(BYTES_UNIT) || header.indexOf(',') >= 0)
+			return null;
+
+		String spec = header.substring(BYTES_UNIT.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return null;
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				/* suffix range: the last N bytes */
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || contentLength == 0)
+					throw new IllegalArgumentException("Unsatisfiable range: " + header);
+				return new ByteRange(Math.max(0, contentLength - suffix), contentLength - 1, contentLength);
+			}
+
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? contentLength - 1 : Math.min(Long.parseLong(last), contentLength - 1);
+			if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start))
+				return null;
+			if (start >= contentLength)
+				throw new IllegalArgumentException("Unsatisfiable range: " + header);
+			return new ByteRange(start, end, contentLength);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the offset of the first byte
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the offset of the last byte
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the number of bytes in the range
+	 */
+	public long length() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @return the value of the <code>Content-Range</code> header of the response
+	 */
+	public String toContentRange() {
+		return String.format("bytes %d-%d/%d", start, end, contentLength);
+	}
+
+	/**
+	 * @param contentLength
+	 * @return the value of the <code>Content-Range</code> header of an unsatisfiable range response
+	 */
+	public static String unsatisfiedContentRange(long contentLength) {
+		return "bytes */" + contentLength;
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * QuantileSketch.java
+ */
+package hu.bme.aut.wman.utils;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mergeable sketch of the distribution of non-negative values, answering quantiles within a relative error. The
+ * values are counted in logarithmic buckets, the i-th holding the values in (&gamma;<sup>i-1</sup>,
+ * &gamma;<sup>i</sup>], where &gamma; = (1 + &alpha;) / (1 - &alpha;) for the relative accuracy &alpha;, so the size
+ * of the sketch depends on the range of the values only, not on their number, and two sketches of the same accuracy
+ * are merged by adding the counts of their buckets.
+ * <p>
+ * Not thread-safe.
+ *
+ * @version "%I%, %G%"
+ */
+public final class QuantileSketch implements Serializable {
+
+	private static final long serialVersionUID = -2083411945786092532L;
+
+	public static final double DEFAULT_ACCURACY = 0.01;
+
+	/* the values not greater than this are counted as zeros */
+	private static final double MIN_VALUE = 1e-9;
+
+	private final double accuracy;
+	private final double gamma;
+	private final double logGamma;
+	private final TreeMap<Integer, Long> buckets = new TreeMap<Integer, Long>();
+	private long zeros;
+	private long count;
+
+	public QuantileSketch() {
+		this(DEFAULT_ACCURACY);
+	}
+
+	/**
+	 * @param accuracy
+	 *            the relative accuracy of the quantiles, between 0 and 1 exclusive
+	 */
+	public QuantileSketch(double accuracy) {
+		if (accuracy <= 0 || accuracy >= 1)
+			throw new IllegalArgumentException("The accuracy must be between 0 and 1, but was " + accuracy);
+		this.accuracy = accuracy;
+		this.gamma = (1 + accuracy) / (1 - accuracy);
+		this.logGamma = Math.log(gamma);
+	}
+
+	/**
+	 * @param value
+	 *            a non-negative value
+	 */
+	public void add(double value) {
+		if (value < 0 || Double.isNaN(value))
+			throw new IllegalArgumentException("Only non-negative values are counted, not " + value);
+		++count;
+		if (value <= MIN_VALUE) {
+			++zeros;
+			return;
+		}
+		int index = (int) Math.ceil(Math.log(value) / logGamma);
+		Long bucket = buckets.get(index);
+		buckets.put(index, (bucket == null) ? 1L : bucket + 1);
+	}
+
+	/**
+	 * Adds the values counted by the other sketch to this one.
+	 *
+	 * @param other
+	 *            a sketch of the same accuracy
+	 */
+	public void merge(QuantileSketch other) {
+		if (other.accuracy != accuracy)
+			throw new IllegalArgumentException(String.format("Sketches of different accuracy: %f, %f", accuracy, other.accuracy));
+		for (Map.Entry<Integer, Long> entry : other.buckets.entrySet()) {
+			Long bucket = buckets.get(entry.getKey());
+			buckets.put(entry.getKey(), (bucket == null) ? entry.getValue() : bucket + entry.getValue());
+		}
+		zeros += other.zeros;
+		count += other.count;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1 inclusive
+	 * @return the estimate of the quantile, within the relative accuracy of the sketch, or <code>NaN</code> if the
+	 *         sketch is empty
+	 */
+	public double quantile(double quantile) {
+		if (quantile < 0 || quantile > 1)
+			throw new IllegalArgumentException("The quantile must be between 0 and 1, but was " + quantile);
+		if (count == 0)
+			return Double.NaN;
+
+		long rank = (long) Math.floor(quantile * (count - 1));
+		if (rank < zeros)
+			return 0;
+		long seen = zeros;
+		for (Map.Entry<Integer, Long> entry : buckets.entrySet()) {
+			seen += entry.getValue();
+			if (seen > rank)
+				return 2 * Math.pow(gamma, entry.getKey()) / (gamma + 1);
+		}
+		return 2 * Math.pow(gamma, buckets.lastKey()) / (gamma + 1);
+	}
+
+	/**
+	 * @return a sketch counting the same values
+	 */
+	public QuantileSketch copy() {
+		QuantileSketch copy = new QuantileSketch(accuracy);
+		copy.merge(this);
+		return copy;
+	}
+
+	/**
+	 * @return the number of the values counted
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getAccuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * @return the number of the non-empty buckets, the size of the sketch
+	 */
+	public int getBucketCount() {
+		return buckets.size() + (zeros > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,63 @@
+package hu.bme.aut.wman.view.objects;
+
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Lightweight, read-only projection of a <code>HistoryEntry</code>, selected directly by a JPQL constructor
+ * expression without loading the <code>Project</code> it belongs to, or read from the history archive.
+ *
+ * @version "%I%, %G%"
+ */
+public class HistoryEntryVO implements Serializable {
+
+	private static final long serialVersionUID = -4490563187129430719L;
+
+	private final Long id;
+	private final Long projectId;
+	private final String userName;
+	private final Date when;
+	private final HistoryEntryEventType event;
+	private final String message;
+	private final String state;
+
+	public HistoryEntryVO(Long id, Long projectId, String userName, Date when, HistoryEntryEventType event, String message, String state) {
+		this.id = id;
+		this.projectId = projectId;
+		this.userName = userName;
+		this.when = when;
+		this.event = event;
+		this.message = message;
+		this.state = state;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getProjectId() {
+		return projectId;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public Date getWhen() {
+		return when;
+	}
+
+	public HistoryEntryEventType getEvent() {
+		return event;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String getState() {
+		return state;
+	}
+}
@@ -0,0 +1,75 @@
+package hu.bme.aut.wman.view.objects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The positions of the nodes of a graph moved in the editor, with the version of the graph it was drawn from.
+ *
+ * @version "%I%, %G%"
+ */
+public class NodePositionsVO {
+
+	private Long workflowId;
+	private long version;
+	private List<NodePosition> positions = new ArrayList<NodePosition>();
+
+	public NodePositionsVO() {};
+
+	public Long getWorkflowId() {
+		return workflowId;
+	}
+
+	public void setWorkflowId(Long workflowId) {
+		this.workflowId = workflowId;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public List<NodePosition> getPositions() {
+		return positions;
+	}
+
+	public void setPositions(List<NodePosition> positions) {
+		this.positions = positions;
+	}
+
+	public static class NodePosition {
+
+		private Long nodeId;
+		private int x;
+		private int y;
+
+		public NodePosition() {};
+
+		public Long getNodeId() {
+			return nodeId;
+		}
+
+		public void setNodeId(Long nodeId) {
+			this.nodeId = nodeId;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public void setX(int x) {
+			this.x = x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public void setY(int y) {
+			this.y = y;
+		}
+	}
+}
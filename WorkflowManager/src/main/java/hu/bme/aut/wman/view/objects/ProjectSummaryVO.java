@@ -0,0 +1,54 @@
+package hu.bme.aut.wman.view.objects;
+
+import java.io.Serializable;
+
+/**
+ * Lightweight, read-only projection of a <code>Project</code> used by the project listing, selected directly
+ * by a JPQL constructor expression instead of loading the entity with its eager associations.
+ *
+ * @version "%I%, %G%"
+ */
+public class ProjectSummaryVO implements Serializable {
+
+	private static final long serialVersionUID = 7127408396513852711L;
+
+	private final Long id;
+	private final String name;
+	private final String description;
+	private final String workflowName;
+	private final String stateName;
+	private final String ownerName;
+
+	public ProjectSummaryVO(Long id, String name, String description, String workflowName, String stateName, String ownerName) {
+		this.id = id;
+		this.name = name;
+		this.description = description;
+		this.workflowName = workflowName;
+		this.stateName = stateName;
+		this.ownerName = ownerName;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public String getWorkflowName() {
+		return workflowName;
+	}
+
+	public String getStateName() {
+		return stateName;
+	}
+
+	public String getOwnerName() {
+		return ownerName;
+	}
+}
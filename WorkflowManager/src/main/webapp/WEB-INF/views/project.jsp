@@ -161,8 +161,8 @@
 				<h3 class="panel-title">History</h3>
 			</div>
 			<div class="panel-body">
-				<ul class="list-unstyled">
-					<c:forEach var="historyEntry" items="${project.historyEntries}">
+				<ul id="project-history-list" class="list-unstyled">
+					<c:forEach var="historyEntry" items="${history}">
 						<c:choose>
 							<c:when test='${historyEntry.event == "DONE_ACTION"}'>
 								<li> <span style="color:#9A9A9A;"> <fmt:formatDate value="${historyEntry.when}" pattern="YYYY-MM-dd"/> - </span><strong><c:out value='${historyEntry.userName}' />: </strong> <c:out value='${historyEntry.message}' />. New state is <i><c:out value='${historyEntry.state}' />.</i></li>
@@ -173,6 +173,9 @@
 						</c:choose>
 					</c:forEach>
 				</ul>
+				<c:if test="${not empty historyCursor}">
+					<a id="project-history-older" href="#" data-cursor="<c:out value='${historyCursor}' />">Show older</a>
+				</c:if>
 			</div>
 		</div>
 		<div id="project-attachments" class="panel panel-default">
@@ -306,6 +309,36 @@
 			});
 		});
 		
+		$('#project-history-older').click(function(e) {
+			e.preventDefault();
+			var link = $(this);
+			$.ajax({
+				type: "GET",
+				dataType : 'json',
+				url: "project/history?id="+${project.id}+"&cursor="+encodeURIComponent(link.data('cursor')),
+				success :function(page) {
+					$.each(page.elements, function(i, entry) {
+						var when = new Date(entry.when);
+						var item = $('<li>');
+						$('<span style="color:#9A9A9A;">').text(when.getFullYear() + "-" + ("0" + (when.getMonth() + 1)).slice(-2) + "-" + ("0" + when.getDate()).slice(-2) + " - ").appendTo(item);
+						$('<strong>').text(entry.userName + ": ").appendTo(item);
+						if (entry.event == "DONE_ACTION") {
+							item.append(document.createTextNode(" " + entry.message + ". New state is "));
+						} else {
+							item.append(document.createTextNode(" " + entry.message + " in state: "));
+						}
+						$('<i>').text(entry.state + ".").appendTo(item);
+						$('#project-history-list').append(item);
+					});
+					if (page.nextCursor) {
+						link.data('cursor', page.nextCursor);
+					} else {
+						link.remove();
+					}
+				}
+			});
+		});
+		
 		$('#assign-user-modal-submit').click(function(e) {
 			var id = $('#assign-user-select').val();
 			
@@ -36,6 +36,17 @@
 
 <c:if test='${not empty projects}'>
 	<div id="projects-content-wrapper" class="panel panel-default panel-body">
+		<div class="projects-order">
+			Order by:
+			<c:forEach var="projectOrder" items="name,state,owner">
+				<a role='button' href='projects?active=${param.active}&order=${projectOrder}' class='btn btn-link inline-link'>
+					<c:choose>
+						<c:when test='${projectOrder eq order}'><strong><c:out value='${projectOrder}' /></strong></c:when>
+						<c:otherwise><c:out value='${projectOrder}' /></c:otherwise>
+					</c:choose>
+				</a>
+			</c:forEach>
+		</div>
 		<c:forEach var="project" items="${projects}">
 			<div class="panel-group projects-wrapper" id="accordion${project.id}">
 				<div class="panel panel-default">
@@ -51,9 +62,9 @@
 							<c:out value='${project.description}' />
 						</div>
 						<div class="panel-body projects-workflow">
-							Workflow: <c:out value='${project.workflow.name}' /> <br/>
-							State: <c:out value='${project.currentState.name}' /> <br/>
-							Owner: <c:out value='${project.owner.username}' /> 
+							Workflow: <c:out value='${project.workflowName}' /> <br/>
+							State: <c:out value='${project.stateName}' /> <br/>
+							Owner: <c:out value='${project.ownerName}' /> 
 						</div>
 					</div>
 					<div class="projects-id">
@@ -62,6 +73,14 @@
 				</div>
 			</div>
 		</c:forEach>
+		<c:if test='${not empty nextCursor}'>
+			<c:url var='nextPageUrl' value='projects'>
+				<c:param name='active' value='${param.active}' />
+				<c:param name='order' value='${order}' />
+				<c:param name='cursor' value='${nextCursor}' />
+			</c:url>
+			<a role='button' href='<c:out value="${nextPageUrl}" />' class='btn btn-link inline-link'>More projects</a>
+		</c:if>
 	</div>
 </c:if>
 
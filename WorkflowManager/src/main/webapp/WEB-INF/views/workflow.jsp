@@ -33,7 +33,11 @@
 				<a href='delete/workflow?id=${workflow.id}' role='button' class='btn btn-danger header-button'>
 					<span class="glyphicon glyphicon-trash" aria-hidden="true"></span> 
 					<span class='button-text'>Delete</span>
-				</a>				
+				</a>
+				<a href='workflow/export?id=${workflow.id}' role='button' class='btn btn-default header-button'>
+					<span class="glyphicon glyphicon-download-alt" aria-hidden="true"></span>
+					<span class='button-text'>Export</span>
+				</a>
 			</c:otherwise>
 		</c:choose>
 	</div>
@@ -571,6 +575,24 @@
 		});
 	}
 	
+	// the drops not saved yet are sent when the page is left, by a beacon outliving the page if the browser has one
+	$(window).on('beforeunload', function() {
+		clearTimeout(saveNodesTimer);
+		var data = takeMovedNodes();
+		if (data == null) {
+			return;
+		}
+		var sent = false;
+		try {
+			sent = navigator.sendBeacon && navigator.sendBeacon(saveNodesUrl, new Blob([data], { type : 'application/json; charset=utf-8' }));
+		} catch (e) {
+			sent = false;
+		}
+		if (!sent) {
+			$.ajax({ type: "post", url: saveNodesUrl, contentType : 'application/json; charset=utf-8', data: data, async: false });
+		}
+	});
+	
 	function deleteEdgeBtnsHandler() {
 		$('#edge-edit-button').remove();
 	}
@@ -590,6 +612,46 @@
 		}
 	}
 	
+	var graphVersion = ${graphVersion};
+	var movedNodes = {};
+	var saveNodesTimer = null;
+	var saveNodesUrl = "save/nodes?${_csrf.parameterName}=${_csrf.token}";
+	
+	// the JSON of the positions moved since the last save, or null if there is none
+	function takeMovedNodes() {
+		var positions = [];
+		for (var id in movedNodes) {
+			positions.push(movedNodes[id]);
+		}
+		movedNodes = {};
+		if (positions.length == 0) {
+			return null;
+		}
+		return JSON.stringify({ "workflowId" : ${workflow.id}, "version" : graphVersion, "positions" : positions });
+	}
+	
+	function saveNodes() {
+		var data = takeMovedNodes();
+		if (data == null) {
+			return;
+		}
+		$.ajax({
+			type: "post",
+			url: saveNodesUrl,
+			contentType : 'application/json; charset=utf-8',
+			dataType : 'json',
+			data: data,
+			success: function(response){
+				if (response.stale) {
+					window.location.href = "workflow?id="+${workflow.id};
+				}
+			},
+			error: function(){
+				window.location = "${ appRoot }/403";
+			}
+		});
+	}
+	
 	$(function() {	
 		var workflowId = ${workflow.id};
 		var url = "workflow/stategraph?id=" + workflowId;
@@ -621,17 +683,11 @@
 				var newX = ui.position.left;
 				var newY = ui.position.top;
 				var id = ui.draggable[0].children[0].attributes['data-nodeid'].value;
-		 
-				$.ajax({
-					type: "get",
-					url: "save/node?nodeId=" + id + "&newX=" + newX + "&newY=" + newY,
-					cache: false,
-					success: function(response){
-					},
-					error: function(){
-						window.location = "${ appRoot }/403";
-					}
-				});		
+				
+				// the latest position of each node is sent in one batch, once the dragging stops
+				movedNodes[id] = { "nodeId" : parseInt(id), "x" : Math.round(newX), "y" : Math.round(newY) };
+				clearTimeout(saveNodesTimer);
+				saveNodesTimer = setTimeout(saveNodes, 500);
 			}
 		});
 		
@@ -0,0 +1,127 @@
+/**
+ * PermissionDecisionCacheTestSuite.java
+ */
+package hu.bme.aut.wman.security;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class PermissionDecisionCacheTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( PermissionDecisionCacheTestSuite.class );
+
+	private PermissionDecisionCache cache;
+	private AtomicInteger evaluations;
+
+	@Before
+	public void initContext() {
+		cache = new PermissionDecisionCache(100, 60);
+		evaluations = new AtomicInteger();
+	}
+
+	@Test
+	public void testRepeatedDecisionIsCached() {
+		try {
+			Assert.assertTrue(cache.decide("user", "Project", new Long(1), "Owns", countingEvaluation(true)));
+			Assert.assertTrue(cache.decide("user", "Project", new Long(1), "Owns", countingEvaluation(false)));
+			Assert.assertEquals(1, evaluations.get());
+			Assert.assertEquals(new Long(1), cache.statistics().get("hits"));
+			Assert.assertEquals(new Long(1), cache.statistics().get("misses"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDifferentKeysAreEvaluated() {
+		try {
+			cache.decide("user", "Project", new Long(1), "Owns", countingEvaluation(true));
+			cache.decide("user", "Project", new Long(2), "Owns", countingEvaluation(true));
+			cache.decide("user", "Workflow", new Long(1), "Owns", countingEvaluation(true));
+			cache.decide("user", "Project", new Long(1), "Assigned To", countingEvaluation(true));
+			cache.decide("other", "Project", new Long(1), "Owns", countingEvaluation(true));
+			Assert.assertEquals(5, evaluations.get());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testInvalidateAll() {
+		try {
+			Assert.assertTrue(cache.decide("user", "Role", new Long(1), "View Role", countingEvaluation(true)));
+			long generation = PermissionDecisionCache.generation();
+			Assert.assertEquals(generation + 1, PermissionDecisionCache.invalidateAll());
+
+			Assert.assertFalse(cache.decide("user", "Role", new Long(1), "View Role", countingEvaluation(false)));
+			Assert.assertEquals(2, evaluations.get());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testInvalidateAllAfterCompletion() {
+		try {
+			TransactionSynchronizationRegistry registry = Mockito.mock(TransactionSynchronizationRegistry.class);
+			Mockito.when(registry.getTransactionStatus()).thenReturn(Status.STATUS_ACTIVE);
+			long generation = PermissionDecisionCache.generation();
+			PermissionDecisionCache.invalidateAll(registry);
+			Assert.assertEquals(generation + 1, PermissionDecisionCache.generation());
+
+			/* a decision made before the commit must not survive it */
+			cache.decide("user", "Role", new Long(1), "View Role", countingEvaluation(false));
+			ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+			Mockito.verify(registry).registerInterposedSynchronization(synchronization.capture());
+			synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+			Assert.assertEquals(generation + 2, PermissionDecisionCache.generation());
+			Assert.assertTrue(cache.decide("user", "Role", new Long(1), "View Role", countingEvaluation(true)));
+			Assert.assertEquals(2, evaluations.get());
+
+			PermissionDecisionCache.invalidateAll(null);
+			Assert.assertEquals(generation + 3, PermissionDecisionCache.generation());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEvaluationFailureIsPropagated() {
+		cache.decide("user", "Role", new Long(1), "View Role", new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				throw new IllegalArgumentException("expected");
+			}
+		});
+	}
+
+	private Callable<Boolean> countingEvaluation(final boolean decision) {
+		return new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				evaluations.incrementAndGet();
+				return decision;
+			}
+		};
+	}
+}
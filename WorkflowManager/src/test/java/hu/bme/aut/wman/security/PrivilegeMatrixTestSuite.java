@@ -0,0 +1,104 @@
+/**
+ * PrivilegeMatrixTestSuite.java
+ */
+package hu.bme.aut.wman.security;
+
+import hu.bme.aut.wman.model.Domain;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class PrivilegeMatrixTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( PrivilegeMatrixTestSuite.class );
+
+	private PrivilegeMatrix matrix;
+
+	@Before
+	public void initContext() {
+		matrix = PrivilegeMatrix.builder(PermissionDecisionCache.generation())
+								.add(new Long(1), "system", "View Project")
+								.add(new Long(1), "system", "Create Project")
+								.add(new Long(2), "other", "View Workflow")
+								.build();
+	}
+
+	@Test
+	public void testHasPrivilege() {
+		try {
+			Assert.assertTrue(matrix.hasPrivilege(new Long(1), "View Project"));
+			Assert.assertTrue(matrix.hasPrivilege("system", "Create Project"));
+			Assert.assertTrue(matrix.hasPrivilege("other", "View Workflow"));
+			Assert.assertFalse(matrix.hasPrivilege(new Long(1), "View Workflow"));
+			Assert.assertFalse(matrix.hasPrivilege(new Long(3), "View Project"));
+			Assert.assertFalse(matrix.hasPrivilege(new Long(4), "View Project"));
+			Assert.assertFalse(matrix.hasPrivilege("system", "Unknown Privilege"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testHasPrivilegeInDomain() {
+		try {
+			Domain domain = Mockito.mock(Domain.class);
+			Mockito.when(domain.getId()).thenReturn(new Long(2));
+			Assert.assertTrue(matrix.hasPrivilege(domain, "View Workflow"));
+			Assert.assertFalse(matrix.hasPrivilege(domain, "View Project"));
+			Assert.assertFalse(matrix.hasPrivilege((Domain) null, "View Workflow"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDomainsWith() {
+		try {
+			Assert.assertEquals(Arrays.asList(new Long(1)), matrix.domainIDsWith(Arrays.asList("Create Project")));
+			Assert.assertEquals(Arrays.asList(new Long(1), new Long(2)), matrix.domainIDsWith(Arrays.asList("View Project", "View Workflow")));
+			Assert.assertTrue(matrix.domainIDsWith(Arrays.asList("Unknown Privilege")).isEmpty());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testManyPrivileges() {
+		try {
+			PrivilegeMatrix.Builder builder = PrivilegeMatrix.builder(PermissionDecisionCache.generation());
+			for (int i = 0; i < 150; ++i)
+				builder.add(new Long(1), "system", "Privilege " + i);
+			PrivilegeMatrix wide = builder.build();
+			for (int i = 0; i < 150; ++i)
+				Assert.assertTrue(wide.hasPrivilege(new Long(1), "Privilege " + i));
+			Assert.assertFalse(wide.hasPrivilege(new Long(1), "View Workflow"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testIsCurrent() {
+		try {
+			Assert.assertTrue(matrix.isCurrent());
+			Assert.assertFalse(PrivilegeMatrix.EMPTY.isCurrent());
+			PermissionDecisionCache.invalidateAll();
+			Assert.assertFalse(matrix.isCurrent());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
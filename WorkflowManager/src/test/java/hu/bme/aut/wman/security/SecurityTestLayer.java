@@ -13,7 +13,9 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses({
-	AuthenticationServiceTestSuite.class
+	AuthenticationServiceTestSuite.class,
+	PermissionDecisionCacheTestSuite.class,
+	PrivilegeMatrixTestSuite.class
 })
 public class SecurityTestLayer {
 }
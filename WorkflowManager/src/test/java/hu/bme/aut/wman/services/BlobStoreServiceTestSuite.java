@@ -0,0 +1,122 @@
+/**
+ * BlobStoreServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import hu.bme.aut.wman.service.BlobStoreService;
+import hu.bme.aut.wman.service.BlobStoreService.StoredBlob;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class BlobStoreServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( BlobStoreServiceTestSuite.class );
+	private static final String ABC_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private BlobStoreService blobStoreService;
+
+	@Before
+	public void initContext() {
+		blobStoreService = new BlobStoreService(folder.getRoot().toPath());
+	}
+
+	@Test
+	public void testStore() {
+		try {
+			StoredBlob blob = blobStoreService.store(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+			Assert.assertEquals(ABC_HASH, blob.getHash());
+			Assert.assertEquals(3, blob.getSize());
+			Assert.assertTrue(blob.isCreated());
+
+			Path path = blobStoreService.pathOf(ABC_HASH);
+			Assert.assertEquals(folder.getRoot().toPath().resolve("ba").resolve("78").resolve(ABC_HASH), path);
+			Assert.assertArrayEquals("abc".getBytes("UTF-8"), Files.readAllBytes(path));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testStoreLargerThanBuffer() {
+		try {
+			byte[] content = new byte[3 * BlobStoreService.BUFFER_SIZE + 17];
+			Arrays.fill(content, (byte) 7);
+			StoredBlob blob = blobStoreService.store(new ByteArrayInputStream(content));
+			Assert.assertEquals(content.length, blob.getSize());
+			Assert.assertArrayEquals(content, Files.readAllBytes(blobStoreService.pathOf(blob.getHash())));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testStoreDeduplicates() {
+		try {
+			blobStoreService.store(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+			StoredBlob blob = blobStoreService.store(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+			Assert.assertEquals(ABC_HASH, blob.getHash());
+			Assert.assertFalse(blob.isCreated());
+			Assert.assertEquals(0, folder.getRoot().toPath().resolve("tmp").toFile().list().length);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDelete() {
+		try {
+			blobStoreService.store(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+			Assert.assertFalse(blobStoreService.delete(ABC_HASH));
+
+			Files.setLastModifiedTime(blobStoreService.pathOf(ABC_HASH), FileTime.fromMillis(0));
+			Assert.assertTrue(blobStoreService.delete(ABC_HASH));
+			Assert.assertFalse(blobStoreService.contains(ABC_HASH));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDiscard() {
+		try {
+			StoredBlob blob = blobStoreService.store(new ByteArrayInputStream("abc".getBytes("UTF-8")));
+			Files.setLastModifiedTime(blobStoreService.pathOf(ABC_HASH), FileTime.fromMillis(blob.getStoredAt() + 1000));
+			/* stored again since */
+			Assert.assertFalse(blobStoreService.discard(blob));
+			Assert.assertFalse(blobStoreService.discard(new StoredBlob(ABC_HASH, 3L, false)));
+
+			Files.setLastModifiedTime(blobStoreService.pathOf(ABC_HASH), FileTime.fromMillis(blob.getStoredAt()));
+			Assert.assertTrue(blobStoreService.discard(blob));
+			Assert.assertFalse(blobStoreService.contains(ABC_HASH));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedHash() {
+		blobStoreService.pathOf("../../etc/passwd");
+	}
+}
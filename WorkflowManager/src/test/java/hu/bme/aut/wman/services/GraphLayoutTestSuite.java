@@ -0,0 +1,213 @@
+/**
+ * GraphLayoutTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.model.graph.StateGraph;
+import hu.bme.aut.wman.service.GraphLayout;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class GraphLayoutTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(GraphLayoutTestSuite.class);
+
+	private long[] nodeIds;
+	private long[] edgeStarts;
+	private long[] edgeEnds;
+
+	@Before
+	public void initContext() {
+		/* 1 -> 2 -> 3 -> 1, 3 -> 4, 1 -> 4, 5 -> 4, 2 -> 2 */
+		nodeIds = new long[] { 1L, 2L, 3L, 4L, 5L };
+		edgeStarts = new long[] { 1L, 2L, 3L, 3L, 1L, 5L, 2L };
+		edgeEnds = new long[] { 2L, 3L, 1L, 4L, 4L, 4L, 2L };
+	}
+
+	@Test
+	public void testLayers() {
+		try {
+			GraphLayout layout = GraphLayout.compute(7L, nodeIds, 1L, edgeStarts, edgeEnds);
+			Assert.assertEquals(7L, layout.getVersion());
+			Assert.assertEquals(4, layout.getLayerCount());
+			Assert.assertEquals(GraphLayout.MARGIN, layout.positionOf(1L)[1]);
+			Assert.assertTrue(layout.positionOf(1L)[1] < layout.positionOf(2L)[1]);
+			Assert.assertTrue(layout.positionOf(2L)[1] < layout.positionOf(3L)[1]);
+			Assert.assertTrue(layout.positionOf(3L)[1] < layout.positionOf(4L)[1]);
+			// the source is pulled down next to its child
+			Assert.assertEquals(layout.positionOf(3L)[1], layout.positionOf(5L)[1]);
+			Assert.assertNull(layout.positionOf(6L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testPlacesUnplacedNodesOnly() {
+		try {
+			StateGraph graph = new StateGraph(3L);
+			for (long nodeId : nodeIds) {
+				GraphNode node = spy(new GraphNode());
+				doReturn(nodeId).when(node).getId();
+				node.setX(GraphLayout.UNPLACED);
+				node.setY(GraphLayout.UNPLACED);
+				graph.getPoints().add(node);
+			}
+			graph.getPoints().get(0).setX(5);
+			graph.getPoints().get(0).setY(7);
+
+			GraphLayout layout = GraphLayout.compute(1L, nodeIds, 1L, edgeStarts, edgeEnds);
+			Assert.assertTrue(layout.covers(graph));
+			Assert.assertFalse(GraphLayout.compute(1L, new long[] { 1L }, 1L, new long[0], new long[0]).covers(graph));
+			Assert.assertEquals(4, layout.applyTo(graph));
+			Assert.assertEquals(5, graph.getPoints().get(0).getX());
+			Assert.assertEquals(7, graph.getPoints().get(0).getY());
+			for (GraphNode node : graph.getPoints()) {
+				Assert.assertFalse(GraphLayout.isUnplaced(node));
+			}
+			Assert.assertEquals(0, layout.applyTo(graph));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCrossingsRemoved() {
+		try {
+			/* 1 -> 2, 1 -> 3 discovered in this order, but 3 -> 4 -> 6 and 2 -> 5 -> 7 with 3 -> 7 */
+			long[] ids = new long[] { 1L, 2L, 3L, 4L, 5L, 6L, 7L };
+			long[] starts = new long[] { 1L, 1L, 3L, 4L, 2L, 5L, 3L };
+			long[] ends = new long[] { 3L, 2L, 4L, 6L, 5L, 7L, 5L };
+			Assert.assertEquals(0, GraphLayout.compute(1L, ids, 1L, starts, ends).getCrossings());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testPlacesRelativeToPlacedNodes() {
+		try {
+			/* 1 -> 2 -> 3, 1 -> 4, the user moved 1 and 2 to the right, 3 and 4 are new */
+			long[] ids = new long[] { 1L, 2L, 3L, 4L };
+			long[] starts = new long[] { 1L, 2L, 1L };
+			long[] ends = new long[] { 2L, 3L, 4L };
+			GraphLayout layout = GraphLayout.compute(1L, ids, 1L, starts, ends);
+			StateGraph graph = new StateGraph(3L);
+			for (long nodeId : ids) {
+				GraphNode node = spy(new GraphNode());
+				doReturn(nodeId).when(node).getId();
+				node.setX(GraphLayout.UNPLACED);
+				node.setY(GraphLayout.UNPLACED);
+				graph.getPoints().add(node);
+			}
+			int[] second = layout.positionOf(2L);
+			int[] fourth = layout.positionOf(4L);
+			Assert.assertEquals(second[1], fourth[1]);
+			graph.getPoints().get(0).setX(layout.positionOf(1L)[0] + 1000);
+			graph.getPoints().get(0).setY(layout.positionOf(1L)[1]);
+			/* 2 is moved where the layout puts 4 */
+			graph.getPoints().get(1).setX(fourth[0] + 1000);
+			graph.getPoints().get(1).setY(fourth[1]);
+
+			Assert.assertEquals(2, layout.applyTo(graph));
+			GraphNode third = graph.getPoints().get(2);
+			GraphNode last = graph.getPoints().get(3);
+			/* the new nodes follow the ones placed, without overlapping them */
+			Assert.assertTrue(third.getX() >= 1000);
+			Assert.assertEquals(layout.positionOf(3L)[1], third.getY());
+			Assert.assertEquals(fourth[1], last.getY());
+			Assert.assertTrue(Math.abs(last.getX() - graph.getPoints().get(1).getX()) >= GraphLayout.NODE_SPACING);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testLongBackEdges() {
+		try {
+			int n = 1000;
+			long[] ids = new long[n];
+			long[] starts = new long[3 * n];
+			long[] ends = new long[3 * n];
+			/* a chain of states, each rejecting back to the initial one, with some going back further */
+			for (int i = 0; i < n; ++i) {
+				ids[i] = i + 1;
+				starts[3 * i] = i + 1;
+				ends[3 * i] = Math.min(n, i + 2);
+				starts[3 * i + 1] = i + 1;
+				ends[3 * i + 1] = 1;
+				starts[3 * i + 2] = i + 1;
+				ends[3 * i + 2] = Math.max(1, i + 1 - (i * 37) % 400);
+			}
+			GraphLayout.compute(1L, ids, 1L, starts, ends);
+
+			long start = System.nanoTime();
+			GraphLayout layout = GraphLayout.compute(1L, ids, 1L, starts, ends);
+			long millis = (System.nanoTime() - start) / 1000000;
+			LOGGER.info(String.format("Laid out %d nodes and %d long back edges in %d ms", n, 2 * n, millis));
+
+			Assert.assertEquals(n, layout.getLayerCount());
+			Set<String> positions = new HashSet<String>();
+			for (long id : ids) {
+				int[] position = layout.positionOf(id);
+				Assert.assertTrue(positions.add(position[0] + ":" + position[1]));
+			}
+			Assert.assertTrue(millis < 100);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testThousandNodes() {
+		try {
+			int n = 1000;
+			long[] ids = new long[n];
+			long[] starts = new long[3 * n];
+			long[] ends = new long[3 * n];
+			/* a long process, each state leading to the next ones and some back for rework */
+			for (int i = 0; i < n; ++i) {
+				ids[i] = i + 1;
+				starts[3 * i] = i + 1;
+				ends[3 * i] = Math.min(n, i + 2);
+				starts[3 * i + 1] = i + 1;
+				ends[3 * i + 1] = Math.min(n, i + 3 + (i * 7) % 5);
+				starts[3 * i + 2] = i + 1;
+				ends[3 * i + 2] = Math.max(1, i + 1 - (i * 13) % 9);
+			}
+
+			long start = System.nanoTime();
+			GraphLayout layout = GraphLayout.compute(1L, ids, 1L, starts, ends);
+			long millis = (System.nanoTime() - start) / 1000000;
+			LOGGER.info(String.format("Laid out %d nodes and %d edges in %d ms", n, starts.length, millis));
+
+			Set<String> positions = new HashSet<String>();
+			for (long id : ids) {
+				int[] position = layout.positionOf(id);
+				Assert.assertTrue(positions.add(position[0] + ":" + position[1]));
+			}
+			// generous to the machines running the build, the layout takes some milliseconds
+			Assert.assertTrue(millis < 2000);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
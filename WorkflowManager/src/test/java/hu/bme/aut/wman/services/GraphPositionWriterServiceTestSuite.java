@@ -0,0 +1,217 @@
+/**
+ * GraphPositionWriterServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.model.graph.StateGraph;
+import hu.bme.aut.wman.service.GraphNodeService;
+import hu.bme.aut.wman.service.GraphPositionWriterService;
+import hu.bme.aut.wman.service.StateGraphService;
+import hu.bme.aut.wman.services.model.DefaultMappings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class GraphPositionWriterServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(GraphPositionWriterServiceTestSuite.class);
+
+	private GraphNodeService nodeServiceMock;
+	private GraphPositionWriterService writer;
+	private List<long[]> writtenIds;
+	private List<int[]> writtenXs;
+
+	@Before
+	public void initContext() {
+		nodeServiceMock = mock(GraphNodeService.class);
+		writtenIds = new ArrayList<long[]>();
+		writtenXs = new ArrayList<int[]>();
+		Mockito.doAnswer(new Answer<Integer>() {
+
+			@Override
+			public Integer answer(InvocationOnMock invocation) throws Throwable {
+				writtenIds.add((long[]) invocation.getArguments()[0]);
+				writtenXs.add((int[]) invocation.getArguments()[1]);
+				return writtenIds.get(writtenIds.size() - 1).length;
+			}
+		}).when(nodeServiceMock).updatePositions(any(long[].class), any(int[].class), any(int[].class));
+		writer = new GraphPositionWriterService();
+		writer.setGraphNodeService(nodeServiceMock);
+	}
+
+	@Test
+	public void testCoalescing() {
+		try {
+			writer.submit(3L, 1L, 10, 10);
+			writer.submit(3L, 2L, 20, 20);
+			writer.submit(3L, 1L, 15, 12);
+			Assert.assertEquals(2, writer.getPendingCount());
+			Assert.assertEquals(1L, writer.statistics().get("coalesced"));
+
+			String submitted = StateGraphService.etagOf(3L);
+			writer.flush();
+			/* a graph serialized during the write is not served as of the written positions */
+			Assert.assertNotEquals(submitted, StateGraphService.etagOf(3L));
+			Assert.assertEquals(1, writtenIds.size());
+			Assert.assertEquals(2, writtenIds.get(0).length);
+			int first = (writtenIds.get(0)[0] == 1L) ? 0 : 1;
+			Assert.assertEquals(15, writtenXs.get(0)[first]);
+			Assert.assertEquals(0, writer.getPendingCount());
+			Assert.assertEquals(2L, writer.statistics().get("written"));
+
+			writer.flush();
+			Assert.assertEquals(1, writtenIds.size());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRetryAfterFailure() {
+		try {
+			Mockito.doThrow(new IllegalStateException("database down")).when(nodeServiceMock)
+					.updatePositions(any(long[].class), any(int[].class), any(int[].class));
+			writer.submit(3L, 1L, 10, 10);
+			writer.flush();
+			Assert.assertEquals(1, writer.getPendingCount());
+			Assert.assertEquals(1L, writer.statistics().get("failedFlushes"));
+
+			Mockito.doReturn(1).when(nodeServiceMock).updatePositions(any(long[].class), any(int[].class), any(int[].class));
+			writer.close();
+			Assert.assertEquals(0, writer.getPendingCount());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testPendingPositionsRead() {
+		try {
+			StateGraph graph = new StateGraph(3L);
+			GraphNode node = spy(new GraphNode());
+			doReturn(1L).when(node).getId();
+			node.setX(-1);
+			node.setY(-1);
+			graph.getPoints().add(node);
+
+			writer.submit(3L, 1L, 30, 40);
+			writer.applyPendingTo(graph);
+			Assert.assertEquals(30, node.getX());
+			Assert.assertEquals(40, node.getY());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSaveInvalidatesGraph() {
+		GraphNodeService nodeService = new GraphNodeService();
+		nodeService.setEntityManager(mock(EntityManager.class));
+		nodeService.setTestGraphService(new StateGraphService());
+		StateGraph graph = new StateGraph();
+		graph.setWorkflowId(4242L);
+		GraphNode node = new GraphNode();
+		node.setGraph(graph);
+
+		try {
+			String etag = StateGraphService.etagOf(4242L);
+			nodeService.saveAll(Lists.newArrayList(node));
+			Assert.assertNotEquals(etag, StateGraphService.etagOf(4242L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testUpdateStatements() {
+		GraphNodeService nodeService = new GraphNodeService();
+		EntityManager entityManagerMock = mock(EntityManager.class);
+		DefaultMappings.install(entityManagerMock);
+		nodeService.setEntityManager(entityManagerMock);
+		Query updateQuery = mock(Query.class);
+		Mockito.when(entityManagerMock.createNativeQuery(anyString())).thenReturn(updateQuery);
+		Mockito.when(updateQuery.executeUpdate()).thenReturn(GraphNodeService.MAX_POSITIONS_PER_UPDATE, 1);
+
+		int n = GraphNodeService.MAX_POSITIONS_PER_UPDATE + 1;
+		long[] nodeIds = new long[n];
+		int[] xs = new int[n];
+		int[] ys = new int[n];
+		for (int i = 0; i < n; ++i) {
+			nodeIds[i] = i + 1;
+			xs[i] = 10 * i;
+			ys[i] = 20 * i;
+		}
+
+		try {
+			Assert.assertEquals(n, nodeService.updatePositions(nodeIds, xs, ys));
+			ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+			Mockito.verify(entityManagerMock, Mockito.times(2)).createNativeQuery(sql.capture());
+			Assert.assertTrue(sql.getValue().startsWith("UPDATE GRAPHNODE SET X = CASE ID WHEN CAST(? AS BIGINT) THEN CAST(? AS INTEGER) ELSE X END, Y = CASE ID"));
+			Assert.assertTrue(sql.getValue().endsWith("WHERE ID IN (?)"));
+			/* the x, then the y of the last node, and its id */
+			Mockito.verify(updateQuery).setParameter(1, (Object) Long.valueOf(n));
+			Mockito.verify(updateQuery).setParameter(2, (Object) Integer.valueOf(xs[n - 1]));
+			Mockito.verify(updateQuery).setParameter(4, (Object) Integer.valueOf(ys[n - 1]));
+			Mockito.verify(updateQuery).setParameter(5, (Object) Long.valueOf(n));
+			Mockito.verify(entityManagerMock, Mockito.never()).merge(any());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSelectIdsOfWorkflow() {
+		GraphNodeService nodeService = new GraphNodeService();
+		EntityManager entityManagerMock = mock(EntityManager.class);
+		nodeService.setEntityManager(entityManagerMock);
+		TypedQuery<Long> idQuery = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(GraphNode.NQ_FIND_IDS_OF_WORKFLOW, Long.class)).thenReturn(idQuery);
+		Mockito.when(idQuery.getResultList()).thenReturn(Lists.newArrayList(1L), Lists.newArrayList(GraphNodeService.MAX_POSITIONS_PER_UPDATE + 1L));
+
+		List<Long> nodeIds = new ArrayList<Long>();
+		for (long id = 1; id <= GraphNodeService.MAX_POSITIONS_PER_UPDATE + 1; ++id) {
+			nodeIds.add(id);
+		}
+		nodeIds.add(1L);
+		try {
+			/* the ids of the other graphs are not returned, the duplicates are asked once */
+			Assert.assertEquals(Sets.newHashSet(1L, GraphNodeService.MAX_POSITIONS_PER_UPDATE + 1L), nodeService.selectIdsOfWorkflow(3L, nodeIds));
+			Mockito.verify(idQuery, Mockito.times(2)).setParameter("workflowId", 3L);
+			Mockito.verify(idQuery).setParameter("nodeIds", Lists.newArrayList(GraphNodeService.MAX_POSITIONS_PER_UPDATE + 1L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
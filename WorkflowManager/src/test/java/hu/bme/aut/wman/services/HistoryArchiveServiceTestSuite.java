@@ -0,0 +1,177 @@
+/**
+ * HistoryArchiveServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.service.HistoryArchiveService;
+import hu.bme.aut.wman.service.HistoryEntryService;
+import hu.bme.aut.wman.service.HistorySegmentStore;
+import hu.bme.aut.wman.view.objects.HistoryEntryVO;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class HistoryArchiveServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( HistoryArchiveServiceTestSuite.class );
+
+	/* 2015-01-15 and 2015-02-15 UTC */
+	private static final long JANUARY = 1421280000000L;
+	private static final long FEBRUARY = 1423958400000L;
+	private static final long HOUR = 3600 * 1000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private HistoryArchiveService archiveService;
+	private HistoryEntryService historyServiceMock;
+
+	@Before
+	public void initContext() {
+		directory = folder.getRoot().toPath().resolve("archive");
+		historyServiceMock = mock(HistoryEntryService.class);
+		archiveService = new HistoryArchiveService(directory, 30);
+		archiveService.setHistoryEntryService(historyServiceMock);
+		archiveService.open();
+	}
+
+	@After
+	public void closeContext() {
+		archiveService.close();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testArchiveMovesEntriesOutOfTable() {
+		List<HistoryEntryVO> entries = Arrays.asList(entry(1L, 10L, JANUARY), entry(2L, 20L, JANUARY + HOUR), entry(3L, 10L, FEBRUARY));
+		Mockito.when(historyServiceMock.selectArchivable(Mockito.any(Date.class), Mockito.anyInt())).thenReturn(entries, new ArrayList<HistoryEntryVO>());
+		try {
+			Assert.assertEquals(3, archiveService.archiveOlderThan(new Date(FEBRUARY + HOUR)));
+			Mockito.verify(historyServiceMock).deleteAllByIds(Arrays.asList(1L, 2L, 3L));
+
+			List<HistoryEntryVO> selected = archiveService.select(10L, null, null, null, null, null, null, 10);
+			Assert.assertEquals(2, selected.size());
+			Assert.assertEquals(Long.valueOf(3L), selected.get(0).getId());
+			Assert.assertEquals(Long.valueOf(1L), selected.get(1).getId());
+			Assert.assertEquals("message", selected.get(1).getMessage());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSelectAfterKeyset() {
+		try {
+			HistorySegmentStore store = new HistorySegmentStore(directory.resolve("store"));
+			store.append(Arrays.asList(entry(1L, 10L, JANUARY), entry(2L, 10L, JANUARY), entry(3L, 10L, FEBRUARY), entry(4L, 20L, FEBRUARY)));
+
+			List<HistoryEntryVO> selected = store.select(10L, null, null, null, null, new Date(JANUARY), 2L, 10);
+			Assert.assertEquals(1, selected.size());
+			Assert.assertEquals(Long.valueOf(1L), selected.get(0).getId());
+
+			selected = store.select(null, "user", null, new Date(FEBRUARY), null, null, null, 10);
+			Assert.assertEquals(2, selected.size());
+			Assert.assertEquals(Long.valueOf(4L), selected.get(0).getId());
+
+			selected = store.select(null, "user", Arrays.asList(HistoryEntryEventType.DONE_ACTION), null, null, null, null, 10);
+			Assert.assertTrue(selected.isEmpty());
+			store.close();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDuplicatesAreDropped() {
+		try {
+			HistorySegmentStore store = new HistorySegmentStore(directory.resolve("store"));
+			store.append(Arrays.asList(entry(1L, 10L, JANUARY)));
+			store.append(Arrays.asList(entry(1L, 10L, JANUARY), entry(2L, 10L, JANUARY + HOUR)));
+
+			List<HistoryEntryVO> selected = store.select(10L, null, null, null, null, null, null, 10);
+			Assert.assertEquals(2, selected.size());
+			store.close();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testTornAppendIsDroppedOnReopen() {
+		try {
+			Path storeDirectory = directory.resolve("store");
+			HistorySegmentStore store = new HistorySegmentStore(storeDirectory);
+			store.append(Arrays.asList(entry(1L, 10L, JANUARY)));
+			store.close();
+
+			/* a block written without its index record, and half an index record */
+			try (FileChannel segment = FileChannel.open(storeDirectory.resolve("history-2015-01.seg"), StandardOpenOption.APPEND);
+				 FileChannel index = FileChannel.open(storeDirectory.resolve("history-2015-01.idx"), StandardOpenOption.APPEND)) {
+				segment.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+				index.write(ByteBuffer.wrap(new byte[] { 4, 5 }));
+			}
+
+			store = new HistorySegmentStore(storeDirectory);
+			Assert.assertEquals(1, store.select(10L, null, null, null, null, null, null, 10).size());
+			store.append(Arrays.asList(entry(2L, 10L, JANUARY + HOUR)));
+			Assert.assertEquals(2, store.select(10L, null, null, null, null, null, null, 10).size());
+			store.close();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCorruptBlockIsSkipped() {
+		try {
+			Path storeDirectory = directory.resolve("store");
+			HistorySegmentStore store = new HistorySegmentStore(storeDirectory);
+			store.append(Arrays.asList(entry(1L, 10L, JANUARY)));
+			store.append(Arrays.asList(entry(2L, 10L, JANUARY + HOUR)));
+			store.close();
+
+			/* garbage over the deflate header of the first block */
+			try (FileChannel segment = FileChannel.open(storeDirectory.resolve("history-2015-01.seg"), StandardOpenOption.WRITE)) {
+				segment.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 }), 0);
+			}
+
+			store = new HistorySegmentStore(storeDirectory);
+			List<HistoryEntryVO> selected = store.select(10L, null, null, null, null, null, null, 10);
+			Assert.assertEquals(1, selected.size());
+			Assert.assertEquals(Long.valueOf(2L), selected.get(0).getId());
+			store.close();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	private static HistoryEntryVO entry(Long id, Long projectId, long when) {
+		return new HistoryEntryVO(id, projectId, "user", new Date(when), HistoryEntryEventType.COMMENTED, "message", "state");
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * HistoryWriterServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.HistoryEntry;
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.service.HistoryEntryService;
+import hu.bme.aut.wman.service.HistoryEvent;
+import hu.bme.aut.wman.service.HistoryWriterService;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.PersistenceException;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.base.Strings;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class HistoryWriterServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( HistoryWriterServiceTestSuite.class );
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path spool;
+	private HistoryEntryService historyServiceMock;
+	private List<HistoryEvent> written;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() {
+		spool = folder.getRoot().toPath().resolve("history.spool");
+		historyServiceMock = mock(HistoryEntryService.class);
+		written = new ArrayList<HistoryEvent>();
+		Mockito.doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				written.addAll((List<HistoryEvent>) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(historyServiceMock).writeAll(Matchers.anyListOf(HistoryEvent.class));
+	}
+
+	@Test
+	public void testFlush() {
+		try {
+			HistoryWriterService writer = writerOf(10);
+			writer.enqueue(eventOf(1L, "first"));
+			writer.enqueue(eventOf(2L, "second"));
+			Assert.assertEquals(2, writer.getQueueDepth());
+			Assert.assertTrue(Files.size(spool) > 0);
+			Mockito.verify(historyServiceMock, Mockito.never()).writeAll(Matchers.anyListOf(HistoryEvent.class));
+
+			writer.flush();
+			Assert.assertEquals(2, written.size());
+			Assert.assertEquals("first", written.get(0).getMessage());
+			Assert.assertEquals(0, writer.getQueueDepth());
+			Assert.assertEquals(0, Files.size(spool));
+			Assert.assertEquals(2L, writer.statistics().get("written"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRecoverFromSpool() {
+		try {
+			HistoryWriterService crashed = writerOf(10);
+			crashed.enqueue(eventOf(1L, "first"));
+			crashed.enqueue(new HistoryEvent("user", 2L, "Review", HistoryEntryEventType.COMMENTED, "second", new Date(42L)));
+			/* a torn record at the end of the spool */
+			Files.write(spool, new byte[] { 0, 0, 0, 100, 1 }, StandardOpenOption.APPEND);
+
+			HistoryWriterService writer = writerOf(10);
+			Assert.assertEquals(2, writer.getQueueDepth());
+			writer.flush();
+			Assert.assertEquals(2, written.size());
+			Assert.assertNull(written.get(0).getStateName());
+			Assert.assertEquals("Review", written.get(1).getStateName());
+			Assert.assertEquals(HistoryEntryEventType.COMMENTED, written.get(1).getEvent());
+			Assert.assertEquals(42L, written.get(1).getWhen().getTime());
+			Assert.assertEquals(0, Files.size(spool));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testFailedBatchIsRetried() {
+		try {
+			HistoryWriterService writer = writerOf(10);
+			writer.enqueue(eventOf(1L, "first"));
+			Mockito.doThrow(new IllegalStateException("database is down")).when(historyServiceMock).writeAll(Matchers.anyListOf(HistoryEvent.class));
+			writer.flush();
+			Assert.assertEquals(1L, writer.statistics().get("failedBatches"));
+			Assert.assertTrue(Files.size(spool) > 0);
+
+			Mockito.doNothing().when(historyServiceMock).writeAll(Matchers.anyListOf(HistoryEvent.class));
+			writer.flush();
+			Assert.assertEquals(1L, writer.statistics().get("written"));
+			Assert.assertEquals(0, Files.size(spool));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRejectedEventIsDropped() {
+		try {
+			HistoryWriterService writer = writerOf(10);
+			writer.enqueue(eventOf(1L, "first"));
+			writer.enqueue(eventOf(2L, "of a deleted project"));
+			writer.enqueue(eventOf(3L, "third"));
+			Mockito.doAnswer(new Answer<Void>() {
+
+				@Override
+				@SuppressWarnings("unchecked")
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					List<HistoryEvent> events = (List<HistoryEvent>) invocation.getArguments()[0];
+					for (HistoryEvent event : events) {
+						if (event.getProjectId().equals(2L)) {
+							throw new PersistenceException(new SQLException("foreign key violated", "23503"));
+						}
+					}
+					written.addAll(events);
+					return null;
+				}
+			}).when(historyServiceMock).writeAll(Matchers.anyListOf(HistoryEvent.class));
+
+			writer.flush();
+			Assert.assertEquals(2, written.size());
+			Assert.assertEquals("third", written.get(1).getMessage());
+			Assert.assertEquals(2L, writer.statistics().get("written"));
+			Assert.assertEquals(2L, writer.statistics().get("failedBatches"));
+			Assert.assertEquals(0, writer.getQueueDepth());
+			Assert.assertEquals(0, Files.size(spool));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testLongMessageIsTruncated() {
+		String message = "downloaded a file: " + Strings.repeat("x", HistoryEntry.MAX_MESSAGE_LENGTH);
+		HistoryEvent event = eventOf(1L, message);
+		Assert.assertEquals(HistoryEntry.MAX_MESSAGE_LENGTH, event.getMessage().length());
+		Assert.assertTrue(event.getMessage().startsWith("downloaded a file: xxx"));
+		Assert.assertTrue(event.getMessage().endsWith("..."));
+	}
+
+	@Test
+	public void testRecoverAfterCheckpoint() {
+		try {
+			final HistoryWriterService crashed = writerOf(10);
+			crashed.enqueue(eventOf(1L, "first"));
+			/* an event enqueued while the first one is written, and the database going down before it is written */
+			Mockito.doAnswer(new Answer<Void>() {
+
+				@Override
+				public Void answer(InvocationOnMock invocation) throws Throwable {
+					crashed.enqueue(eventOf(2L, "second"));
+					Mockito.doThrow(new IllegalStateException("database is down")).when(historyServiceMock).writeAll(Matchers.anyListOf(HistoryEvent.class));
+					return null;
+				}
+			}).when(historyServiceMock).writeAll(Matchers.anyListOf(HistoryEvent.class));
+			crashed.flush();
+			Assert.assertEquals(1L, crashed.statistics().get("written"));
+			Assert.assertEquals(1, crashed.getQueueDepth());
+
+			initContext();
+			HistoryWriterService writer = writerOf(10);
+			Assert.assertEquals(1, writer.getQueueDepth());
+			writer.flush();
+			Assert.assertEquals(1, written.size());
+			Assert.assertEquals("second", written.get(0).getMessage());
+			Assert.assertEquals(0, Files.size(spool));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testOverflowIsWrittenSynchronously() {
+		try {
+			HistoryWriterService writer = writerOf(1);
+			writer.enqueue(eventOf(1L, "queued"));
+			writer.enqueue(eventOf(2L, "overflowed"));
+			Assert.assertEquals(1, written.size());
+			Assert.assertEquals("overflowed", written.get(0).getMessage());
+			Assert.assertEquals(1L, writer.statistics().get("backpressured"));
+			Assert.assertEquals(1L, writer.statistics().get("overflowed"));
+			Assert.assertEquals(1, writer.getQueueDepth());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	private HistoryWriterService writerOf(int capacity) {
+		HistoryWriterService writer = new HistoryWriterService(spool, capacity);
+		writer.setHistoryEntryService(historyServiceMock);
+		writer.recover();
+		return writer;
+	}
+
+	private static HistoryEvent eventOf(Long projectId, String message) {
+		return new HistoryEvent("user", projectId, null, HistoryEntryEventType.EDITED_PROJECT, message, new Date());
+	}
+}
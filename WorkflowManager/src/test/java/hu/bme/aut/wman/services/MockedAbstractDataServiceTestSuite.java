@@ -6,6 +6,7 @@ package hu.bme.aut.wman.services;
 import static org.mockito.Mockito.mock;
 import hu.bme.aut.wman.model.AbstractEntity;
 import hu.bme.aut.wman.service.AbstractDataService;
+import hu.bme.aut.wman.service.Page;
 import hu.bme.aut.wman.services.model.TestDataService;
 import hu.bme.aut.wman.services.model.TestEntity;
 
@@ -13,8 +14,10 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -22,6 +25,10 @@ import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 
 import org.apache.log4j.Logger;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactory;
+import org.apache.openjpa.persistence.QueryResultCache;
+import org.apache.openjpa.persistence.StoreCache;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -99,6 +106,85 @@ public class MockedAbstractDataServiceTestSuite {
 		}
 	}
 
+	@Test
+	public void testSaveAll() {
+		service.setBatchSize(2);
+		List<TestEntity> entities = Lists.newArrayList(new TestEntity("A"), new TestEntity("B"), new TestEntity("C"));
+
+		try {
+			service.saveAll( entities );
+			Mockito.verify(entityManagerMock, Mockito.times(3)).persist( Mockito.any(TestEntity.class) );
+			Mockito.verify(entityManagerMock, Mockito.times(2)).flush();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeleteAll() {
+		try {
+			service.deleteAll( Lists.newArrayList(spyEntity) );
+			Mockito.verify(entityManagerMock, Mockito.times(1)).remove( spyEntity );
+			Mockito.verify(entityManagerMock, Mockito.times(1)).flush();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeleteAllByIds() {
+		service.setBatchSize(2);
+		Query queryMock = Mockito.mock(Query.class);
+		Mockito.when(entityManagerMock.createQuery(Mockito.anyString())).thenReturn(queryMock);
+		Mockito.when(queryMock.executeUpdate()).thenReturn(2, 1);
+
+		try {
+			Assert.assertEquals(3, service.deleteAllByIds( Lists.newArrayList(new Long(1), new Long(2), new Long(3)) ));
+			Mockito.verify(entityManagerMock, Mockito.times(2)).createQuery("DELETE FROM TestEntity e WHERE e.id IN :ids");
+			Mockito.verify(queryMock, Mockito.times(1)).setParameter("ids", Lists.newArrayList(new Long(1), new Long(2)));
+			Mockito.verify(queryMock, Mockito.times(1)).setParameter("ids", Lists.newArrayList(new Long(3)));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeleteAllByIdsEvictsCaches() {
+		Query queryMock = Mockito.mock(Query.class);
+		Mockito.when(entityManagerMock.createQuery(Mockito.anyString())).thenReturn(queryMock);
+		OpenJPAEntityManager openJPAEmMock = Mockito.mock(OpenJPAEntityManager.class);
+		OpenJPAEntityManagerFactory emfMock = Mockito.mock(OpenJPAEntityManagerFactory.class);
+		StoreCache storeCacheMock = Mockito.mock(StoreCache.class);
+		QueryResultCache queryCacheMock = Mockito.mock(QueryResultCache.class);
+		Mockito.when(entityManagerMock.unwrap(OpenJPAEntityManager.class)).thenReturn(openJPAEmMock);
+		Mockito.when(openJPAEmMock.getEntityManagerFactory()).thenReturn(emfMock);
+		Mockito.when(emfMock.getStoreCache()).thenReturn(storeCacheMock);
+		Mockito.when(emfMock.getQueryResultCache()).thenReturn(queryCacheMock);
+
+		try {
+			service.deleteAllByIds( Lists.newArrayList(new Long(1)) );
+			Mockito.verify(storeCacheMock, Mockito.times(1)).evict(TestEntity.class);
+			Mockito.verify(queryCacheMock, Mockito.times(1)).evictAll(TestEntity.class);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeleteAllByIdsWithEmpty() {
+		try {
+			Assert.assertEquals(0, service.deleteAllByIds( new ArrayList<Long>() ));
+			Mockito.verify(entityManagerMock, Mockito.never()).createQuery(Mockito.anyString());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
 	@Test
 	public void testSelectAll() {
 		ArrayList<TestEntity> result = Lists.newArrayList(new TestEntity("A"), new TestEntity("B"), new TestEntity("C"), new TestEntity("D"));
@@ -115,11 +201,135 @@ public class MockedAbstractDataServiceTestSuite {
 	@Test
 	public void testSelectById() {
 		Mockito.when(spyEntity.getId()).thenReturn(new Long(1024));
-		ArrayList<TestEntity> result = Lists.newArrayList(spyEntity);
-		mockCriteriaQueryBuilder(result);
+		Mockito.when(entityManagerMock.find(TestEntity.class, new Long(1024))).thenReturn(spyEntity);
 
 		try {
 			Assert.assertEquals(spyEntity, service.selectById(new Long(1024)));
+			Mockito.verify(entityManagerMock, Mockito.never()).getCriteriaBuilder();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void testSelectByIdMissing() {
+		service.selectById(new Long(1024));
+	}
+
+	@Test
+	public void testSelectByParametersCachesQuery() {
+		TypedQuery<TestEntity> typedQueryMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createQuery(Mockito.anyString(), Mockito.eq(TestEntity.class))).thenReturn(typedQueryMock);
+		Mockito.when(typedQueryMock.getResultList()).thenReturn(Lists.newArrayList(spyEntity));
+
+		ArrayList<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("name", "Test"));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("parent", spyEntity));
+
+		try {
+			service.selectByParameters(parameterList);
+			long hits = AbstractDataService.getQueryCacheHits();
+			long misses = AbstractDataService.getQueryCacheMisses();
+
+			Assert.assertEquals(Lists.newArrayList(spyEntity), service.selectByParameters(parameterList));
+			Assert.assertEquals(hits + 1, AbstractDataService.getQueryCacheHits());
+			Assert.assertEquals(misses, AbstractDataService.getQueryCacheMisses());
+			Assert.assertTrue(AbstractDataService.getQueryCacheSize() <= AbstractDataService.QUERY_CACHE_SIZE);
+			Mockito.verify(entityManagerMock, Mockito.times(2)).createQuery("SELECT e FROM TestEntity e WHERE e.name = :p0 AND e.parent = :p1", TestEntity.class);
+			Mockito.verify(typedQueryMock, Mockito.times(2)).setParameter("p0", "Test");
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSelectByNullParameter() {
+		TypedQuery<TestEntity> typedQueryMock = mockCriteriaQueryBuilder(spyEntity);
+
+		ArrayList<Entry<String, Object>> parameterList = new ArrayList<Entry<String, Object>>();
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("name", "Test"));
+		parameterList.add(new AbstractMap.SimpleEntry<String, Object>("parent", null));
+
+		try {
+			long misses = AbstractDataService.getQueryCacheMisses();
+			Assert.assertEquals(Lists.newArrayList(spyEntity), service.selectByParameters(parameterList));
+			Assert.assertEquals(misses, AbstractDataService.getQueryCacheMisses());
+			Mockito.verify(typedQueryMock, Mockito.times(1)).getResultList();
+			Mockito.verify(entityManagerMock, Mockito.never()).createQuery(Mockito.anyString(), Mockito.eq(TestEntity.class));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSelectPageWithNext() {
+		TestEntity first = Mockito.spy(new TestEntity("A"));
+		TestEntity second = Mockito.spy(new TestEntity("B"));
+		TestEntity third = Mockito.spy(new TestEntity("C"));
+		Mockito.when(second.getId()).thenReturn(new Long(1024));
+		TypedQuery<TestEntity> typedQueryMock = mockCriteriaQueryBuilder(first, second, third);
+
+		try {
+			Page<TestEntity> page = service.selectPage(new ArrayList<Entry<String, Object>>(), null, null, 2);
+			Assert.assertEquals(Lists.newArrayList(first, second), page.getElements());
+			Assert.assertTrue(page.hasNext());
+			Assert.assertEquals(new Long(1024), Page.afterIdOf(page.getNextCursor()));
+			Mockito.verify(typedQueryMock, Mockito.times(1)).setMaxResults(3);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSelectPageLast() {
+		ArrayList<TestEntity> result = Lists.newArrayList(new TestEntity("A"), new TestEntity("B"));
+		mockCriteriaQueryBuilder(result);
+
+		try {
+			Page<TestEntity> page = service.selectPage(new ArrayList<Entry<String, Object>>(), null, null, 2);
+			Assert.assertEquals(result, page.getElements());
+			Assert.assertFalse(page.hasNext());
+			Assert.assertNull(page.getNextCursor());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testIterateByParameters() {
+		TestEntity first = new TestEntity("A");
+		TestEntity second = new TestEntity("B");
+		mockCriteriaQueryBuilder(first, second);
+
+		try {
+			List<TestEntity> iterated = Lists.newArrayList(service.iterateByParameters(new ArrayList<Entry<String, Object>>(), 2));
+			Assert.assertEquals(Lists.newArrayList(first, second), iterated);
+			Mockito.verify(entityManagerMock, Mockito.times(1)).detach(first);
+			Mockito.verify(entityManagerMock, Mockito.times(1)).detach(second);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCountByParameters() {
+		CriteriaBuilder criteriaBuilderMock = Mockito.mock(CriteriaBuilder.class);
+		Mockito.when(entityManagerMock.getCriteriaBuilder()).thenReturn(criteriaBuilderMock);
+		CriteriaQuery<Long> countQueryMock = Mockito.mock(CriteriaQuery.class);
+		Mockito.when(criteriaBuilderMock.createQuery(Long.class)).thenReturn(countQueryMock);
+		TypedQuery<Long> typedQueryMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createQuery(countQueryMock)).thenReturn(typedQueryMock);
+		Mockito.when(typedQueryMock.getSingleResult()).thenReturn(new Long(42));
+
+		try {
+			Assert.assertEquals(42L, service.countByParameters(new ArrayList<Entry<String, Object>>()));
+			Mockito.verify(typedQueryMock, Mockito.never()).getResultList();
 		} catch(Exception e) {
 			LOGGER.error(e);
 			Assert.fail();
@@ -165,11 +375,11 @@ public class MockedAbstractDataServiceTestSuite {
 		}
 	}
 
-	private void mockCriteriaQueryBuilder(TestEntity... resultElements) {
-		mockCriteriaQueryBuilder(Lists.newArrayList(resultElements));
+	private TypedQuery<TestEntity> mockCriteriaQueryBuilder(TestEntity... resultElements) {
+		return mockCriteriaQueryBuilder(Lists.newArrayList(resultElements));
 	}
 
-	private void mockCriteriaQueryBuilder(List<TestEntity> resultElements) {
+	private TypedQuery<TestEntity> mockCriteriaQueryBuilder(List<TestEntity> resultElements) {
 		CriteriaBuilder criteriaBuilderMock = Mockito.mock(CriteriaBuilder.class);
 		Mockito.when(entityManagerMock.getCriteriaBuilder()).thenReturn(criteriaBuilderMock);
 
@@ -184,5 +394,6 @@ public class MockedAbstractDataServiceTestSuite {
 		TypedQuery<TestEntity> typedQueryMock = Mockito.mock(TypedQuery.class);
 		Mockito.when(entityManagerMock.createQuery(criteriaQueryMock)).thenReturn(typedQueryMock);
 		Mockito.when(typedQueryMock.getResultList()).thenReturn(resultElements);
+		return typedQueryMock;
 	}
 }
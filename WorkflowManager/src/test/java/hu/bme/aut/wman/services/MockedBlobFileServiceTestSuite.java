@@ -0,0 +1,82 @@
+/**
+ * MockedBlobFileServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.BlobFile;
+import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.service.BlobFileService;
+
+import java.util.ArrayList;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class MockedBlobFileServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( MockedBlobFileServiceTestSuite.class );
+	private static final String HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	private BlobFileService blobFileService;
+	private EntityManager entityManagerMock;
+	private TypedQuery<Long> queryMock;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() {
+		blobFileService = new BlobFileService();
+		entityManagerMock = mock(EntityManager.class);
+		blobFileService.setEntityManager( entityManagerMock );
+
+		queryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(BlobFile.NQ_FIND_COUNT_BY_HASH, Long.class)).thenReturn(queryMock);
+	}
+
+	@Test
+	public void testMetadataOfNewFile() {
+		try {
+			BlobFile file = new BlobFile("test.txt", "text/plain", 3, HASH, mock(Project.class));
+			Assert.assertEquals(3, file.getSize());
+			Assert.assertEquals(HASH, file.getHash());
+			Assert.assertNotNull(file.getUploadedAt());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCountByHash() {
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(new Long(2)));
+		try {
+			Assert.assertEquals(2, blobFileService.countByHash(HASH));
+			Mockito.verify(queryMock).setParameter(BlobFile.PR_HASH, HASH);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCountByHashWithoutResult() {
+		Mockito.when(queryMock.getResultList()).thenReturn(new ArrayList<Long>());
+		try {
+			Assert.assertEquals(0, blobFileService.countByHash(HASH));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * MockedHistoryEntryServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.HistoryEntry;
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.service.HistoryArchiveService;
+import hu.bme.aut.wman.service.HistoryEntryService;
+import hu.bme.aut.wman.service.HistoryEvent;
+import hu.bme.aut.wman.service.Page;
+import hu.bme.aut.wman.view.objects.HistoryEntryVO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class MockedHistoryEntryServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( MockedHistoryEntryServiceTestSuite.class );
+
+	private HistoryEntryService historyService;
+	private EntityManager entityManagerMock;
+	private TypedQuery<HistoryEntryVO> queryMock;
+	private HistoryArchiveService archiveMock;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() {
+		historyService = new HistoryEntryService();
+		entityManagerMock = mock(EntityManager.class);
+		historyService.setEntityManager( entityManagerMock );
+		archiveMock = mock(HistoryArchiveService.class);
+		historyService.setHistoryArchive( archiveMock );
+
+		queryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createQuery(anyString(), eq(HistoryEntryVO.class))).thenReturn(queryMock);
+		Mockito.when(queryMock.setMaxResults(Mockito.anyInt())).thenReturn(queryMock);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWriteAllDropsEventsOfMissingProjects() {
+		TypedQuery<Object[]> stateNameQuery = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(Project.NQ_FIND_STATE_NAMES_BY_IDS, Object[].class)).thenReturn(stateNameQuery);
+		List<Object[]> stateNames = new ArrayList<Object[]>();
+		stateNames.add(new Object[] { 1L, "Review" });
+		Mockito.when(stateNameQuery.getResultList()).thenReturn(stateNames);
+		try {
+			/* the state of both events is known, the second project is checked nevertheless */
+			historyService.writeAll(Lists.newArrayList(
+					new HistoryEvent("user", 1L, "Draft", HistoryEntryEventType.COMMENTED, "kept", new Date()),
+					new HistoryEvent("user", 2L, "Closed", HistoryEntryEventType.COMMENTED, "dropped", new Date())));
+
+			ArgumentCaptor<HistoryEntry> entry = ArgumentCaptor.forClass(HistoryEntry.class);
+			Mockito.verify(entityManagerMock).persist(entry.capture());
+			Assert.assertEquals("kept", entry.getValue().getMessage());
+			Assert.assertEquals("Draft", entry.getValue().getState());
+			Mockito.verify(stateNameQuery).setParameter(Mockito.eq("projectIDs"), Mockito.argThat(new ArgumentMatcher<Object>() {
+
+				@Override
+				public boolean matches(Object argument) {
+					return ((Collection<?>) argument).containsAll(Arrays.asList(1L, 2L));
+				}
+			}));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testFirstPageHasCursorOfLastEntry() {
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(entry(5L, 5000L), entry(4L, 4000L), entry(3L, 3000L)));
+		try {
+			Page<HistoryEntryVO> page = historyService.selectHistoryPage(1L, null, null, null, null, null, 2);
+
+			Assert.assertEquals(2, page.getElements().size());
+			Assert.assertEquals(Long.valueOf(4L), Page.afterIdOf(page.getNextCursor()));
+			Assert.assertEquals(Long.toString(4000L, Character.MAX_RADIX), Page.afterKeyOf(page.getNextCursor()));
+			Mockito.verify(queryMock).setMaxResults(3);
+			Mockito.verify(queryMock).setParameter("projectID", 1L);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testLastPageHasNoCursor() {
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(entry(2L, 2000L)));
+		try {
+			Page<HistoryEntryVO> page = historyService.selectHistoryPage(1L, null, null, null, null, null, 2);
+
+			Assert.assertEquals(1, page.getElements().size());
+			Assert.assertFalse(page.hasNext());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testNextPageStartsAfterCursor() {
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.<HistoryEntryVO> newArrayList());
+		try {
+			String cursor = Page.cursorOf(Long.toString(4000L, Character.MAX_RADIX), 4L);
+			Date from = new Date(1000L);
+			historyService.selectHistoryPage(null, "user", Arrays.asList(HistoryEntryEventType.COMMENTED), from, null, cursor, 10);
+
+			ArgumentCaptor<String> jpql = ArgumentCaptor.forClass(String.class);
+			Mockito.verify(entityManagerMock).createQuery(jpql.capture(), eq(HistoryEntryVO.class));
+			Assert.assertTrue(jpql.getValue().contains("he.userName = :userName"));
+			Assert.assertFalse(jpql.getValue().contains(":projectID"));
+			Assert.assertTrue(jpql.getValue().endsWith("ORDER BY he.when DESC, he.id DESC"));
+
+			Mockito.verify(queryMock).setParameter("userName", "user");
+			Mockito.verify(queryMock).setParameter("events", Arrays.asList(HistoryEntryEventType.COMMENTED));
+			Mockito.verify(queryMock).setParameter("from", from);
+			Mockito.verify(queryMock).setParameter("afterId", 4L);
+			Mockito.verify(queryMock).setParameter("afterWhen", new Date(4000L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testArchivedEntriesAreMerged() {
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(entry(5L, 5000L), entry(3L, 3000L)));
+		Mockito.when(archiveMock.select(Mockito.eq(1L), Mockito.anyString(), Mockito.anyCollection(), Mockito.any(Date.class), Mockito.any(Date.class),
+				Mockito.any(Date.class), Mockito.anyLong(), Mockito.anyInt())).thenReturn(Lists.newArrayList(entry(4L, 4000L), entry(3L, 3000L)));
+		try {
+			Page<HistoryEntryVO> page = historyService.selectHistoryPage(1L, null, null, null, null, null, 2);
+
+			Assert.assertEquals(Long.valueOf(5L), page.getElements().get(0).getId());
+			Assert.assertEquals(Long.valueOf(4L), page.getElements().get(1).getId());
+			Assert.assertEquals(Long.valueOf(4L), Page.afterIdOf(page.getNextCursor()));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testFullPageBoundsArchive() {
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(entry(5L, 5000L), entry(4L, 4000L), entry(3L, 3000L)));
+		try {
+			historyService.selectHistoryPage(1L, null, null, new Date(1000L), null, null, 2);
+			Mockito.verify(archiveMock).select(Mockito.eq(1L), Mockito.anyString(), Mockito.anyCollection(), Mockito.eq(new Date(3000L)),
+					Mockito.any(Date.class), Mockito.any(Date.class), Mockito.anyLong(), Mockito.eq(3));
+
+			/* a full page of entries without time */
+			Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(entry(5L, null), entry(4L, null), entry(3L, null)));
+			historyService.selectHistoryPage(1L, null, null, null, null, null, 2);
+			Mockito.verify(archiveMock, Mockito.times(1)).select(Mockito.anyLong(), Mockito.anyString(), Mockito.anyCollection(), Mockito.any(Date.class),
+					Mockito.any(Date.class), Mockito.any(Date.class), Mockito.anyLong(), Mockito.anyInt());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNeitherProjectNorUser() {
+		historyService.selectHistoryPage(null, null, null, null, null, null, 10);
+	}
+
+	private static HistoryEntryVO entry(Long id, Long when) {
+		return new HistoryEntryVO(id, 1L, "user", (when == null) ? null : new Date(when), HistoryEntryEventType.COMMENTED, "commented", "state");
+	}
+}
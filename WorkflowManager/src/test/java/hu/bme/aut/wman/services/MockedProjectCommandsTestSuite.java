@@ -0,0 +1,203 @@
+/**
+ * MockedProjectCommandsTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.ActionType;
+import hu.bme.aut.wman.model.BlobFile;
+import hu.bme.aut.wman.model.Comment;
+import hu.bme.aut.wman.model.HistoryEntryEventType;
+import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.model.State;
+import hu.bme.aut.wman.model.User;
+import hu.bme.aut.wman.service.ActionResult;
+import hu.bme.aut.wman.service.ActionTypeService;
+import hu.bme.aut.wman.service.BlobFileService;
+import hu.bme.aut.wman.service.BlobStoreService;
+import hu.bme.aut.wman.service.BlobStoreService.StoredBlob;
+import hu.bme.aut.wman.service.CommentService;
+import hu.bme.aut.wman.service.HistoryEntryService;
+import hu.bme.aut.wman.service.ProjectCommands;
+import hu.bme.aut.wman.service.ProjectService;
+import hu.bme.aut.wman.service.TransitionLogService;
+import hu.bme.aut.wman.service.UserService;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class MockedProjectCommandsTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(MockedProjectCommandsTestSuite.class);
+
+	private ProjectCommands projectCommands;
+	private ProjectService projectService;
+	private ActionTypeService actionService;
+	private UserService userService;
+	private HistoryEntryService historyService;
+	private CommentService commentService;
+	private BlobFileService blobFileService;
+	private TransitionLogService transitionLog;
+
+	private Project projectMock;
+	private User userMock;
+
+	@Before
+	public void initContext() {
+		projectService = mock(ProjectService.class);
+		actionService = mock(ActionTypeService.class);
+		userService = mock(UserService.class);
+		historyService = mock(HistoryEntryService.class);
+		commentService = mock(CommentService.class);
+		blobFileService = mock(BlobFileService.class);
+		transitionLog = mock(TransitionLogService.class);
+		projectCommands = new ProjectCommands();
+		projectCommands.setTestServices(projectService, actionService, userService, historyService, commentService, blobFileService, transitionLog);
+
+		State stateMock = mock(State.class);
+		Mockito.when(stateMock.getName()).thenReturn("Review");
+		projectMock = mock(Project.class);
+		Mockito.when(projectMock.getCurrentState()).thenReturn(stateMock);
+		Mockito.when(projectService.selectById(1L)).thenReturn(projectMock);
+		userMock = mock(User.class);
+		Mockito.when(userMock.getUsername()).thenReturn("assignee");
+		Mockito.when(userService.selectById(2L)).thenReturn(userMock);
+	}
+
+	@Test
+	public void testExecuteAction() {
+		ActionType actionMock = mock(ActionType.class);
+		Mockito.when(actionMock.getActionTypeName()).thenReturn("Approve");
+		Mockito.when(actionService.selectById(3L)).thenReturn(actionMock);
+		Mockito.when(projectService.executeAction(1L, 3L))
+				.thenReturn(ActionResult.done(1L, 2L, 6L, "Review", 4L, "Approved", 1L, 1), ActionResult.conflict(1L, 2L, 5L, "Closed", 2L, 1));
+		try {
+			Assert.assertFalse(projectCommands.executeAction("user", 1L, 3L).isConflict());
+			Mockito.verify(historyService).log(Mockito.eq("user"), Mockito.any(Date.class), Mockito.eq(HistoryEntryEventType.DONE_ACTION),
+					Mockito.eq("done: Approve in state: Review"), Mockito.eq(1L), Mockito.eq("Approved"));
+			Mockito.verify(transitionLog).append(Mockito.eq(1L), Mockito.eq(2L), Mockito.eq(6L), Mockito.eq(4L), Mockito.eq(3L), Mockito.eq("user"), Mockito.any(Date.class));
+
+			Assert.assertTrue(projectCommands.executeAction("user", 1L, 3L).isConflict());
+			Mockito.verify(historyService, Mockito.times(1)).log(Mockito.anyString(), Mockito.any(Date.class), Mockito.any(HistoryEntryEventType.class),
+					Mockito.anyString(), Mockito.anyLong(), Mockito.anyString());
+			Mockito.verify(transitionLog, Mockito.times(1)).append(Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong(), Mockito.anyLong(),
+					Mockito.anyString(), Mockito.any(Date.class));
+			Mockito.verify(projectService, Mockito.never()).selectById(Mockito.anyLong());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testExecuteUnknownActionOnAll() {
+		try {
+			projectCommands.executeActionOnAll("user", Lists.newArrayList(1L), null, null, 404L, Lists.newArrayList(7L));
+			Assert.fail();
+		} catch(IllegalArgumentException e) {
+			Mockito.verify(projectService, Mockito.never()).executeActionOnAll(Mockito.anyCollection(), Mockito.anyLong(), Mockito.anyCollection());
+		}
+	}
+
+	@Test
+	public void testReusesLoadedEntities() {
+		try {
+			projectCommands.assignUser("user", 1L, 2L);
+			Mockito.verify(projectService).assignUser(projectMock, userMock);
+			Mockito.verify(historyService).log(Mockito.eq("user"), Mockito.any(Date.class), Mockito.eq(HistoryEntryEventType.ASSIGNED_USER),
+					Mockito.eq("assigned assignee"), Mockito.eq(projectMock), Mockito.eq("Review"));
+
+			projectCommands.comment(2L, 1L, "A comment on the project");
+			Mockito.verify(commentService).save(Mockito.any(Comment.class));
+			Mockito.verify(historyService).log(Mockito.eq("assignee"), Mockito.any(Date.class), Mockito.eq(HistoryEntryEventType.COMMENTED),
+					Mockito.eq("commented"), Mockito.eq(projectMock), Mockito.eq("Review"));
+
+			projectCommands.uploadFile("user", 1L, "file.txt", "text/plain", new StoredBlob("ab", 2L, true));
+			Mockito.verify(blobFileService).save(Mockito.any(BlobFile.class));
+			Mockito.verify(projectService, Mockito.never()).save(Mockito.any(Project.class));
+			Mockito.verify(projectService, Mockito.times(3)).selectById(1L);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testStatistics() {
+		try {
+			projectCommands.assignUser("user", 1L, 2L);
+			Map<String, Object> timing = (Map<String, Object>) ProjectCommands.statistics().get(ProjectCommands.ASSIGN_USER);
+			Assert.assertNotNull(timing);
+			Assert.assertTrue((Long) timing.get("count") >= 1);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRecordedAfterCompletion() {
+		try {
+			TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+			Mockito.when(registry.getTransactionStatus()).thenReturn(Status.STATUS_ACTIVE);
+			projectCommands.setTestTransactionRegistry(registry);
+			projectCommands.unassignUser("user", 1L, 2L);
+			Map<String, Object> timing = (Map<String, Object>) ProjectCommands.statistics().get(ProjectCommands.UNASSIGN_USER);
+			long count = (timing == null) ? 0 : (Long) timing.get("count");
+
+			ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+			Mockito.verify(registry).registerInterposedSynchronization(synchronization.capture());
+			synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+			timing = (Map<String, Object>) ProjectCommands.statistics().get(ProjectCommands.UNASSIGN_USER);
+			Assert.assertEquals(count + 1, timing.get("count"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testUploadDiscardedOnRollback() {
+		try {
+			TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+			Mockito.when(registry.getTransactionStatus()).thenReturn(Status.STATUS_ACTIVE);
+			BlobStoreService blobStoreService = mock(BlobStoreService.class);
+			projectCommands.setTestTransactionRegistry(registry);
+			projectCommands.setTestBlobStoreService(blobStoreService);
+			StoredBlob blob = new StoredBlob("ab", 2L, true, 1000L);
+			projectCommands.uploadFile("user", 1L, "file.txt", "text/plain", blob);
+
+			/* the discarding and the timing */
+			ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+			Mockito.verify(registry, Mockito.times(2)).registerInterposedSynchronization(synchronization.capture());
+			List<Synchronization> synchronizations = synchronization.getAllValues();
+			synchronizations.get(0).afterCompletion(Status.STATUS_COMMITTED);
+			Mockito.verify(blobStoreService, Mockito.never()).discard(blob);
+			synchronizations.get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+			Mockito.verify(blobStoreService).discard(blob);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
@@ -5,14 +5,32 @@ package hu.bme.aut.wman.services;
 
 import static org.mockito.Mockito.mock;
 import hu.bme.aut.wman.model.Project;
+import hu.bme.aut.wman.model.State;
 import hu.bme.aut.wman.model.User;
 import hu.bme.aut.wman.model.Workflow;
 import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.service.ActionResult;
+import hu.bme.aut.wman.service.BlobFileService;
+import hu.bme.aut.wman.service.BlobStoreService;
+import hu.bme.aut.wman.service.BulkActionResult;
+import hu.bme.aut.wman.service.Page;
 import hu.bme.aut.wman.service.ProjectService;
+import hu.bme.aut.wman.service.ProjectService.ProjectOrder;
+import hu.bme.aut.wman.service.TransitionService;
+import hu.bme.aut.wman.service.TransitionTable;
 import hu.bme.aut.wman.service.WorkflowService;
+import hu.bme.aut.wman.services.model.DefaultMappings;
 import hu.bme.aut.wman.view.objects.NewProjectVO;
+import hu.bme.aut.wman.view.objects.ProjectSummaryVO;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 
 import org.apache.log4j.Logger;
 import org.junit.Assert;
@@ -20,6 +38,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.google.common.collect.Lists;
+
 public class MockedProjectServiceTestSuite {
 
 	private static final Logger LOGGER = Logger.getLogger( MockedProjectServiceTestSuite.class );
@@ -39,6 +59,7 @@ public class MockedProjectServiceTestSuite {
 	public void initContext() {
 		projectService = new ProjectService();
 		entityManagerMock = mock(EntityManager.class);
+		DefaultMappings.install(entityManagerMock);
 		WorkflowService workflowService = mock(WorkflowService.class);
 		projectService.setEntityManager( entityManagerMock );
 		projectService.setTestWorkflowService(workflowService);
@@ -105,4 +126,215 @@ public class MockedProjectServiceTestSuite {
 			Assert.fail();
 		}
 	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSelectVisiblePage() {
+		TypedQuery<ProjectSummaryVO> queryMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createQuery(Mockito.anyString(), Mockito.eq(ProjectSummaryVO.class))).thenReturn(queryMock);
+		Mockito.when(queryMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(queryMock);
+		Mockito.when(queryMock.setMaxResults(Mockito.anyInt())).thenReturn(queryMock);
+		Mockito.when(queryMock.getResultList()).thenReturn(Lists.newArrayList(summaryOf(1, "Review"), summaryOf(2, "Review"), summaryOf(3, "Done")));
+		try {
+			Page<ProjectSummaryVO> page = projectService.selectVisiblePage("user", true, "View Project", ProjectOrder.STATE, null, 2);
+			Assert.assertEquals(2, page.getElements().size());
+			Assert.assertTrue(page.hasNext());
+			Assert.assertEquals(new Long(2), Page.afterIdOf(page.getNextCursor()));
+			Assert.assertEquals("Review", Page.afterKeyOf(page.getNextCursor()));
+			Mockito.verify(queryMock).setMaxResults(3);
+			Mockito.verify(queryMock, Mockito.never()).setParameter(Mockito.eq("afterId"), Mockito.anyObject());
+
+			projectService.selectVisiblePage("user", true, "View Project", ProjectOrder.STATE, page.getNextCursor(), 2);
+			Mockito.verify(queryMock).setParameter("afterId", new Long(2));
+			Mockito.verify(queryMock).setParameter("afterKey", "Review");
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testNullKeyCursor() {
+		try {
+			String cursor = Page.cursorOf((String) null, new Long(42));
+			Assert.assertEquals(new Long(42), Page.afterIdOf(cursor));
+			Assert.assertNull(Page.afterKeyOf(cursor));
+			Assert.assertEquals("\u00dcnnepi \u00e1llapot", Page.afterKeyOf(Page.cursorOf("\u00dcnnepi \u00e1llapot", new Long(42))));
+			Assert.assertEquals(ProjectOrder.NAME, ProjectOrder.of(null));
+			Assert.assertEquals(ProjectOrder.OWNER, ProjectOrder.of("owner"));
+			Assert.assertEquals(ProjectOrder.NAME, ProjectOrder.of("unknown"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testExecuteAction() {
+		TransitionService transitionService = mock(TransitionService.class);
+		projectService.setTestTransitionService(transitionService);
+		List<Object[]> transitions = new ArrayList<Object[]>();
+		transitions.add(new Object[] { 10L, 1L, 11L });
+		Mockito.when(transitionService.transitionTableOf(5L)).thenReturn(TransitionTable.compile(5L, 0L, transitions));
+
+		TypedQuery<Object[]> selectMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(Project.NQ_FIND_WORKFLOW_AND_STATE_BY_ID, Object[].class)).thenReturn(selectMock);
+		Mockito.when(selectMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(selectMock);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { 5L, 10L, "Review", 3L });
+		Mockito.when(selectMock.getResultList()).thenReturn(rows);
+
+		TypedQuery<Object[]> namesMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(State.NQ_FIND_NAMES_BY_IDS, Object[].class)).thenReturn(namesMock);
+		Mockito.when(namesMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(namesMock);
+		List<Object[]> names = new ArrayList<Object[]>();
+		names.add(new Object[] { 11L, "Approved" });
+		Mockito.when(namesMock.getResultList()).thenReturn(names);
+
+		TypedQuery<Project> updateMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(Project.NQ_UPDATE_CURRENT_STATE, Project.class)).thenReturn(updateMock);
+		Mockito.when(updateMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(updateMock);
+		Mockito.when(updateMock.executeUpdate()).thenReturn(1);
+		try {
+			ActionResult result = projectService.executeAction(projectMockId, 1L);
+			Assert.assertFalse(result.isConflict());
+			Assert.assertEquals("Review", result.getFromStateName());
+			Assert.assertEquals(new Long(11), result.getCurrentStateId());
+			Assert.assertEquals("Approved", result.getCurrentStateName());
+			Assert.assertEquals(4L, result.getVersion());
+			Assert.assertEquals(1, result.getAttempts());
+			Mockito.verify(entityManagerMock).getReference(State.class, 11L);
+			Mockito.verify(updateMock).setParameter("version", 3L);
+			Mockito.verify(updateMock).setParameter("nextVersion", 4L);
+			Mockito.verify(entityManagerMock, Mockito.never()).find(Mockito.eq(Project.class), Mockito.anyObject());
+
+			/* a project written before the version column was added */
+			rows.set(0, new Object[] { 5L, 10L, "Review", null });
+			Assert.assertEquals(1L, projectService.executeAction(projectMockId, 1L).getVersion());
+			Mockito.verify(updateMock).setParameter("version", 0L);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testExecuteActionConflicts() {
+		TransitionService transitionService = mock(TransitionService.class);
+		projectService.setTestTransitionService(transitionService);
+		List<Object[]> transitions = new ArrayList<Object[]>();
+		transitions.add(new Object[] { 10L, 1L, 11L });
+		Mockito.when(transitionService.transitionTableOf(5L)).thenReturn(TransitionTable.compile(5L, 0L, transitions));
+
+		TypedQuery<Object[]> selectMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(Project.NQ_FIND_WORKFLOW_AND_STATE_BY_ID, Object[].class)).thenReturn(selectMock);
+		Mockito.when(selectMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(selectMock);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { 5L, 10L, "Review", 3L });
+		List<Object[]> movedRows = new ArrayList<Object[]>();
+		movedRows.add(new Object[] { 5L, 12L, "Closed", 4L });
+
+		TypedQuery<Project> updateMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(Project.NQ_UPDATE_CURRENT_STATE, Project.class)).thenReturn(updateMock);
+		Mockito.when(updateMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(updateMock);
+		Mockito.when(updateMock.executeUpdate()).thenReturn(0);
+		try {
+			/* the version keeps changing, the retries are bounded */
+			Mockito.when(selectMock.getResultList()).thenReturn(rows);
+			ActionResult result = projectService.executeAction(projectMockId, 1L);
+			Assert.assertTrue(result.isConflict());
+			Assert.assertEquals(ProjectService.MAX_ACTION_ATTEMPTS, result.getAttempts());
+			Mockito.verify(updateMock, Mockito.times(ProjectService.MAX_ACTION_ATTEMPTS)).executeUpdate();
+
+			/* moved to a state the action is not valid in */
+			Mockito.when(selectMock.getResultList()).thenReturn(rows, movedRows);
+			result = projectService.executeAction(projectMockId, 1L);
+			Assert.assertTrue(result.isConflict());
+			Assert.assertEquals(new Long(12), result.getCurrentStateId());
+			Assert.assertEquals("Closed", result.getCurrentStateName());
+			Assert.assertEquals(1, result.getAttempts());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+
+		try {
+			Mockito.when(selectMock.getResultList()).thenReturn(rows);
+			projectService.executeAction(projectMockId, 2L);
+			Assert.fail();
+		} catch(IllegalArgumentException e) {
+			/* there is no such transition */
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testExecuteActionOnAll() throws SQLException {
+		TransitionService transitionService = mock(TransitionService.class);
+		projectService.setTestTransitionService(transitionService);
+		List<Object[]> transitions = new ArrayList<Object[]>();
+		transitions.add(new Object[] { 10L, 1L, 11L });
+		Mockito.when(transitionService.transitionTableOf(5L)).thenReturn(TransitionTable.compile(5L, 0L, transitions));
+
+		TypedQuery<Object[]> selectMock = Mockito.mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(Project.NQ_FIND_ACTION_KEYS_BY_IDS, Object[].class)).thenReturn(selectMock);
+		Mockito.when(selectMock.setParameter(Mockito.anyString(), Mockito.anyObject())).thenReturn(selectMock);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(new Object[] { 1L, 5L, 7L, 10L, "Review", 3L });
+		rows.add(new Object[] { 2L, 5L, 7L, 10L, "Review", null });
+		rows.add(new Object[] { 3L, 5L, 8L, 10L, "Review", 0L });
+		rows.add(new Object[] { 4L, 5L, 7L, 11L, "Approved", 0L });
+		Mockito.when(selectMock.getResultList()).thenReturn(rows);
+
+		/* the project 2 was moved concurrently, so its UPDATE conditioned on the version read affects no row */
+		Connection connectionMock = Mockito.mock(Connection.class);
+		PreparedStatement updateMock = Mockito.mock(PreparedStatement.class);
+		Mockito.when(entityManagerMock.unwrap(Connection.class)).thenReturn(connectionMock);
+		Mockito.when(connectionMock.prepareStatement(Mockito.anyString())).thenReturn(updateMock);
+		Mockito.when(updateMock.executeBatch()).thenReturn(new int[] { 1, 0 });
+		try {
+			BulkActionResult result = projectService.executeActionOnAll(Lists.newArrayList(1L, 2L, 3L, 4L, 9L), 1L, Lists.newArrayList(7L));
+			Assert.assertEquals(1, result.getSucceeded().size());
+			Assert.assertEquals(new Long(1), result.getSucceeded().get(0).getProjectId());
+			Assert.assertEquals("Review", result.getSucceeded().get(0).getFromStateName());
+			Assert.assertEquals("Approved", result.getSucceeded().get(0).getToStateName());
+			Assert.assertEquals(BulkActionResult.Failure.CONFLICT, result.getFailed().get(2L));
+			Assert.assertEquals(BulkActionResult.Failure.FORBIDDEN, result.getFailed().get(3L));
+			Assert.assertEquals(BulkActionResult.Failure.NO_TRANSITION, result.getFailed().get(4L));
+			Assert.assertEquals(BulkActionResult.Failure.NOT_FOUND, result.getFailed().get(9L));
+			Mockito.verify(updateMock, Mockito.times(1)).executeBatch();
+			Mockito.verify(updateMock, Mockito.times(2)).addBatch();
+			Mockito.verify(updateMock).setObject(4, (Object) Long.valueOf(3L));
+			Mockito.verify(updateMock).setObject(4, (Object) Long.valueOf(0L));
+			Mockito.verify(connectionMock).prepareStatement("UPDATE PROJECT SET CURRENTSTATE_ID = ?, VERSION = COALESCE(VERSION, 0) + 1 "
+					+ "WHERE ID = ? AND CURRENTSTATE_ID = ? AND COALESCE(VERSION, 0) = ?");
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeleteRemovesUnsharedContents() {
+		BlobFileService blobFileService = mock(BlobFileService.class);
+		BlobStoreService blobStoreService = mock(BlobStoreService.class);
+		projectService.setTestBlobFileService(blobFileService);
+		projectService.setTestBlobStoreService(blobStoreService);
+		Mockito.when(blobFileService.selectHashesOnlyOf(projectMockId)).thenReturn(Lists.newArrayList("a1", "b2"));
+		try {
+			projectService.delete(spyProject);
+			Mockito.verify(entityManagerMock).remove(spyProject);
+			Mockito.verify(blobStoreService).delete("a1");
+			Mockito.verify(blobStoreService).delete("b2");
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	private static ProjectSummaryVO summaryOf(long id, String stateName) {
+		return new ProjectSummaryVO(id, "Project " + id, "Description", "Workflow", stateName, "owner");
+	}
 }
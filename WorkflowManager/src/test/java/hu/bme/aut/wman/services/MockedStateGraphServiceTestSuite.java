@@ -0,0 +1,117 @@
+/**
+ * MockedStateGraphServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.graph.GraphNode;
+import hu.bme.aut.wman.model.graph.StateGraph;
+import hu.bme.aut.wman.service.GraphNodeService;
+import hu.bme.aut.wman.service.GraphPositionWriterService;
+import hu.bme.aut.wman.service.StateGraphService;
+import hu.bme.aut.wman.service.StateGraphService.GraphJson;
+import hu.bme.aut.wman.service.TransitionService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class MockedStateGraphServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(MockedStateGraphServiceTestSuite.class);
+
+	private StateGraphService graphService;
+	private EntityManager entityManagerMock;
+	private GraphPositionWriterService positionWriter;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() {
+		graphService = new StateGraphService();
+		entityManagerMock = mock(EntityManager.class);
+		graphService.setEntityManager(entityManagerMock);
+		graphService.setTestTransitionService(mock(TransitionService.class));
+		positionWriter = new GraphPositionWriterService();
+		positionWriter.setGraphNodeService(mock(GraphNodeService.class));
+		graphService.setTestPositionWriter(positionWriter);
+
+		StateGraph graph = new StateGraph(901L);
+		GraphNode node = new GraphNode();
+		node.setLabel("Placed state");
+		node.setX(10);
+		node.setY(20);
+		graph.getPoints().add(node);
+
+		TypedQuery<StateGraph> graphQuery = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(StateGraph.NQ_FIND_BY_WORKFLOW_ID, StateGraph.class)).thenReturn(graphQuery);
+		Mockito.when(graphQuery.getResultList()).thenReturn(new ArrayList<StateGraph>(Lists.newArrayList(graph)));
+	}
+
+	@Test
+	public void testJsonCachedByVersion() {
+		try {
+			GraphJson json = graphService.selectJsonByWorkflowId(901L);
+			Assert.assertEquals(StateGraphService.etagOf(901L), json.getEtag());
+			Assert.assertTrue(new String(json.getBytes(), StandardCharsets.UTF_8).contains("\"label\":\"Placed state\""));
+
+			Assert.assertSame(json, graphService.selectJsonByWorkflowId(901L));
+			Mockito.verify(entityManagerMock, Mockito.times(1)).createNamedQuery(StateGraph.NQ_FIND_BY_WORKFLOW_ID, StateGraph.class);
+
+			graphService.invalidateGraph(901L);
+			GraphJson changed = graphService.selectJsonByWorkflowId(901L);
+			Assert.assertNotEquals(json.getEtag(), changed.getEtag());
+			Mockito.verify(entityManagerMock, Mockito.times(2)).createNamedQuery(StateGraph.NQ_FIND_BY_WORKFLOW_ID, StateGraph.class);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testVersionBumpedByChanges() {
+		try {
+			String etag = StateGraphService.etagOf(902L);
+			Assert.assertEquals(etag, StateGraphService.etagOf(902L));
+			Assert.assertTrue(etag.startsWith("\"902-") && etag.endsWith("\""));
+
+			positionWriter.submit(902L, 1L, 30, 40);
+			String moved = StateGraphService.etagOf(902L);
+			Assert.assertNotEquals(etag, moved);
+
+			new TransitionService().invalidateTransitionTable(902L);
+			Assert.assertNotEquals(moved, StateGraphService.etagOf(902L));
+
+			/* the version of a deleted workflow is dropped after the commit only */
+			TransactionSynchronizationRegistry registry = mock(TransactionSynchronizationRegistry.class);
+			Mockito.when(registry.getTransactionStatus()).thenReturn(Status.STATUS_ACTIVE);
+			graphService.setTestTransactionRegistry(registry);
+			String changed = StateGraphService.etagOf(902L);
+			graphService.evictGraph(902L);
+			Assert.assertEquals(changed, StateGraphService.etagOf(902L));
+			ArgumentCaptor<Synchronization> synchronization = ArgumentCaptor.forClass(Synchronization.class);
+			Mockito.verify(registry).registerInterposedSynchronization(synchronization.capture());
+			synchronization.getValue().afterCompletion(Status.STATUS_COMMITTED);
+			Assert.assertEquals(etag, StateGraphService.etagOf(902L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
@@ -3,6 +3,8 @@
  */
 package hu.bme.aut.wman.services;
 
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import hu.bme.aut.wman.model.ActionType;
 import hu.bme.aut.wman.model.Domain;
@@ -11,18 +13,25 @@ import hu.bme.aut.wman.model.Transition;
 import hu.bme.aut.wman.model.Workflow;
 import hu.bme.aut.wman.model.graph.GraphNode;
 import hu.bme.aut.wman.model.graph.StateGraph;
+import hu.bme.aut.wman.exceptions.EntityNotDeletableException;
+import hu.bme.aut.wman.service.GraphEdgeService;
 import hu.bme.aut.wman.service.GraphNodeService;
+import hu.bme.aut.wman.service.ProjectService;
 import hu.bme.aut.wman.service.StateGraphService;
 import hu.bme.aut.wman.service.StateService;
 import hu.bme.aut.wman.service.TransitionService;
 import hu.bme.aut.wman.service.WorkflowService;
+import hu.bme.aut.wman.services.model.DefaultMappings;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 
 import org.apache.log4j.Logger;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
 import com.google.common.collect.Lists;
@@ -44,15 +53,18 @@ public class MockedStateServiceTestSuite {
 	public void initContext() {
 		stateService = new StateService();
 		entityManagerMock = mock(EntityManager.class);
+		DefaultMappings.install(entityManagerMock);
 		GraphNodeService nodeService = mock(GraphNodeService.class);
 		WorkflowService workflowService = mock(WorkflowService.class);
 		StateGraphService graphService = mock(StateGraphService.class);
 		TransitionService transitionService = mock(TransitionService.class);
+		ProjectService projectService = mock(ProjectService.class);
 		stateService.setEntityManager( entityManagerMock );
 		stateService.setTestNodeService(nodeService);
 		stateService.setTestWorkflowService(workflowService);
 		stateService.setTestGraphService(graphService);
 		stateService.setTestTransitionService(transitionService);
+		stateService.setTestProjectService(projectService);
 
 		State state = new State("Test state", "Description of test state", true);
 		spyState = Mockito.spy(state);
@@ -146,4 +158,73 @@ public class MockedStateServiceTestSuite {
 			Assert.fail();
 		}
 	}
+
+	@Test
+	public void testDeleteRewiresSetBased() {
+		State state = Mockito.spy(new State("Hub state", "Description of hub state", false));
+		Mockito.when(state.getId()).thenReturn(stateMockId);
+		Mockito.when(entityManagerMock.merge(state)).thenReturn(state);
+		TransitionService transitionService = stateService.getTestTransitionService();
+		Mockito.when(transitionService.insertBypasses(stateMockId)).thenReturn(2);
+
+		try {
+			stateService.delete(state);
+			InOrder order = Mockito.inOrder(transitionService, stateService.getTestGraphService(), entityManagerMock);
+			order.verify(transitionService).insertBypasses(stateMockId);
+			order.verify(stateService.getTestGraphService()).deleteNodeOfState(stateMockId);
+			order.verify(transitionService).deleteByStateId(stateMockId);
+			order.verify(entityManagerMock).remove(state);
+			Mockito.verify(transitionService, Mockito.never()).selectByParentId(anyLong());
+			Mockito.verify(transitionService, Mockito.never()).selectByNextStateId(anyLong());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testDeleteStateInUse() {
+		State state = Mockito.spy(new State("Busy state", "Description of busy state", false));
+		Mockito.when(state.getId()).thenReturn(stateMockId);
+		Mockito.when(stateService.getTestProjectService().countByCurrentStateId(stateMockId)).thenReturn(3L);
+
+		try {
+			stateService.delete(state);
+			Assert.fail();
+		} catch(EntityNotDeletableException e) {
+			Mockito.verify(stateService.getTestTransitionService(), Mockito.never()).insertBypasses(stateMockId);
+			Mockito.verify(entityManagerMock, Mockito.never()).remove(state);
+		}
+	}
+
+	@Test
+	public void testInsertBypassesInOneStatement() {
+		TransitionService transitionService = new TransitionService();
+		transitionService.setEntityManager( entityManagerMock );
+		GraphEdgeService edgeService = new GraphEdgeService();
+		edgeService.setEntityManager( entityManagerMock );
+		Query insertQuery = mock(Query.class);
+		Mockito.when(entityManagerMock.createNativeQuery(anyString())).thenReturn(insertQuery);
+		Mockito.when(insertQuery.executeUpdate()).thenReturn(2, 3);
+
+		try {
+			Assert.assertEquals(2, transitionService.insertBypasses(stateMockId));
+			Assert.assertEquals(3, edgeService.insertBypasses(stateMockId));
+			ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+			Mockito.verify(entityManagerMock, Mockito.times(2)).createNativeQuery(sql.capture());
+			/* the existing transitions and edges are not added again, the edges are keyed to the bypassing transitions */
+			Assert.assertTrue(sql.getAllValues().get(0).startsWith("INSERT INTO TRANSITION (PARENTSTATE_ID, ACTIONTYPE_ID, NEXTSTATE_ID) SELECT DISTINCT"));
+			Assert.assertTrue(sql.getAllValues().get(0).contains(" AND NOT EXISTS (SELECT e.ID FROM TRANSITION e WHERE "));
+			Assert.assertTrue(sql.getAllValues().get(1).startsWith("INSERT INTO GRAPHEDGE "));
+			Assert.assertTrue(sql.getAllValues().get(1).contains(" AND n.ID = (SELECT MIN(b.ID) FROM TRANSITION b WHERE "));
+			Assert.assertTrue(sql.getAllValues().get(1).contains(" AND NOT EXISTS (SELECT e.ID FROM GRAPHEDGE e WHERE "));
+			for (int position = 1; position <= 4; ++position) {
+				Mockito.verify(insertQuery, Mockito.times(2)).setParameter(position, stateMockId);
+			}
+			Mockito.verify(insertQuery, Mockito.times(2)).executeUpdate();
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
 }
@@ -0,0 +1,109 @@
+/**
+ * MockedStateSnapshotServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.StateSnapshot;
+import hu.bme.aut.wman.model.TransitionEvent;
+import hu.bme.aut.wman.service.StateSnapshotService;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class MockedStateSnapshotServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( MockedStateSnapshotServiceTestSuite.class );
+
+	/* 2015-01-01, 2015-01-02 and 2015-02-01 UTC */
+	private static final long JANUARY_1 = 1420070400000L;
+	private static final long JANUARY_2 = 1420156800000L;
+	private static final long FEBRUARY_1 = 1422748800000L;
+
+	private StateSnapshotService snapshotService;
+	private EntityManager entityManagerMock;
+	private TypedQuery<Long> maxIdQueryMock;
+	private TypedQuery<StateSnapshot> latestQueryMock;
+	private TypedQuery<Object[]> replayQueryMock;
+	private TypedQuery<Object[]> takenBeforeQueryMock;
+	private Query deleteQueryMock;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() {
+		snapshotService = new StateSnapshotService();
+		entityManagerMock = mock(EntityManager.class);
+		snapshotService.setEntityManager( entityManagerMock );
+
+		maxIdQueryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(TransitionEvent.NQ_FIND_MAX_ID_SETTLED, Long.class)).thenReturn(maxIdQueryMock);
+		latestQueryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(StateSnapshot.NQ_FIND_LATEST, StateSnapshot.class)).thenReturn(latestQueryMock);
+		Mockito.when(latestQueryMock.setMaxResults(Mockito.anyInt())).thenReturn(latestQueryMock);
+		replayQueryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(TransitionEvent.NQ_FIND_TARGETS_AFTER, Object[].class)).thenReturn(replayQueryMock);
+		Mockito.when(replayQueryMock.setMaxResults(Mockito.anyInt())).thenReturn(replayQueryMock);
+		takenBeforeQueryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(StateSnapshot.NQ_FIND_TAKEN_BEFORE, Object[].class)).thenReturn(takenBeforeQueryMock);
+		deleteQueryMock = mock(Query.class);
+		Mockito.when(entityManagerMock.createQuery(anyString())).thenReturn(deleteQueryMock);
+	}
+
+	@Test
+	public void testSnapshotCoversSettledEvents() {
+		Map<Long, Long> states = new HashMap<Long, Long>();
+		states.put(1L, 10L);
+		Mockito.when(latestQueryMock.getResultList()).thenReturn(Lists.newArrayList(new StateSnapshot(new Date(JANUARY_1), 4L, states)));
+		Mockito.when(maxIdQueryMock.getResultList()).thenReturn(Lists.newArrayList(6L));
+		List<Object[]> events = Lists.newArrayList(new Object[] { 5L, 1L, 20L }, new Object[] { 6L, 2L, 10L });
+		Mockito.when(replayQueryMock.getResultList()).thenReturn(events);
+		try {
+			Date settledAt = new Date(JANUARY_2);
+			StateSnapshot snapshot = snapshotService.takeSnapshot(settledAt);
+
+			Mockito.verify(maxIdQueryMock).setParameter("settledAt", settledAt);
+			Mockito.verify(replayQueryMock).setParameter("afterID", 4L);
+			Mockito.verify(replayQueryMock).setParameter("untilID", 6L);
+			Assert.assertEquals(6L, snapshot.getLastEventId());
+			Assert.assertEquals(settledAt, snapshot.getTakenAt());
+			Assert.assertEquals(Long.valueOf(20L), snapshot.stateOf(1L));
+			Assert.assertEquals(Long.valueOf(10L), snapshot.stateOf(2L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testPruneKeepsFirstOfMonth() {
+		List<Object[]> snapshots = Lists.newArrayList(new Object[] { 1L, new Date(JANUARY_1) }, new Object[] { 2L, new Date(JANUARY_2) },
+				new Object[] { 3L, new Date(FEBRUARY_1) }, new Object[] { 4L, new Date(FEBRUARY_1 + 1000L) });
+		Mockito.when(takenBeforeQueryMock.getResultList()).thenReturn(snapshots);
+		Mockito.when(deleteQueryMock.executeUpdate()).thenReturn(2);
+		try {
+			Assert.assertEquals(2, snapshotService.prune(new Date(FEBRUARY_1 + 2000L)));
+			Mockito.verify(deleteQueryMock).setParameter("ids", Lists.newArrayList(2L, 4L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
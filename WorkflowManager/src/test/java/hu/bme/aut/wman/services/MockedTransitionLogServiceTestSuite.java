@@ -0,0 +1,126 @@
+/**
+ * MockedTransitionLogServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.StateSnapshot;
+import hu.bme.aut.wman.model.TransitionEvent;
+import hu.bme.aut.wman.service.StateSnapshotService;
+import hu.bme.aut.wman.service.TransitionLogService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class MockedTransitionLogServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( MockedTransitionLogServiceTestSuite.class );
+
+	private static final Date AT = new Date(1000000L);
+
+	private TransitionLogService transitionLog;
+	private StateSnapshotService snapshotService;
+	private EntityManager entityManagerMock;
+	private TypedQuery<Long> targetQueryMock;
+	private TypedQuery<Object[]> replayQueryMock;
+	private StateSnapshot snapshot;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() {
+		transitionLog = new TransitionLogService();
+		entityManagerMock = mock(EntityManager.class);
+		transitionLog.setEntityManager( entityManagerMock );
+		snapshotService = mock(StateSnapshotService.class);
+		transitionLog.setSnapshotService( snapshotService );
+
+		targetQueryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createQuery(anyString(), eq(Long.class))).thenReturn(targetQueryMock);
+		Mockito.when(targetQueryMock.setMaxResults(Mockito.anyInt())).thenReturn(targetQueryMock);
+		replayQueryMock = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(TransitionEvent.NQ_FIND_TARGETS_AFTER_AT, Object[].class)).thenReturn(replayQueryMock);
+		Mockito.when(replayQueryMock.setMaxResults(Mockito.anyInt())).thenReturn(replayQueryMock);
+
+		Map<Long, Long> states = new HashMap<Long, Long>();
+		states.put(3L, 20L);
+		states.put(1L, 10L);
+		states.put(2L, 10L);
+		snapshot = new StateSnapshot(new Date(500000L), 4L, states);
+	}
+
+	@Test
+	public void testStateAtFromLastEvent() {
+		Mockito.when(targetQueryMock.getResultList()).thenReturn(Lists.newArrayList(30L));
+		try {
+			Assert.assertEquals(Long.valueOf(30L), transitionLog.stateIdAt(1L, AT));
+			Mockito.verify(targetQueryMock).setParameter("projectID", 1L);
+			Mockito.verify(targetQueryMock).setParameter("at", AT);
+			Mockito.verify(snapshotService, Mockito.never()).selectLatestAt(Mockito.any(Date.class));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testStateAtFromSnapshot() {
+		Mockito.when(targetQueryMock.getResultList()).thenReturn(new ArrayList<Long>());
+		Mockito.when(snapshotService.selectLatestAt(AT)).thenReturn(snapshot);
+		try {
+			Assert.assertEquals(Long.valueOf(20L), transitionLog.stateIdAt(3L, AT));
+			Assert.assertNull(transitionLog.stateIdAt(9L, AT));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testProjectsInStateReplayedOntoSnapshot() {
+		Mockito.when(snapshotService.selectLatestAt(AT)).thenReturn(snapshot);
+		List<Object[]> events = Lists.newArrayList(new Object[] { 5L, 2L, 20L }, new Object[] { 6L, 3L, 10L }, new Object[] { 7L, 4L, 10L });
+		Mockito.when(replayQueryMock.getResultList()).thenReturn(events);
+		try {
+			Assert.assertEquals(Arrays.asList(1L, 3L, 4L), transitionLog.projectIdsInStateAt(10L, AT));
+			Mockito.verify(replayQueryMock).setParameter("afterID", 4L);
+			Mockito.verify(replayQueryMock).setParameter("at", AT);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testSnapshotRoundTrip() {
+		try {
+			Assert.assertEquals(3, snapshot.getProjectCount());
+			Assert.assertEquals(Arrays.asList(1L, 2L), snapshot.projectIdsIn(10L));
+			Assert.assertEquals(Long.valueOf(10L), snapshot.stateOf(1L));
+			Assert.assertNull(snapshot.stateOf(0L));
+			Assert.assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<Long>(snapshot.toMap().keySet()));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
@@ -18,6 +18,21 @@ import org.junit.runners.Suite.SuiteClasses;
 	MockedWorkflowServiceTestSuite.class,
 	MockedStateServiceTestSuite.class,
 	MockedProjectServiceTestSuite.class,
+	MockedProjectCommandsTestSuite.class,
+	MockedTransitionLogServiceTestSuite.class,
+	MockedStateSnapshotServiceTestSuite.class,
+	MockedHistoryEntryServiceTestSuite.class,
+	HistoryWriterServiceTestSuite.class,
+	HistoryArchiveServiceTestSuite.class,
+	MockedBlobFileServiceTestSuite.class,
+	BlobStoreServiceTestSuite.class,
+	TransitionTableTestSuite.class,
+	WorkflowAnalysisTestSuite.class,
+	GraphLayoutTestSuite.class,
+	GraphPositionWriterServiceTestSuite.class,
+	MockedStateGraphServiceTestSuite.class,
+	WorkflowExchangeTestSuite.class,
+	WorkflowAnalyticsServiceTestSuite.class,
 	MockedAbstractDataServiceTestSuite.class
 })
 public class ServicesTestLayer {
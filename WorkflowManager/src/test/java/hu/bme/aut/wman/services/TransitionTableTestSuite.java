@@ -0,0 +1,64 @@
+/**
+ * TransitionTableTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import hu.bme.aut.wman.service.TransitionTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class TransitionTableTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(TransitionTableTestSuite.class);
+
+	private List<Object[]> transitions;
+
+	@Before
+	public void initContext() {
+		transitions = new ArrayList<Object[]>();
+		transitions.add(new Object[] { 10L, 1L, 11L });
+		transitions.add(new Object[] { 11L, 2L, 12L });
+		transitions.add(new Object[] { 11L, 3L, 10L });
+		transitions.add(new Object[] { 12L, 3L, 10L });
+	}
+
+	@Test
+	public void testLookup() {
+		try {
+			TransitionTable table = TransitionTable.compile(5L, 7L, transitions);
+			Assert.assertEquals(new Long(11), table.nextStateIdOf(10L, 1L));
+			Assert.assertEquals(new Long(12), table.nextStateIdOf(11L, 2L));
+			Assert.assertEquals(new Long(10), table.nextStateIdOf(11L, 3L));
+			Assert.assertEquals(new Long(10), table.nextStateIdOf(12L, 3L));
+			Assert.assertEquals(4, table.size());
+			Assert.assertEquals(new Long(5), table.getWorkflowId());
+			Assert.assertEquals(7L, table.getVersion());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testMissingTransitions() {
+		try {
+			TransitionTable table = TransitionTable.compile(5L, 0L, transitions);
+			Assert.assertNull(table.nextStateIdOf(10L, 2L));
+			Assert.assertNull(table.nextStateIdOf(99L, 1L));
+			Assert.assertNull(table.nextStateIdOf(10L, 99L));
+			Assert.assertNull(TransitionTable.compile(5L, 0L, new ArrayList<Object[]>()).nextStateIdOf(10L, 1L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * WorkflowAnalysisTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import hu.bme.aut.wman.service.WorkflowAnalysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class WorkflowAnalysisTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(WorkflowAnalysisTestSuite.class);
+
+	private long[] stateIds;
+	private List<Object[]> transitions;
+
+	@Before
+	public void initContext() {
+		/* 10 -> 11 <-> 12 -> 13, 14 is unreachable, 15 <-> 16 never ends, 11 has an ambiguous action */
+		stateIds = new long[] { 10L, 11L, 12L, 13L, 14L, 15L, 16L };
+		transitions = new ArrayList<Object[]>();
+		transitions.add(new Object[] { 10L, 1L, 11L });
+		transitions.add(new Object[] { 11L, 2L, 12L });
+		transitions.add(new Object[] { 12L, 3L, 11L });
+		transitions.add(new Object[] { 12L, 2L, 13L });
+		transitions.add(new Object[] { 14L, 1L, 13L });
+		transitions.add(new Object[] { 11L, 4L, 15L });
+		transitions.add(new Object[] { 11L, 4L, 16L });
+		transitions.add(new Object[] { 15L, 1L, 16L });
+		transitions.add(new Object[] { 16L, 1L, 15L });
+	}
+
+	@Test
+	public void testReport() {
+		try {
+			WorkflowAnalysis analysis = WorkflowAnalysis.analyze(5L, 3L, stateIds, 10L, transitions);
+			Assert.assertEquals(7, analysis.getStateCount());
+			Assert.assertEquals(9, analysis.getTransitionCount());
+			Assert.assertEquals(Arrays.asList(14L), analysis.getUnreachableStateIds());
+			Assert.assertEquals(Arrays.asList(13L), analysis.getTerminalStateIds());
+			Assert.assertEquals(Arrays.asList(15L, 16L), analysis.getDeadEndStateIds());
+			Assert.assertEquals(1, analysis.getAmbiguousActions().size());
+			Assert.assertEquals(Long.valueOf(11L), analysis.getAmbiguousActions().get(0).getStateId());
+			Assert.assertEquals(Arrays.asList(15L, 16L), analysis.getAmbiguousActions().get(0).getNextStateIds());
+			Assert.assertEquals(5, analysis.getComponentCount());
+			Assert.assertEquals(2, analysis.getCycles().size());
+			Assert.assertTrue(analysis.getCycles().contains(Arrays.asList(11L, 12L)));
+			Assert.assertTrue(analysis.getCycles().contains(Arrays.asList(15L, 16L)));
+			Assert.assertFalse(analysis.isValid());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testValidWorkflow() {
+		try {
+			List<Object[]> valid = new ArrayList<Object[]>(transitions.subList(0, 4));
+			WorkflowAnalysis analysis = WorkflowAnalysis.analyze(5L, 3L, new long[] { 10L, 11L, 12L, 13L }, 10L, valid);
+			Assert.assertTrue(analysis.isValid());
+			Assert.assertFalse(WorkflowAnalysis.analyze(5L, 3L, new long[] { 10L, 11L, 12L, 13L }, null, valid).isValid());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testLongChainWithoutRecursion() {
+		int n = 200000;
+		long[] chain = new long[n];
+		List<Object[]> links = new ArrayList<Object[]>(n);
+		for (int i = 0; i < n; ++i) {
+			chain[i] = i + 1;
+			links.add(new Object[] { (long) i + 1, 1L, (long) ((i + 1) % n) + 1 });
+		}
+		try {
+			WorkflowAnalysis analysis = WorkflowAnalysis.analyze(5L, 1L, chain, 1L, links);
+			Assert.assertEquals(1, analysis.getComponentCount());
+			Assert.assertEquals(n, analysis.getCycles().get(0).size());
+			Assert.assertTrue(analysis.getUnreachableStateIds().isEmpty());
+			Assert.assertEquals(n, analysis.getDeadEndStateIds().size());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * WorkflowAnalyticsServiceTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.service.TransitionColumns;
+import hu.bme.aut.wman.service.TransitionLogService;
+import hu.bme.aut.wman.service.TransitionService;
+import hu.bme.aut.wman.service.TransitionTable;
+import hu.bme.aut.wman.service.WorkflowAnalytics;
+import hu.bme.aut.wman.service.WorkflowAnalyticsService;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class WorkflowAnalyticsServiceTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( WorkflowAnalyticsServiceTestSuite.class );
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private WorkflowAnalyticsService analyticsService;
+	private TransitionLogService transitionLogMock;
+	private TransitionService transitionServiceMock;
+	private TransitionTable table;
+	private Path checkpoint;
+
+	@Before
+	public void initContext() {
+		List<Object[]> transitions = new ArrayList<Object[]>();
+		transitions.add(new Object[] { 10L, 1L, 11L });
+		transitions.add(new Object[] { 11L, 2L, 12L });
+		table = TransitionTable.compile(5L, 1L, transitions);
+
+		transitionServiceMock = mock(TransitionService.class);
+		Mockito.when(transitionServiceMock.transitionTableOf(5L)).thenReturn(table);
+		transitionLogMock = mock(TransitionLogService.class);
+
+		checkpoint = folder.getRoot().toPath().resolve("analytics.checkpoint");
+		analyticsService = newAnalyticsService();
+	}
+
+	@Test
+	public void testBackfillThenIncrement() {
+		Mockito.when(transitionLogMock.selectBounds()).thenReturn(new long[] { 1L, 2L, 4L });
+		List<Object[]> backfill = Lists.newArrayList(
+				new Object[] { 1L, 1L, 5L, null, 10L, new Date(0L) },
+				new Object[] { 3L, 1L, 5L, 10L, 11L, new Date(1000L) },
+				new Object[] { 4L, 1L, 5L, 11L, 12L, new Date(3000L) },
+				new Object[] { 2L, 2L, 5L, null, 10L, new Date(0L) });
+		Mockito.when(transitionLogMock.selectFlowsOfProjects(1L, 1L + WorkflowAnalyticsService.PROJECT_SPAN, 4L)).thenReturn(backfill);
+		List<Object[]> increment = new ArrayList<Object[]>();
+		increment.add(new Object[] { 5L, 2L, 5L, 10L, 11L, new Date(5000L) });
+		Mockito.when(transitionLogMock.selectFlowsAfter(eq(4L), any(Date.class), Mockito.anyInt())).thenReturn(increment);
+		try {
+			Assert.assertEquals(Boolean.FALSE, analyticsService.summaryOf(5L).get("ready"));
+			analyticsService.refresh();
+			Assert.assertEquals(4L, analyticsService.statistics().get("events"));
+			Mockito.verify(transitionLogMock, Mockito.never()).selectFlowsAfter(anyLong(), any(Date.class), Mockito.anyInt());
+
+			analyticsService.refresh();
+			Map<String, Object> summary = analyticsService.summaryOf(5L);
+			Assert.assertEquals(Boolean.TRUE, summary.get("ready"));
+			Map<?, ?> states = (Map<?, ?>) summary.get("timeInState");
+			Assert.assertEquals(2L, ((Map<?, ?>) states.get("10")).get("count"));
+			Assert.assertEquals(3000L, ((Map<?, ?>) states.get("10")).get("averageMillis"));
+			Assert.assertEquals(2000L, ((Map<?, ?>) states.get("11")).get("averageMillis"));
+			Assert.assertEquals(1L, ((Map<?, ?>) summary.get("cycleTime")).get("count"));
+			Assert.assertEquals(3000L, ((Map<?, ?>) summary.get("cycleTime")).get("averageMillis"));
+			Assert.assertEquals(1, analyticsService.statistics().get("openProjects"));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testRestartRestoresCheckpoint() {
+		Mockito.when(transitionLogMock.selectBounds()).thenReturn(new long[] { 1L, 2L, 4L });
+		List<Object[]> backfill = Lists.newArrayList(
+				new Object[] { 1L, 1L, 5L, null, 10L, new Date(0L) },
+				new Object[] { 3L, 1L, 5L, 10L, 11L, new Date(1000L) },
+				new Object[] { 2L, 2L, null, null, 10L, new Date(0L) });
+		Mockito.when(transitionLogMock.selectFlowsOfProjects(1L, 1L + WorkflowAnalyticsService.PROJECT_SPAN, 4L)).thenReturn(backfill);
+		List<Object[]> increment = new ArrayList<Object[]>();
+		increment.add(new Object[] { 5L, 1L, 5L, 11L, 12L, new Date(3000L) });
+		Mockito.when(transitionLogMock.selectFlowsAfter(eq(4L), any(Date.class), Mockito.anyInt())).thenReturn(increment);
+		try {
+			/* the event of the project without a workflow is skipped */
+			analyticsService.refresh();
+			Assert.assertEquals(2L, analyticsService.statistics().get("events"));
+
+			WorkflowAnalyticsService restarted = newAnalyticsService();
+			restarted.refresh();
+			Mockito.verify(transitionLogMock, Mockito.times(1)).selectFlowsOfProjects(anyLong(), anyLong(), anyLong());
+			Assert.assertEquals(Boolean.TRUE, restarted.summaryOf(5L).get("ready"));
+			Assert.assertEquals(2L, restarted.statistics().get("events"));
+
+			/* the events applied after the checkpoint are saved on shutdown */
+			restarted.refresh();
+			restarted.close();
+			Mockito.verify(transitionLogMock, Mockito.times(1)).selectFlowsAfter(eq(4L), any(Date.class), Mockito.anyInt());
+			Mockito.when(transitionLogMock.selectBounds()).thenReturn(new long[] { 1L, 2L, 5L });
+			WorkflowAnalyticsService again = newAnalyticsService();
+			again.refresh();
+			Assert.assertEquals(3L, again.statistics().get("events"));
+			Assert.assertEquals(1L, ((Map<?, ?>) again.summaryOf(5L).get("cycleTime")).get("count"));
+			Mockito.verify(transitionLogMock, Mockito.times(1)).selectFlowsOfProjects(anyLong(), anyLong(), anyLong());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testCheckpointAheadOfLogIsDiscarded() {
+		Mockito.when(transitionLogMock.selectBounds()).thenReturn(new long[] { 1L, 2L, 4L });
+		Mockito.when(transitionLogMock.selectFlowsOfProjects(anyLong(), anyLong(), anyLong())).thenReturn(new ArrayList<Object[]>());
+		try {
+			analyticsService.refresh();
+			Mockito.when(transitionLogMock.selectBounds()).thenReturn(null);
+			newAnalyticsService().refresh();
+			Mockito.verify(transitionLogMock, Mockito.times(1)).selectFlowsOfProjects(anyLong(), anyLong(), anyLong());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testForkJoinEqualsSequential() {
+		TransitionColumns columns = new TransitionColumns(16);
+		WorkflowAnalytics sequential = new WorkflowAnalytics();
+		for (long project = 1; project <= 12000; ++project) {
+			long createdAt = project * 7;
+			long enteredAt = createdAt + (project % 97) * 1000;
+			long closedAt = enteredAt + (project % 13) * 60000;
+			columns.add(project, 5L, null, 10L, createdAt, false);
+			sequential.apply(project, 5L, null, 10L, createdAt, false);
+			columns.add(project, 5L, 10L, 11L, enteredAt, false);
+			sequential.apply(project, 5L, 10L, 11L, enteredAt, false);
+			if (project % 3 != 0) {
+				columns.add(project, 5L, 11L, 12L, closedAt, true);
+				sequential.apply(project, 5L, 11L, 12L, closedAt, true);
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			WorkflowAnalytics parallel = WorkflowAnalytics.aggregate(columns, pool);
+			Assert.assertEquals(columns.size(), parallel.getEventCount());
+			Assert.assertEquals(4000, parallel.getOpenProjectCount());
+			Assert.assertEquals(sequential.summaryOf(5L), parallel.summaryOf(5L));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private WorkflowAnalyticsService newAnalyticsService() {
+		WorkflowAnalyticsService service = new WorkflowAnalyticsService(checkpoint);
+		service.setTransitionLogService( transitionLogMock );
+		service.setTransitionService( transitionServiceMock );
+		return service;
+	}
+}
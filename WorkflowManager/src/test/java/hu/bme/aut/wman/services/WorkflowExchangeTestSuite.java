@@ -0,0 +1,349 @@
+/**
+ * WorkflowExchangeTestSuite.java
+ */
+package hu.bme.aut.wman.services;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.exceptions.WorkflowImportException;
+import hu.bme.aut.wman.model.ActionType;
+import hu.bme.aut.wman.model.Domain;
+import hu.bme.aut.wman.model.State;
+import hu.bme.aut.wman.service.ActionTypeService;
+import hu.bme.aut.wman.service.DomainService;
+import hu.bme.aut.wman.service.StateGraphService;
+import hu.bme.aut.wman.service.TransitionService;
+import hu.bme.aut.wman.service.WorkflowExchange;
+import hu.bme.aut.wman.service.WorkflowExchange.Format;
+import hu.bme.aut.wman.service.WorkflowExchange.Handler;
+import hu.bme.aut.wman.service.WorkflowExchange.Output;
+import hu.bme.aut.wman.service.WorkflowExchangeService;
+import hu.bme.aut.wman.services.model.DefaultMappings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class WorkflowExchangeTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger(WorkflowExchangeTestSuite.class);
+
+	private WorkflowExchangeService exchangeService;
+	private EntityManager entityManagerMock;
+	private ActionTypeService actionTypeServiceMock;
+	private Query stateInsert;
+	private TypedQuery<Object[]> stateIdQuery;
+	private PreparedStatement stateRename;
+	private Query transitionInsert;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void initContext() throws SQLException {
+		exchangeService = new WorkflowExchangeService();
+		entityManagerMock = mock(EntityManager.class);
+		DefaultMappings.install(entityManagerMock);
+		exchangeService.setEntityManager(entityManagerMock);
+		exchangeService.setBatchSize(2);
+		DomainService domainServiceMock = mock(DomainService.class);
+		Mockito.when(domainServiceMock.selectByName("System")).thenReturn(new Domain("System"));
+		exchangeService.setTestDomainService(domainServiceMock);
+		actionTypeServiceMock = mock(ActionTypeService.class);
+		exchangeService.setTestActionTypeService(actionTypeServiceMock);
+		exchangeService.setTestGraphService(mock(StateGraphService.class));
+		exchangeService.setTestTransitionService(mock(TransitionService.class));
+
+		TypedQuery<Object[]> actionQuery = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(ActionType.NQ_FIND_NAMES_BY_DOMAIN_ID, Object[].class)).thenReturn(actionQuery);
+		List<Object[]> actions = new ArrayList<Object[]>();
+		actions.add(new Object[] { 7L, "Approve" });
+		actions.add(new Object[] { 8L, "Reject" });
+		Mockito.when(actionQuery.getResultList()).thenReturn(actions);
+
+		/* the ids are not assigned in the order of the rows */
+		stateIdQuery = mock(TypedQuery.class);
+		Mockito.when(entityManagerMock.createNamedQuery(State.NQ_FIND_IDS_BY_NAME_PREFIX, Object[].class)).thenReturn(stateIdQuery);
+		List<Object[]> states = new ArrayList<Object[]>();
+		states.add(new Object[] { 103L, WorkflowExchangeService.PENDING_STATE_NAME + 2 });
+		states.add(new Object[] { 101L, WorkflowExchangeService.PENDING_STATE_NAME + 0 });
+		states.add(new Object[] { 102L, WorkflowExchangeService.PENDING_STATE_NAME + 1 });
+		Mockito.when(stateIdQuery.getResultList()).thenReturn(states);
+
+		stateRename = mock(PreparedStatement.class);
+		Mockito.when(stateRename.executeBatch()).thenReturn(new int[] { 1, 1 }, new int[] { 1 });
+		Connection connection = mock(Connection.class);
+		Mockito.when(connection.prepareStatement(startsWith("UPDATE STATE SET NAME = ? WHERE ID = ?"))).thenReturn(stateRename);
+		Mockito.when(entityManagerMock.unwrap(Connection.class)).thenReturn(connection);
+
+		stateInsert = mock(Query.class);
+		transitionInsert = mock(Query.class);
+		Query otherInsert = mock(Query.class);
+		Mockito.when(entityManagerMock.createNativeQuery(anyString())).thenReturn(otherInsert);
+		Mockito.when(entityManagerMock.createNativeQuery(startsWith("INSERT INTO STATE "))).thenReturn(stateInsert);
+		Mockito.when(entityManagerMock.createNativeQuery(startsWith("INSERT INTO TRANSITION "))).thenReturn(transitionInsert);
+	}
+
+	@Test
+	public void testJsonRoundTrip() {
+		try {
+			byte[] document = write(Format.JSON);
+			String json = new String(document, StandardCharsets.UTF_8);
+			Assert.assertTrue(json.startsWith("{\"format\":\"wman-workflow\",\"version\":2,\"workflow\":{"));
+			Assert.assertEquals(recorded(), read(Format.JSON, document));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testBinaryRoundTrip() {
+		try {
+			byte[] document = write(Format.BINARY);
+			Assert.assertEquals(WorkflowExchange.MAGIC >>> 24, document[0]);
+			Assert.assertEquals(recorded(), read(Format.BINARY, document));
+			Assert.assertSame(Format.BINARY, Format.of("wmwf"));
+			Assert.assertSame(Format.JSON, Format.of(null));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testMissingSectionsAndUnknownFields() {
+		try {
+			String json = "{\"format\":\"wman-workflow\",\"version\":1,\"comment\":[1,{\"x\":2}],"
+					+ "\"workflow\":{\"name\":\"Imported flow\",\"description\":null},"
+					+ "\"states\":[{\"ref\":1,\"name\":\"Start\",\"initial\":true}]}";
+			List<String> items = read(Format.JSON, json.getBytes(StandardCharsets.UTF_8));
+			Assert.assertEquals(Lists.newArrayList("workflow Imported flow null null", "state 1 Start null true -1 -1"), items);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testOrderAndVersionChecked() {
+		assertUnreadable("{\"format\":\"wman-workflow\",\"version\":3,\"workflow\":{\"name\":\"Future flow\"}}");
+		assertUnreadable("{\"format\":\"wman-workflow\",\"version\":1,\"states\":[]}");
+		assertUnreadable("{\"format\":\"wman-workflow\",\"version\":1,\"workflow\":{\"name\":\"Some flow\"},"
+				+ "\"transitions\":[{\"from\":1,\"action\":2,\"to\":1}],\"states\":[{\"ref\":1,\"name\":\"Start\"}]}");
+		assertUnreadable("{\"format\":\"wman-workflow\",\"version\":1,\"workflow\":{\"name\":\"Some flow\"},"
+				+ "\"transitions\":[{\"from\":1,\"to\":1}]}");
+
+		try {
+			Output output = WorkflowExchange.outputOf(Format.JSON, new ByteArrayOutputStream());
+			output.workflow("Some flow", null, null);
+			output.transition(1, 2, 1);
+			output.state(1, "Start", null, true, 0, 0);
+			Assert.fail();
+		} catch(IOException e) {
+			LOGGER.info(e.getMessage());
+		}
+	}
+
+	@Test
+	public void testImport() {
+		try {
+			Long workflowId = exchangeService.importWorkflow(Format.JSON, new ByteArrayInputStream(write(Format.JSON)), "System");
+			Assert.assertNull(workflowId);
+
+			/* the states in two statements of at most 2 rows, renamed by their ids, the transitions in one, referring to them */
+			Mockito.verify(stateInsert, Mockito.times(2)).executeUpdate();
+			Mockito.verify(stateInsert).setParameter(1, (Object) (WorkflowExchangeService.PENDING_STATE_NAME + 0));
+			Mockito.verify(stateIdQuery).setParameter("prefix", WorkflowExchangeService.PENDING_STATE_NAME + "%");
+			Mockito.verify(stateRename, Mockito.times(2)).executeBatch();
+			Mockito.verify(stateRename).setObject(1, "Start");
+			Mockito.verify(stateRename).setObject(2, 101L);
+			Mockito.verify(stateRename).setObject(1, "Rejected");
+			Mockito.verify(stateRename).setObject(2, 103L);
+			Mockito.verify(transitionInsert, Mockito.times(1)).executeUpdate();
+			Mockito.verify(transitionInsert).setParameter(1, (Object) Long.valueOf(101L));
+			Mockito.verify(transitionInsert).setParameter(2, (Object) Long.valueOf(7L));
+			Mockito.verify(transitionInsert).setParameter(3, (Object) Long.valueOf(102L));
+			Mockito.verify(transitionInsert).setParameter(6, (Object) Long.valueOf(103L));
+			Mockito.verify(entityManagerMock).createNativeQuery(startsWith("INSERT INTO GRAPHEDGE "));
+			Mockito.verify(actionTypeServiceMock, Mockito.never()).saveAll(Matchers.<Collection<ActionType>> any());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testImportRejectsUndefinedState() {
+		String json = "{\"format\":\"wman-workflow\",\"version\":1,\"workflow\":{\"name\":\"Broken flow\",\"domain\":\"System\"},"
+				+ "\"actionTypes\":[{\"ref\":1,\"name\":\"Approve\"}],"
+				+ "\"states\":[{\"ref\":1,\"name\":\"Start\",\"initial\":true},{\"ref\":2,\"name\":\"Middle\"},{\"ref\":3,\"name\":\"End\"}],"
+				+ "\"transitions\":[{\"from\":1,\"action\":1,\"to\":5}]}";
+		try {
+			exchangeService.importWorkflow(Format.JSON, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), null);
+			Assert.fail();
+		} catch(IllegalArgumentException e) {
+			Assert.assertEquals("The state 5 is not defined", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testImportFailsOnUnknownState() {
+		List<Object[]> states = new ArrayList<Object[]>();
+		states.add(new Object[] { 101L, WorkflowExchangeService.PENDING_STATE_NAME + 0 });
+		states.add(new Object[] { 102L, WorkflowExchangeService.PENDING_STATE_NAME + 0 });
+		states.add(new Object[] { 103L, "Start" });
+		Mockito.when(stateIdQuery.getResultList()).thenReturn(states);
+		try {
+			exchangeService.importWorkflow(Format.JSON, new ByteArrayInputStream(write(Format.JSON)), "System");
+			Assert.fail();
+		} catch(IllegalStateException e) {
+			LOGGER.info(e.getMessage());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testImportRejectsUnreadableDocument() {
+		try {
+			exchangeService.importWorkflow(Format.BINARY, new ByteArrayInputStream(new byte[] { 1, 2, 3 }), "System");
+			Assert.fail();
+		} catch(WorkflowImportException e) {
+			Assert.assertEquals("The document is not a readable workflow in the BINARY format", e.getMessage());
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testBinaryLongStrings() {
+		try {
+			/* longer than the 65535 bytes of modified UTF-8 */
+			String description = Strings.repeat("\u00e1rv\u00edzt\u0171r\u0151 ", 10000);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Output output = WorkflowExchange.outputOf(Format.BINARY, out);
+			output.workflow("Long flow", description, null);
+			output.state(1, "Start", description, true, 0, 0);
+			output.close();
+
+			List<String> items = read(Format.BINARY, out.toByteArray());
+			Assert.assertEquals(Lists.newArrayList("workflow Long flow " + description + " null", "state 1 Start " + description + " true 0 0"),
+					items);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testBinaryVersion1Readable() {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(WorkflowExchange.MAGIC);
+			data.writeShort(1);
+			data.writeByte(1);
+			data.writeUTF("Old flow");
+			data.writeBoolean(false);
+			data.writeBoolean(true);
+			data.writeUTF("System");
+			data.writeByte(3);
+			data.writeLong(1);
+			data.writeUTF("Start");
+			data.writeBoolean(false);
+			data.writeBoolean(true);
+			data.writeInt(10);
+			data.writeInt(20);
+			data.writeByte(0);
+			data.flush();
+
+			Assert.assertEquals(Lists.newArrayList("workflow Old flow null System", "state 1 Start null true 10 20"),
+					read(Format.BINARY, out.toByteArray()));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	private static byte[] write(Format format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Output output = WorkflowExchange.outputOf(format, out);
+		output.workflow("Review flow", "Reviews the documents submitted.", "System");
+		output.actionType(7, "Approve");
+		output.actionType(8, "Reject");
+		output.state(1, "Start", "Submitted for review", true, 40, 40);
+		output.state(2, "Approved", null, false, -1, -1);
+		output.state(3, "Rejected", "Sent back", false, 220, 180);
+		output.transition(1, 7, 2);
+		output.transition(1, 8, 3);
+		output.close();
+		return out.toByteArray();
+	}
+
+	private static List<String> recorded() {
+		return Lists.newArrayList("workflow Review flow Reviews the documents submitted. System", "action 7 Approve", "action 8 Reject",
+				"state 1 Start Submitted for review true 40 40", "state 2 Approved null false -1 -1", "state 3 Rejected Sent back false 220 180",
+				"transition 1 7 2", "transition 1 8 3");
+	}
+
+	private static List<String> read(Format format, byte[] document) throws IOException {
+		final List<String> items = new ArrayList<String>();
+		WorkflowExchange.read(format, new ByteArrayInputStream(document), new Handler() {
+
+			@Override
+			public void workflow(String name, String description, String domain) {
+				items.add("workflow " + name + " " + description + " " + domain);
+			}
+
+			@Override
+			public void actionType(long ref, String name) {
+				items.add("action " + ref + " " + name);
+			}
+
+			@Override
+			public void state(long ref, String name, String description, boolean initial, int x, int y) {
+				items.add("state " + ref + " " + name + " " + description + " " + initial + " " + x + " " + y);
+			}
+
+			@Override
+			public void transition(long fromRef, long actionRef, long toRef) {
+				items.add("transition " + fromRef + " " + actionRef + " " + toRef);
+			}
+		});
+		return items;
+	}
+
+	private static void assertUnreadable(String json) {
+		try {
+			read(Format.JSON, json.getBytes(StandardCharsets.UTF_8));
+			Assert.fail();
+		} catch(IOException e) {
+			LOGGER.info(e.getMessage());
+		}
+	}
+}
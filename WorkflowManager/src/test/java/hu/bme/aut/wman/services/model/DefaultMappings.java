@@ -0,0 +1,106 @@
+/**
+ * DefaultMappings.java
+ */
+package hu.bme.aut.wman.services.model;
+
+import static org.mockito.Mockito.mock;
+import hu.bme.aut.wman.model.AbstractEntity;
+
+import java.util.Locale;
+
+import javax.persistence.EntityManager;
+
+import org.apache.openjpa.jdbc.conf.JDBCConfiguration;
+import org.apache.openjpa.jdbc.identifier.DBIdentifier;
+import org.apache.openjpa.jdbc.meta.ClassMapping;
+import org.apache.openjpa.jdbc.meta.FieldMapping;
+import org.apache.openjpa.jdbc.meta.MappingRepository;
+import org.apache.openjpa.jdbc.schema.Column;
+import org.apache.openjpa.jdbc.schema.Table;
+import org.apache.openjpa.jdbc.sql.DBDictionary;
+import org.apache.openjpa.persistence.OpenJPAEntityManager;
+import org.apache.openjpa.persistence.OpenJPAEntityManagerFactorySPI;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Makes a mocked <code>EntityManager</code> answer the mapping of the entities by the defaults of OpenJPA: the table
+ * named after the entity, the columns after the fields, the relations after their foreign keys, all in upper case.
+ * The native SQL built by the services can be checked this way without a database.
+ *
+ * @version "%I%, %G%"
+ */
+public final class DefaultMappings {
+
+	private DefaultMappings() {
+	}
+
+	/**
+	 * @param entityManagerMock
+	 *            stubbed to be unwrapped to an OpenJPA entity manager of the default mappings
+	 */
+	public static void install(EntityManager entityManagerMock) {
+		MappingRepository repository = mock(MappingRepository.class);
+		Mockito.when(repository.getMapping(Matchers.any(Class.class), Matchers.any(ClassLoader.class), Matchers.anyBoolean()))
+				.thenAnswer(new Answer<ClassMapping>() {
+
+					@Override
+					public ClassMapping answer(InvocationOnMock invocation) throws Throwable {
+						return mappingOf((Class<?>) invocation.getArguments()[0]);
+					}
+				});
+
+		DBDictionary dictionary = mock(DBDictionary.class);
+		Mockito.when(dictionary.toDBName(Matchers.any(DBIdentifier.class))).thenAnswer(new Answer<String>() {
+
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				return ((DBIdentifier) invocation.getArguments()[0]).getName();
+			}
+		});
+
+		JDBCConfiguration conf = mock(JDBCConfiguration.class);
+		Mockito.when(conf.getMappingRepositoryInstance()).thenReturn(repository);
+		Mockito.when(conf.getDBDictionaryInstance()).thenReturn(dictionary);
+		/* the caches evicted by the bulk statements are mocks as well */
+		OpenJPAEntityManagerFactorySPI factory = mock(OpenJPAEntityManagerFactorySPI.class, Mockito.RETURNS_MOCKS);
+		Mockito.when(factory.getConfiguration()).thenReturn(conf);
+		OpenJPAEntityManager openJPAEm = mock(OpenJPAEntityManager.class);
+		Mockito.when(openJPAEm.getEntityManagerFactory()).thenReturn(factory);
+		Mockito.when(entityManagerMock.unwrap(OpenJPAEntityManager.class)).thenReturn(openJPAEm);
+	}
+
+	private static ClassMapping mappingOf(final Class<?> entityClass) {
+		final Table table = new Table(DBIdentifier.newTable(entityClass.getSimpleName().toUpperCase(Locale.ENGLISH)), null);
+		ClassMapping mapping = mock(ClassMapping.class);
+		Mockito.when(mapping.getTable()).thenReturn(table);
+		Mockito.when(mapping.getFieldMapping(Matchers.anyString())).thenAnswer(new Answer<FieldMapping>() {
+
+			@Override
+			public FieldMapping answer(InvocationOnMock invocation) throws Throwable {
+				String column = columnOf(entityClass, (String) invocation.getArguments()[0]);
+				if (column == null) {
+					return null;
+				}
+				FieldMapping field = mock(FieldMapping.class);
+				Mockito.when(field.getColumns()).thenReturn(new Column[] { new Column(DBIdentifier.newColumn(column), table) });
+				return field;
+			}
+		});
+		return mapping;
+	}
+
+	private static String columnOf(Class<?> entityClass, String field) {
+		for (Class<?> type = entityClass; type != null; type = type.getSuperclass()) {
+			try {
+				boolean relation = AbstractEntity.class.isAssignableFrom(type.getDeclaredField(field).getType());
+				return field.toUpperCase(Locale.ENGLISH) + (relation ? "_ID" : "");
+			} catch (NoSuchFieldException e) {
+				continue;
+			}
+		}
+		return null;
+	}
+}
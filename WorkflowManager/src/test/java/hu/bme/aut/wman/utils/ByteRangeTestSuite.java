@@ -0,0 +1,71 @@
+/**
+ * ByteRangeTestSuite.java
+ */
+package hu.bme.aut.wman.utils;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class ByteRangeTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( ByteRangeTestSuite.class );
+
+	@Test
+	public void testClosedRange() {
+		try {
+			ByteRange range = ByteRange.parse("bytes=100-199", 1000);
+			Assert.assertEquals(100, range.getStart());
+			Assert.assertEquals(199, range.getEnd());
+			Assert.assertEquals(100, range.length());
+			Assert.assertEquals("bytes 100-199/1000", range.toContentRange());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testOpenAndSuffixRanges() {
+		try {
+			ByteRange open = ByteRange.parse("bytes=900-", 1000);
+			Assert.assertEquals(900, open.getStart());
+			Assert.assertEquals(999, open.getEnd());
+
+			ByteRange suffix = ByteRange.parse("bytes=-100", 1000);
+			Assert.assertEquals(900, suffix.getStart());
+			Assert.assertEquals(999, suffix.getEnd());
+
+			ByteRange longSuffix = ByteRange.parse("bytes=-5000", 1000);
+			Assert.assertEquals(0, longSuffix.getStart());
+
+			ByteRange clipped = ByteRange.parse("bytes=500-5000", 1000);
+			Assert.assertEquals(999, clipped.getEnd());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testIgnoredRanges() {
+		try {
+			Assert.assertNull(ByteRange.parse(null, 1000));
+			Assert.assertNull(ByteRange.parse("items=0-10", 1000));
+			Assert.assertNull(ByteRange.parse("bytes=0-10,20-30", 1000));
+			Assert.assertNull(ByteRange.parse("bytes=abc-", 1000));
+			Assert.assertNull(ByteRange.parse("bytes=20-10", 1000));
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsatisfiableRange() {
+		ByteRange.parse("bytes=1000-", 1000);
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * QuantileSketchTestSuite.java
+ */
+package hu.bme.aut.wman.utils;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @version "%I%, %G%"
+ */
+public class QuantileSketchTestSuite {
+
+	private static final Logger LOGGER = Logger.getLogger( QuantileSketchTestSuite.class );
+
+	@Test
+	public void testQuantilesWithinAccuracy() {
+		try {
+			QuantileSketch sketch = new QuantileSketch();
+			for (int value = 1; value <= 10000; ++value) {
+				sketch.add(value);
+			}
+			Assert.assertEquals(10000, sketch.getCount());
+			Assert.assertEquals(5000, sketch.quantile(0.5), 5000 * 0.011);
+			Assert.assertEquals(9900, sketch.quantile(0.99), 9900 * 0.011);
+			Assert.assertEquals(1, sketch.quantile(0), 0.011);
+			Assert.assertTrue(sketch.getBucketCount() < 1000);
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testMergeEqualsAddingAll() {
+		try {
+			QuantileSketch all = new QuantileSketch();
+			QuantileSketch low = new QuantileSketch();
+			QuantileSketch high = new QuantileSketch();
+			for (int value = 0; value < 2000; ++value) {
+				all.add(value);
+				(value < 700 ? low : high).add(value);
+			}
+			QuantileSketch merged = low.copy();
+			merged.merge(high);
+			Assert.assertEquals(all.getCount(), merged.getCount());
+			for (double q : new double[] { 0, 0.1, 0.5, 0.9, 1 }) {
+				Assert.assertEquals(all.quantile(q), merged.quantile(q), 0);
+			}
+			Assert.assertEquals(700, low.getCount());
+		} catch(Exception e) {
+			LOGGER.error(e);
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testEmptyAndInvalid() {
+		QuantileSketch sketch = new QuantileSketch();
+		Assert.assertTrue(Double.isNaN(sketch.quantile(0.5)));
+		try {
+			sketch.add(-1);
+			Assert.fail();
+		} catch(IllegalArgumentException e) {
+		}
+		try {
+			sketch.merge(new QuantileSketch(0.05));
+			Assert.fail();
+		} catch(IllegalArgumentException e) {
+		}
+	}
+}
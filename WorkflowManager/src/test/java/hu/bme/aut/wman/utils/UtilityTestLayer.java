@@ -13,7 +13,9 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses({
-	JsonParserTestSuite.class
+	JsonParserTestSuite.class,
+	ByteRangeTestSuite.class,
+	QuantileSketchTestSuite.class
 })
 public class UtilityTestLayer {
 }